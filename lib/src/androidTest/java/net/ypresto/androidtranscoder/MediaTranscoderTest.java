@@ -0,0 +1,49 @@
+package net.ypresto.androidtranscoder;
+
+import junit.framework.TestCase;
+
+import net.ypresto.androidtranscoder.engine.TimeLine;
+
+import java.io.FileDescriptor;
+
+public class MediaTranscoderTest extends TestCase {
+
+    public void testCodecDemandCountsEveryOverlaidChannel() throws Exception {
+        TimeLine timeLine = new TimeLine(7)
+                .addChannel("A", new FileDescriptor())
+                .addChannel("B", new FileDescriptor())
+                .addChannel("C", new FileDescriptor())
+                .addAudioOnlyChannel("D", new FileDescriptor());
+        timeLine.createSegment().output("A").output("B").output("C").duration(2000);
+        timeLine.createSegment().output("C").output("D");
+        MediaTranscoder.CodecDemand demand = MediaTranscoder.CodecDemand.estimate(timeLine, 1);
+        // Three video decoders, the encoder and a rendition encoder, three audio decoders and the encoder
+        assertEquals(9, demand.mCodecs);
+        assertEquals(3, demand.mHeldCodecs);
+        MediaTranscoder.CodecDemand single = MediaTranscoder.CodecDemand.estimate(timeLine, 0);
+        assertEquals(demand.mMemoryBytes - single.mMemoryBytes, demand.mHeldMemoryBytes - single.mHeldMemoryBytes);
+    }
+
+    public void testCodecDemandKeepsIdleDecoders() throws Exception {
+        TimeLine timeLine = new TimeLine(7)
+                .addChannel("A", new FileDescriptor())
+                .addChannel("B", new FileDescriptor())
+                .addChannel("C", new FileDescriptor());
+        timeLine.createSegment().output("A").duration(1000);
+        timeLine.createSegment().output("B").duration(1000);
+        timeLine.createSegment().output("C");
+        MediaTranscoder.CodecDemand demand = MediaTranscoder.CodecDemand.estimate(timeLine, 0);
+        // The last decoder stays open beside the next one
+        assertEquals(2 + 1 + 2 + 1, demand.mCodecs);
+        assertEquals(2, demand.mHeldCodecs);
+    }
+
+    public void testCodecDemandVideoOnly() throws Exception {
+        TimeLine timeLine = new TimeLine(7).addVideoOnlyChannel("A", new FileDescriptor());
+        timeLine.createSegment().output("A");
+        MediaTranscoder.CodecDemand demand = MediaTranscoder.CodecDemand.estimate(timeLine, 0);
+        assertEquals(2, demand.mCodecs);
+        assertEquals(1, demand.mHeldCodecs);
+        assertEquals(demand.mMemoryBytes, 2 * demand.mHeldMemoryBytes);
+    }
+}
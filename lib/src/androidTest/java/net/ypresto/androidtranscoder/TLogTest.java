@@ -0,0 +1,69 @@
+package net.ypresto.androidtranscoder;
+
+import junit.framework.TestCase;
+
+public class TLogTest extends TestCase {
+
+    @Override
+    protected void tearDown() throws Exception {
+        TLog.setLevel(TLog.INFO);
+        TLog.setTags(".*");
+        TLog.setLevel("Codec", null);
+        TLog.setTraceCapacity(0);
+    }
+
+    public void testFormat() throws Exception {
+        assertEquals("frame 3 at 100us", TLog.format("frame {} at {}us", 3, 100l));
+        assertEquals("no placeholders", TLog.format("no placeholders", 1));
+        assertEquals("a {} b", TLog.format("a {} b"));
+        assertEquals("x=null y={}", TLog.format("x={} y={}", (Object) null));
+    }
+
+    public void testLevelsResolvePerTag() throws Exception {
+        TLog.setLevel(TLog.WARN);
+        assertFalse(TLog.isLoggable("Engine", TLog.INFO));
+        assertTrue(TLog.isLoggable("Engine", TLog.ERROR));
+
+        TLog.setLevel("Codec", TLog.VERBOSE);
+        assertTrue(TLog.isLoggable("Codec", TLog.VERBOSE));
+        assertFalse(TLog.isLoggable("Engine", TLog.VERBOSE));
+
+        TLog.setTags("Eng.*");
+        assertTrue(TLog.isLoggable("Engine", TLog.WARN));
+        assertFalse(TLog.isLoggable("Muxer", TLog.ASSERT));
+        // Explicit levels win over the pattern
+        assertTrue(TLog.isLoggable("Codec", TLog.DEBUG));
+
+        TLog.setLevel("Codec", null);
+        assertFalse(TLog.isLoggable("Codec", TLog.ERROR));
+    }
+
+    public void testDisabledCallsDoNotFormat() throws Exception {
+        TLog.setLevel(TLog.ASSERT);
+        Object exploding = new Object() {
+            @Override
+            public String toString() {
+                throw new AssertionError("formatted");
+            }
+        };
+        TLog.v("Engine", "{}", exploding);
+        TLog.d("Engine", "{} {}", exploding, exploding);
+        TLog.e("Engine", "{}", exploding);
+    }
+
+    public void testTraceRingKeepsLatest() throws Exception {
+        StringBuilder dump = new StringBuilder();
+        TLog.trace("Ignored", 0, 0);
+        TLog.dumpTrace(dump);
+        assertEquals("", dump.toString());
+
+        TLog.setTraceCapacity(3);
+        for (int event = 0; event < 5; ++event)
+            TLog.trace("Frame", event, event * 10);
+        TLog.dumpTrace(dump);
+        String[] lines = dump.toString().split("\n");
+        assertEquals(3, lines.length);
+        assertTrue(lines[0], lines[0].startsWith("0us Frame 2 20"));
+        assertTrue(lines[2], lines[2].endsWith("Frame 4 40"));
+    }
+}
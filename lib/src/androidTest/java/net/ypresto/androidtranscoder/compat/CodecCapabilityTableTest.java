@@ -0,0 +1,83 @@
+package net.ypresto.androidtranscoder.compat;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+
+public class CodecCapabilityTableTest extends TestCase {
+    private static final int PROFILE_BASELINE = 1;
+    private static final int PROFILE_HIGH = 8;
+
+    private static CodecCapabilityTable syntheticTable() {
+        return new CodecCapabilityTable(Arrays.asList(
+                // Hardware AVC encoder limited to 1080p area but allowing 1920 on either side
+                new CodecCapabilityTable.Entry("hw.avc.encoder", "video/avc", true,
+                        96, 1920, 96, 1920, 16, 16, 1920l * 1088l, 1, 40000000, 0,
+                        new int[] {PROFILE_BASELINE, PROFILE_HIGH}, new int[] {0x200, 0x800}, 8),
+                new CodecCapabilityTable.Entry("sw.avc.decoder", "video/avc", false,
+                        2, 4096, 2, 4096, 2, 2, 4096l * 4096l, 1, 48000000, 0,
+                        new int[] {PROFILE_HIGH}, new int[] {0x10000}, 32),
+                new CodecCapabilityTable.Entry("sw.aac.encoder", "audio/mp4a-latm", true,
+                        0, 0, 0, 0, 1, 1, 0, 8000, 510000, 6,
+                        new int[0], new int[0], -1)));
+    }
+
+    public void testMimeLookup() throws Exception {
+        CodecCapabilityTable table = syntheticTable();
+        assertTrue(table.hasEncoder("video/avc"));
+        assertTrue(table.hasEncoder("AUDIO/MP4A-LATM"));
+        assertFalse(table.hasEncoder("video/hevc"));
+        assertEquals(1, table.getEncoders("video/avc").size());
+        assertEquals("sw.avc.decoder", table.getDecoders("video/avc").get(0).mName);
+        assertTrue(table.getDecoders("audio/mp4a-latm").isEmpty());
+    }
+
+    public void testSizeSupport() throws Exception {
+        CodecCapabilityTable table = syntheticTable();
+        assertTrue(table.isEncoderSizeSupported(1280, 720));
+        assertTrue(table.isEncoderSizeSupported(1088, 1920));
+        assertTrue(table.isEncoderSizeSupported("video/avc", 1920, 1088));
+        // Too large an area, although both sides are in range
+        assertFalse(table.isEncoderSizeSupported(1920, 1920));
+        // Misaligned, too small and too wide
+        assertFalse(table.isEncoderSizeSupported(1281, 720));
+        assertFalse(table.isEncoderSizeSupported(64, 64));
+        assertFalse(table.isEncoderSizeSupported(2560, 1080));
+        // Memoized answers stay the same
+        assertTrue(table.isEncoderSizeSupported(1280, 720));
+        assertFalse(table.isEncoderSizeSupported(2560, 1080));
+        assertFalse(table.isEncoderSizeSupported("video/hevc", 1280, 720));
+    }
+
+    public void testEntryQueries() throws Exception {
+        CodecCapabilityTable.Entry encoder = syntheticTable().getEncoders("video/avc").get(0);
+        assertEquals(0x800, encoder.getMaxLevel(PROFILE_HIGH));
+        assertEquals(-1, encoder.getMaxLevel(2));
+        assertTrue(encoder.isBitrateSupported(8000000));
+        assertFalse(encoder.isBitrateSupported(50000000));
+        assertEquals(8, encoder.mMaxInstances);
+        assertFalse(syntheticTable().getEncoders("audio/mp4a-latm").get(0).isVideo());
+    }
+
+    public void testPersistRoundTrip() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        syntheticTable().write(new DataOutputStream(bytes), "build/1");
+
+        CodecCapabilityTable table = CodecCapabilityTable.read(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), "build/1");
+        assertEquals(3, table.getEntries().size());
+        CodecCapabilityTable.Entry encoder = table.getEncoders("video/avc").get(0);
+        assertEquals("hw.avc.encoder", encoder.mName);
+        assertEquals(1920l * 1088l, encoder.mMaxPixels);
+        assertEquals(0x200, encoder.getMaxLevel(PROFILE_BASELINE));
+        assertEquals(6, table.getEncoders("audio/mp4a-latm").get(0).mMaxChannelCount);
+
+        // A table scanned on another build is not trusted
+        assertNull(CodecCapabilityTable.read(
+                new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), "build/2"));
+    }
+}
@@ -0,0 +1,168 @@
+package net.ypresto.androidtranscoder.engine;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+public class CodecBufferQueueTest extends TestCase {
+    private static final int BUFFERS = 4;
+
+    /**
+     * Stands in for a MediaCodec in callback mode.  Buffers cycle input -> output -> input with a
+     * format change before the first output, all reported from the codec's own thread.
+     */
+    private static class FakeCodec implements Runnable {
+        private static final long STOP = Long.MIN_VALUE;
+        private final CodecBufferQueue mQueue;
+        private final LinkedBlockingQueue<long[]> mQueued = new LinkedBlockingQueue<long[]>();
+        private final Thread mThread = new Thread(this, "FakeCodec");
+        private volatile boolean mFailOnInput;
+
+        FakeCodec(CodecBufferQueue queue) {
+            mQueue = queue;
+        }
+
+        void start() {
+            mQueue.start();
+            mThread.start();
+        }
+
+        void queueInputBuffer(int index, long presentationTimeUs, int flags) {
+            mQueued.add(new long[] {index, presentationTimeUs, flags});
+        }
+
+        void releaseOutputBuffer(int index) {
+            mQueued.add(new long[] {index, STOP + 1, 0});
+        }
+
+        void stop() throws InterruptedException {
+            mQueued.add(new long[] {0, STOP, 0});
+            mThread.join();
+        }
+
+        @Override
+        public void run() {
+            for (int index = 0; index < BUFFERS; ++index)
+                mQueue.onInputBufferAvailable(index);
+            boolean formatSent = false;
+            try {
+                while (true) {
+                    long[] event = mQueued.take();
+                    int index = (int) event[0];
+                    if (event[1] == STOP)
+                        return;
+                    if (event[1] == STOP + 1) {
+                        mQueue.onInputBufferAvailable(index);
+                        continue;
+                    }
+                    if (mFailOnInput) {
+                        mQueue.onError(new IllegalStateException("fake codec failure"));
+                        continue;
+                    }
+                    if (!formatSent) {
+                        MediaFormat format = new MediaFormat();
+                        format.setInteger(MediaFormat.KEY_WIDTH, 640);
+                        mQueue.onOutputFormatChanged(format);
+                        formatSent = true;
+                    }
+                    MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+                    info.set(index * 10, 100 + index, event[1], (int) event[2]);
+                    mQueue.onOutputBufferAvailable(index, info);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public void testBuffersFlowInOrder() throws Exception {
+        PipelineSignal signal = new PipelineSignal();
+        CodecBufferQueue queue = new CodecBufferQueue(signal);
+        FakeCodec codec = new FakeCodec(queue);
+        assertEquals(MediaCodec.INFO_TRY_AGAIN_LATER, queue.dequeueInputBuffer());
+        codec.start();
+
+        int frames = 1000;
+        int queued = 0;
+        int received = 0;
+        boolean formatReceived = false;
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        while (received < frames) {
+            boolean stepped = false;
+            int input;
+            while (queued < frames && (input = queue.dequeueInputBuffer()) >= 0) {
+                codec.queueInputBuffer(input, queued * 1000l, queued == frames - 1 ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
+                ++queued;
+                stepped = true;
+            }
+            int output;
+            while ((output = queue.dequeueOutputBuffer(info)) != MediaCodec.INFO_TRY_AGAIN_LATER) {
+                stepped = true;
+                if (output == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    assertFalse(formatReceived);
+                    assertEquals(0, received);
+                    assertEquals(640, queue.getOutputFormat().getInteger(MediaFormat.KEY_WIDTH));
+                    formatReceived = true;
+                    continue;
+                }
+                assertTrue(formatReceived);
+                assertEquals(received * 1000l, info.presentationTimeUs);
+                assertEquals(output * 10, info.offset);
+                assertEquals(100 + output, info.size);
+                assertEquals(received == frames - 1 ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0, info.flags);
+                codec.releaseOutputBuffer(output);
+                ++received;
+            }
+            if (!stepped)
+                signal.await(1000);
+        }
+        codec.stop();
+    }
+
+    public void testErrorSurfacesOnPipelineThread() throws Exception {
+        PipelineSignal signal = new PipelineSignal();
+        CodecBufferQueue queue = new CodecBufferQueue(signal);
+        FakeCodec codec = new FakeCodec(queue);
+        codec.mFailOnInput = true;
+        codec.start();
+        int index;
+        while ((index = queue.dequeueInputBuffer()) < 0)
+            signal.await(1000);
+        codec.queueInputBuffer(index, 0, 0);
+        try {
+            while (true) {
+                queue.dequeueOutputBuffer(new MediaCodec.BufferInfo());
+                signal.await(1000);
+            }
+        } catch (IllegalStateException e) {
+            assertEquals("fake codec failure", e.getCause().getMessage());
+        }
+        codec.stop();
+    }
+
+    public void testCallbacksAfterStopAreDropped() throws Exception {
+        CodecBufferQueue queue = new CodecBufferQueue(null);
+        queue.onInputBufferAvailable(0);
+        queue.stop();
+        queue.onInputBufferAvailable(1);
+        queue.clear();
+        assertEquals(MediaCodec.INFO_TRY_AGAIN_LATER, queue.dequeueInputBuffer());
+        queue.start();
+        queue.onInputBufferAvailable(2);
+        assertEquals(2, queue.dequeueInputBuffer());
+    }
+
+    public void testIndexBeyondQueueIsAnError() throws Exception {
+        CodecBufferQueue queue = new CodecBufferQueue(null);
+        queue.onInputBufferAvailable(CodecBufferQueue.MAX_BUFFERS);
+        try {
+            queue.dequeueInputBuffer();
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+}
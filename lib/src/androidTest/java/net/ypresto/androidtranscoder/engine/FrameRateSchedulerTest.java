@@ -0,0 +1,87 @@
+package net.ypresto.androidtranscoder.engine;
+
+import junit.framework.TestCase;
+
+import java.util.Random;
+
+public class FrameRateSchedulerTest extends TestCase {
+    private static final long HOUR_US = 60l * 60l * 1000000l;
+
+    public void testConstantRateIsPassedThrough() throws Exception {
+        FrameRateScheduler scheduler = new FrameRateScheduler(30);
+        for (long frame = 0; frame < 300; ++frame) {
+            long presentationTimeUs = frame * 1000000l / 30;
+            assertEquals(1, scheduler.schedule(presentationTimeUs));
+            assertEquals(presentationTimeUs, scheduler.getOutputTimeUs());
+            scheduler.advance();
+        }
+        assertEquals(0, scheduler.getFramesDropped());
+        assertEquals(0, scheduler.getFramesDuplicated());
+    }
+
+    public void testDownConversionDropsFrames() throws Exception {
+        FrameRateScheduler scheduler = new FrameRateScheduler(30);
+        long emitted = emit(scheduler, 0, HOUR_US, 60, 0, null);
+        assertEquals(HOUR_US * 30 / 1000000l, emitted, 1);
+        assertEquals(HOUR_US * 30 / 1000000l, scheduler.getFramesDropped(), 1);
+    }
+
+    public void testUpConversionDuplicatesFrames() throws Exception {
+        FrameRateScheduler scheduler = new FrameRateScheduler(30);
+        long emitted = emit(scheduler, 0, HOUR_US, 24, 0, null);
+        assertEquals(HOUR_US * 30 / 1000000l, emitted, 1);
+        assertEquals(HOUR_US * 6 / 1000000l, scheduler.getFramesDuplicated(), 1);
+    }
+
+    public void testVariableFrameRateDoesNotDrift() throws Exception {
+        FrameRateScheduler scheduler = new FrameRateScheduler(30);
+        long emitted = emit(scheduler, 0, HOUR_US, 30, 12000, new Random(42));
+        assertEquals(HOUR_US * 30 / 1000000l, emitted, 1);
+        // Output slot times are exact regardless of how many frames have been placed
+        assertEquals(emitted * 1000000l / 30, scheduler.getOutputTimeUs());
+    }
+
+    public void testConcatenatedRatesStayOnCadence() throws Exception {
+        FrameRateScheduler scheduler = new FrameRateScheduler(30);
+        long emitted = emit(scheduler, 0, HOUR_US / 2, 25, 0, null);
+        emitted += emit(scheduler, HOUR_US / 2, HOUR_US, 60, 4000, new Random(7));
+        assertEquals(HOUR_US * 30 / 1000000l, emitted, 1);
+        assertEquals(emitted * 1000000l / 30, scheduler.getOutputTimeUs());
+    }
+
+    public void testOriginOffsetsGrid() throws Exception {
+        FrameRateScheduler scheduler = new FrameRateScheduler(24);
+        scheduler.reset(500000l);
+        assertEquals(1, scheduler.schedule(400000l));
+        assertEquals(500000l, scheduler.getOutputTimeUs());
+        scheduler.advance();
+        assertEquals(0, scheduler.schedule(510000l));
+        assertEquals(2, scheduler.schedule(500000l + 2 * 1000000l / 24));
+    }
+
+    /**
+     * Feed a synthetic stream of frames at the given rate with optional random jitter and
+     * verify that every emitted frame lands on a strictly increasing, exact slot time.
+     */
+    private long emit(FrameRateScheduler scheduler, long startUs, long endUs, int inputRate, long jitterUs, Random random) {
+        long emitted = 0;
+        long lastOutputUs = -1;
+        for (long frame = 0; ; ++frame) {
+            long presentationTimeUs = startUs + frame * 1000000l / inputRate;
+            if (presentationTimeUs >= endUs)
+                break;
+            if (random != null)
+                presentationTimeUs += (long) ((random.nextDouble() - 0.5) * jitterUs);
+            int frames = scheduler.schedule(presentationTimeUs);
+            for (int i = 0; i < frames; ++i) {
+                long outputUs = scheduler.getOutputTimeUs();
+                assertTrue(outputUs > lastOutputUs);
+                assertEquals(scheduler.getFramesEmitted() * 1000000l / scheduler.getFrameRate(), outputUs);
+                lastOutputUs = outputUs;
+                scheduler.advance();
+                ++emitted;
+            }
+        }
+        return emitted;
+    }
+}
@@ -0,0 +1,66 @@
+package net.ypresto.androidtranscoder.engine;
+
+import junit.framework.TestCase;
+
+public class IntRingBufferTest extends TestCase {
+
+    public void testCapacityRoundsUpToPowerOfTwo() throws Exception {
+        assertEquals(8, new IntRingBuffer(5).capacity());
+        assertEquals(256, new IntRingBuffer(256).capacity());
+    }
+
+    public void testFifoAcrossWrap() throws Exception {
+        IntRingBuffer ring = new IntRingBuffer(4);
+        int next = 0;
+        int expected = 0;
+        for (int round = 0; round < 10; ++round) {
+            while (ring.offer(next))
+                ++next;
+            assertEquals(4, ring.size());
+            assertEquals(expected, ring.peek(-1));
+            assertEquals(expected++, ring.poll(-1));
+            assertEquals(expected++, ring.poll(-1));
+        }
+        while (!ring.isEmpty())
+            assertEquals(expected++, ring.poll(-1));
+        assertEquals(next, expected);
+        assertEquals(-1, ring.poll(-1));
+    }
+
+    public void testClear() throws Exception {
+        IntRingBuffer ring = new IntRingBuffer(4);
+        ring.offer(1);
+        ring.offer(2);
+        ring.clear();
+        assertTrue(ring.isEmpty());
+        assertTrue(ring.offer(3));
+        assertEquals(3, ring.poll(-1));
+    }
+
+    public void testSingleProducerSingleConsumer() throws Exception {
+        final IntRingBuffer ring = new IntRingBuffer(16);
+        final int count = 200000;
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int value = 0; value < count; ) {
+                    if (ring.offer(value))
+                        ++value;
+                    else
+                        Thread.yield();
+                }
+            }
+        });
+        producer.start();
+        for (int expected = 0; expected < count; ) {
+            int value = ring.poll(-1);
+            if (value < 0) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(expected++, value);
+        }
+        producer.join();
+        assertTrue(ring.isEmpty());
+    }
+}
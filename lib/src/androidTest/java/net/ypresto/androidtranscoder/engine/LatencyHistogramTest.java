@@ -0,0 +1,35 @@
+package net.ypresto.androidtranscoder.engine;
+
+import junit.framework.TestCase;
+
+public class LatencyHistogramTest extends TestCase {
+
+    public void testEmpty() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMeanUs());
+        assertEquals(0, histogram.getPercentileUs(99));
+    }
+
+    public void testPercentilesAreBucketUpperBounds() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 90; ++i)
+            histogram.record(1000);
+        for (int i = 0; i < 10; ++i)
+            histogram.record(40000);
+        assertEquals(100, histogram.getCount());
+        assertEquals(4900, histogram.getMeanUs());
+        assertEquals(1023, histogram.getPercentileUs(50));
+        assertEquals(1023, histogram.getPercentileUs(90));
+        assertEquals(40000, histogram.getPercentileUs(91));
+        assertEquals(40000, histogram.getMaxUs());
+    }
+
+    public void testExtremes() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        assertEquals(0, histogram.getPercentileUs(50));
+        assertEquals(Long.MAX_VALUE, histogram.getPercentileUs(100));
+    }
+}
@@ -0,0 +1,86 @@
+package net.ypresto.androidtranscoder.engine;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import junit.framework.TestCase;
+
+import net.ypresto.androidtranscoder.source.WavReader;
+import net.ypresto.androidtranscoder.source.WavSource;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+public class PcmQueueTest extends TestCase {
+    private static final int FRAMES = 2500;     // Not a whole number of samples
+
+    public void testRunsToEndOfStream() {
+        WavSource source = new WavSource(new WavReader(ByteBuffer.wrap(wav(2, 48000, FRAMES))));
+        source.selectTrack(0);
+        MediaFormat format = source.getTrackFormat(0);
+        PcmQueue queue = new PcmQueue(format);
+        queue.configure(format, null, 0);
+        queue.start();
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        boolean inputDone = false;
+        boolean formatReported = false;
+        int samples = 0;
+        long lastTimeUs = -1;
+        for (int step = 0; step < 100; ++step) {
+            // Feed it as AudioTrackTranscoder.drainExtractors does
+            int input = queue.dequeueInputBuffer(0);
+            if (!inputDone && input >= 0) {
+                if (source.getSampleTrackIndex() < 0) {
+                    queue.queueInputBuffer(input, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                    inputDone = true;
+                } else {
+                    ByteBuffer data = source.getSampleBuffer();
+                    queue.setInputData(input, data);
+                    queue.queueInputBuffer(input, 0, data.remaining(), source.getSampleTime(), MediaCodec.BUFFER_FLAG_KEY_FRAME);
+                    source.advance();
+                }
+            }
+            // Drain it as drainDecoder does, measuring every buffer before looking at its flags
+            int output = queue.dequeueOutputBuffer(info, 0);
+            if (output == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                assertEquals(2, queue.getOutputFormat().getInteger(MediaFormat.KEY_CHANNEL_COUNT));
+                formatReported = true;
+                continue;
+            }
+            if (output < 0)
+                continue;
+            assertTrue(formatReported);
+            ShortBuffer data = queue.getOutputBuffer(output).asShortBuffer();
+            assertEquals(info.size / 2, data.remaining());
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                assertEquals(0, data.remaining());
+                queue.releaseOutputBuffer(output, false);
+                assertEquals(2 * FRAMES, samples);
+                assertEquals(2048 * 1000000l / 48000, lastTimeUs);
+                queue.stop();
+                queue.release();
+                return;
+            }
+            assertTrue(info.presentationTimeUs > lastTimeUs);
+            lastTimeUs = info.presentationTimeUs;
+            for (int i = 0; i < data.remaining(); ++i)
+                assertEquals((short) (samples + i), data.get(i));
+            samples += data.remaining();
+            queue.releaseOutputBuffer(output, false);
+        }
+        fail("No end of stream after " + samples + " samples");
+    }
+
+    private static byte[] wav(int channels, int sampleRate, int frames) {
+        int dataSize = frames * channels * 2;
+        ByteBuffer buffer = ByteBuffer.allocate(44 + dataSize).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(new byte[] {'R', 'I', 'F', 'F'}).putInt(36 + dataSize).put(new byte[] {'W', 'A', 'V', 'E'});
+        buffer.put(new byte[] {'f', 'm', 't', ' '}).putInt(16).putShort((short) 1).putShort((short) channels)
+                .putInt(sampleRate).putInt(sampleRate * channels * 2).putShort((short) (channels * 2)).putShort((short) 16);
+        buffer.put(new byte[] {'d', 'a', 't', 'a'}).putInt(dataSize);
+        for (int i = 0; i < frames * channels; ++i)
+            buffer.putShort((short) i);
+        return buffer.array();
+    }
+}
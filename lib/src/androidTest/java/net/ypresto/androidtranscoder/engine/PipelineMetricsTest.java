@@ -0,0 +1,93 @@
+package net.ypresto.androidtranscoder.engine;
+
+import junit.framework.TestCase;
+
+public class PipelineMetricsTest extends TestCase {
+
+    public void testInFlightMatchesPresentationTimes() throws Exception {
+        PipelineMetrics.InFlight inFlight = new PipelineMetrics.InFlight();
+        inFlight.start(0);
+        inFlight.start(33333);
+        inFlight.start(66666);
+        // Out of order, as with B frames
+        assertTrue(inFlight.finish(66666) >= 0);
+        assertTrue(inFlight.finish(0) >= 0);
+        assertEquals(-1, inFlight.finish(0));
+        assertEquals(-1, inFlight.finish(12345));
+        assertTrue(inFlight.finish(33333) >= 0);
+    }
+
+    public void testInFlightForgetsOldest() throws Exception {
+        PipelineMetrics.InFlight inFlight = new PipelineMetrics.InFlight();
+        for (int frame = 0; frame < 40; ++frame)
+            inFlight.start(frame);
+        assertEquals(-1, inFlight.finish(0));
+        assertTrue(inFlight.finish(39) >= 0);
+    }
+
+    public void testStagesAndChannels() throws Exception {
+        PipelineMetrics metrics = new PipelineMetrics();
+        metrics.getVideo().record(PipelineMetrics.Stage.DECODE, 1000);
+        metrics.getVideo().record(PipelineMetrics.Stage.DECODE, -1);
+        metrics.getChannel("A").record(PipelineMetrics.Stage.DECODE, 2000);
+        assertSame(metrics.getChannel("A"), metrics.getChannels().get("A"));
+        assertEquals(2, metrics.getVideo().get(PipelineMetrics.Stage.DECODE).getCount());
+        // Unknown latency is counted but not timed
+        assertEquals(1, metrics.getVideo().get(PipelineMetrics.Stage.DECODE).getLatency().getCount());
+        assertEquals(0, metrics.getAudio().get(PipelineMetrics.Stage.DECODE).getCount());
+        metrics.frameDropped();
+        metrics.framesDuplicated(2);
+        metrics.throttleBlocked(500);
+        assertEquals(1, metrics.getFramesDropped());
+        assertEquals(2, metrics.getFramesDuplicated());
+        assertEquals(500, metrics.getThrottleBlockedUs());
+    }
+
+    public void testSetupAndContextSwitches() throws Exception {
+        PipelineMetrics metrics = new PipelineMetrics();
+        assertEquals(0, metrics.getSetupUs());
+        assertEquals(0, metrics.getContextSwitches());
+        // Each segment's setup adds to the first
+        metrics.setup(1500);
+        metrics.setup(250);
+        for (int i = 0; i < 3; ++i)
+            metrics.contextSwitched();
+        assertEquals(1750, metrics.getSetupUs());
+        assertEquals(3, metrics.getContextSwitches());
+        assertTrue(metrics.toString().contains("setup=1750us contextSwitches=3"));
+    }
+
+    public void testFramesPerSecond() throws Exception {
+        PipelineMetrics metrics = new PipelineMetrics();
+        for (int frame = 0; frame < 10; ++frame)
+            metrics.getVideo().record(PipelineMetrics.Stage.ENCODE, 0);
+        Thread.sleep(20);
+        metrics.sample();
+        assertTrue(metrics.getFramesPerSecond() > 0);
+        assertTrue(metrics.getFramesPerSecond() <= 10 / 0.02);
+        Thread.sleep(5);
+        metrics.sample();
+        assertEquals(0.0, metrics.getFramesPerSecond());
+    }
+
+    public void testConcurrentRecording() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; ++i) {
+            final int thread = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int sample = 0; sample < 10000; ++sample)
+                        histogram.record(thread * 1000 + sample % 100);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(40000, histogram.getCount());
+        assertEquals(3099, histogram.getMaxUs());
+        assertEquals(3099, histogram.getPercentileUs(100));
+    }
+}
@@ -0,0 +1,83 @@
+package net.ypresto.androidtranscoder.engine;
+
+import junit.framework.TestCase;
+
+import java.io.FileDescriptor;
+
+public class ProgressModelTest extends TestCase {
+    private static final long SECOND_US = 1000000l;
+    private static final long SECOND_NS = 1000000000l;
+
+    public void testOpenEndedSegmentFromPlan() throws Exception {
+        // As the single file transcode builds it, the segments run to the end of their input
+        TimeLine timeLine = new TimeLine(7).addChannel("A", new FileDescriptor());
+        TimeLine.InputChannel channel = timeLine.getChannels().get("A");
+        channel.mLengthUs = 10 * SECOND_US;
+        channel.mVideoFrameLength = 40000;
+        timeLine.createSegment().output("A").duration(2000);
+        timeLine.createSegment().output("A").seek("A", 4000);
+        ProgressModel model = ProgressModel.create(timeLine.plan());
+        model.setTracks(true, false);
+        model.startSegment(0, 0, 0);
+        model.update(2 * SECOND_US, 0, -1, SECOND_NS);
+        // The second segment seeks 4 seconds on from where the first left off and plays the 4 left, after a pre-roll
+        double total = 6 * SECOND_US + ProgressModel.DEFAULT_PRE_ROLL_US;
+        assertEquals(2 * SECOND_US / total, model.getProgress(), 0.0001);
+    }
+
+    public void testAudioOnly() throws Exception {
+        ProgressModel model = new ProgressModel(new long[] {SECOND_US, SECOND_US}, new int[] {0, 0});
+        model.setTracks(false, true);
+        model.startSegment(0, 0, 0);
+        model.update(0, SECOND_US / 2, -1, SECOND_NS);
+        assertEquals(0.25, model.getProgress(), 0.0001);
+    }
+
+    public void testAudioWeighted() throws Exception {
+        ProgressModel model = new ProgressModel(new long[] {SECOND_US}, new int[] {0});
+        model.setTracks(true, true);
+        model.startSegment(0, 0, 0);
+        model.update(SECOND_US / 2, SECOND_US, -1, SECOND_NS);
+        assertEquals((0.5 + ProgressModel.AUDIO_WEIGHT) / (1.0 + ProgressModel.AUDIO_WEIGHT), model.getProgress(), 0.0001);
+    }
+
+    public void testSeekPreRollCounted() throws Exception {
+        ProgressModel model = new ProgressModel(new long[] {SECOND_US, SECOND_US}, new int[] {0, 1});
+        model.setTracks(true, false);
+        model.startSegment(0, 0, 0);
+        model.update(SECOND_US, 0, -1, SECOND_NS);
+        double total = 2 * SECOND_US + ProgressModel.DEFAULT_PRE_ROLL_US;
+        assertEquals(SECOND_US / total, model.getProgress(), 0.0001);
+
+        // Output of the next segment moves once its seek is done
+        model.startSegment(1, SECOND_US, SECOND_NS);
+        model.update(SECOND_US, 0, -1, 2 * SECOND_NS);
+        assertEquals(SECOND_US / total, model.getProgress(), 0.0001);
+        model.update(SECOND_US + SECOND_US / 2, 0, -1, 3 * SECOND_NS);
+        assertEquals((SECOND_US * 1.5 + ProgressModel.DEFAULT_PRE_ROLL_US) / total, model.getProgress(), 0.0001);
+    }
+
+    public void testEtaAndFrameRate() throws Exception {
+        ProgressModel model = new ProgressModel(new long[] {10 * SECOND_US}, new int[] {0});
+        model.setTracks(true, false);
+        model.startSegment(0, 0, 0);
+        assertEquals(-1, model.getEtaMs());
+        // Half real time, 30 frames for each second of wall time
+        for (int second = 1; second <= 4; ++second)
+            model.update(second * SECOND_US / 2, 0, second * 30, second * SECOND_NS);
+        assertEquals(16000, model.getEtaMs());
+        assertEquals(30.0, model.getFramesPerSecond(), 0.0001);
+    }
+
+    public void testLearnsSegmentCost() throws Exception {
+        ProgressModel model = new ProgressModel(new long[] {SECOND_US, SECOND_US}, new int[] {0, 0});
+        model.setTracks(true, false);
+        model.startSegment(0, 0, 0);
+        model.update(SECOND_US / 2, 0, -1, SECOND_NS);
+        model.finishSegment(0, 2 * SECOND_NS);
+        assertEquals(2000.0, model.getSegmentNsPerWork(0), 0.0001);
+        assertEquals(0.0, model.getSegmentNsPerWork(1));
+        assertEquals(0.5, model.getProgress(), 0.0001);
+        assertEquals(2000, model.getEtaMs());
+    }
+}
@@ -0,0 +1,80 @@
+package net.ypresto.androidtranscoder.engine;
+
+import junit.framework.TestCase;
+
+import java.io.FileDescriptor;
+
+public class TimeLineTest extends TestCase {
+
+    private static TimeLine timeLine() {
+        return new TimeLine(7)
+                .addChannel("A", new FileDescriptor())
+                .addVideoOnlyChannel("B", new FileDescriptor())
+                .addAudioOnlyChannel("C", new FileDescriptor());
+    }
+
+    public void testSlotsFollowChannelTypes() throws Exception {
+        TimeLine timeLine = timeLine();
+        TimeLine.Segment segment = timeLine.createSegment().output("A").output("B").output("C");
+        timeLine.prepare();
+
+        TimeLine.ChannelSlot[] slots = segment.getSlots();
+        assertEquals(3, slots.length);
+        assertEquals(TimeLine.TYPE_VIDEO | TimeLine.TYPE_AUDIO, slots[0].mTypeMask);
+        assertEquals(TimeLine.TYPE_VIDEO, slots[1].mTypeMask);
+        assertEquals(TimeLine.TYPE_AUDIO, slots[2].mTypeMask);
+        assertSame(segment.getSegmentChannel("B"), slots[1].mSegmentChannel);
+        assertSame(timeLine.getChannels().get("B"), slots[1].mChannel);
+        assertEquals("VideoB", slots[1].mVideoThrottleKey);
+
+        TimeLine.ChannelSlot[] videoSlots = segment.getVideoSlots();
+        assertEquals(2, videoSlots.length);
+        assertSame(slots[0], videoSlots[0]);
+        assertSame(slots[1], videoSlots[1]);
+        assertEquals(1, segment.getVideoSlotIndex("B"));
+        assertEquals(-1, segment.getVideoSlotIndex("C"));
+
+        TimeLine.ChannelSlot[] audioSlots = segment.getAudioSlots();
+        assertEquals(2, audioSlots.length);
+        assertSame(slots[0], audioSlots[0]);
+        assertSame(slots[2], audioSlots[1]);
+        assertEquals(-1, segment.getAudioSlotIndex("B"));
+
+        // Compiled once, the same arrays are returned each step
+        assertSame(videoSlots, segment.getVideoSlots());
+    }
+
+    public void testPrepareRecompilesWhenAudioIsUnused() throws Exception {
+        TimeLine timeLine = timeLine();
+        TimeLine.Segment segment = timeLine.createSegment().output("A", TimeLine.Filter.MUTE);
+        assertEquals(1, segment.getAudioSlots().length);
+        timeLine.prepare();
+        // No segment hears A so it is treated as video only
+        assertEquals(0, segment.getAudioSlots().length);
+        assertEquals(1, segment.getVideoSlots().length);
+    }
+
+    public void testAddingOutputInvalidatesSlots() throws Exception {
+        TimeLine timeLine = timeLine();
+        TimeLine.Segment segment = timeLine.createSegment().output("A");
+        assertEquals(1, segment.getVideoSlots().length);
+        segment.output("B");
+        assertEquals(2, segment.getVideoSlots().length);
+    }
+
+    public void testTrimOnlyChannel() throws Exception {
+        TimeLine timeLine = timeLine();
+        timeLine.createSegment().output("A").seek("A", 1000).duration(2000);
+        assertEquals("A", timeLine.getTrimOnlyChannel());
+        assertEquals(2000000l, (long) timeLine.getSegments().get(0).getRequestedDuration());
+
+        TimeLine filtered = timeLine();
+        filtered.createSegment().output("A", TimeLine.Filter.OPACITY_UP_RAMP);
+        assertNull(filtered.getTrimOnlyChannel());
+
+        TimeLine twoSegments = timeLine();
+        twoSegments.createSegment().output("A");
+        twoSegments.createSegment().output("B");
+        assertNull(twoSegments.getTrimOnlyChannel());
+    }
+}
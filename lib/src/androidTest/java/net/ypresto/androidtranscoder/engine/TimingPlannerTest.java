@@ -0,0 +1,213 @@
+package net.ypresto.androidtranscoder.engine;
+
+import junit.framework.TestCase;
+
+import java.io.FileDescriptor;
+
+public class TimingPlannerTest extends TestCase {
+    private static final long SECOND_US = 1000000l;
+
+    private static TimeLine timeLine(long frameLengthUs) {
+        TimeLine timeLine = new TimeLine(7)
+                .addChannel("A", new FileDescriptor())
+                .addChannel("B", new FileDescriptor());
+        for (TimeLine.InputChannel inputChannel : timeLine.getChannels().values()) {
+            inputChannel.mLengthUs = 60 * SECOND_US;
+            inputChannel.mVideoFrameLength = frameLengthUs;
+        }
+        return timeLine;
+    }
+
+    public void testSequentialSegments() throws Exception {
+        TimeLine timeLine = timeLine(40000);
+        timeLine.createSegment().output("A").duration(2000);
+        timeLine.createSegment().output("A").duration(3000);
+        TimingPlan plan = timeLine.plan();
+
+        assertEquals(2, plan.getSegments().size());
+        assertEquals(5 * SECOND_US, plan.getDurationUs());
+        TimingPlan.ChannelTiming first = plan.getSegment(0).getChannel("A");
+        assertEquals(0, first.mSeekUs);
+        assertEquals(0, first.mInputStartUs);
+        assertEquals(2 * SECOND_US, first.mInputEndUs);
+        assertEquals(0, first.mVideoOutputOffsetUs);
+        TimingPlan.ChannelTiming second = plan.getSegment(1).getChannel("A");
+        assertEquals(2 * SECOND_US, plan.getSegment(1).mOutputStartUs);
+        assertEquals(2 * SECOND_US, second.mInputStartUs);
+        assertEquals(5 * SECOND_US, second.mInputEndUs);
+        assertEquals(0, second.mVideoOutputOffsetUs);
+        assertNull(plan.getSegment(1).getChannel("B"));
+    }
+
+    public void testSeekRoundingIsCarried() throws Exception {
+        TimeLine timeLine = timeLine(40000);
+        for (int segment = 0; segment < 4; ++segment)
+            timeLine.createSegment().output("A").seek("A", 10).duration(1000);
+        TimingPlan plan = timeLine.plan();
+
+        // 10ms short of a frame each time, given back once it adds up to one
+        long[] seeks = {0, 0, 0, 40000};
+        long inputEndUs = 0;
+        for (int segment = 0; segment < seeks.length; ++segment) {
+            TimingPlan.ChannelTiming timing = plan.getSegment(segment).getChannel("A");
+            assertEquals(seeks[segment], timing.mSeekUs);
+            assertEquals(inputEndUs + seeks[segment], timing.mInputStartUs);
+            assertEquals(segment * SECOND_US - timing.mInputStartUs, timing.mVideoOutputOffsetUs);
+            inputEndUs = timing.mInputEndUs;
+        }
+    }
+
+    public void testDurationRoundingIsCarried() throws Exception {
+        TimeLine timeLine = timeLine(30000);
+        for (int segment = 0; segment < 3; ++segment)
+            timeLine.createSegment().output("A").duration(1000);
+        TimingPlan plan = timeLine.plan();
+
+        // 33 frames is 10ms short of a second
+        assertEquals(990000, plan.getSegment(0).getChannel("A").mTrackDurationUs);
+        assertEquals(990000, plan.getSegment(1).getChannel("A").mTrackDurationUs);
+        assertEquals(1020000, plan.getSegment(2).getChannel("A").mTrackDurationUs);
+        assertEquals(3 * SECOND_US, plan.getSegment(2).getChannel("A").mInputEndUs);
+    }
+
+    public void testTimeScale() throws Exception {
+        TimeLine timeLine = timeLine(40000);
+        timeLine.createSegment().output("A").duration(1000);
+        timeLine.createSegment().output("A").timeScale(2000).duration(1000);
+        timeLine.createSegment().output("A").duration(1000);
+        TimingPlan plan = timeLine.plan();
+
+        TimingPlan.ChannelTiming scaled = plan.getSegment(1).getChannel("A");
+        assertEquals(SECOND_US, scaled.mInputStartUs);
+        assertEquals(2 * SECOND_US, scaled.mTrackDurationUs);
+        assertEquals(SECOND_US, scaled.mTimeToCutUs);
+        assertEquals(0, scaled.mTimeToAddUs);
+        assertTrue(scaled.mMuteAudio);
+        assertEquals(scaled.mVideoOutputOffsetUs - SECOND_US, scaled.mAudioOutputOffsetUs);
+
+        // Budgets don't carry into the next segment
+        TimingPlan.ChannelTiming after = plan.getSegment(2).getChannel("A");
+        assertEquals(3 * SECOND_US, after.mInputStartUs);
+        assertEquals(0, after.mTimeToCutUs);
+        assertFalse(after.mMuteAudio);
+        assertEquals(-SECOND_US, after.mVideoOutputOffsetUs);
+    }
+
+    public void testChannelsContinueWhereTheyLeftOff() throws Exception {
+        TimeLine timeLine = timeLine(40000);
+        timeLine.createSegment().output("A").duration(2000);
+        timeLine.createSegment().output("B").duration(2000);
+        timeLine.createSegment().output("A").output("B", TimeLine.Filter.MUTE).duration(1000);
+        TimingPlan plan = timeLine.plan();
+
+        TimingPlan.ChannelTiming a = plan.getSegment(2).getChannel("A");
+        TimingPlan.ChannelTiming b = plan.getSegment(2).getChannel("B");
+        assertEquals(2 * SECOND_US, a.mInputStartUs);
+        assertEquals(2 * SECOND_US, a.mVideoOutputOffsetUs);
+        assertFalse(a.mMuteAudio);
+        assertEquals(2 * SECOND_US, b.mInputStartUs);
+        assertEquals(2 * SECOND_US, b.mVideoOutputOffsetUs);
+        assertTrue(b.mMuteAudio);
+    }
+
+    public void testDurationToEndOfFile() throws Exception {
+        TimeLine timeLine = timeLine(40000);
+        timeLine.createSegment().output("A").seek("A", 50000);
+        TimingPlan plan = timeLine.plan();
+
+        assertEquals(10 * SECOND_US, plan.getDurationUs());
+        assertEquals(50 * SECOND_US, plan.getSegment(0).getChannel("A").mInputStartUs);
+        assertEquals(60 * SECOND_US, plan.getSegment(0).getChannel("A").mInputEndUs);
+    }
+
+    public void testOpenEndedSegmentContinuesChannel() throws Exception {
+        TimeLine timeLine = timeLine(40000);
+        timeLine.createSegment().output("A").duration(20000);
+        timeLine.createSegment().output("A").seek("A", 10000);
+        TimingPlan plan = timeLine.plan();
+
+        // Runs from 30 seconds in to the end of the channel
+        assertEquals(30 * SECOND_US, plan.getSegment(1).getChannel("A").mInputStartUs);
+        assertEquals(30 * SECOND_US, plan.getSegment(1).mDurationUs);
+        assertEquals(60 * SECOND_US, plan.getSegment(1).getChannel("A").mInputEndUs);
+        assertEquals(50 * SECOND_US, plan.getDurationUs());
+    }
+
+    public void testPlanningLeavesTimeLineAlone() throws Exception {
+        TimeLine timeLine = timeLine(30000);
+        timeLine.createSegment().output("A").seek("A", 10).timeScale(2000).duration(1000);
+        timeLine.createSegment().output("A").duration(1000);
+        TimingPlan plan = timeLine.plan();
+
+        TimeLine.InputChannel inputChannel = timeLine.getChannels().get("A");
+        assertEquals(0l, (long) inputChannel.mInputEndTimeUs);
+        assertEquals(0l, inputChannel.mTimeToCut);
+        assertNull(timeLine.getSegments().get(0).getSegmentChannel("A").mSeek);
+        assertSame(plan, timeLine.getPlan());
+        try {
+            plan.getSegment(0).getChannels().clear();
+            fail("Plan should be immutable");
+        } catch (UnsupportedOperationException e) {
+            // Expected
+        }
+    }
+
+    public void testSegmentStartFollowsPlan() throws Exception {
+        TimeLine timeLine = timeLine(30000);
+        timeLine.createSegment().output("A").seek("A", 10).duration(1000);
+        timeLine.createSegment().output("A").timeScale(2000).duration(1000);
+        timeLine.createSegment().output("A").seek("A", 15).duration(1000);
+        TimingPlan plan = timeLine.plan();
+
+        TimeLine.InputChannel inputChannel = timeLine.getChannels().get("A");
+        for (int segment = 0; segment < 3; ++segment) {
+            TimingPlan.SegmentTiming timing = plan.getSegment(segment);
+            long outputUs = timing.mOutputStartUs;
+            timeLine.getSegments().get(segment).start(outputUs, outputUs, outputUs, outputUs, outputUs);
+            TimingPlan.ChannelTiming channelTiming = timing.getChannel("A");
+            assertEquals(channelTiming.mInputStartUs, (long) inputChannel.mVideoInputStartTimeUs);
+            assertEquals(channelTiming.mInputEndUs, (long) inputChannel.mInputEndTimeUs);
+            assertEquals(channelTiming.mVideoOutputOffsetUs, (long) inputChannel.mVideoInputOffsetUs);
+            assertEquals(channelTiming.mAudioOutputOffsetUs, (long) inputChannel.mAudioInputOffsetUs);
+            assertEquals(channelTiming.mTimeToCutUs, inputChannel.mTimeToCut);
+            // The transcoder runs the segment to its planned end
+            inputChannel.mVideoInputAcutalEndTimeUs = inputChannel.mInputEndTimeUs;
+            inputChannel.mAudioInputAcutalEndTimeUs = inputChannel.mInputEndTimeUs;
+        }
+    }
+
+    public void testSegmentStartFollowsPlanAcrossChannels() throws Exception {
+        TimeLine timeLine = timeLine(40000);
+        timeLine.createSegment().output("A").duration(2010);
+        timeLine.createSegment().output("A").output("B").seek("B", 3000).duration(1000);
+        timeLine.createSegment().output("B").duration(2000);
+        timeLine.createSegment().output("A").seek("A", 500);
+        TimingPlan plan = timeLine.plan();
+
+        long videoOutputUs = 0;
+        for (int segment = 0; segment < plan.getSegments().size(); ++segment) {
+            TimingPlan.SegmentTiming timing = plan.getSegment(segment);
+            TimeLine.Segment timeLineSegment = timeLine.getSegments().get(segment);
+            timeLineSegment.start(timing.mOutputStartUs, videoOutputUs, videoOutputUs, videoOutputUs, videoOutputUs);
+            assertEquals(timing.mDurationUs, timeLineSegment.getTiming().mDurationUs);
+            for (TimingPlan.ChannelTiming channelTiming : timing.getChannels().values()) {
+                TimeLine.InputChannel inputChannel = timeLine.getChannels().get(channelTiming.mChannel);
+                // Where the input is read always comes from the plan
+                assertEquals(channelTiming.mInputStartUs, (long) inputChannel.mVideoInputStartTimeUs);
+                assertEquals(channelTiming.mInputStartUs, (long) inputChannel.mAudioInputStartTimeUs);
+                assertEquals(channelTiming.mInputEndUs, (long) inputChannel.mInputEndTimeUs);
+                // Offsets follow the output reached, matching the plan while that is where the plan put it
+                assertEquals(channelTiming.mVideoOutputOffsetUs + videoOutputUs - timing.mOutputStartUs,
+                        (long) inputChannel.mVideoInputOffsetUs);
+                // A decoder reading to the planned end, or a frame short of it
+                inputChannel.mVideoInputAcutalEndTimeUs = inputChannel.mInputEndTimeUs;
+                inputChannel.mAudioInputAcutalEndTimeUs = inputChannel.mInputEndTimeUs;
+            }
+            videoOutputUs = timing.mOutputStartUs + timing.mDurationUs;
+        }
+        // A continues from the 3 seconds its two segments read plus the half second seek, rounded down to a frame
+        assertEquals(3480000, plan.getSegment(3).getChannel("A").mInputStartUs);
+        assertEquals(60 * SECOND_US - 3480000, plan.getSegment(3).mDurationUs);
+        assertEquals(timeLine.getChannels().get("A").mLengthUs.longValue(), (long) timeLine.getChannels().get("A").mInputEndTimeUs);
+    }
+}
@@ -0,0 +1,35 @@
+package net.ypresto.androidtranscoder.engine;
+
+import junit.framework.TestCase;
+
+import java.io.StringWriter;
+
+public class TraceRecorderTest extends TestCase {
+
+    public void testWritesCompleteEvents() throws Exception {
+        TraceRecorder trace = new TraceRecorder(4);
+        trace.span(TraceRecorder.DRAW_FRAME, TraceRecorder.TRACK_VIDEO, System.nanoTime(), 1500);
+        trace.span(TraceRecorder.MUXER_WRITE, TraceRecorder.TRACK_AUDIO, System.nanoTime(), 42);
+        StringWriter writer = new StringWriter();
+        trace.writeJson(writer);
+        String json = writer.toString();
+        assertTrue(json.startsWith("{"));
+        assertTrue(json.trim().endsWith("]}"));
+        assertTrue(json.contains("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":1,\"args\":{\"name\":\"video\"}}"));
+        assertTrue(json.contains("{\"name\":\"drawFrame\",\"ph\":\"X\",\"pid\":1,\"tid\":1,\"ts\":"));
+        assertTrue(json.contains("\"dur\":1.500}"));
+        assertTrue(json.contains("{\"name\":\"muxerWrite\",\"ph\":\"X\",\"pid\":1,\"tid\":2,\"ts\":"));
+        assertTrue(json.contains("\"dur\":0.042}"));
+    }
+
+    public void testDropsWhenFull() throws Exception {
+        TraceRecorder trace = new TraceRecorder(2);
+        for (int span = 0; span < 5; ++span)
+            trace.span(TraceRecorder.ENCODER_DRAIN, TraceRecorder.TRACK_VIDEO, System.nanoTime());
+        assertEquals(2, trace.getCount());
+        assertEquals(3, trace.getDropped());
+        StringWriter writer = new StringWriter();
+        trace.writeJson(writer);
+        assertTrue(writer.toString().contains("\"dropped\":3"));
+    }
+}
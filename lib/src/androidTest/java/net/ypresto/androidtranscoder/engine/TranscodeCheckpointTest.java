@@ -0,0 +1,151 @@
+package net.ypresto.androidtranscoder.engine;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.util.HashMap;
+import java.util.Map;
+
+public class TranscodeCheckpointTest extends TestCase {
+
+    private static TimeLine timeLine() {
+        TimeLine timeLine = new TimeLine(7)
+                .addChannel("A", new FileDescriptor())
+                .addAudioOnlyChannel("B", new FileDescriptor());
+        timeLine.createSegment().output("A").output("B");
+        timeLine.createSegment().output("A");
+        return timeLine;
+    }
+
+    // Input keys as Mp4IndexCache.keyFor gives them, which needs the device to stat the inputs
+    private static String fingerprint(TimeLine timeLine, String outputPath) {
+        return fingerprint(timeLine, outputPath, "1000_5");
+    }
+
+    private static String fingerprint(TimeLine timeLine, String outputPath, String inputKeyA) {
+        Map<String, String> inputKeys = new HashMap<String, String>();
+        inputKeys.put("A", inputKeyA);
+        inputKeys.put("B", "2000_5");
+        return TranscodeCheckpoint.fingerprint(timeLine, outputPath, inputKeys);
+    }
+
+    private static void advance(TimeLine.InputChannel channel, long base) {
+        channel.mVideoInputStartTimeUs = base + 1;
+        channel.mAudioInputStartTimeUs = base + 2;
+        channel.mInputEndTimeUs = base + 3;
+        channel.mVideoInputOffsetUs = -(base + 4);
+        channel.mAudioInputOffsetUs = base + 5;
+        channel.mVideoInputAcutalEndTimeUs = base + 6;
+        channel.mAudioInputAcutalEndTimeUs = base + 7;
+        channel.mSeekShortage = base + 8;
+        channel.mDurationShortage = base + 9;
+        channel.mTimeToCut = base + 10;
+        channel.mTimeAlreadyCut = base + 11;
+        channel.mTimeToAdd = base + 12;
+        channel.mTimeAlreadyAdded = base + 13;
+        channel.mLastBufferPresentationTime = base + 14;
+    }
+
+    private static TranscodeCheckpoint checkpoint(TimeLine timeLine, String fingerprint, String partDirectory) {
+        advance(timeLine.getChannels().get("A"), 1000000);
+        advance(timeLine.getChannels().get("B"), 2000000);
+        TranscodeCheckpoint checkpoint = new TranscodeCheckpoint(fingerprint);
+        checkpoint.addPart(new TranscodeCheckpoint.Part(partDirectory + "/out.mp4.part0", 0), 1, timeLine, 4000000, 4000000, 3990000);
+        checkpoint.addPart(new TranscodeCheckpoint.Part(partDirectory + "/out.mp4.part1", 4000000), 2, timeLine, 8000000, 8000000, 7990000);
+        return checkpoint;
+    }
+
+    private static TranscodeCheckpoint roundTrip(TranscodeCheckpoint checkpoint, String fingerprint) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        checkpoint.write(new DataOutputStream(bytes));
+        return TranscodeCheckpoint.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), fingerprint);
+    }
+
+    public void testRoundTrip() throws Exception {
+        TimeLine timeLine = timeLine();
+        String fingerprint = fingerprint(timeLine, "/sdcard/out.mp4");
+        TranscodeCheckpoint checkpoint = checkpoint(timeLine, fingerprint, "/sdcard");
+        TranscodeCheckpoint restored = roundTrip(checkpoint, fingerprint);
+
+        assertEquals(2, restored.getNextSegment());
+        assertEquals(8000000, restored.getOutputPresentationTimeUs());
+        assertEquals(8000000, restored.getVideoPresentationTimeUs());
+        assertEquals(7990000, restored.getAudioPresentationTimeUs());
+        assertEquals(2, restored.getParts().size());
+        assertEquals("/sdcard/out.mp4.part1", restored.getParts().get(1).mPath);
+        assertEquals(4000000, restored.getParts().get(1).mStartTimeUs);
+        assertEquals(checkpoint.getChannels(), restored.getChannels());
+        assertEquals(-1000004, restored.getChannels().get("A").mVideoInputOffsetUs);
+    }
+
+    public void testRestoreChannelTiming() throws Exception {
+        TimeLine original = timeLine();
+        String fingerprint = fingerprint(original, "/sdcard/out.mp4");
+        TranscodeCheckpoint restored = roundTrip(checkpoint(original, fingerprint, "/sdcard"), fingerprint);
+
+        TimeLine resumed = timeLine();
+        restored.restore(resumed);
+        for (String channel : new String[] {"A", "B"}) {
+            assertEquals(TranscodeCheckpoint.capture(original.getChannels().get(channel)),
+                    TranscodeCheckpoint.capture(resumed.getChannels().get(channel)));
+        }
+        assertEquals(2000003, (long) resumed.getChannels().get("B").mInputEndTimeUs);
+    }
+
+    public void testOtherTranscodeIgnored() throws Exception {
+        TimeLine timeLine = timeLine();
+        String fingerprint = fingerprint(timeLine, "/sdcard/out.mp4");
+        TranscodeCheckpoint checkpoint = checkpoint(timeLine, fingerprint, "/sdcard");
+        assertNull(roundTrip(checkpoint, fingerprint(timeLine, "/sdcard/other.mp4")));
+        timeLine.createSegment().output("B");
+        assertNull(roundTrip(checkpoint, fingerprint(timeLine, "/sdcard/out.mp4")));
+    }
+
+    public void testEditedTranscodeIgnored() throws Exception {
+        String fingerprint = fingerprint(timeLine(), "/sdcard/out.mp4");
+        TranscodeCheckpoint checkpoint = checkpoint(timeLine(), fingerprint, "/sdcard");
+        assertNotNull(roundTrip(checkpoint, fingerprint(timeLine(), "/sdcard/out.mp4")));
+
+        // Input rewritten since the checkpoint
+        assertNull(roundTrip(checkpoint, fingerprint(timeLine(), "/sdcard/out.mp4", "1200_6")));
+        TimeLine seeked = timeLine();
+        seeked.getSegments().get(1).seek("A", 500);
+        assertNull(roundTrip(checkpoint, fingerprint(seeked, "/sdcard/out.mp4")));
+        TimeLine shortened = timeLine();
+        shortened.getSegments().get(0).duration(2000);
+        assertNull(roundTrip(checkpoint, fingerprint(shortened, "/sdcard/out.mp4")));
+        TimeLine filtered = timeLine();
+        filtered.getSegments().get(1).output("A", TimeLine.Filter.MUTE);
+        assertNull(roundTrip(checkpoint, fingerprint(filtered, "/sdcard/out.mp4")));
+    }
+
+    public void testSaveAndLoad() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "checkpoint-test-" + System.nanoTime());
+        assertTrue(directory.mkdirs());
+        File file = new File(directory, "out.mp4.checkpoint");
+        try {
+            TimeLine timeLine = timeLine();
+            String fingerprint = fingerprint(timeLine, "out.mp4");
+            assertNull(TranscodeCheckpoint.load(file, fingerprint));
+            TranscodeCheckpoint checkpoint = checkpoint(timeLine, fingerprint, directory.getPath());
+            checkpoint.save(file);
+            // Parts haven't been written
+            assertNull(TranscodeCheckpoint.load(file, fingerprint));
+            for (TranscodeCheckpoint.Part part : checkpoint.getParts())
+                assertTrue(new File(part.mPath).createNewFile());
+            TranscodeCheckpoint loaded = TranscodeCheckpoint.load(file, fingerprint);
+            assertNotNull(loaded);
+            assertEquals(2, loaded.getNextSegment());
+            assertFalse(new File(file.getPath() + ".tmp").exists());
+        } finally {
+            for (File child : directory.listFiles())
+                child.delete();
+            directory.delete();
+        }
+    }
+}
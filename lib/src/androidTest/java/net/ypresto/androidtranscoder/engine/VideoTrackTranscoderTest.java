@@ -0,0 +1,26 @@
+package net.ypresto.androidtranscoder.engine;
+
+import android.media.MediaFormat;
+
+import junit.framework.TestCase;
+
+public class VideoTrackTranscoderTest extends TestCase {
+
+    public void testResumedCadenceStartsAtResumeTime() throws Exception {
+        MediaFormat format = MediaFormat.createVideoFormat("video/avc", 640, 480);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, 30);
+        VideoTrackTranscoder transcoder = new VideoTrackTranscoder(null, format, null);
+        // A checkpointed part after the first resumes at the time the previous part ended
+        long resumeUs = 12000000l;
+        transcoder.setOutputPresentationTimeDecodedUs(resumeUs);
+        FrameRateScheduler scheduler = transcoder.getFrameRateScheduler();
+        for (int frame = 0; frame < 30; ++frame) {
+            long presentationTimeUs = resumeUs + frame * 1000000l / 30;
+            assertEquals(1, scheduler.schedule(presentationTimeUs));
+            assertEquals(presentationTimeUs, scheduler.getOutputTimeUs());
+            scheduler.advance();
+        }
+        assertEquals(0, transcoder.getFramesDuplicated());
+        assertEquals(0, transcoder.getFramesDropped());
+    }
+}
@@ -0,0 +1,80 @@
+package net.ypresto.androidtranscoder.format;
+
+import junit.framework.TestCase;
+
+import net.ypresto.androidtranscoder.compat.CodecCapabilityTable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+public class CodecRankerTest extends TestCase {
+    private static final CodecCapabilityTable.Entry SOFTWARE = encoder("OMX.google.h264.encoder", 2048);
+    private static final CodecCapabilityTable.Entry HARDWARE_A = encoder("OMX.vendor.avc.encoder", 4096);
+    private static final CodecCapabilityTable.Entry HARDWARE_B = encoder("c2.vendor.avc.encoder", 1920);
+    private static final List<CodecCapabilityTable.Entry> CANDIDATES = Arrays.asList(SOFTWARE, HARDWARE_A, HARDWARE_B);
+
+    private static CodecCapabilityTable.Entry encoder(String name, int maxSize) {
+        return new CodecCapabilityTable.Entry(name, "video/avc", true, 16, maxSize, 16, maxSize, 2, 2,
+                (long) maxSize * maxSize, 1, 50000000, 0, new int[0], new int[0], 4);
+    }
+
+    private static CodecRanker.FrameRateEstimator estimator(final double software, final double hardwareA, final double hardwareB) {
+        return new CodecRanker.FrameRateEstimator() {
+            @Override
+            public double getAchievableFrameRate(CodecCapabilityTable.Entry entry, int width, int height) {
+                return entry == SOFTWARE ? software : entry == HARDWARE_A ? hardwareA : hardwareB;
+            }
+        };
+    }
+
+    public void testUnknownPrefersHardwareInListOrder() throws Exception {
+        assertEquals(Arrays.asList(HARDWARE_A, HARDWARE_B, SOFTWARE), CodecRanker.rank(CANDIDATES, 1280, 720, null, null));
+    }
+
+    public void testDeclaredFrameRatesRank() throws Exception {
+        List<CodecCapabilityTable.Entry> ranked = CodecRanker.rank(CANDIDATES, 1280, 720, null,
+                estimator(40, 120, 240));
+        assertEquals(Arrays.asList(HARDWARE_B, HARDWARE_A, SOFTWARE), ranked);
+    }
+
+    public void testMeasurementsOverrideDeclaredFrameRates() throws Exception {
+        CodecThroughputTable measurements = new CodecThroughputTable();
+        measurements.put(HARDWARE_B.mName, 1280, 720, 25);
+        measurements.put(SOFTWARE.mName, 1280, 720, 60);
+        // Measured at another size so not used
+        measurements.put(HARDWARE_A.mName, 1920, 1080, 1);
+        List<CodecCapabilityTable.Entry> ranked = CodecRanker.rank(CANDIDATES, 1280, 720, measurements,
+                estimator(Double.NaN, 90, 240));
+        assertEquals(Arrays.asList(HARDWARE_A, SOFTWARE, HARDWARE_B), ranked);
+    }
+
+    public void testKnownRatesRankAheadOfUnknown() throws Exception {
+        List<CodecCapabilityTable.Entry> ranked = CodecRanker.rank(CANDIDATES, 1280, 720, null,
+                estimator(10, Double.NaN, Double.NaN));
+        assertEquals(Arrays.asList(SOFTWARE, HARDWARE_A, HARDWARE_B), ranked);
+    }
+
+    public void testUnsupportedSizesExcluded() throws Exception {
+        List<CodecCapabilityTable.Entry> ranked = CodecRanker.rank(CANDIDATES, 3840, 2160, null, estimator(10, 30, 60));
+        assertEquals(Arrays.asList(HARDWARE_A), ranked);
+        assertTrue(CodecRanker.rank(CANDIDATES, 8192, 4320, null, null).isEmpty());
+    }
+
+    public void testMeasurementsPersistPerBuild() throws Exception {
+        CodecThroughputTable measurements = new CodecThroughputTable();
+        measurements.put(HARDWARE_A.mName, 1280, 720, 200);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        measurements.write(new DataOutputStream(bytes), "build/1");
+
+        CodecThroughputTable restored = new CodecThroughputTable();
+        assertFalse(restored.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), "build/2"));
+        assertEquals(0, restored.size());
+        assertTrue(restored.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())), "build/1"));
+        assertEquals(200.0, restored.getFramesPerSecond(HARDWARE_A.mName, 1280, 720));
+        assertTrue(Double.isNaN(restored.getFramesPerSecond(HARDWARE_A.mName, 1920, 1080)));
+    }
+}
@@ -0,0 +1,106 @@
+package net.ypresto.androidtranscoder.hls;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+public class HlsSegmenterTest extends TestCase {
+    private static final byte[] PARAMETER_SETS = {0, 0, 0, 1, 0x67, 0x42, 0, 0x1e, 0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+    // AAC LC, 44.1kHz, stereo
+    private static final byte[] AUDIO_SPECIFIC_CONFIG = {0x12, 0x10};
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        mDirectory = File.createTempFile("hls", "");
+        mDirectory.delete();
+        mDirectory.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = mDirectory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        mDirectory.delete();
+    }
+
+    private static String read(File file) throws Exception {
+        StringBuilder text = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null)
+                text.append(line).append('\n');
+        } finally {
+            reader.close();
+        }
+        return text.toString();
+    }
+
+    public void testPlaylist() {
+        HlsPlaylist playlist = new HlsPlaylist(2000000);
+        playlist.addSegment("out_0.ts", 2000000);
+        playlist.addSegment("out_1.ts", 2500000);
+        assertEquals(3, playlist.getTargetDuration());
+        assertFalse(playlist.toString().contains("#EXT-X-ENDLIST"));
+        playlist.end();
+        assertEquals("#EXTM3U\n#EXT-X-VERSION:3\n#EXT-X-PLAYLIST-TYPE:EVENT\n#EXT-X-TARGETDURATION:3\n#EXT-X-MEDIA-SEQUENCE:0\n"
+                + "#EXTINF:2.000000,\nout_0.ts\n#EXTINF:2.500000,\nout_1.ts\n#EXT-X-ENDLIST\n", playlist.toString());
+    }
+
+    public void testCutsOnKeyFrames() throws Exception {
+        File playlistFile = new File(mDirectory, "out.m3u8");
+        HlsSegmenter segmenter = new HlsSegmenter(playlistFile, 2000000);
+        segmenter.setKeyFrameIntervalUs(1000000);
+        segmenter.setVideo(PARAMETER_SETS);
+        segmenter.setAudio(AUDIO_SPECIFIC_CONFIG);
+        segmenter.start();
+        assertTrue(read(playlistFile).contains("#EXT-X-TARGETDURATION:2\n"));
+
+        // 5 seconds of 30fps video with a key frame every second, and AAC frames in between
+        ByteBuffer picture = ByteBuffer.wrap(new byte[]{0, 0, 0, 1, 0x65, 1, 2, 3});
+        ByteBuffer audio = ByteBuffer.wrap(new byte[200]);
+        long audioPtsUs = 0;
+        for (int frame = 0; frame < 150; ++frame) {
+            long ptsUs = frame * 1000000l / 30;
+            segmenter.writeVideo(picture, ptsUs, frame % 30 == 0);
+            while (audioPtsUs <= ptsUs) {
+                segmenter.writeAudio(audio, audioPtsUs);
+                audioPtsUs += 1024 * 1000000l / 44100;
+            }
+            if (frame == 61)
+                assertEquals(1, segmenter.getPlaylist().getSegments().size());
+        }
+        assertEquals(0, picture.position());
+        assertFalse(read(playlistFile).contains("#EXT-X-ENDLIST"));
+        segmenter.finish();
+        segmenter.close();
+
+        List<HlsPlaylist.Segment> segments = segmenter.getPlaylist().getSegments();
+        assertEquals(3, segments.size());
+        assertEquals("out_0.ts", segments.get(0).mUri);
+        assertEquals(2000000, segments.get(0).mDurationUs);
+        assertEquals(2000000, segments.get(1).mDurationUs);
+        assertEquals(1000000, segments.get(2).mDurationUs, 1);
+        String text = read(playlistFile);
+        assertTrue(text.contains("out_2.ts\n#EXT-X-ENDLIST\n"));
+        assertEquals(4, segmenter.getFiles().size());
+        for (File segment : segmenter.getFiles().subList(1, 4)) {
+            assertEquals(0, segment.length() % TsWriter.PACKET_SIZE);
+            assertTrue(segment.length() > 0);
+        }
+        assertFalse(new File(mDirectory, "out.m3u8.tmp").exists());
+    }
+
+    public void testTargetRoundedToKeyFrameInterval() {
+        HlsSegmenter segmenter = new HlsSegmenter(new File(mDirectory, "out.m3u8"), 5000000);
+        segmenter.setKeyFrameIntervalUs(2000000);
+        assertEquals(6000000, segmenter.getTargetDurationUs());
+    }
+}
@@ -0,0 +1,63 @@
+package net.ypresto.androidtranscoder.hls;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+
+public class TsWriterTest extends TestCase {
+
+    public void testProgramAssociationTable() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new TsWriter(true, true).writeTables(out);
+        byte[] ts = out.toByteArray();
+        assertEquals(2 * TsWriter.PACKET_SIZE, ts.length);
+        byte[] expected = {0x47, 0x40, 0x00, 0x10, 0x00,
+                0x00, (byte) 0xb0, 0x0d, 0x00, 0x01, (byte) 0xc1, 0x00, 0x00, 0x00, 0x01, (byte) 0xf0, 0x00,
+                0x2a, (byte) 0xb1, 0x04, (byte) 0xb2, (byte) 0xff};
+        for (int i = 0; i < expected.length; ++i)
+            assertEquals("byte " + i, expected[i], ts[i]);
+        // Section CRC covers itself to zero
+        assertEquals(0, TsWriter.crc32(ts, TsWriter.PACKET_SIZE + 5, 3 + 0x17));
+    }
+
+    public void testPacketsAndContinuity() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TsWriter writer = new TsWriter(true, false);
+        byte[] accessUnit = new byte[1000];
+        writer.writeVideo(out, accessUnit, 0, accessUnit.length, 0, true);
+        writer.writeVideo(out, accessUnit, 0, 100, 33333, false);
+        byte[] ts = out.toByteArray();
+        assertEquals(0, ts.length % TsWriter.PACKET_SIZE);
+        int expectedContinuity = 0;
+        int units = 0;
+        for (int offset = 0; offset < ts.length; offset += TsWriter.PACKET_SIZE) {
+            assertEquals(0x47, ts[offset]);
+            int pid = ((ts[offset + 1] & 0x1f) << 8) | (ts[offset + 2] & 0xff);
+            assertEquals(TsWriter.PID_VIDEO, pid);
+            assertEquals(expectedContinuity, ts[offset + 3] & 0x0f);
+            expectedContinuity = (expectedContinuity + 1) & 0x0f;
+            if ((ts[offset + 1] & 0x40) != 0)
+                ++units;
+        }
+        assertEquals(2, units);
+        // First packet has a PCR and is flagged for random access
+        assertEquals(0x30, ts[3] & 0x30);
+        assertEquals(0x50, ts[5] & 0xff);
+    }
+
+    public void testPresentationTime() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TsWriter writer = new TsWriter(false, true);
+        writer.writeAudio(out, new byte[10], 0, 10, 1000000);
+        byte[] ts = out.toByteArray();
+        assertEquals(TsWriter.PACKET_SIZE, ts.length);
+        // Adaptation field with the PCR, stuffed, then the PES header
+        int pes = 4 + 1 + (ts[4] & 0xff);
+        assertEquals(0x000001c0, ((ts[pes] & 0xff) << 24) | ((ts[pes + 1] & 0xff) << 16) | ((ts[pes + 2] & 0xff) << 8) | (ts[pes + 3] & 0xff));
+        assertEquals(18, ((ts[pes + 4] & 0xff) << 8) | (ts[pes + 5] & 0xff));
+        long pts = ((long) (ts[pes + 9] & 0x0e) << 29) | ((ts[pes + 10] & 0xff) << 22) | ((ts[pes + 11] & 0xfe) << 14)
+                | ((ts[pes + 12] & 0xff) << 7) | ((ts[pes + 13] & 0xfe) >> 1);
+        assertEquals(90000 + TsWriter.PTS_OFFSET, pts);
+        assertEquals(TsWriter.toTicks(1000000), pts);
+    }
+}
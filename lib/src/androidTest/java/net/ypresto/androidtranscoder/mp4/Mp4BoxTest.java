@@ -0,0 +1,104 @@
+package net.ypresto.androidtranscoder.mp4;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+public class Mp4BoxTest extends TestCase {
+
+    static byte[] box(String type, byte[]... bodies) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (byte[] part : bodies)
+            body.write(part);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream outputStream = new DataOutputStream(bytes);
+        outputStream.writeInt(8 + body.size());
+        outputStream.writeBytes(type);
+        outputStream.write(body.toByteArray());
+        return bytes.toByteArray();
+    }
+
+    static byte[] ints(int... values) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream outputStream = new DataOutputStream(bytes);
+        for (int value : values)
+            outputStream.writeInt(value);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] largeBox(String type, byte[] body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream outputStream = new DataOutputStream(bytes);
+        outputStream.writeInt(1);
+        outputStream.writeBytes(type);
+        outputStream.writeLong(16 + body.length);
+        outputStream.write(body);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    public void testRoundTrip() throws Exception {
+        byte[] file = concat(
+                box("ftyp", "isom".getBytes("US-ASCII"), ints(0x200)),
+                box("moov",
+                        box("mvhd", ints(0, 1, 2, 3)),
+                        box("trak",
+                                box("tkhd", ints(0, 0, 1)),
+                                box("mdia", box("minf", box("stbl", box("stco", ints(0, 1, 0x1234))))),
+                                box("udta", box("meta", ints(0))))),
+                largeBox("mdat", new byte[]{1, 2, 3}));
+        List<Mp4Box> boxes = Mp4Box.parse(ByteBuffer.wrap(file));
+        assertEquals(3, boxes.size());
+        Mp4Box moov = boxes.get(1);
+        assertTrue(moov.isContainer());
+        assertEquals(1, moov.findDescendants(Mp4SampleTableReader.TYPE_STCO).size());
+        // Unknown boxes are left whole, their children aren't parsed
+        Mp4Box udta = moov.findChild(Mp4SampleTableReader.TYPE_TRAK).findChild(Mp4SampleTableReader.fourcc("udta"));
+        assertFalse(udta.isContainer());
+        assertEquals(0, moov.findDescendants(Mp4SampleTableReader.fourcc("meta")).size());
+
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        for (Mp4Box box : boxes)
+            written.write(bytes(box.toByteBuffer()));
+        assertTrue(Arrays.equals(file, written.toByteArray()));
+    }
+
+    public void testEditedSizes() throws Exception {
+        byte[] moovBytes = box("moov", box("trak", box("mdia", box("minf", box("stbl", box("stco", ints(0, 1, 0x1234)))))));
+        Mp4Box moov = Mp4Box.parse(ByteBuffer.wrap(moovBytes)).get(0);
+        Mp4Box stbl = moov.findDescendants(Mp4SampleTableReader.TYPE_STBL).get(0);
+        stbl.getChildren().set(0, new Mp4Box(Mp4SampleTableReader.TYPE_CO64, ByteBuffer.wrap(ints(0, 1, 0, 0x1234))));
+        assertEquals(moovBytes.length + 4, moov.getSize());
+        ByteBuffer written = moov.toByteBuffer();
+        assertEquals(moovBytes.length + 4, written.getInt(0));
+        Mp4Box reparsed = Mp4Box.parse(written).get(0);
+        assertEquals(1, reparsed.findDescendants(Mp4SampleTableReader.TYPE_CO64).size());
+        assertEquals(0x1234l, reparsed.findDescendants(Mp4SampleTableReader.TYPE_CO64).get(0).getBody().getLong(8));
+    }
+
+    public void testTruncated() throws Exception {
+        byte[] moov = box("moov", box("trak", ints(0)));
+        try {
+            Mp4Box.parse(ByteBuffer.wrap(moov, 0, moov.length - 1));
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+
+    static byte[] concat(byte[]... parts) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (byte[] part : parts)
+            bytes.write(part);
+        return bytes.toByteArray();
+    }
+}
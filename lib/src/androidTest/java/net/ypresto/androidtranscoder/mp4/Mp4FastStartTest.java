@@ -0,0 +1,85 @@
+package net.ypresto.androidtranscoder.mp4;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static net.ypresto.androidtranscoder.mp4.Mp4BoxTest.box;
+import static net.ypresto.androidtranscoder.mp4.Mp4BoxTest.concat;
+import static net.ypresto.androidtranscoder.mp4.Mp4BoxTest.ints;
+
+public class Mp4FastStartTest extends TestCase {
+    private static final int SAMPLE_COUNT = 4;
+    private static final int SAMPLE_SIZE = 100;
+
+    private static byte[] moov(int firstChunkOffset) throws Exception {
+        byte[] stbl = concat(
+                box("stsd", ints(0, 1, 16, Mp4SampleTableReader.fourcc("avc1"), 0, 0)),
+                box("stts", ints(0, 1, SAMPLE_COUNT, 1000)),
+                box("stsz", ints(0, SAMPLE_SIZE, SAMPLE_COUNT)),
+                box("stsc", ints(0, 1, 1, 1, 1)),
+                box("stco", ints(0, SAMPLE_COUNT, firstChunkOffset, firstChunkOffset + SAMPLE_SIZE,
+                        firstChunkOffset + 2 * SAMPLE_SIZE, firstChunkOffset + 3 * SAMPLE_SIZE)));
+        byte[] mdia = concat(
+                box("mdhd", ints(0, 0, 0, 30000, SAMPLE_COUNT * 1000, 0)),
+                box("hdlr", ints(0, 0, Mp4SampleTableReader.fourcc("vide"), 0, 0, 0, 0)),
+                box("minf", box("stbl", stbl)));
+        return box("moov", box("trak", box("tkhd", ints(0, 0, 0, 1, 0, 0)), box("mdia", mdia)));
+    }
+
+    public void testMovesMoovFirst() throws Exception {
+        byte[] ftyp = box("ftyp", "isom".getBytes("US-ASCII"), ints(0x200));
+        byte[] media = new byte[SAMPLE_COUNT * SAMPLE_SIZE];
+        for (int i = 0; i < media.length; ++i)
+            media[i] = (byte) (i / SAMPLE_SIZE + 1);
+        byte[] mdat = box("mdat", media);
+        File file = File.createTempFile("faststart", ".mp4");
+        try {
+            FileOutputStream outputStream = new FileOutputStream(file);
+            outputStream.write(concat(ftyp, mdat, moov(ftyp.length + 8)));
+            outputStream.close();
+            long size = file.length();
+
+            assertTrue(Mp4FastStart.apply(file));
+            assertEquals(size, file.length());
+            assertFalse(new File(file.getPath() + ".faststart").exists());
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            try {
+                ByteBuffer header = ByteBuffer.allocate(8);
+                randomAccessFile.getChannel().read(header, ftyp.length);
+                assertEquals(Mp4SampleTableReader.TYPE_MOOV, header.getInt(4));
+                SampleTable track = Mp4SampleTableReader.read(randomAccessFile.getChannel()).getVideoTrack();
+                assertEquals(SAMPLE_COUNT, track.getSampleCount());
+                for (int sample = 0; sample < SAMPLE_COUNT; ++sample) {
+                    randomAccessFile.seek(track.getOffset(sample));
+                    assertEquals(sample + 1, randomAccessFile.read());
+                }
+            } finally {
+                randomAccessFile.close();
+            }
+
+            // Already fast start
+            assertFalse(Mp4FastStart.apply(file));
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testUpgradesToCo64() throws Exception {
+        // Media data just short of 4GB, moved past the limit by the moov in front of it
+        int firstChunkOffset = 0xffffff00 - (SAMPLE_COUNT - 1) * SAMPLE_SIZE;
+        Mp4Box moov = Mp4Box.parse(ByteBuffer.wrap(moov(firstChunkOffset))).get(0);
+        long moovSize = moov.getSize();
+        Mp4FastStart.relocate(moov, 32, 0x100000000l + 32, moovSize);
+        assertEquals(0, moov.findDescendants(Mp4SampleTableReader.TYPE_STCO).size());
+        ByteBuffer co64 = moov.findDescendants(Mp4SampleTableReader.TYPE_CO64).get(0).getBody();
+        long newMoovSize = moov.getSize();
+        assertEquals(moovSize + SAMPLE_COUNT * 4, newMoovSize);
+        assertEquals(SAMPLE_COUNT, co64.getInt(4));
+        for (int chunk = 0; chunk < SAMPLE_COUNT; ++chunk)
+            assertEquals((firstChunkOffset & 0xffffffffl) + chunk * SAMPLE_SIZE + newMoovSize, co64.getLong(8 + chunk * 8));
+    }
+}
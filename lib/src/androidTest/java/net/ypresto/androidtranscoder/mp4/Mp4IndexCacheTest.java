@@ -0,0 +1,96 @@
+package net.ypresto.androidtranscoder.mp4;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+
+public class Mp4IndexCacheTest extends TestCase {
+    private File mDirectory;
+
+    @Override
+    protected void setUp() throws Exception {
+        mDirectory = File.createTempFile("indexcache", "");
+        mDirectory.delete();
+        mDirectory.mkdirs();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        File[] files = mDirectory.listFiles();
+        if (files != null)
+            for (File file : files)
+                file.delete();
+        mDirectory.delete();
+    }
+
+    public void testRoundTrip() throws Exception {
+        Mp4IndexCache cache = new Mp4IndexCache(mDirectory, 1024 * 1024);
+        cache.put("a", index(300));
+        SampleTable track = cache.get("a").getVideoTrack();
+        assertEquals(7, track.getTrackId());
+        assertEquals("video/avc", track.getMimeType());
+        assertEquals(1280, track.getWidth());
+        assertEquals(720, track.getHeight());
+        assertEquals(90, track.getRotation());
+        assertEquals(30, track.getFrameRate());
+        assertEquals(300, track.getSampleCount());
+        assertEquals(299l * 1000000l / 30, track.getPresentationTimeUs(299));
+        assertEquals(299l * 4096l, track.getOffset(299));
+        assertEquals(1299, track.getSize(299));
+        assertEquals(4, track.getSyncSampleCount());
+        assertEquals(270, track.getSyncSample(3));
+        assertNull(cache.get("b"));
+    }
+
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        Mp4Index index = index(1000);
+        Mp4IndexCache cache = new Mp4IndexCache(mDirectory, Long.MAX_VALUE);
+        cache.put("a", index);
+        long entryBytes = new File(mDirectory, "a.idx").length();
+        cache.put("b", index);
+        cache.put("c", index);
+        new File(mDirectory, "a.idx").setLastModified(3000000l);
+        new File(mDirectory, "b.idx").setLastModified(1000000l);
+        new File(mDirectory, "c.idx").setLastModified(2000000l);
+
+        cache.trimToSize(2 * entryBytes);
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+    }
+
+    public void testTruncatedEntryIsRejected() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Mp4IndexCache.encode(index(10), new DataOutputStream(bytes));
+        byte[] entry = bytes.toByteArray();
+        assertEquals(10, Mp4IndexCache.decode(ByteBuffer.wrap(entry)).getVideoTrack().getSampleCount());
+        try {
+            Mp4IndexCache.decode(ByteBuffer.wrap(entry, 0, entry.length / 2));
+            fail("Truncated entry decoded");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static Mp4Index index(int sampleCount) {
+        long[] times = new long[sampleCount];
+        long[] offsets = new long[sampleCount];
+        int[] sizes = new int[sampleCount];
+        for (int i = 0; i < sampleCount; ++i) {
+            times[i] = i * 1000000l / 30;
+            offsets[i] = i * 4096l;
+            sizes[i] = 1000 + i;
+        }
+        int[] syncSamples = new int[(sampleCount + 89) / 90];
+        for (int i = 0; i < syncSamples.length; ++i)
+            syncSamples[i] = i * 90;
+        SampleTable track = new SampleTable(7, SampleTable.HANDLER_VIDEO, "avc1", 90000, sampleCount * 1000000l / 30,
+                1280, 720, 90, 0, 0, times, offsets, sizes, syncSamples);
+        return new Mp4Index(Collections.singletonList(track));
+    }
+}
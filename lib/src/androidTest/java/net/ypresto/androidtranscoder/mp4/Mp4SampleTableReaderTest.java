@@ -0,0 +1,148 @@
+package net.ypresto.androidtranscoder.mp4;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+public class Mp4SampleTableReaderTest extends TestCase {
+    private static final int TIMESCALE = 3000;
+    private static final int SAMPLE_DURATION = 100;     // 30 fps
+    private static final int SAMPLE_COUNT = 300;
+    private static final int GOP = 90;
+
+    public void testReadsVideoTrack() throws Exception {
+        SampleTable track = readSyntheticFile(false).getVideoTrack();
+        assertNotNull(track);
+        assertEquals(1, track.getTrackId());
+        assertEquals("avc1", track.getSampleEntryType());
+        assertEquals(SAMPLE_COUNT, track.getSampleCount());
+        assertEquals(10000000l, track.getDurationUs());
+        assertEquals(4, track.getSyncSampleCount());
+        assertTrue(track.isSyncSample(GOP));
+        assertFalse(track.isSyncSample(GOP + 1));
+        // Two samples per chunk, chunks 10000 bytes apart
+        assertEquals(10000l, track.getOffset(0));
+        assertEquals(10000l + track.getSize(0), track.getOffset(1));
+        assertEquals(20000l, track.getOffset(2));
+    }
+
+    public void testSyncSampleLookup() throws Exception {
+        SampleTable track = readSyntheticFile(false).getVideoTrack();
+        long gopUs = GOP * 1000000l / 30;
+        assertEquals(0l, track.getSyncTimeUsAtOrBefore(0));
+        assertEquals(0l, track.getSyncTimeUsAtOrBefore(gopUs - 1));
+        assertEquals(gopUs, track.getSyncTimeUsAtOrBefore(gopUs));
+        assertEquals(3 * gopUs, track.getSyncTimeUsAtOrBefore(9000000l));
+        assertEquals(GOP - 1, track.countSamplesBetween(gopUs + 1, 2 * gopUs));
+    }
+
+    public void testCompositionOffsetsAndEditList() throws Exception {
+        SampleTable track = readSyntheticFile(true).getVideoTrack();
+        // ctts shifts every sample by two frames and the edit list removes it again
+        for (int sample = 0; sample < SAMPLE_COUNT; ++sample)
+            assertEquals(sample * 1000000l / 30, track.getPresentationTimeUs(sample));
+    }
+
+    public void testNonMp4ReturnsNull() throws Exception {
+        File file = File.createTempFile("notmp4", ".bin");
+        try {
+            FileOutputStream outputStream = new FileOutputStream(file);
+            outputStream.write(new byte[] {0, 0, 0, 16, 'f', 'r', 'e', 'e', 0, 0, 0, 0, 0, 0, 0, 0});
+            outputStream.close();
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            try {
+                assertNull(Mp4SampleTableReader.read(randomAccessFile.getChannel()));
+            } finally {
+                randomAccessFile.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private Mp4Index readSyntheticFile(boolean withCompositionOffsets) throws IOException {
+        File file = File.createTempFile("synthetic", ".mp4");
+        try {
+            FileOutputStream outputStream = new FileOutputStream(file);
+            outputStream.write(box("ftyp", "isom".getBytes("US-ASCII")));
+            outputStream.write(box("mdat", new byte[64]));
+            outputStream.write(moov(withCompositionOffsets));
+            outputStream.close();
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            try {
+                return Mp4SampleTableReader.read(randomAccessFile.getChannel());
+            } finally {
+                randomAccessFile.close();
+            }
+        } finally {
+            file.delete();
+        }
+    }
+
+    private byte[] moov(boolean withCompositionOffsets) throws IOException {
+        ByteArrayOutputStream stbl = new ByteArrayOutputStream();
+        stbl.write(fullBox("stsd", ints(1, 16, Mp4SampleTableReader.fourcc("avc1"), 0, 0)));
+        stbl.write(fullBox("stts", ints(1, SAMPLE_COUNT, SAMPLE_DURATION)));
+        if (withCompositionOffsets)
+            stbl.write(fullBox("ctts", ints(1, SAMPLE_COUNT, 2 * SAMPLE_DURATION)));
+        int[] stss = new int[1 + SAMPLE_COUNT / GOP + 1];
+        stss[0] = stss.length - 1;
+        for (int i = 1; i < stss.length; ++i)
+            stss[i] = (i - 1) * GOP + 1;
+        stbl.write(fullBox("stss", ints(stss)));
+        int[] stsz = new int[2 + SAMPLE_COUNT];
+        stsz[1] = SAMPLE_COUNT;
+        for (int i = 0; i < SAMPLE_COUNT; ++i)
+            stsz[2 + i] = 1000 + i;
+        stbl.write(fullBox("stsz", ints(stsz)));
+        stbl.write(fullBox("stsc", ints(1, 1, 2, 1)));
+        int[] stco = new int[1 + SAMPLE_COUNT / 2];
+        stco[0] = SAMPLE_COUNT / 2;
+        for (int i = 1; i < stco.length; ++i)
+            stco[i] = i * 10000;
+        stbl.write(fullBox("stco", ints(stco)));
+
+        byte[] mdia = concat(
+                fullBox("mdhd", ints(0, 0, TIMESCALE, SAMPLE_COUNT * SAMPLE_DURATION, 0)),
+                fullBox("hdlr", ints(0, Mp4SampleTableReader.fourcc("vide"), 0, 0, 0, 0)),
+                box("minf", box("stbl", stbl.toByteArray())));
+        byte[] trak = concat(
+                fullBox("tkhd", ints(0, 0, 1, 0, 0)),
+                withCompositionOffsets ? box("edts", fullBox("elst", ints(1, SAMPLE_COUNT * SAMPLE_DURATION, 2 * SAMPLE_DURATION, 0x10000))) : new byte[0],
+                box("mdia", mdia));
+        return box("moov", box("trak", trak));
+    }
+
+    private static byte[] box(String type, byte[] body) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream outputStream = new DataOutputStream(bytes);
+        outputStream.writeInt(8 + body.length);
+        outputStream.writeBytes(type);
+        outputStream.write(body);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] fullBox(String type, byte[] body) throws IOException {
+        return box(type, concat(new byte[4], body));
+    }
+
+    private static byte[] ints(int... values) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream outputStream = new DataOutputStream(bytes);
+        for (int value : values)
+            outputStream.writeInt(value);
+        return bytes.toByteArray();
+    }
+
+    private static byte[] concat(byte[]... parts) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (byte[] part : parts)
+            bytes.write(part);
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,223 @@
+package net.ypresto.androidtranscoder.mp4;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+import static net.ypresto.androidtranscoder.mp4.Mp4BoxTest.box;
+import static net.ypresto.androidtranscoder.mp4.Mp4BoxTest.concat;
+import static net.ypresto.androidtranscoder.mp4.Mp4BoxTest.ints;
+
+public class Mp4TrimmerTest extends TestCase {
+    private static final int VIDEO_SAMPLES = 30;
+    private static final int VIDEO_TIMESCALE = 30000;
+    private static final int VIDEO_DELTA = 1000;
+    private static final int GOP = 10;
+    private static final int AUDIO_SAMPLES = 44;
+    private static final int AUDIO_TIMESCALE = 44100;
+    private static final int AUDIO_DELTA = 1024;
+    private static final int AUDIO_SIZE = 20;
+    private File mInput;
+    private File mOutput;
+
+    @Override
+    protected void setUp() throws Exception {
+        mInput = File.createTempFile("trim-in", ".mp4");
+        mOutput = File.createTempFile("trim-out", ".mp4");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mInput.delete();
+        mOutput.delete();
+    }
+
+    private static int videoSize(int sample) {
+        return 100 + sample;
+    }
+
+    private static byte[] trak(int trackId, String handler, int timescale, int delta, int sampleCount,
+                               int[] sizes, int[] offsets, int[] syncSamples, int descriptions) throws Exception {
+        int[] stsz = new int[3 + sampleCount];
+        stsz[2] = sampleCount;
+        System.arraycopy(sizes, 0, stsz, 3, sampleCount);
+        int[] stco = new int[2 + sampleCount];
+        stco[1] = sampleCount;
+        System.arraycopy(offsets, 0, stco, 2, sampleCount);
+        byte[] stss = new byte[0];
+        if (syncSamples != null) {
+            int[] entries = new int[2 + syncSamples.length];
+            entries[1] = syncSamples.length;
+            System.arraycopy(syncSamples, 0, entries, 2, syncSamples.length);
+            stss = box("stss", ints(entries));
+        }
+        int[] stsd = new int[2 + 4 * descriptions];
+        stsd[1] = descriptions;
+        for (int i = 0; i < descriptions; ++i) {
+            stsd[2 + 4 * i] = 16;
+            stsd[3 + 4 * i] = Mp4SampleTableReader.fourcc(handler.equals("vide") ? "avc1" : "mp4a");
+        }
+        byte[] stbl = concat(
+                box("stsd", ints(stsd)),
+                box("stts", ints(0, 1, sampleCount, delta)),
+                stss,
+                box("stsz", ints(stsz)),
+                box("stsc", ints(0, 1, 1, 1, 1)),
+                box("stco", ints(stco)));
+        byte[] mdia = concat(
+                box("mdhd", ints(0, 0, 0, timescale, sampleCount * delta, 0)),
+                box("hdlr", ints(0, 0, Mp4SampleTableReader.fourcc(handler), 0, 0, 0, 0)),
+                box("minf", box("stbl", stbl)));
+        return box("trak", box("tkhd", ints(0, 0, 0, trackId, 0, 0)), box("mdia", mdia));
+    }
+
+    // Video samples filled with their index, audio samples with 100 plus theirs
+    private void writeInput() throws Exception {
+        writeInput(1);
+    }
+
+    private void writeInput(int audioDescriptions) throws Exception {
+        byte[] ftyp = box("ftyp", "isom".getBytes("US-ASCII"), ints(0x200));
+        ByteArrayOutputStream media = new ByteArrayOutputStream();
+        int dataStart = ftyp.length + 8;
+        int[] videoSizes = new int[VIDEO_SAMPLES];
+        int[] videoOffsets = new int[VIDEO_SAMPLES];
+        for (int i = 0; i < VIDEO_SAMPLES; ++i) {
+            videoSizes[i] = videoSize(i);
+            videoOffsets[i] = dataStart + media.size();
+            byte[] sample = new byte[videoSizes[i]];
+            java.util.Arrays.fill(sample, (byte) i);
+            media.write(sample);
+        }
+        int[] audioSizes = new int[AUDIO_SAMPLES];
+        int[] audioOffsets = new int[AUDIO_SAMPLES];
+        for (int i = 0; i < AUDIO_SAMPLES; ++i) {
+            audioSizes[i] = AUDIO_SIZE;
+            audioOffsets[i] = dataStart + media.size();
+            byte[] sample = new byte[AUDIO_SIZE];
+            java.util.Arrays.fill(sample, (byte) (100 + i));
+            media.write(sample);
+        }
+        int[] syncSamples = new int[VIDEO_SAMPLES / GOP];
+        for (int i = 0; i < syncSamples.length; ++i)
+            syncSamples[i] = i * GOP + 1;
+        byte[] moov = box("moov",
+                box("mvhd", ints(0, 0, 0, 1000, 1000, 0x10000)),
+                trak(1, "vide", VIDEO_TIMESCALE, VIDEO_DELTA, VIDEO_SAMPLES, videoSizes, videoOffsets, syncSamples, 1),
+                trak(2, "soun", AUDIO_TIMESCALE, AUDIO_DELTA, AUDIO_SAMPLES, audioSizes, audioOffsets, null, audioDescriptions));
+        FileOutputStream outputStream = new FileOutputStream(mInput);
+        outputStream.write(concat(ftyp, box("mdat", media.toByteArray()), moov));
+        outputStream.close();
+    }
+
+    private Mp4Trimmer trim(long startUs, long endUs) throws Exception {
+        RandomAccessFile input = new RandomAccessFile(mInput, "r");
+        FileOutputStream output = new FileOutputStream(mOutput);
+        try {
+            Mp4Trimmer trimmer = Mp4Trimmer.create(input.getChannel(), startUs, endUs, true, true);
+            trimmer.write(output.getChannel());
+            return trimmer;
+        } finally {
+            output.close();
+            input.close();
+        }
+    }
+
+    public void testCopiesFromPrecedingSyncSample() throws Exception {
+        writeInput();
+        Mp4Trimmer trimmer = trim(500000, 800000);
+        assertEquals(mOutput.length(), trimmer.getOutputSize());
+        assertEquals(333333, trimmer.getCopyStartUs());
+
+        RandomAccessFile output = new RandomAccessFile(mOutput, "r");
+        try {
+            Mp4Index index = Mp4SampleTableReader.read(output.getChannel());
+            // Video from the sync sample at 10, through 23 presented before the end
+            SampleTable video = index.getVideoTrack();
+            assertEquals(14, video.getSampleCount());
+            assertEquals(-166666, video.getPresentationTimeUs(0));
+            assertEquals(0, video.getPresentationTimeUs(5));
+            assertEquals(2, video.getSyncSampleCount());
+            assertEquals(0, video.getSyncSample(0));
+            assertEquals(10, video.getSyncSample(1));
+            for (int sample = 0; sample < video.getSampleCount(); ++sample) {
+                assertEquals(videoSize(10 + sample), video.getSize(sample));
+                output.seek(video.getOffset(sample));
+                assertEquals(10 + sample, output.read());
+            }
+            // Audio from the frame at or before the start
+            SampleTable audio = index.getAudioTrack();
+            assertEquals(14, audio.getSampleCount());
+            assertEquals(-(500000l * AUDIO_TIMESCALE / 1000000 - 21 * AUDIO_DELTA) * 1000000 / AUDIO_TIMESCALE,
+                    audio.getPresentationTimeUs(0));
+            for (int sample = 0; sample < audio.getSampleCount(); ++sample) {
+                output.seek(audio.getOffset(sample));
+                assertEquals(100 + 21 + sample, output.read());
+            }
+
+            // moov is written first, with the trim's duration
+            output.seek(0);
+            int ftypSize = output.readInt();
+            ByteBuffer header = ByteBuffer.allocate(8);
+            output.getChannel().read(header, ftypSize);
+            assertEquals(Mp4SampleTableReader.TYPE_MOOV, header.getInt(4));
+            ByteBuffer moovBytes = ByteBuffer.allocate(header.getInt(0));
+            output.getChannel().read(moovBytes, ftypSize);
+            moovBytes.flip();
+            Mp4Box moov = Mp4Box.parse(moovBytes).get(0);
+            assertEquals(300, moov.findChild(Mp4SampleTableReader.fourcc("mvhd")).getBody().getInt(16));
+            ByteBuffer elst = moov.findDescendants(Mp4SampleTableReader.TYPE_ELST).get(0).getBody();
+            assertEquals(1, elst.getInt(4));
+            assertEquals(300, elst.getInt(8));
+            assertEquals(5 * VIDEO_DELTA, elst.getInt(12));
+        } finally {
+            output.close();
+        }
+    }
+
+    public void testToEnd() throws Exception {
+        writeInput();
+        trim(0, Long.MAX_VALUE);
+        RandomAccessFile output = new RandomAccessFile(mOutput, "r");
+        try {
+            Mp4Index index = Mp4SampleTableReader.read(output.getChannel());
+            assertEquals(VIDEO_SAMPLES, index.getVideoTrack().getSampleCount());
+            assertEquals(AUDIO_SAMPLES, index.getAudioTrack().getSampleCount());
+            assertEquals(0, index.getVideoTrack().getPresentationTimeUs(0));
+        } finally {
+            output.close();
+        }
+    }
+
+    public void testTrackThatCantBeCopied() throws Exception {
+        // Audio switching sample descriptions can't be copied, so a trim wanting it can't be either
+        writeInput(2);
+        RandomAccessFile input = new RandomAccessFile(mInput, "r");
+        try {
+            assertNull(Mp4Trimmer.create(input.getChannel(), 0, Long.MAX_VALUE, true, true));
+            assertNull(Mp4Trimmer.create(input.getChannel(), 0, Long.MAX_VALUE, false, true));
+            Mp4Trimmer videoOnly = Mp4Trimmer.create(input.getChannel(), 0, Long.MAX_VALUE, true, false);
+            assertNotNull(videoOnly);
+            FileOutputStream output = new FileOutputStream(mOutput);
+            try {
+                videoOnly.write(output.getChannel());
+            } finally {
+                output.close();
+            }
+        } finally {
+            input.close();
+        }
+        RandomAccessFile output = new RandomAccessFile(mOutput, "r");
+        try {
+            Mp4Index index = Mp4SampleTableReader.read(output.getChannel());
+            assertEquals(VIDEO_SAMPLES, index.getVideoTrack().getSampleCount());
+            assertNull(index.getAudioTrack());
+        } finally {
+            output.close();
+        }
+    }
+}
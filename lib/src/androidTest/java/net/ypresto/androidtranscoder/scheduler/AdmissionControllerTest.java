@@ -0,0 +1,170 @@
+package net.ypresto.androidtranscoder.scheduler;
+
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class AdmissionControllerTest extends TestCase {
+    private static final long MB = 1024 * 1024;
+
+    public void testPriorityThenSubmissionOrder() throws Exception {
+        AdmissionController controller = new AdmissionController(3, 100 * MB);
+        AdmissionController.Job low = controller.enqueue(-1, 3, MB, 0);
+        AdmissionController.Job normal1 = controller.enqueue(0, 3, MB, 0);
+        AdmissionController.Job high = controller.enqueue(1, 3, MB, 0);
+        AdmissionController.Job normal2 = controller.enqueue(0, 3, MB, 0);
+        assertEquals(Arrays.asList(high), controller.admit(0));
+        controller.finish(high);
+        assertEquals(Arrays.asList(normal1), controller.admit(10));
+        controller.finish(normal1);
+        assertEquals(Arrays.asList(normal2), controller.admit(20));
+        controller.finish(normal2);
+        assertEquals(Arrays.asList(low), controller.admit(30));
+        assertEquals(0, controller.getQueueDepth());
+        assertEquals(4, controller.getAdmittedCount());
+        assertEquals(15, controller.getMeanWaitMs());
+        assertEquals(30, controller.getMaxWaitMs());
+    }
+
+    public void testBudgetAndNoOvertaking() throws Exception {
+        AdmissionController controller = new AdmissionController(6, 100 * MB);
+        AdmissionController.Job first = controller.enqueue(0, 4, MB, 0);
+        AdmissionController.Job large = controller.enqueue(0, 3, MB, 0);
+        AdmissionController.Job small = controller.enqueue(0, 1, MB, 0);
+        assertEquals(Arrays.asList(first), controller.admit(0));
+        // small would fit but may not pass the large job waiting ahead of it
+        assertEquals(Collections.<AdmissionController.Job>emptyList(), controller.admit(0));
+        assertEquals(4, controller.getCodecsInUse());
+        assertEquals(2, controller.getQueueDepth());
+        controller.finish(first);
+        assertEquals(Arrays.asList(large, small), controller.admit(0));
+        assertEquals(2, controller.getRunningCount());
+        assertEquals(2 * MB, controller.getMemoryInUse());
+    }
+
+    public void testMemoryBudget() throws Exception {
+        AdmissionController controller = new AdmissionController(10, 100 * MB);
+        AdmissionController.Job first = controller.enqueue(0, 1, 60 * MB, 0);
+        AdmissionController.Job second = controller.enqueue(0, 1, 60 * MB, 0);
+        assertEquals(Arrays.asList(first), controller.admit(0));
+        assertTrue(controller.admit(0).isEmpty());
+        controller.finish(first);
+        assertEquals(Arrays.asList(second), controller.admit(0));
+    }
+
+    public void testOversizeJobRunsAlone() throws Exception {
+        AdmissionController controller = new AdmissionController(2, 100 * MB);
+        AdmissionController.Job oversize = controller.enqueue(0, 6, MB, 0);
+        AdmissionController.Job next = controller.enqueue(0, 1, MB, 0);
+        assertEquals(Arrays.asList(oversize), controller.admit(0));
+        assertTrue(controller.admit(0).isEmpty());
+        controller.finish(oversize);
+        assertEquals(Arrays.asList(next), controller.admit(0));
+    }
+
+    public void testPreemptionAtSegmentBoundary() throws Exception {
+        AdmissionController controller = new AdmissionController(6, 100 * MB);
+        AdmissionController.Job low1 = controller.enqueue(-1, 3, MB, 1, 0, 0);
+        AdmissionController.Job low2 = controller.enqueue(-1, 3, MB, 1, 0, 0);
+        assertEquals(Arrays.asList(low1, low2), controller.admit(0));
+
+        AdmissionController.Job high = controller.enqueue(1, 2, MB, 100);
+        assertTrue(controller.admit(100).isEmpty());
+        // Only the most recently admitted low priority job needs to make way
+        assertFalse(controller.shouldYield(low1));
+        assertTrue(controller.shouldYield(low2));
+
+        controller.suspend(low2, 150);
+        assertEquals(AdmissionController.State.SUSPENDED, controller.getState(low2));
+        // Its encoder is still open
+        assertEquals(4, controller.getCodecsInUse());
+        assertEquals(Arrays.asList(high), controller.admit(150));
+        assertEquals(6, controller.getCodecsInUse());
+        assertEquals(50, controller.getMaxWaitMs());
+
+        // Suspended job resumes ahead of a later job of its priority
+        AdmissionController.Job low3 = controller.enqueue(-1, 3, MB, 160);
+        controller.finish(high);
+        assertEquals(Arrays.asList(low2), controller.admit(200));
+        assertEquals(AdmissionController.State.RUNNING, controller.getState(low2));
+        assertEquals(6, controller.getCodecsInUse());
+        assertFalse(controller.shouldYield(low2));
+        assertEquals(AdmissionController.State.WAITING, controller.getState(low3));
+    }
+
+    public void testNoYieldWhenHeldCodecsLeaveNoRoom() throws Exception {
+        AdmissionController controller = new AdmissionController(4, 100 * MB);
+        AdmissionController.Job low = controller.enqueue(-1, 3, MB, 0);
+        controller.admit(0);
+        AdmissionController.Job high = controller.enqueue(1, 2, MB, 0);
+        // Suspending would free nothing so the job keeps running
+        assertTrue(controller.admit(0).isEmpty());
+        assertFalse(controller.shouldYield(low));
+        controller.finish(low);
+        assertEquals(Arrays.asList(high), controller.admit(0));
+    }
+
+    public void testSuspendedJobResumesWhenNothingRuns() throws Exception {
+        AdmissionController controller = new AdmissionController(4, 100 * MB);
+        AdmissionController.Job low = controller.enqueue(-1, 3, MB, 1, 0, 0);
+        controller.admit(0);
+        AdmissionController.Job high = controller.enqueue(1, 3, MB, 0);
+        controller.admit(0);
+        assertTrue(controller.shouldYield(low));
+        controller.suspend(low, 0);
+        assertEquals(Arrays.asList(high), controller.admit(0));
+        assertEquals(4, controller.getCodecsInUse());
+
+        // Waits on the encoder the suspended job holds, which has to run to give it back
+        AdmissionController.Job highest = controller.enqueue(2, 4, MB, 0);
+        assertTrue(controller.admit(0).isEmpty());
+        controller.finish(high);
+        assertEquals(Arrays.asList(low), controller.admit(0));
+        assertFalse(controller.shouldYield(low));
+        assertEquals(3, controller.getCodecsInUse());
+        controller.finish(low);
+        assertEquals(Arrays.asList(highest), controller.admit(0));
+        assertEquals(4, controller.getCodecsInUse());
+    }
+
+    public void testCancelSuspendedReleasesHeldCodecs() throws Exception {
+        AdmissionController controller = new AdmissionController(4, 100 * MB);
+        AdmissionController.Job low = controller.enqueue(-1, 3, 3 * MB, 1, MB, 0);
+        controller.admit(0);
+        AdmissionController.Job high = controller.enqueue(1, 3, MB, 0);
+        controller.admit(0);
+        controller.suspend(low, 0);
+        assertEquals(1, controller.getCodecsInUse());
+        assertEquals(MB, controller.getMemoryInUse());
+        assertTrue(controller.cancel(low));
+        assertEquals(0, controller.getCodecsInUse());
+        assertEquals(0, controller.getMemoryInUse());
+        assertEquals(Arrays.asList(high), controller.admit(0));
+    }
+
+    public void testEqualPriorityNeverYields() throws Exception {
+        AdmissionController controller = new AdmissionController(3, 100 * MB);
+        AdmissionController.Job running = controller.enqueue(0, 3, MB, 0);
+        controller.admit(0);
+        controller.enqueue(0, 3, MB, 0);
+        assertTrue(controller.admit(0).isEmpty());
+        assertFalse(controller.shouldYield(running));
+    }
+
+    public void testCancel() throws Exception {
+        AdmissionController controller = new AdmissionController(3, 100 * MB);
+        AdmissionController.Job running = controller.enqueue(0, 3, MB, 0);
+        AdmissionController.Job waiting = controller.enqueue(0, 3, MB, 0);
+        AdmissionController.Job after = controller.enqueue(0, 3, MB, 0);
+        controller.admit(0);
+        assertFalse(controller.cancel(running));
+        assertTrue(controller.cancel(waiting));
+        assertEquals(AdmissionController.State.FINISHED, controller.getState(waiting));
+        controller.finish(running);
+        List<AdmissionController.Job> admitted = controller.admit(0);
+        assertEquals(Arrays.asList(after), admitted);
+        assertEquals(3, controller.getCodecsInUse());
+    }
+}
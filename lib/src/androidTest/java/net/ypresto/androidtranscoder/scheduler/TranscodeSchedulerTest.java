@@ -0,0 +1,72 @@
+package net.ypresto.androidtranscoder.scheduler;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class TranscodeSchedulerTest extends TestCase {
+
+    public void testPreemptWhileEveryThreadIsBusy() throws Exception {
+        ThreadPoolExecutor executor = TranscodeScheduler.newExecutor(3, Executors.defaultThreadFactory());
+        final TranscodeScheduler scheduler = new TranscodeScheduler(new AdmissionController(3, Long.MAX_VALUE), executor);
+        final CountDownLatch lowStarted = new CountDownLatch(3);
+        final CountDownLatch highRan = new CountDownLatch(1);
+        final List<String> events = new ArrayList<String>();
+        List<Future<Void>> lowFutures = new ArrayList<Future<Void>>();
+        try {
+            // Three low priority jobs, one per core thread, stepping through segments until the high one has run
+            for (int i = 0; i < 3; ++i) {
+                lowFutures.add(scheduler.submit(-1, 1, 0, 0, 0, new TranscodeScheduler.Task<Void>() {
+                    @Override
+                    public Void call(TranscodeScheduler.Ticket ticket) throws Exception {
+                        lowStarted.countDown();
+                        while (highRan.getCount() > 0) {
+                            ticket.checkpoint();
+                            Thread.sleep(1);
+                        }
+                        ticket.checkpoint();
+                        synchronized (events) {
+                            events.add("low");
+                        }
+                        return null;
+                    }
+                }));
+            }
+            assertTrue(lowStarted.await(5, TimeUnit.SECONDS));
+
+            Future<Void> high = scheduler.submit(1, 3, 0, new TranscodeScheduler.Task<Void>() {
+                @Override
+                public Void call(TranscodeScheduler.Ticket ticket) throws Exception {
+                    // Every low priority job has made way for this one
+                    assertEquals(1, scheduler.getAdmissionController().getRunningCount());
+                    synchronized (events) {
+                        events.add("high");
+                    }
+                    highRan.countDown();
+                    return null;
+                }
+            });
+            assertTrue("high priority job never ran, " + executor.getActiveCount() + " threads active",
+                    highRan.await(5, TimeUnit.SECONDS));
+            high.get(5, TimeUnit.SECONDS);
+            for (Future<Void> low : lowFutures)
+                low.get(5, TimeUnit.SECONDS);
+            assertEquals("high", events.get(0));
+            assertEquals(4, events.size());
+            // Futures complete just before their jobs hand the budget back
+            long deadlineMs = System.currentTimeMillis() + 5000;
+            while (scheduler.getAdmissionController().getRunningCount() > 0 && System.currentTimeMillis() < deadlineMs)
+                Thread.sleep(1);
+            assertEquals(0, scheduler.getAdmissionController().getRunningCount());
+            assertEquals(0, scheduler.getAdmissionController().getQueueDepth());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
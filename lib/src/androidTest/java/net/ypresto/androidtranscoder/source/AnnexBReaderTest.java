@@ -0,0 +1,172 @@
+package net.ypresto.androidtranscoder.source;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+public class AnnexBReaderTest extends TestCase {
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x38, (byte) 0x80};
+    private static final byte[] AUD = {0x09, (byte) 0xf0};
+    private static final byte[] SEI = {0x06, 0x05, 0x01, (byte) 0xff, (byte) 0x80};
+
+    // Decoding order of two runs from an IDR, with B frames and a pic_order_cnt_lsb wrap in the first
+    private static final int[] LSBS = {0, 6, 2, 4, 12, 8, 10, 2, 14, 0, 0, 2};
+    private static final boolean[] IDRS = {true, false, false, false, false, false, false, false, false, false, true, false};
+    private static final boolean[] REFERENCES = {true, true, false, false, true, false, false, true, false, false, true, true};
+    // Output order, from order counts 0 6 2 4 12 8 10 18 14 16 and 0 2
+    private static final int[] PRESENTATION = {0, 3, 1, 2, 6, 4, 5, 9, 7, 8, 10, 11};
+
+    public void testAccessUnits() {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        int[] starts = new int[LSBS.length];
+        int[] ends = new int[LSBS.length];
+        for (int i = 0; i < LSBS.length; ++i) {
+            starts[i] = stream.size();
+            if (IDRS[i]) {
+                write(stream, sps(0), i == 0);
+                write(stream, PPS, false);
+                write(stream, SEI, true);
+            } else if (i % 3 == 0) {
+                write(stream, AUD, true);
+            }
+            write(stream, slice(IDRS[i], REFERENCES[i], 0, i % 16, LSBS[i]), i % 2 == 0);
+            // Every other picture comes in two slices
+            if (i % 2 == 1)
+                write(stream, slice(IDRS[i], REFERENCES[i], 2, i % 16, LSBS[i]), false);
+            ends[i] = stream.size();
+        }
+        byte[] data = stream.toByteArray();
+        AnnexBReader reader = new AnnexBReader(ByteBuffer.wrap(data));
+
+        assertEquals(LSBS.length, reader.getCount());
+        assertEquals(32, reader.getSps().getWidth());
+        assertEquals(48, reader.getSps().getHeight());
+        assertEquals(sps(0).length, reader.getSpsUnit().remaining());
+        assertEquals(PPS.length, reader.getPpsUnit().remaining());
+        assertTrue(reader.isReordered());
+        int maxSize = 0;
+        for (int i = 0; i < LSBS.length; ++i) {
+            // Units run from the 00 00 01 of their first NAL to the end of their last
+            int start = data[starts[i]] == 0 && data[starts[i] + 2] == 0 ? starts[i] + 1 : starts[i];
+            ByteBuffer sample = reader.getSample(i);
+            assertEquals("unit " + i, ends[i] - start, sample.remaining());
+            assertEquals(0, sample.get(0));
+            assertEquals(0, sample.get(1));
+            assertEquals(1, sample.get(2));
+            assertEquals("unit " + i, PRESENTATION[i], reader.getPresentationIndex(i));
+            assertEquals("unit " + i, IDRS[i], reader.isSync(i));
+            maxSize = Math.max(maxSize, sample.remaining());
+        }
+        assertEquals(maxSize, reader.getMaxSize());
+        assertEquals(0, reader.getSyncSampleBefore(9));
+        assertEquals(10, reader.getSyncSampleBefore(10));
+        assertEquals(10, reader.getSyncSampleBefore(11));
+        assertEquals(10, reader.getSyncSampleAfter(1));
+        assertEquals(12, reader.getSyncSampleAfter(11));
+    }
+
+    public void testDecodingOrderWithoutOrderCountLsb() {
+        // pic_order_cnt_type 2 streams output in decoding order, and one without an IDR starts anywhere
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        write(stream, sps(2), true);
+        write(stream, PPS, false);
+        for (int i = 0; i < 5; ++i)
+            write(stream, slice(false, true, 0, i, -1), true);
+        AnnexBReader reader = new AnnexBReader(ByteBuffer.wrap(stream.toByteArray()));
+        assertEquals(5, reader.getCount());
+        assertFalse(reader.isReordered());
+        for (int i = 0; i < 5; ++i)
+            assertEquals(i, reader.getPresentationIndex(i));
+        assertTrue(reader.isSync(0));
+        assertEquals(0, reader.getSyncSampleBefore(4));
+    }
+
+    public void testMissingParameterSets() {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        write(stream, slice(true, true, 0, 0, 0), true);
+        try {
+            new AnnexBReader(ByteBuffer.wrap(stream.toByteArray()));
+            fail("Stream without SPS accepted");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    private static void write(ByteArrayOutputStream stream, byte[] unit, boolean longStartCode) {
+        if (longStartCode)
+            stream.write(0);
+        stream.write(0);
+        stream.write(0);
+        stream.write(1);
+        stream.write(unit, 0, unit.length);
+    }
+
+    // Main profile, 32x48, 4 bit frame_num and pic_order_cnt_lsb
+    private static byte[] sps(int orderCountType) {
+        BitWriter writer = new BitWriter(0x67);
+        writer.bits(77, 8).bits(0, 8).bits(30, 8).ue(0);
+        writer.ue(0).ue(orderCountType);
+        if (orderCountType == 0)
+            writer.ue(0);
+        writer.ue(2).bits(0, 1).ue(1).ue(2).bits(1, 1).bits(1, 1).bits(0, 1).bits(0, 1);
+        return writer.finish();
+    }
+
+    private static byte[] slice(boolean idr, boolean reference, int firstMb, int frameNum, int orderCountLsb) {
+        BitWriter writer = new BitWriter((reference ? 0x40 : 0) | (idr ? 5 : 1));
+        writer.ue(firstMb).ue(idr ? 7 : 5).ue(0).bits(frameNum, 4);
+        if (idr)
+            writer.ue(0);
+        if (orderCountLsb >= 0)
+            writer.bits(orderCountLsb, 4);
+        // Stand in for the rest of the slice
+        writer.bits(0, 16).bits(0x5a, 8);
+        return writer.finish();
+    }
+
+    /**
+     * Writes a NAL unit, emulation prevention included
+     */
+    private static class BitWriter {
+        private final ByteArrayOutputStream mBytes = new ByteArrayOutputStream();
+        private int mZeros;
+        private int mCurrent;
+        private int mCount;
+
+        BitWriter(int header) {
+            mBytes.write(header);
+        }
+
+        BitWriter bits(int value, int count) {
+            for (int i = count - 1; i >= 0; --i) {
+                mCurrent = mCurrent << 1 | (value >>> i) & 1;
+                if (++mCount == 8)
+                    flush();
+            }
+            return this;
+        }
+
+        BitWriter ue(int value) {
+            int length = 32 - Integer.numberOfLeadingZeros(value + 1);
+            return bits(0, length - 1).bits(value + 1, length);
+        }
+
+        byte[] finish() {
+            bits(1, 1);
+            while (mCount != 0)
+                bits(0, 1);
+            return mBytes.toByteArray();
+        }
+
+        private void flush() {
+            if (mZeros == 2 && mCurrent <= 3) {
+                mBytes.write(3);
+                mZeros = 0;
+            }
+            mBytes.write(mCurrent);
+            mZeros = mCurrent == 0 ? mZeros + 1 : 0;
+            mCurrent = 0;
+            mCount = 0;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package net.ypresto.androidtranscoder.source;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+
+public class WavReaderTest extends TestCase {
+    private static final int FORMAT_PCM = 1;
+    private static final int FORMAT_EXTENSIBLE = 0xfffe;
+
+    public void testFormatAndFrames() {
+        byte[] file = wav(FORMAT_PCM, 2, 44100, 16, 1000, 0, true);
+        WavReader reader = new WavReader(ByteBuffer.wrap(file));
+        assertEquals(2, reader.getChannelCount());
+        assertEquals(44100, reader.getSampleRate());
+        assertEquals(16, reader.getBitsPerSample());
+        assertEquals(4, reader.getFrameSize());
+        assertEquals(1000, reader.getFrameCount());
+        assertEquals(1000 * 1000000l / 44100, reader.getDurationUs());
+
+        ByteBuffer frames = reader.getFrames(10, 5);
+        assertEquals(20, frames.remaining());
+        assertSame(file, frames.array());       // a view, not a copy
+        ShortBuffer samples = frames.asShortBuffer();
+        for (int i = 0; i < 10; ++i)
+            assertEquals(sample(20 + i), samples.get(i));
+    }
+
+    public void testFrameTimesRoundTrip() {
+        WavReader reader = new WavReader(ByteBuffer.wrap(wav(FORMAT_PCM, 1, 48000, 16, 5000, 0, false)));
+        for (int frame = 0; frame <= 5000; frame += 7)
+            assertEquals(frame, reader.getFrame(reader.getTimeUs(frame)));
+        assertEquals(0, reader.getFrame(-1000));
+        assertEquals(5000, reader.getFrame(Long.MAX_VALUE / 48000));
+    }
+
+    public void testExtensibleAndOpenEndedData() {
+        // A recorder that never filled the data size in, and left half a frame at the end
+        byte[] file = wav(FORMAT_EXTENSIBLE, 2, 16000, 16, 300, 2, false);
+        ByteBuffer buffer = ByteBuffer.wrap(file).order(ByteOrder.LITTLE_ENDIAN);
+        int dataSizeOffset = new WavReader(ByteBuffer.wrap(file)).getDataOffset() - 4;
+        buffer.putInt(dataSizeOffset, 0xffffffff);
+        WavReader reader = new WavReader(buffer);
+        assertEquals(300, reader.getFrameCount());
+        assertEquals(2, reader.getChannelCount());
+    }
+
+    public void testUnsupported() {
+        try {
+            new WavReader(ByteBuffer.wrap(wav(FORMAT_PCM, 2, 44100, 24, 10, 0, false)));
+            fail("24 bit PCM accepted");
+        } catch (UnsupportedOperationException e) {
+        }
+        try {
+            new WavReader(ByteBuffer.wrap(wav(3, 2, 44100, 16, 10, 0, false)));
+            fail("Float samples accepted");
+        } catch (UnsupportedOperationException e) {
+        }
+        try {
+            new WavReader(ByteBuffer.wrap(new byte[] {'R', 'I', 'F', 'F', 0, 0, 0, 0, 'A', 'V', 'I', ' '}));
+            fail("AVI accepted");
+        } catch (IllegalStateException e) {
+        }
+    }
+
+    public void testMappedFile() throws Exception {
+        File file = File.createTempFile("wav", ".wav");
+        try {
+            FileOutputStream outputStream = new FileOutputStream(file);
+            outputStream.write(wav(FORMAT_PCM, 1, 8000, 16, 800, 0, true));
+            outputStream.close();
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            ByteBuffer mapped = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            randomAccessFile.close();
+            WavReader reader = new WavReader(mapped);
+            assertEquals(800, reader.getFrameCount());
+            assertEquals(100000, reader.getDurationUs());
+            assertEquals(sample(799), reader.getFrames(799, 1).asShortBuffer().get(0));
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static short sample(int index) {
+        return (short) (index * 37 - 1000);
+    }
+
+    /**
+     * A WAV file of ramp samples, with a LIST chunk of odd size ahead of fmt if asked
+     */
+    private static byte[] wav(int formatTag, int channels, int sampleRate, int bits, int frames, int extraBytes, boolean list) {
+        int blockAlign = channels * bits / 8;
+        int formatSize = formatTag == FORMAT_EXTENSIBLE ? 40 : 16;
+        int listSize = list ? 8 + 5 + 1 : 0;
+        int dataSize = frames * blockAlign + extraBytes;
+        ByteBuffer buffer = ByteBuffer.allocate(12 + listSize + 8 + formatSize + 8 + dataSize).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(new byte[] {'R', 'I', 'F', 'F'}).putInt(buffer.capacity() - 8).put(new byte[] {'W', 'A', 'V', 'E'});
+        if (list)
+            buffer.put(new byte[] {'L', 'I', 'S', 'T'}).putInt(5).put(new byte[] {'I', 'N', 'F', 'O', 'x', 0});
+        buffer.put(new byte[] {'f', 'm', 't', ' '}).putInt(formatSize);
+        buffer.putShort((short) formatTag).putShort((short) channels).putInt(sampleRate)
+                .putInt(sampleRate * blockAlign).putShort((short) blockAlign).putShort((short) bits);
+        if (formatTag == FORMAT_EXTENSIBLE) {
+            buffer.putShort((short) 22).putShort((short) bits).putInt(3);
+            buffer.putShort((short) FORMAT_PCM).put(new byte[] {0, 0, 0, 0, 0x10, 0, (byte) 0x80, 0, 0, (byte) 0xaa, 0, 0x38, (byte) 0x9b, 0x71});
+        }
+        buffer.put(new byte[] {'d', 'a', 't', 'a'}).putInt(dataSize);
+        for (int i = 0; i < frames * channels && bits == 16; ++i)
+            buffer.putShort(sample(i));
+        return buffer.array();
+    }
+}
@@ -0,0 +1,112 @@
+package net.ypresto.androidtranscoder.utils;
+
+import junit.framework.TestCase;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+
+public class AvcSpsUtilsTest extends TestCase {
+
+    public void testParameterSets() throws Exception {
+        InputStream in = getClass().getResourceAsStream("avc_parameter_sets.txt");
+        assertNotNull(in);
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"));
+        int sets = 0;
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() == 0 || line.startsWith("#"))
+                    continue;
+                String[] fields = line.split("\\|");
+                assertEquals(line, 4, fields.length);
+                ByteBuffer spsBuffer = nalPayload(fields[1], 7);
+                assertEquals(Integer.parseInt(fields[3].replaceAll(".*profile=(\\d+).*", "$1")), AvcSpsUtils.getProfileIdc(spsBuffer) & 0xff);
+                AvcSps sps = AvcSpsUtils.parseSps(spsBuffer);
+                AvcPps pps = AvcSpsUtils.parsePps(nalPayload(fields[2], 8), sps);
+                for (String expected : fields[3].split(" ")) {
+                    String key = expected.substring(0, expected.indexOf('='));
+                    String value = expected.substring(key.length() + 1);
+                    String message = fields[0] + " " + key;
+                    if (key.equals("fps"))
+                        assertEquals(message, Double.parseDouble(value), sps.getFrameRate(), 0.01);
+                    else
+                        assertEquals(message, value, actual(key, sps, pps));
+                }
+                ++sets;
+            }
+        } finally {
+            reader.close();
+        }
+        assertEquals(9, sets);
+    }
+
+    public void testTruncated() {
+        ByteBuffer spsBuffer = nalPayload("67640028acb402d016b4940404041b4284d4", 7);
+        spsBuffer.limit(6);
+        try {
+            AvcSpsUtils.parseSps(spsBuffer);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    private static String actual(String key, AvcSps sps, AvcPps pps) {
+        if (key.equals("profile")) return "" + sps.mProfileIdc;
+        if (key.equals("level")) return "" + sps.mLevelIdc;
+        if (key.startsWith("constraint")) return "" + sps.getConstraintFlag(key.charAt(key.length() - 1) - '0');
+        if (key.equals("sps_id")) return "" + sps.mSeqParameterSetId;
+        if (key.equals("chroma")) return "" + sps.mChromaFormatIdc;
+        if (key.equals("separate_planes")) return "" + sps.mSeparateColourPlane;
+        if (key.equals("depth_luma")) return "" + sps.mBitDepthLuma;
+        if (key.equals("depth_chroma")) return "" + sps.mBitDepthChroma;
+        if (key.equals("bypass")) return "" + sps.mQpprimeYZeroTransformBypass;
+        if (key.equals("scaling")) return "" + sps.mScalingMatrixPresent;
+        if (key.equals("poc")) return "" + sps.mPicOrderCntType;
+        if (key.equals("log2_poc_lsb")) return "" + sps.mLog2MaxPicOrderCntLsb;
+        if (key.equals("ref_frame_offsets")) {
+            StringBuilder offsets = new StringBuilder();
+            for (int offset : sps.mOffsetForRefFrame)
+                offsets.append(offsets.length() > 0 ? "," : "").append(offset);
+            return offsets.toString();
+        }
+        if (key.equals("refs")) return "" + sps.mMaxNumRefFrames;
+        if (key.equals("frame_mbs_only")) return "" + sps.mFrameMbsOnly;
+        if (key.equals("mbaff")) return "" + sps.mMbAdaptiveFrameField;
+        if (key.equals("width")) return "" + sps.getWidth();
+        if (key.equals("height")) return "" + sps.getHeight();
+        if (key.equals("vui")) return "" + sps.mVuiPresent;
+        if (key.equals("sar")) return sps.mSarWidth + ":" + sps.mSarHeight;
+        if (key.equals("full_range")) return "" + sps.mFullRange;
+        if (key.equals("nal_hrd")) return "" + sps.mNalHrdPresent;
+        if (key.equals("vcl_hrd")) return "" + sps.mVclHrdPresent;
+        if (key.equals("reorder")) return "" + sps.getMaxReorderFrames();
+        if (key.equals("dpb")) return "" + sps.mMaxDecFrameBuffering;
+        if (key.equals("pps_id")) return "" + pps.mPicParameterSetId;
+        if (key.equals("pps_sps_id")) return "" + pps.mSeqParameterSetId;
+        if (key.equals("pps_cabac")) return "" + pps.mEntropyCodingMode;
+        if (key.equals("pps_slice_groups")) return "" + pps.mNumSliceGroups;
+        if (key.equals("pps_slice_group_map")) return "" + pps.mSliceGroupMapType;
+        if (key.equals("pps_refs")) return pps.mNumRefIdxL0DefaultActive + "/" + pps.mNumRefIdxL1DefaultActive;
+        if (key.equals("pps_qp")) return "" + pps.mPicInitQp;
+        if (key.equals("pps_chroma_qp")) return "" + pps.mChromaQpIndexOffset;
+        if (key.equals("pps_redundant")) return "" + pps.mRedundantPicCntPresent;
+        if (key.equals("pps_8x8")) return "" + pps.mTransform8x8Mode;
+        if (key.equals("pps_scaling")) return "" + pps.mScalingMatrixPresent;
+        if (key.equals("pps_second_chroma_qp")) return "" + pps.mSecondChromaQpIndexOffset;
+        throw new IllegalArgumentException("Unknown key " + key);
+    }
+
+    // NAL unit from hex, positioned after its header
+    private static ByteBuffer nalPayload(String hex, int nalType) {
+        byte[] nal = new byte[hex.length() / 2];
+        for (int i = 0; i < nal.length; ++i)
+            nal[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        assertEquals(nalType, nal[0] & 0x1f);
+        ByteBuffer buffer = ByteBuffer.wrap(nal);
+        buffer.position(1);
+        return buffer.slice();
+    }
+}
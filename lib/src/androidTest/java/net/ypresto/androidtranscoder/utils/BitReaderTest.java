@@ -0,0 +1,74 @@
+package net.ypresto.androidtranscoder.utils;
+
+import junit.framework.TestCase;
+
+public class BitReaderTest extends TestCase {
+
+    public void testBitsAndExpGolomb() {
+        // 1 | 010 | 011 | 00100 | 00111 | 0001000 | 101
+        byte[] data = {(byte) 0xa6, 0x43, (byte) 0x88, (byte) 0xa0};
+        BitReader reader = new BitReader(data, 0, data.length);
+        assertEquals(0, reader.readUnsignedExpGolomb());
+        assertEquals(1, reader.readUnsignedExpGolomb());
+        assertEquals(-1, reader.readSignedExpGolomb());
+        assertEquals(2, reader.readSignedExpGolomb());
+        assertEquals(-3, reader.readSignedExpGolomb());
+        assertEquals(7, reader.readUnsignedExpGolomb());
+        assertEquals(5, reader.readBits(3));
+        assertEquals(27, reader.getBitsRead());
+    }
+
+    public void testLongCodes() {
+        // 30 leading zeros needs 61 bits, at some alignments more than the cache holds
+        for (int skip = 0; skip < 64; ++skip) {
+            byte[] data = new byte[20];
+            int one = skip + 30;
+            data[one / 8] |= 0x80 >> (one % 8);
+            int info = one + 1;                     // Second and last of the 30 info bits, 11 would be emulation prevention
+            data[(info + 1) / 8] |= 0x80 >> ((info + 1) % 8);
+            data[(info + 29) / 8] |= 0x80 >> ((info + 29) % 8);
+            BitReader reader = new BitReader(data, 0, data.length);
+            reader.skipBits(skip);
+            assertEquals("skip " + skip, (1 << 30) - 1 + (1 << 28) + 1, reader.readUnsignedExpGolomb());
+            assertEquals(skip + 61, reader.getBitsRead());
+        }
+    }
+
+    public void testEmulationPrevention() {
+        byte[] data = {0x00, 0x00, 0x03, 0x01, 0x00, 0x00, 0x03, 0x00, 0x00, 0x03, 0x03, (byte) 0xff};
+        BitReader reader = new BitReader(data, 0, data.length);
+        assertEquals(0x00000100, reader.readBits(32));
+        assertEquals(0x00000003, reader.readBits(32));
+        assertEquals(0xff, reader.readBits(8));
+        assertEquals(72, reader.getBitsRead());
+    }
+
+    public void testMoreRbspData() {
+        // Payload bit, stop bit and a trailing zero byte
+        byte[] data = {(byte) 0xc0, 0x00};
+        BitReader reader = new BitReader(data, 0, data.length);
+        assertTrue(reader.hasMoreRbspData());
+        reader.readBit();
+        assertFalse(reader.hasMoreRbspData());
+
+        // Stop bit after an emulation prevention byte, with an offset into the array
+        data = new byte[]{0x55, 0x00, 0x00, 0x03, 0x01};
+        reader.reset(data, 1, 4);
+        reader.skipBits(22);
+        assertTrue(reader.hasMoreRbspData());
+        reader.readBit();
+        assertFalse(reader.hasMoreRbspData());
+    }
+
+    public void testReadPastEnd() {
+        byte[] data = {0x01};
+        BitReader reader = new BitReader(data, 0, data.length);
+        reader.readBits(7);
+        try {
+            reader.readBits(2);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+}
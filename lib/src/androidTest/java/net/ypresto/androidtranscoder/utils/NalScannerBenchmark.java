@@ -0,0 +1,95 @@
+package net.ypresto.androidtranscoder.utils;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Compares the start code search of {@link NalScanner#findStartCode} with a plain byte loop, on
+ * heap and direct buffers of Annex-B data shaped like encoder output.  Not part of the test run,
+ * start it with main on a JVM or call {@link #run} from a device.
+ */
+public class NalScannerBenchmark {
+    private static final int BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final int WARMUP_ROUNDS = 200;
+    private static final int ROUNDS = 500;
+
+    public static void main(String[] args) {
+        System.out.println(run());
+    }
+
+    public static String run() {
+        ByteBuffer heap = annexB(BUFFER_SIZE, new Random(1));
+        ByteBuffer direct = ByteBuffer.allocateDirect(heap.capacity());
+        direct.put(heap.duplicate()).flip();
+        StringBuilder builder = new StringBuilder();
+        builder.append(measure("heap", heap)).append('\n');
+        builder.append(measure("direct", direct));
+        return builder.toString();
+    }
+
+    private static String measure(String name, ByteBuffer buffer) {
+        int units = 0;
+        for (int round = 0; round < WARMUP_ROUNDS; ++round)
+            units += scanStartCodes(buffer) + scanByteLoop(buffer);
+        long scannerNs = Long.MAX_VALUE;
+        long bytesNs = Long.MAX_VALUE;
+        // Best of the rounds, alternating so neither loop gets the quieter half of the run
+        for (int round = 0; round < ROUNDS; ++round) {
+            long startNs = System.nanoTime();
+            units += scanStartCodes(buffer);
+            scannerNs = Math.min(scannerNs, System.nanoTime() - startNs);
+            startNs = System.nanoTime();
+            units += scanByteLoop(buffer);
+            bytesNs = Math.min(bytesNs, System.nanoTime() - startNs);
+        }
+        return String.format("%s: findStartCode %.0f MB/s, byte loop %.0f MB/s, %.1fx (%d)", name,
+                megabytesPerSecond(buffer, scannerNs), megabytesPerSecond(buffer, bytesNs), (double) bytesNs / scannerNs, units);
+    }
+
+    private static double megabytesPerSecond(ByteBuffer buffer, long ns) {
+        return buffer.remaining() * 1000.0 / ns;
+    }
+
+    private static int scanStartCodes(ByteBuffer buffer) {
+        int units = 0;
+        int end = buffer.limit();
+        for (int i = NalScanner.findStartCode(buffer, 0, end); i < end; i = NalScanner.findStartCode(buffer, i + 3, end))
+            ++units;
+        return units;
+    }
+
+    private static int scanByteLoop(ByteBuffer buffer) {
+        int units = 0;
+        int end = buffer.limit();
+        for (int i = 0; i < end - 2; ++i) {
+            if (buffer.get(i) == 0 && buffer.get(i + 1) == 0 && buffer.get(i + 2) == 1)
+                ++units;
+        }
+        return units;
+    }
+
+    // Slices of 2 to 64 KB with emulation prevention applied to random payload, as an encoder writes them
+    private static ByteBuffer annexB(int size, Random random) {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        while (buffer.remaining() > 8) {
+            buffer.put(new byte[] {0, 0, 0, 1, 0x65});
+            int end = Math.min(buffer.limit(), buffer.position() + 2048 + random.nextInt(62 * 1024));
+            int zeros = 0;
+            while (buffer.position() < end) {
+                byte value = (byte) random.nextInt(256);
+                if (zeros == 2 && (value & 0xff) <= 3) {
+                    buffer.put((byte) 3);
+                    zeros = 0;
+                    continue;
+                }
+                buffer.put(value);
+                zeros = value == 0 ? zeros + 1 : 0;
+            }
+            // A slice can't end in a zero byte
+            if (zeros > 0)
+                buffer.put(buffer.position() - 1, (byte) 0x80);
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
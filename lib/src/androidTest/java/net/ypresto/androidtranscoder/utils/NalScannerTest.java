@@ -0,0 +1,151 @@
+package net.ypresto.androidtranscoder.utils;
+
+import junit.framework.TestCase;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+public class NalScannerTest extends TestCase {
+
+    public void testScanAnnexB() {
+        byte[] data = {0x00, 0x00, 0x00, 0x01, 0x67, 0x42, 0x00, 0x00, 0x01, 0x68, (byte) 0xce,
+                0x00, 0x00, 0x00, 0x01, 0x65, 0x11, 0x22, 0x00, 0x00};
+        NalScanner scanner = new NalScanner();
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        assertEquals(3, scanner.scanAnnexB(buffer));
+        assertEquals(4, scanner.getOffset(0));
+        assertEquals(2, scanner.getLength(0));
+        assertEquals(9, scanner.getOffset(1));
+        assertEquals(2, scanner.getLength(1));
+        assertEquals(15, scanner.getOffset(2));
+        assertEquals(3, scanner.getLength(2));      // trailing zeros dropped
+        assertEquals(7, scanner.getType(buffer, 0));
+        assertEquals(8, scanner.getType(buffer, 1));
+        assertEquals(5, scanner.getType(buffer, 2));
+    }
+
+    public void testFindStartCodeMatchesByteLoop() {
+        Random random = new Random(48);
+        for (int round = 0; round < 200; ++round) {
+            byte[] data = new byte[random.nextInt(64)];
+            for (int i = 0; i < data.length; ++i)
+                data[i] = (byte) (random.nextInt(4) == 0 ? random.nextInt(2) : random.nextInt(256));
+            // Heap buffers are searched through their array, direct ones a word at a time
+            ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+            direct.put(data).flip();
+            byte[] padded = new byte[data.length + 3];
+            System.arraycopy(data, 0, padded, 3, data.length);
+            padded[2] = 1;
+            ByteBuffer slice = ByteBuffer.wrap(padded, 3, data.length).slice();
+            int start = data.length > 0 ? random.nextInt(data.length) : 0;
+            for (ByteBuffer buffer : new ByteBuffer[] {ByteBuffer.wrap(data), direct, slice}) {
+                for (int i = start; ; ) {
+                    int expected = byteLoop(data, i);
+                    assertEquals(Arrays.toString(data) + " from " + i, expected, NalScanner.findStartCode(buffer, i, data.length));
+                    if (expected == data.length)
+                        break;
+                    i = expected + 1;
+                }
+            }
+        }
+    }
+
+    public void testRoundTripHeap() {
+        roundTrip(false);
+    }
+
+    public void testRoundTripDirect() {
+        roundTrip(true);
+    }
+
+    public void testScanLengthPrefixed() {
+        byte[] data = {0x00, 0x02, 0x67, 0x42, 0x00, 0x01, 0x68};
+        NalScanner scanner = new NalScanner();
+        assertEquals(2, scanner.scanLengthPrefixed(ByteBuffer.wrap(data), 2));
+        assertEquals(2, scanner.getOffset(0));
+        assertEquals(2, scanner.getLength(0));
+        assertEquals(6, scanner.getOffset(1));
+        assertEquals(1, scanner.getLength(1));
+        data[5] = 0x02;
+        try {
+            scanner.scanLengthPrefixed(ByteBuffer.wrap(data), 2);
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testNoRoomToGrow() {
+        byte[] data = {0x00, 0x00, 0x01, 0x09, (byte) 0xf0};
+        try {
+            new NalScanner().annexBToLengthPrefixed(ByteBuffer.wrap(data));
+            fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    // Random units behind a mix of 3 and 4 byte start codes, converted to length prefixes and back
+    private void roundTrip(boolean direct) {
+        Random random = new Random(direct ? 1 : 2);
+        NalScanner scanner = new NalScanner();
+        for (int round = 0; round < 50; ++round) {
+            int count = 1 + random.nextInt(40);
+            byte[][] units = new byte[count][];
+            ByteBuffer annexB = ByteBuffer.allocate(count * (4 + 20000) + count);
+            for (int i = 0; i < count; ++i) {
+                units[i] = new byte[1 + random.nextInt(random.nextBoolean() ? 20 : 20000)];
+                random.nextBytes(units[i]);
+                units[i][0] = (byte) (random.nextInt(31) + 1);
+                units[i][units[i].length - 1] |= 0x01;
+                for (int j = 2; j < units[i].length; ++j) {
+                    if (units[i][j - 2] == 0 && units[i][j - 1] == 0 && (units[i][j] & 0xfc) == 0)
+                        units[i][j] = 0x04;
+                }
+                if (random.nextBoolean())
+                    annexB.put((byte) 0);
+                annexB.put(new byte[]{0x00, 0x00, 0x01}).put(units[i]);
+            }
+            annexB.flip();
+            ByteBuffer buffer = direct ? ByteBuffer.allocateDirect(annexB.capacity()) : ByteBuffer.allocate(annexB.capacity());
+            buffer.put(annexB).flip();
+
+            assertEquals(count, scanner.annexBToLengthPrefixed(buffer));
+            int expectedSize = 0;
+            for (int i = 0; i < count; ++i)
+                expectedSize += 4 + units[i].length;
+            assertEquals(expectedSize, buffer.limit());
+            for (int i = 0, offset = 0; i < count; ++i) {
+                assertEquals(units[i].length, buffer.getInt(offset));
+                assertEquals(offset + 4, scanner.getOffset(i));
+                assertUnit(units[i], buffer, offset + 4);
+                offset += 4 + units[i].length;
+            }
+
+            assertEquals(count, scanner.lengthPrefixedToAnnexB(buffer, 4));
+            assertEquals(expectedSize, buffer.limit());
+            for (int i = 0, offset = 0; i < count; ++i) {
+                assertEquals(1, buffer.getInt(offset));
+                assertUnit(units[i], buffer, offset + 4);
+                offset += 4 + units[i].length;
+            }
+        }
+    }
+
+    private static int byteLoop(byte[] data, int start) {
+        for (int i = start; i < data.length - 2; ++i) {
+            if (data[i] == 0 && data[i + 1] == 0 && data[i + 2] == 1)
+                return i;
+        }
+        return data.length;
+    }
+
+    private static void assertUnit(byte[] expected, ByteBuffer buffer, int offset) {
+        byte[] actual = new byte[expected.length];
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.get(actual);
+        assertTrue(Arrays.equals(expected, actual));
+    }
+}
@@ -20,36 +20,69 @@ import android.os.Handler;
 import android.os.Looper;
 import net.ypresto.androidtranscoder.TLog;
 
+import net.ypresto.androidtranscoder.compat.CodecCapabilityTable;
+import net.ypresto.androidtranscoder.engine.ExtractorPool;
 import net.ypresto.androidtranscoder.engine.MediaTranscoderEngine;
+import net.ypresto.androidtranscoder.engine.ProgressModel;
+import net.ypresto.androidtranscoder.engine.Rendition;
 import net.ypresto.androidtranscoder.engine.TimeLine;
+import net.ypresto.androidtranscoder.engine.TraceRecorder;
+import net.ypresto.androidtranscoder.format.MediaFormatExtraConstants;
 import net.ypresto.androidtranscoder.format.MediaFormatPresets;
 import net.ypresto.androidtranscoder.format.MediaFormatStrategy;
+import net.ypresto.androidtranscoder.mp4.Mp4IndexCache;
+import net.ypresto.androidtranscoder.scheduler.AdmissionController;
+import net.ypresto.androidtranscoder.scheduler.TranscodeScheduler;
 
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
+import java.io.FileReader;
 import java.io.IOException;
-import java.util.concurrent.Callable;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
 import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
 public class MediaTranscoder {
     private static final String TAG = "MediaTranscoder";
-    private static final int MAXIMUM_THREAD = 1; // TODO
+    private static final int MAXIMUM_THREAD = 3;
+    public static final int PRIORITY_LOW = -1;
+    public static final int PRIORITY_NORMAL = 0;
+    public static final int PRIORITY_HIGH = 1;
+    private static final int DEFAULT_CODEC_BUDGET = 6;
+    private static final long DEFAULT_MEMORY_BUDGET = 256l * 1024 * 1024;
+    // Rough codec buffer footprint, a 1080p decoder or encoder holds around ten NV12 frames
+    private static final long VIDEO_CODEC_BYTES = 1920l * 1088 * 3 / 2 * 10;
+    private static final long AUDIO_CODEC_BYTES = 1024l * 1024;
     private static volatile MediaTranscoder sMediaTranscoder;
     private ThreadPoolExecutor mExecutor;
+    private final TranscodeScheduler mScheduler;
+    private volatile Mp4IndexCache mIndexCache;
+    private volatile long mFrameTimeoutMs = 10000l;
+    private volatile boolean mAsyncCodecs;
+    private volatile MediaTranscoderEngine.CancelPolicy mCancelPolicy = MediaTranscoderEngine.CancelPolicy.DELETE;
+    private volatile int mCheckpointSegments;
+    private volatile boolean mTraceEnabled;
+    private volatile int mExtractorCapacity = ExtractorPool.DEFAULT_CAPACITY;
+    private volatile long mHlsSegmentDurationMs;
+    private volatile boolean mFastStart;
+    private volatile boolean mCopyTrim;
 
     private MediaTranscoder() {
         Looper looper = Looper.myLooper();
         if (looper == null)
             looper = Looper.getMainLooper();
         final int priority = looper.getThread().getPriority();
-        mExecutor = new ThreadPoolExecutor(
-                0, MAXIMUM_THREAD, 60, TimeUnit.SECONDS,
-                new LinkedBlockingQueue<Runnable>(),
+        // Admission limits how many transcodes run, the pool grows so suspended ones can't starve it
+        mExecutor = TranscodeScheduler.newExecutor(MAXIMUM_THREAD,
                 new ThreadFactory() {
                     @Override
                     public Thread newThread(Runnable r) {
@@ -59,6 +92,57 @@ public class MediaTranscoder {
                         return thread;
                     }
                 });
+        mScheduler = new TranscodeScheduler(new AdmissionController(deviceCodecBudget(), deviceMemoryBudget()), mExecutor);
+    }
+
+    /**
+     * Codec instances the device can keep open, from the limits of its AVC codecs
+     */
+    private static int deviceCodecBudget() {
+        CodecCapabilityTable table = CodecCapabilityTable.getInstance();
+        int budget = Integer.MAX_VALUE;
+        List<CodecCapabilityTable.Entry> encoders = table.getEncoders(MediaFormatExtraConstants.MIMETYPE_VIDEO_AVC);
+        List<CodecCapabilityTable.Entry> decoders = table.getDecoders(MediaFormatExtraConstants.MIMETYPE_VIDEO_AVC);
+        if (!encoders.isEmpty() && encoders.get(0).mMaxInstances > 0)
+            budget = Math.min(budget, encoders.get(0).mMaxInstances);
+        if (!decoders.isEmpty() && decoders.get(0).mMaxInstances > 0)
+            budget = Math.min(budget, decoders.get(0).mMaxInstances);
+        return budget == Integer.MAX_VALUE ? DEFAULT_CODEC_BUDGET : budget;
+    }
+
+    /**
+     * An eighth of physical memory for codec buffers
+     */
+    private static long deviceMemoryBudget() {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader("/proc/meminfo"));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith("MemTotal:")) {
+                    String[] fields = line.substring("MemTotal:".length()).trim().split("\\s+");
+                    return Long.parseLong(fields[0]) * 1024 / 8;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            TLog.w(TAG, "Unable to read memory size: " + e.getMessage());
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+        return DEFAULT_MEMORY_BUDGET;
+    }
+
+    /**
+     * Queue depth, wait times, running jobs and the budget they share
+     */
+    public AdmissionController getAdmissionController() {
+        return mScheduler.getAdmissionController();
     }
 
     public static MediaTranscoder getInstance() {
@@ -72,6 +156,102 @@ public class MediaTranscoder {
         return sMediaTranscoder;
     }
 
+    /**
+     * Keep an on-disk cache of input indexes so inputs that are transcoded repeatedly are
+     * probed and seeked without being parsed again.
+     *
+     * @param directory Directory for the cache, e.g. under {@link android.content.Context#getCacheDir()}
+     *                  or null to disable the cache.
+     * @param maxBytes  Disk budget, least recently used entries are deleted beyond it.
+     */
+    public void setIndexCache(File directory, long maxBytes) {
+        mIndexCache = directory != null ? new Mp4IndexCache(directory, maxBytes) : null;
+    }
+
+    /**
+     * How long a decoded video frame may take to reach the renderer before the transcode fails
+     * rather than waiting indefinitely on a frame the decoder never delivered.
+     *
+     * @param frameTimeoutMs Timeout in milliseconds, defaults to 10 seconds.
+     */
+    public void setFrameTimeout(long frameTimeoutMs) {
+        mFrameTimeoutMs = frameTimeoutMs;
+    }
+
+    /**
+     * Run codecs in callback mode on API 23 and later, where each codec reports available
+     * buffers from its own thread instead of being polled.
+     *
+     * @param asyncCodecs Whether to use callback mode, off by default.
+     */
+    public void setAsyncCodecs(boolean asyncCodecs) {
+        mAsyncCodecs = asyncCodecs;
+    }
+
+    /**
+     * What happens to the output of a transcode canceled through its Future, deleted by default.
+     * @param cancelPolicy
+     */
+    public void setCancelPolicy(MediaTranscoderEngine.CancelPolicy cancelPolicy) {
+        mCancelPolicy = cancelPolicy;
+    }
+
+    /**
+     * Save progress every few segments to a ".checkpoint" file next to the output, so a
+     * transcode that is killed continues where it left off when started again.
+     * @param segmentsPerCheckpoint segments between checkpoints, 0 to transcode in one pass (default)
+     */
+    public void setCheckpointInterval(int segmentsPerCheckpoint) {
+        mCheckpointSegments = segmentsPerCheckpoint;
+    }
+
+    /**
+     * Write a ".trace.json" file next to the output with spans of each pipeline stage, to be
+     * opened in chrome://tracing or the Perfetto UI.
+     * @param traceEnabled Whether to trace, off by default.
+     */
+    public void setTraceEnabled(boolean traceEnabled) {
+        mTraceEnabled = traceEnabled;
+    }
+
+    /**
+     * How many inputs may be open at once.  Inputs are opened when a segment first needs them and
+     * the least recently used are closed beyond this, to be reopened where they left off.
+     * @param extractorCapacity open extractors, 8 by default
+     */
+    public void setExtractorCapacity(int extractorCapacity) {
+        mExtractorCapacity = extractorCapacity;
+    }
+
+    /**
+     * Write HLS rather than MP4.  The output path names the ".m3u8" playlist, which is updated as
+     * each transport stream segment beside it is finished.  Segments are cut on key frames so the
+     * strategy's key frame interval should divide the duration.  Checkpoints aren't saved for these.
+     * @param segmentDurationMs duration of each segment, 0 to write MP4 (default)
+     */
+    public void setHlsSegmentDuration(long segmentDurationMs) {
+        mHlsSegmentDurationMs = segmentDurationMs;
+    }
+
+    /**
+     * Rewrite MP4 outputs with the moov box first so they can be played while downloading,
+     * rather than needing a pass on the server.  Takes a copy of the output on completion.
+     * @param fastStart Whether to move moov to the front, off by default.
+     */
+    public void setFastStart(boolean fastStart) {
+        mFastStart = fastStart;
+    }
+
+    /**
+     * Trim time lines that are a single unfiltered segment of one MP4 channel by copying the
+     * encoded samples, from the key frame before the seek with an edit list so playback starts at
+     * the seek.  Runs at about the speed of the storage but the format strategy isn't applied.
+     * @param copyTrim Whether to copy trims, off by default.
+     */
+    public void setCopyTrim(boolean copyTrim) {
+        mCopyTrim = copyTrim;
+    }
+
     /**
      * Transcodes video file asynchronously.
      * Audio track will be kept unchanged.
@@ -182,27 +362,80 @@ public class MediaTranscoder {
      * @param listener          Listener instance for callback.
      */
     public Future<Void> transcodeVideo(final TimeLine timeLine, final String outPath, final MediaFormatStrategy outFormatStrategy, final Listener listener) {
+        return transcodeVideo(timeLine, outPath, outFormatStrategy, listener, PRIORITY_NORMAL);
+    }
+
+    /**
+     * Transcodes video file asynchronously once the device has codecs to spare for it.
+     * Jobs of higher priority start first and lower priority jobs in their way pause at their
+     * next segment boundary until they can continue.
+     *
+     * @param outPath           File path for output.
+     * @param outFormatStrategy Strategy for output video format.
+     * @param listener          Listener instance for callback.
+     * @param priority          e.g. {@link #PRIORITY_NORMAL}, higher runs first.
+     */
+    public Future<Void> transcodeVideo(final TimeLine timeLine, final String outPath, final MediaFormatStrategy outFormatStrategy, final Listener listener, int priority) {
+        return transcode(timeLine, outPath, outFormatStrategy, Collections.<Rendition>emptyList(), listener, priority);
+    }
+
+    /**
+     * Transcodes a time line to several outputs at once, e.g. the steps of an adaptive bitrate
+     * ladder.  The inputs are decoded and composited once and each frame is encoded by every
+     * output, audio is encoded once and muxed into all of them.  Outputs should share an aspect
+     * ratio and frame rate and must ask for the same audio settings, otherwise the transcode
+     * fails with {@link net.ypresto.androidtranscoder.engine.InvalidOutputFormatException}.
+     * Checkpoints aren't saved for these.
+     *
+     * @param outputs   Outputs, the first is the one progress and failures are reported against.
+     * @param listener  Listener instance for callback.
+     * @param priority  e.g. {@link #PRIORITY_NORMAL}, higher runs first.
+     */
+    public Future<Void> transcodeVideo(final TimeLine timeLine, final List<Rendition> outputs, final Listener listener, int priority) {
+        if (outputs.isEmpty())
+            throw new IllegalArgumentException("At least one output is needed");
+        Rendition primary = outputs.get(0);
+        return transcode(timeLine, primary.getOutputPath(), primary.getFormatStrategy(), outputs.subList(1, outputs.size()), listener, priority);
+    }
+
+    private Future<Void> transcode(final TimeLine timeLine, final String outPath, final MediaFormatStrategy outFormatStrategy,
+                                   final List<Rendition> renditions, final Listener listener, int priority) {
         Looper looper = Looper.myLooper();
         if (looper == null) looper = Looper.getMainLooper();
         final Handler handler = new Handler(looper);
         final AtomicReference<Future<Void>> futureReference = new AtomicReference<>();
-        final Future<Void> createdFuture = mExecutor.submit(new Callable<Void>() {
+        CodecDemand demand = CodecDemand.estimate(timeLine, renditions.size());
+        final Future<Void> createdFuture = mScheduler.submit(priority, demand.mCodecs, demand.mMemoryBytes, demand.mHeldCodecs, demand.mHeldMemoryBytes, new TranscodeScheduler.Task<Void>() {
             @Override
-            public Void call() throws Exception {
+            public Void call(final TranscodeScheduler.Ticket ticket) throws Exception {
             Exception caughtException = null;
             try {
                 MediaTranscoderEngine engine = new MediaTranscoderEngine();
-                engine.setProgressCallback(new MediaTranscoderEngine.ProgressCallback() {
+                engine.setSegmentBoundaryListener(new MediaTranscoderEngine.SegmentBoundaryListener() {
+                    @Override
+                    public boolean shouldYield() {
+                        return ticket.shouldYield();
+                    }
+
                     @Override
-                    public void onProgress(final double progress) {
-                        handler.post(new Runnable() { // TODO: reuse instance
-                            @Override
-                            public void run() {
-                                listener.onTranscodeProgress(progress);
-                            }
-                        });
+                    public void onSegmentBoundary() throws InterruptedException {
+                        ticket.checkpoint();
                     }
                 });
+                engine.setIndexCache(mIndexCache);
+                engine.setFrameTimeoutMs(mFrameTimeoutMs);
+                engine.setAsyncCodecs(mAsyncCodecs);
+                engine.setCancelPolicy(mCancelPolicy);
+                engine.setExtractorCapacity(mExtractorCapacity);
+                engine.setRenditions(renditions);
+                engine.setHlsSegmentDurationUs(mHlsSegmentDurationMs * 1000);
+                engine.setFastStart(mFastStart);
+                engine.setCopyTrim(mCopyTrim);
+                if (mCheckpointSegments > 0 && renditions.isEmpty() && mHlsSegmentDurationMs == 0)
+                    engine.setCheckpoint(new File(outPath + ".checkpoint"), mCheckpointSegments);
+                if (mTraceEnabled)
+                    engine.setTraceFile(new File(outPath + ".trace.json"), TraceRecorder.DEFAULT_CAPACITY);
+                engine.setProgressCallback(new ProgressPoster(engine, handler, listener));
                 engine.transcodeVideo(timeLine, outPath, outFormatStrategy);
             } catch (IOException e) {
                 TLog.w(TAG, "Transcode failed: input file not found"
@@ -213,6 +446,7 @@ public class MediaTranscoder {
                 caughtException = e;
             } catch (RuntimeException e) {
                 TLog.e(TAG, "Fatal error while transcoding, this might be invalid format or bug in engine or Android.", e);
+                TLog.dumpTrace(TAG);
                 caughtException = e;
             }
 
@@ -241,6 +475,98 @@ public class MediaTranscoder {
         return createdFuture;
     }
 
+    /**
+     * Hands progress to the listener's thread through one runnable per transcode.  Progress
+     * arriving while the runnable is still queued updates it rather than posting another, so a
+     * busy thread sees only the latest value.
+     */
+    /**
+     * Codec instances and memory a job needs at once, and the part of it, the encoders, that
+     * stays open while the job is suspended
+     */
+    static class CodecDemand {
+        final int mCodecs;
+        final long mMemoryBytes;
+        final int mHeldCodecs;
+        final long mHeldMemoryBytes;
+
+        private CodecDemand(int videoDecoders, int videoEncoders, int audioDecoders, int audioEncoders) {
+            mCodecs = videoDecoders + videoEncoders + audioDecoders + audioEncoders;
+            mMemoryBytes = (videoDecoders + videoEncoders) * VIDEO_CODEC_BYTES + (audioDecoders + audioEncoders) * AUDIO_CODEC_BYTES;
+            mHeldCodecs = videoEncoders + audioEncoders;
+            mHeldMemoryBytes = videoEncoders * VIDEO_CODEC_BYTES + audioEncoders * AUDIO_CODEC_BYTES;
+        }
+
+        /**
+         * Each track opens a decoder per channel in a segment and keeps up to two idle ones
+         * from earlier segments, plus its encoder and one per rendition for video
+         * @param timeLine
+         * @param renditions extra video outputs
+         * @return
+         */
+        static CodecDemand estimate(TimeLine timeLine, int renditions) {
+            Set<String> videoChannels = new HashSet<String>();
+            Set<String> audioChannels = new HashSet<String>();
+            int videoSlots = 0;
+            int audioSlots = 0;
+            for (TimeLine.Segment segment : timeLine.getSegments()) {
+                LinkedHashMap<String, TimeLine.InputChannel> segmentVideo = segment.getVideoChannels();
+                LinkedHashMap<String, TimeLine.InputChannel> segmentAudio = segment.getAudioChannels();
+                videoChannels.addAll(segmentVideo.keySet());
+                audioChannels.addAll(segmentAudio.keySet());
+                videoSlots = Math.max(videoSlots, segmentVideo.size());
+                audioSlots = Math.max(audioSlots, segmentAudio.size());
+            }
+            int videoDecoders = Math.max(videoSlots, Math.min(2, videoChannels.size()));
+            int audioDecoders = Math.max(audioSlots, Math.min(2, audioChannels.size()));
+            return new CodecDemand(videoDecoders, videoDecoders > 0 ? 1 + renditions : 0,
+                    audioDecoders, audioDecoders > 0 ? 1 : 0);
+        }
+    }
+
+    private static class ProgressPoster implements MediaTranscoderEngine.ProgressCallback, Runnable {
+        private final MediaTranscoderEngine mEngine;
+        private final Handler mHandler;
+        private final Listener mListener;
+        private final AtomicBoolean mPosted = new AtomicBoolean();
+        private volatile double mProgress;
+
+        ProgressPoster(MediaTranscoderEngine engine, Handler handler, Listener listener) {
+            mEngine = engine;
+            mHandler = handler;
+            mListener = listener;
+        }
+
+        @Override
+        public void onProgress(double progress) {
+            mProgress = progress;
+            if (mPosted.compareAndSet(false, true))
+                mHandler.post(this);
+        }
+
+        @Override
+        public void run() {
+            mPosted.set(false);
+            mListener.onTranscodeProgress(mProgress);
+            ProgressModel progressModel = mEngine.getProgressModel();
+            if (mListener instanceof EstimateListener && progressModel != null)
+                ((EstimateListener) mListener).onTranscodeEstimate(progressModel.getEtaMs(), progressModel.getFramesPerSecond());
+        }
+    }
+
+    /**
+     * A listener that is also told the estimated time left and frame rate along with progress.
+     */
+    public interface EstimateListener extends Listener {
+        /**
+         * Called after each {@link #onTranscodeProgress(double)}.
+         *
+         * @param etaMs           Smoothed estimate of the time left, -1 until known.
+         * @param framesPerSecond Smoothed rate video frames are being written at.
+         */
+        void onTranscodeEstimate(long etaMs, double framesPerSecond);
+    }
+
     public interface Listener {
         /**
          * Called to notify progress.
@@ -1,24 +1,94 @@
 package net.ypresto.androidtranscoder;
 import android.util.Log;
 
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Pattern;
 
+/**
+ * Logging with levels resolved once per tag so a call below its tag's level costs a map lookup.
+ * Parameterized messages substitute "{}" placeholders only once the level is known to be on,
+ * use those or guard with {@link #isLoggable} rather than concatenating on hot paths.
+ *
+ * An optional trace ring keeps the last few thousand {@link #trace} events in preallocated
+ * arrays whatever the log level, to be dumped when something goes wrong.
+ */
 public final class TLog {
-    public static void setTags(String tags) {
+    public static final int VERBOSE = Log.VERBOSE;
+    public static final int DEBUG = Log.DEBUG;
+    public static final int INFO = Log.INFO;
+    public static final int WARN = Log.WARN;
+    public static final int ERROR = Log.ERROR;
+    public static final int ASSERT = Log.ASSERT;
+    private static final int OFF = Integer.MAX_VALUE;
+
+    private static Pattern targetTags = null;
+    private static int targetLevel = 4;
+    private static final Map<String, Integer> tagLevels = new ConcurrentHashMap<String, Integer>();
+    private static volatile ConcurrentHashMap<String, Integer> resolvedLevels = new ConcurrentHashMap<String, Integer>();
+    private static volatile TraceRing traceRing;
+
+    public static synchronized void setTags(String tags) {
         TLog.targetTags = Pattern.compile(tags);
+        resolvedLevels = new ConcurrentHashMap<String, Integer>();
     }
-    public static void setLevel(int level) {
+    public static synchronized void setLevel(int level) {
         TLog.targetLevel = level;
+        resolvedLevels = new ConcurrentHashMap<String, Integer>();
     }
-    private static Pattern targetTags = null;
-    private static int targetLevel = 4;
-    private static boolean doLog(String tag, int level) {
-        if (level < TLog.targetLevel)
-            return false;
+
+    /**
+     * Override the level of one tag regardless of the tags pattern
+     * @param tag
+     * @param level level to log at, or null to go back to the default
+     */
+    public static synchronized void setLevel(String tag, Integer level) {
+        if (level == null)
+            tagLevels.remove(tag);
+        else
+            tagLevels.put(tag, level);
+        resolvedLevels = new ConcurrentHashMap<String, Integer>();
+    }
+
+    public static boolean isLoggable(String tag, int level) {
+        Map<String, Integer> levels = resolvedLevels;
+        Integer tagLevel = levels.get(tag);
+        if (tagLevel == null) {
+            tagLevel = resolveLevel(tag);
+            levels.put(tag, tagLevel);
+        }
+        return level >= tagLevel;
+    }
+
+    private static synchronized int resolveLevel(String tag) {
+        Integer level = tagLevels.get(tag);
+        if (level != null)
+            return level;
         if (TLog.targetTags != null && !TLog.targetTags.matcher(tag).matches())
-            return false;
-        return true;
+            return OFF;
+        return TLog.targetLevel;
+    }
+
+    private static boolean doLog(String tag, int level) {
+        return isLoggable(tag, level);
     }
+
+    /**
+     * Substitute arguments for "{}" placeholders in order, extra placeholders are left as is
+     */
+    static String format(String format, Object... args) {
+        StringBuilder builder = new StringBuilder(format.length() + 16 * args.length);
+        int argument = 0;
+        int start = 0;
+        int placeholder;
+        while (argument < args.length && (placeholder = format.indexOf("{}", start)) >= 0) {
+            builder.append(format, start, placeholder).append(args[argument++]);
+            start = placeholder + 2;
+        }
+        return builder.append(format, start, format.length()).toString();
+    }
+
     public static void v(String tag, String msg) {
         if(TLog.doLog(tag, 2))Log.v(tag,msg);
     }
@@ -32,7 +102,7 @@ public final class TLog {
         if(TLog.doLog(tag, 5))Log.w(tag, msg);
     }
     public static void e(String tag, String msg) {
-        if(TLog.doLog(tag, 6))Log.v(tag, msg);
+        if(TLog.doLog(tag, 6))Log.e(tag, msg);
     }
     public static void wtf(String tag, String msg) {
         if(TLog.doLog(tag, 7))Log.wtf(tag, msg);
@@ -50,9 +120,91 @@ public final class TLog {
         if(TLog.doLog(tag, 5))Log.w(tag, msg, e);
     }
     public static void e(String tag, String msg, Throwable e) {
-        if(TLog.doLog(tag, 6))Log.v(tag, msg, e);
+        if(TLog.doLog(tag, 6))Log.e(tag, msg, e);
     }
     public static void wtf(String tag, String msg, Throwable e) {
         if(TLog.doLog(tag, 7))Log.wtf(tag, msg, e);
     }
+
+    // Primitive overloads so disabled calls don't box
+    public static void v(String tag, String format, long arg) {
+        if(TLog.doLog(tag, 2))Log.v(tag, format(format, arg));
+    }
+    public static void v(String tag, String format, long arg1, long arg2) {
+        if(TLog.doLog(tag, 2))Log.v(tag, format(format, arg1, arg2));
+    }
+    public static void v(String tag, String format, String arg1, long arg2) {
+        if(TLog.doLog(tag, 2))Log.v(tag, format(format, arg1, arg2));
+    }
+    public static void v(String tag, String format, Object... args) {
+        if(TLog.doLog(tag, 2))Log.v(tag, format(format, args));
+    }
+    public static void d(String tag, String format, long arg) {
+        if(TLog.doLog(tag, 3))Log.d(tag, format(format, arg));
+    }
+    public static void d(String tag, String format, long arg1, long arg2) {
+        if(TLog.doLog(tag, 3))Log.d(tag, format(format, arg1, arg2));
+    }
+    public static void d(String tag, String format, String arg1, long arg2) {
+        if(TLog.doLog(tag, 3))Log.d(tag, format(format, arg1, arg2));
+    }
+    public static void d(String tag, String format, Object... args) {
+        if(TLog.doLog(tag, 3))Log.d(tag, format(format, args));
+    }
+    public static void i(String tag, String format, Object... args) {
+        if(TLog.doLog(tag, 4))Log.i(tag, format(format, args));
+    }
+    public static void w(String tag, String format, Object... args) {
+        if(TLog.doLog(tag, 5))Log.w(tag, format(format, args));
+    }
+    public static void e(String tag, String format, Object... args) {
+        if(TLog.doLog(tag, 6))Log.e(tag, format(format, args));
+    }
+
+    /**
+     * Keep the last events passed to {@link #trace}
+     * @param capacity events kept, 0 to stop tracing
+     */
+    public static synchronized void setTraceCapacity(int capacity) {
+        traceRing = capacity > 0 ? new TraceRing(capacity) : null;
+    }
+
+    /**
+     * Record an event in the trace ring if one is set, without allocating
+     * @param event a constant naming the event
+     * @param value1
+     * @param value2
+     */
+    public static void trace(String event, long value1, long value2) {
+        TraceRing ring = traceRing;
+        if (ring != null)
+            ring.record(event, value1, value2);
+    }
+
+    /**
+     * Write the trace ring, oldest event first, one per line
+     * @param appendable
+     */
+    public static void dumpTrace(Appendable appendable) throws IOException {
+        TraceRing ring = traceRing;
+        if (ring != null)
+            ring.dump(appendable);
+    }
+
+    /**
+     * Log the trace ring at error level, for when a transcode fails
+     * @param tag
+     */
+    public static void dumpTrace(String tag) {
+        TraceRing ring = traceRing;
+        if (ring == null)
+            return;
+        StringBuilder builder = new StringBuilder();
+        try {
+            ring.dump(builder);
+        } catch (IOException e) {
+            // StringBuilder doesn't throw
+        }
+        e(tag, "Trace before failure:\n" + builder);
+    }
 }
@@ -0,0 +1,52 @@
+package net.ypresto.androidtranscoder;
+
+import java.io.IOException;
+
+/**
+ * Fixed size ring of trace events held in parallel arrays so recording never allocates.  The
+ * event name is stored by reference, callers pass constants.  Writers claim slots with a
+ * synchronized counter which is uncontended in practice as the pipeline runs on one thread.
+ */
+class TraceRing {
+    private final long[] mTimesNs;
+    private final String[] mEvents;
+    private final long[] mValues1;
+    private final long[] mValues2;
+    private long mCount;
+
+    TraceRing(int capacity) {
+        mTimesNs = new long[capacity];
+        mEvents = new String[capacity];
+        mValues1 = new long[capacity];
+        mValues2 = new long[capacity];
+    }
+
+    synchronized void record(String event, long value1, long value2) {
+        int slot = (int) (mCount++ % mEvents.length);
+        mTimesNs[slot] = System.nanoTime();
+        mEvents[slot] = event;
+        mValues1[slot] = value1;
+        mValues2[slot] = value2;
+    }
+
+    synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * Oldest event first, times in microseconds relative to the first event shown
+     */
+    synchronized void dump(Appendable appendable) throws IOException {
+        long first = Math.max(0, mCount - mEvents.length);
+        if (first == mCount)
+            return;
+        long startNs = mTimesNs[(int) (first % mEvents.length)];
+        for (long event = first; event < mCount; ++event) {
+            int slot = (int) (event % mEvents.length);
+            appendable.append(Long.toString((mTimesNs[slot] - startNs) / 1000)).append("us ")
+                    .append(mEvents[slot]).append(' ')
+                    .append(Long.toString(mValues1[slot])).append(' ')
+                    .append(Long.toString(mValues2[slot])).append('\n');
+        }
+    }
+}
@@ -0,0 +1,416 @@
+package net.ypresto.androidtranscoder.compat;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Range;
+
+import net.ypresto.androidtranscoder.TLog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Immutable snapshot of the codecs on the device and what they can do.  Scanning MediaCodecList
+ * is slow so the snapshot is taken once per process, and optionally persisted so later processes
+ * on the same build can skip the scan entirely.  Lookups by mime type are hashed and size
+ * queries are memoized, so validation costs O(1) after the first query.
+ */
+public class CodecCapabilityTable {
+    private static final String TAG = "CodecCapabilityTable";
+    private static final int FILE_VERSION = 1;
+    private static final int[] PROBE_HEIGHTS = {4320, 2160, 1440, 1080, 720, 480, 360, 240};
+
+    private static volatile CodecCapabilityTable sInstance;
+    private static File sPersistFile;
+
+    /**
+     * Capabilities of one codec for one mime type.  Video fields are 0 for audio codecs and
+     * audio fields are 0 for video codecs.
+     */
+    public static class Entry {
+        public final String mName;
+        public final String mMime;
+        public final boolean mIsEncoder;
+        public final int mMinWidth;
+        public final int mMaxWidth;
+        public final int mMinHeight;
+        public final int mMaxHeight;
+        public final int mWidthAlignment;
+        public final int mHeightAlignment;
+        public final long mMaxPixels;       // Largest frame area, from the codec's block limit
+        public final int mMinBitrate;
+        public final int mMaxBitrate;
+        public final int mMaxChannelCount;
+        public final int[] mProfiles;       // Parallel to mLevels
+        public final int[] mLevels;
+        public final int mMaxInstances;     // -1 if unknown (before API 23)
+
+        public Entry(String name, String mime, boolean isEncoder,
+                     int minWidth, int maxWidth, int minHeight, int maxHeight,
+                     int widthAlignment, int heightAlignment, long maxPixels,
+                     int minBitrate, int maxBitrate, int maxChannelCount,
+                     int[] profiles, int[] levels, int maxInstances) {
+            if (profiles.length != levels.length)
+                throw new IllegalArgumentException("Profiles and levels differ in length");
+            mName = name;
+            mMime = mime.toLowerCase(Locale.US);
+            mIsEncoder = isEncoder;
+            mMinWidth = minWidth;
+            mMaxWidth = maxWidth;
+            mMinHeight = minHeight;
+            mMaxHeight = maxHeight;
+            mWidthAlignment = Math.max(1, widthAlignment);
+            mHeightAlignment = Math.max(1, heightAlignment);
+            mMaxPixels = maxPixels;
+            mMinBitrate = minBitrate;
+            mMaxBitrate = maxBitrate;
+            mMaxChannelCount = maxChannelCount;
+            mProfiles = profiles.clone();
+            mLevels = levels.clone();
+            mMaxInstances = maxInstances;
+        }
+
+        public boolean isVideo() {
+            return mMaxWidth > 0 && mMaxHeight > 0;
+        }
+
+        public boolean isSizeSupported(int width, int height) {
+            return isVideo() &&
+                    width >= mMinWidth && width <= mMaxWidth &&
+                    height >= mMinHeight && height <= mMaxHeight &&
+                    width % mWidthAlignment == 0 && height % mHeightAlignment == 0 &&
+                    (long) width * height <= mMaxPixels;
+        }
+
+        public boolean isBitrateSupported(int bitrate) {
+            return bitrate >= mMinBitrate && bitrate <= mMaxBitrate;
+        }
+
+        /**
+         * @param profile
+         * @return highest level supported for the profile or -1 if the profile isn't supported
+         */
+        public int getMaxLevel(int profile) {
+            int maxLevel = -1;
+            for (int i = 0; i < mProfiles.length; ++i)
+                if (mProfiles[i] == profile)
+                    maxLevel = Math.max(maxLevel, mLevels[i]);
+            return maxLevel;
+        }
+    }
+
+    private final List<Entry> mEntries;
+    private final Map<String, List<Entry>> mEncoders = new HashMap<String, List<Entry>>();
+    private final Map<String, List<Entry>> mDecoders = new HashMap<String, List<Entry>>();
+    private final Map<Long, Boolean> mEncoderSizeSupport = new ConcurrentHashMap<Long, Boolean>();
+
+    public CodecCapabilityTable(List<Entry> entries) {
+        mEntries = Collections.unmodifiableList(new ArrayList<Entry>(entries));
+        for (Entry entry : mEntries) {
+            Map<String, List<Entry>> byMime = entry.mIsEncoder ? mEncoders : mDecoders;
+            List<Entry> list = byMime.get(entry.mMime);
+            if (list == null) {
+                list = new ArrayList<Entry>();
+                byMime.put(entry.mMime, list);
+            }
+            list.add(entry);
+        }
+        for (Map.Entry<String, List<Entry>> mime : mEncoders.entrySet())
+            mime.setValue(Collections.unmodifiableList(mime.getValue()));
+        for (Map.Entry<String, List<Entry>> mime : mDecoders.entrySet())
+            mime.setValue(Collections.unmodifiableList(mime.getValue()));
+    }
+
+    /**
+     * Persist the snapshot in this file so later processes on the same build don't rescan.
+     * Must be called before the first {@link #getInstance()} to have any effect.
+     * @param file or null to not persist
+     */
+    public static synchronized void setPersistFile(File file) {
+        sPersistFile = file;
+    }
+
+    /**
+     * Process wide snapshot, loaded from the persisted file if it was written by this build and
+     * otherwise scanned from MediaCodecList
+     * @return
+     */
+    public static CodecCapabilityTable getInstance() {
+        if (sInstance == null) {
+            synchronized (CodecCapabilityTable.class) {
+                if (sInstance == null) {
+                    CodecCapabilityTable table = sPersistFile != null ? readQuietly(sPersistFile, Build.FINGERPRINT) : null;
+                    if (table == null) {
+                        long startNs = System.nanoTime();
+                        table = fromMediaCodecList();
+                        TLog.d(TAG, "Scanned " + table.mEntries.size() + " codec types in " + (System.nanoTime() - startNs) / 1000 + "us");
+                        if (sPersistFile != null)
+                            writeQuietly(table, sPersistFile, Build.FINGERPRINT);
+                    }
+                    sInstance = table;
+                }
+            }
+        }
+        return sInstance;
+    }
+
+    public List<Entry> getEntries() {
+        return mEntries;
+    }
+
+    /**
+     * @param mime
+     * @return encoders for the mime type in MediaCodecList order, empty if there are none
+     */
+    public List<Entry> getEncoders(String mime) {
+        List<Entry> entries = mEncoders.get(mime.toLowerCase(Locale.US));
+        return entries != null ? entries : Collections.<Entry>emptyList();
+    }
+
+    /**
+     * @param mime
+     * @return decoders for the mime type in MediaCodecList order, empty if there are none
+     */
+    public List<Entry> getDecoders(String mime) {
+        List<Entry> entries = mDecoders.get(mime.toLowerCase(Locale.US));
+        return entries != null ? entries : Collections.<Entry>emptyList();
+    }
+
+    public boolean hasEncoder(String mime) {
+        return mEncoders.containsKey(mime.toLowerCase(Locale.US));
+    }
+
+    /**
+     * Whether any video encoder can encode frames of this size
+     * @param width
+     * @param height
+     * @return
+     */
+    public boolean isEncoderSizeSupported(int width, int height) {
+        Long key = ((long) width << 32) | (height & 0xffffffffl);
+        Boolean supported = mEncoderSizeSupport.get(key);
+        if (supported == null) {
+            supported = false;
+            for (Entry entry : mEntries) {
+                if (entry.mIsEncoder && entry.isSizeSupported(width, height)) {
+                    supported = true;
+                    break;
+                }
+            }
+            mEncoderSizeSupport.put(key, supported);
+        }
+        return supported;
+    }
+
+    /**
+     * Whether an encoder for the mime type can encode frames of this size
+     * @param mime
+     * @param width
+     * @param height
+     * @return
+     */
+    public boolean isEncoderSizeSupported(String mime, int width, int height) {
+        for (Entry entry : getEncoders(mime))
+            if (entry.isSizeSupported(width, height))
+                return true;
+        return false;
+    }
+
+    /**
+     * Snapshot the codecs reported by MediaCodecList
+     * @return
+     */
+    public static CodecCapabilityTable fromMediaCodecList() {
+        List<Entry> entries = new ArrayList<Entry>();
+        MediaCodecInfo[] codecInfos = new MediaCodecList(MediaCodecList.ALL_CODECS).getCodecInfos();
+        for (MediaCodecInfo info : codecInfos) {
+            for (String type : info.getSupportedTypes()) {
+                MediaCodecInfo.CodecCapabilities capabilities;
+                try {
+                    capabilities = info.getCapabilitiesForType(type);
+                } catch (IllegalArgumentException e) {
+                    continue;
+                }
+                if (capabilities == null)
+                    continue;
+                entries.add(toEntry(info, type, capabilities));
+            }
+        }
+        return new CodecCapabilityTable(entries);
+    }
+
+    private static Entry toEntry(MediaCodecInfo info, String type, MediaCodecInfo.CodecCapabilities capabilities) {
+        int minWidth = 0, maxWidth = 0, minHeight = 0, maxHeight = 0, widthAlignment = 1, heightAlignment = 1;
+        long maxPixels = 0;
+        int minBitrate = 0, maxBitrate = Integer.MAX_VALUE, maxChannelCount = 0;
+        MediaCodecInfo.VideoCapabilities video = capabilities.getVideoCapabilities();
+        if (video != null) {
+            minWidth = video.getSupportedWidths().getLower();
+            maxWidth = video.getSupportedWidths().getUpper();
+            minHeight = video.getSupportedHeights().getLower();
+            maxHeight = video.getSupportedHeights().getUpper();
+            widthAlignment = video.getWidthAlignment();
+            heightAlignment = video.getHeightAlignment();
+            // The block limit isn't exposed, so find the largest area over common heights
+            maxPixels = areaAtHeight(video, maxHeight);
+            for (int height : PROBE_HEIGHTS)
+                if (height >= minHeight && height <= maxHeight)
+                    maxPixels = Math.max(maxPixels, areaAtHeight(video, height - height % heightAlignment));
+            minBitrate = video.getBitrateRange().getLower();
+            maxBitrate = video.getBitrateRange().getUpper();
+        }
+        MediaCodecInfo.AudioCapabilities audio = capabilities.getAudioCapabilities();
+        if (audio != null) {
+            minBitrate = audio.getBitrateRange().getLower();
+            maxBitrate = audio.getBitrateRange().getUpper();
+            maxChannelCount = audio.getMaxInputChannelCount();
+        }
+        MediaCodecInfo.CodecProfileLevel[] profileLevels = capabilities.profileLevels != null ?
+                capabilities.profileLevels : new MediaCodecInfo.CodecProfileLevel[0];
+        int[] profiles = new int[profileLevels.length];
+        int[] levels = new int[profileLevels.length];
+        for (int i = 0; i < profileLevels.length; ++i) {
+            profiles[i] = profileLevels[i].profile;
+            levels[i] = profileLevels[i].level;
+        }
+        int maxInstances = Build.VERSION.SDK_INT >= Build.VERSION_CODES.M ? capabilities.getMaxSupportedInstances() : -1;
+        return new Entry(info.getName(), type, info.isEncoder(), minWidth, maxWidth, minHeight, maxHeight,
+                widthAlignment, heightAlignment, maxPixels, minBitrate, maxBitrate, maxChannelCount,
+                profiles, levels, maxInstances);
+    }
+
+    private static long areaAtHeight(MediaCodecInfo.VideoCapabilities video, int height) {
+        try {
+            Range<Integer> widths = video.getSupportedWidthsFor(height);
+            return (long) widths.getUpper() * height;
+        } catch (IllegalArgumentException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Write the table, tagged with the build it was scanned on
+     * @param outputStream
+     * @param fingerprint
+     * @throws IOException
+     */
+    public void write(DataOutputStream outputStream, String fingerprint) throws IOException {
+        outputStream.writeInt(FILE_VERSION);
+        outputStream.writeUTF(fingerprint);
+        outputStream.writeInt(mEntries.size());
+        for (Entry entry : mEntries) {
+            outputStream.writeUTF(entry.mName);
+            outputStream.writeUTF(entry.mMime);
+            outputStream.writeBoolean(entry.mIsEncoder);
+            outputStream.writeInt(entry.mMinWidth);
+            outputStream.writeInt(entry.mMaxWidth);
+            outputStream.writeInt(entry.mMinHeight);
+            outputStream.writeInt(entry.mMaxHeight);
+            outputStream.writeInt(entry.mWidthAlignment);
+            outputStream.writeInt(entry.mHeightAlignment);
+            outputStream.writeLong(entry.mMaxPixels);
+            outputStream.writeInt(entry.mMinBitrate);
+            outputStream.writeInt(entry.mMaxBitrate);
+            outputStream.writeInt(entry.mMaxChannelCount);
+            outputStream.writeInt(entry.mProfiles.length);
+            for (int i = 0; i < entry.mProfiles.length; ++i) {
+                outputStream.writeInt(entry.mProfiles[i]);
+                outputStream.writeInt(entry.mLevels[i]);
+            }
+            outputStream.writeInt(entry.mMaxInstances);
+        }
+    }
+
+    /**
+     * Read a table written by {@link #write(DataOutputStream, String)}
+     * @param inputStream
+     * @param fingerprint build the table must have been scanned on
+     * @return table or null if it was scanned on another build
+     * @throws IOException
+     */
+    public static CodecCapabilityTable read(DataInputStream inputStream, String fingerprint) throws IOException {
+        if (inputStream.readInt() != FILE_VERSION || !inputStream.readUTF().equals(fingerprint))
+            return null;
+        int count = inputStream.readInt();
+        List<Entry> entries = new ArrayList<Entry>(count);
+        for (int entry = 0; entry < count; ++entry) {
+            String name = inputStream.readUTF();
+            String mime = inputStream.readUTF();
+            boolean isEncoder = inputStream.readBoolean();
+            int minWidth = inputStream.readInt();
+            int maxWidth = inputStream.readInt();
+            int minHeight = inputStream.readInt();
+            int maxHeight = inputStream.readInt();
+            int widthAlignment = inputStream.readInt();
+            int heightAlignment = inputStream.readInt();
+            long maxPixels = inputStream.readLong();
+            int minBitrate = inputStream.readInt();
+            int maxBitrate = inputStream.readInt();
+            int maxChannelCount = inputStream.readInt();
+            int[] profiles = new int[inputStream.readInt()];
+            int[] levels = new int[profiles.length];
+            for (int i = 0; i < profiles.length; ++i) {
+                profiles[i] = inputStream.readInt();
+                levels[i] = inputStream.readInt();
+            }
+            int maxInstances = inputStream.readInt();
+            entries.add(new Entry(name, mime, isEncoder, minWidth, maxWidth, minHeight, maxHeight,
+                    widthAlignment, heightAlignment, maxPixels, minBitrate, maxBitrate, maxChannelCount,
+                    profiles, levels, maxInstances));
+        }
+        return new CodecCapabilityTable(entries);
+    }
+
+    private static CodecCapabilityTable readQuietly(File file, String fingerprint) {
+        if (!file.isFile())
+            return null;
+        DataInputStream inputStream = null;
+        try {
+            inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            return read(inputStream, fingerprint);
+        } catch (IOException e) {
+            TLog.w(TAG, "Unable to read codec capabilities: " + e.getMessage());
+            return null;
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+    private static void writeQuietly(CodecCapabilityTable table, File file, String fingerprint) {
+        DataOutputStream outputStream = null;
+        try {
+            outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            table.write(outputStream, fingerprint);
+        } catch (IOException e) {
+            TLog.w(TAG, "Unable to write codec capabilities: " + e.getMessage());
+        } finally {
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+}
@@ -52,8 +52,8 @@ class AudioChannel {
     private final LinkedHashMap<String, Queue<AudioBuffer>> mFilledBuffers;
     private final LinkedHashMap<String, Boolean> mAtEndOfSegment;
     private final LinkedHashMap<String, Boolean> mMute;
-    private final LinkedHashMap<String, MediaCodec> mDecoders;
-    private final MediaCodec mEncoder;
+    private final LinkedHashMap<String, MediaCodecQueue> mDecoders;
+    private final MediaCodecQueue mEncoder;
     private final MediaFormat mEncodeFormat;
 
     private Integer mInputSampleRate;
@@ -62,7 +62,7 @@ class AudioChannel {
 
     private AudioRemixer mRemixer;
 
-    private final LinkedHashMap<String, MediaCodecBufferCompatWrapper> mDecoderBuffers;
+    private final LinkedHashMap<String, MediaCodecQueue> mDecoderBuffers;
     private final MediaCodecBufferCompatWrapper mEncoderBuffers;
 
     private final AudioBuffer mOverflowBuffer = new AudioBuffer();
@@ -73,20 +73,20 @@ class AudioChannel {
     private int mEncoderBufferIndex;
     private long mOutputPresentationTimeUs = -1l;
 
-    public AudioChannel(final LinkedHashMap<String, MediaCodec> decoders,
-                        final MediaCodec encoder, final MediaFormat encodeFormat) {
+    public AudioChannel(final LinkedHashMap<String, MediaCodecQueue> decoders,
+                        final MediaCodecQueue encoder, final MediaFormat encodeFormat) {
         mDecoders = decoders;
         mEncoder = encoder;
         mEncodeFormat = encodeFormat;
-        mDecoderBuffers = new LinkedHashMap<String, MediaCodecBufferCompatWrapper>();
+        mDecoderBuffers = new LinkedHashMap<String, MediaCodecQueue>();
         mEmptyBuffers = new LinkedHashMap<String, Queue<AudioBuffer>>();
         mFilledBuffers = new LinkedHashMap<String, Queue<AudioBuffer>>();
         mAtEndOfSegment = new LinkedHashMap<String, Boolean>();
         mMute = new LinkedHashMap<String, Boolean>();
 
-        for (Map.Entry<String, MediaCodec> entry : mDecoders.entrySet()) {
-            MediaCodec decoder = entry.getValue();
-            mDecoderBuffers.put(entry.getKey(), new MediaCodecBufferCompatWrapper(decoder));
+        for (Map.Entry<String, MediaCodecQueue> entry : mDecoders.entrySet()) {
+            MediaCodecQueue decoder = entry.getValue();
+            mDecoderBuffers.put(entry.getKey(), decoder);
             Queue<AudioBuffer> empty = new ArrayDeque<>();
             Queue<AudioBuffer> filled = new ArrayDeque<>();
             mEmptyBuffers.put(entry.getKey(), empty);
@@ -94,7 +94,7 @@ class AudioChannel {
             mAtEndOfSegment.put(entry.getKey(), false);
             mMute.put(entry.getKey(), false);
         }
-        mEncoderBuffers = new MediaCodecBufferCompatWrapper(mEncoder);
+        mEncoderBuffers = new MediaCodecBufferCompatWrapper(mEncoder.getCodec());
     }
     public void finalize () {
         if (mEncoderBuffer != null) {
@@ -102,12 +102,12 @@ class AudioChannel {
         }
     }
 
-    public AudioChannel createFromExisting(final LinkedHashMap<String, MediaCodec> decoders,
-                                           final MediaCodec encoder, final MediaFormat encodeFormat) {
+    public AudioChannel createFromExisting(final LinkedHashMap<String, MediaCodecQueue> decoders,
+                                           final MediaCodecQueue encoder, final MediaFormat encodeFormat) {
 
         AudioChannel audioChannel = new AudioChannel(decoders, encoder, encodeFormat);
         audioChannel.mOutputPresentationTimeUs = mOutputPresentationTimeUs;
-        for (Map.Entry<String, MediaCodecBufferCompatWrapper> entry : audioChannel.mDecoderBuffers.entrySet()) {
+        for (Map.Entry<String, MediaCodecQueue> entry : audioChannel.mDecoderBuffers.entrySet()) {
             if (mDecoderBuffers.containsKey(entry.getKey()))
                 audioChannel.mDecoderBuffers.put(entry.getKey(), mDecoderBuffers.get(entry.getKey()));
         }
@@ -180,7 +180,7 @@ class AudioChannel {
 
     public long getBufferDurationUs(String input, final int bufferIndex) {
         // Grab the buffer from the decoder
-        MediaCodecBufferCompatWrapper decoderBuffer = mDecoderBuffers.get(input);
+        MediaCodecQueue decoderBuffer = mDecoderBuffers.get(input);
         if (mActualDecodedFormat == null) {
             throw new RuntimeException("Buffer received before format!");
         }
@@ -208,7 +208,7 @@ class AudioChannel {
         final Long presentationTimeUs, Long presentationTimeOffsetUs, long skipFirstUs, long skipLastUs) {
 
         // Grab the buffer from the decoder
-        MediaCodecBufferCompatWrapper decoderBuffer = mDecoderBuffers.get(input);
+        MediaCodecQueue decoderBuffer = mDecoderBuffers.get(input);
         if (mActualDecodedFormat == null) {
             throw new RuntimeException("Buffer received before format!");
         }
@@ -291,7 +291,7 @@ class AudioChannel {
             mEncoder.queueInputBuffer(mEncoderBufferIndex,
                     0, mEncoderBuffer.position() * BYTES_PER_SHORT,
                     presentationTimeUs, 0);
-            TLog.v(TAG, "Submitting audio overflow encoder buffer at " + presentationTimeUs + " bytes: " + mEncoderBuffer.position() * BYTES_PER_SHORT);
+            TLog.v(TAG, "Submitting audio overflow encoder buffer at {} bytes: {}", presentationTimeUs, mEncoderBuffer.position() * BYTES_PER_SHORT);
             mEncoderBuffer = null;
             return sampleCountToOutputDurationUs(mEncoderBuffer.position());
         }
@@ -315,7 +315,7 @@ class AudioChannel {
                     overflowPosition = result.mBufferOverflowPosition;
                     startingPresentationTimeUs = Math.max(startingPresentationTimeUs, result.mPresentationTime);
                     duration = sampleCountToOutputDurationUs(mEncoderBuffer.position());
-                    TLog.v(TAG, "Released Decoder Buffer " + decoderBuffer.bufferIndex);
+                    TLog.v(TAG, "Released Decoder Buffer {}", decoderBuffer.bufferIndex);
                     mEmptyBuffers.get(entry.getKey()).add(decoderBuffer);
                     append = true;
                 }
@@ -335,10 +335,12 @@ class AudioChannel {
                 mEncoder.queueInputBuffer(mEncoderBufferIndex,
                         0, mEncoderBuffer.position() * BYTES_PER_SHORT,
                         startingPresentationTimeUs, 0);
-                TLog.v(TAG, "Encoding audio PT: " + startingPresentationTimeUs +
-                        " duration: " + duration +
-                        " adjustment " + (startingPresentationTimeUs - originalStartingPresentationTimeUs) +
-                        " samples: " + mEncoderBuffer.position());
+                TLog.trace("AudioEncoderInput", startingPresentationTimeUs, duration);
+                if (TLog.isLoggable(TAG, TLog.VERBOSE))
+                    TLog.v(TAG, "Encoding audio PT: " + startingPresentationTimeUs +
+                            " duration: " + duration +
+                            " adjustment " + (startingPresentationTimeUs - originalStartingPresentationTimeUs) +
+                            " samples: " + mEncoderBuffer.position());
 
                 mEncoderBuffer = null;
             } else {
@@ -427,7 +429,7 @@ class AudioChannel {
             outBuff.position(position);
         position = 0;
 
-        TLog.v(TAG, "remixing buffer at " + (input.presentationTimeUs + input.presentationTimeOffsetUs) + " length " +  sampleCountToInputDurationUs(inBuff.remaining()));
+        TLog.v(TAG, "remixing buffer at {} length {}", input.presentationTimeUs + input.presentationTimeOffsetUs, sampleCountToInputDurationUs(inBuff.remaining()));
 
         if (inBuff.remaining() > outBuff.remaining()) {
             // Overflow
@@ -6,9 +6,12 @@ import android.media.MediaFormat;
 import net.ypresto.androidtranscoder.TLog;
 
 import net.ypresto.androidtranscoder.compat.MediaCodecBufferCompatWrapper;
-import net.ypresto.androidtranscoder.utils.MediaExtractorUtils;
+import net.ypresto.androidtranscoder.mp4.SampleTable;
+import net.ypresto.androidtranscoder.source.SampleSource;
+import net.ypresto.androidtranscoder.source.WavSource;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
@@ -25,20 +28,24 @@ public class AudioTrackTranscoder implements TrackTranscoder {
     private static final int DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY = 1;
     private static final int DRAIN_STATE_CONSUMED = 2;
 
-    private final LinkedHashMap<String, MediaExtractor> mExtractors;
+    private final ExtractorPool mExtractorPool;
     private final QueuedMuxer mMuxer;
 
     private LinkedHashMap<String, Integer> mTrackIndexes;
     private final LinkedHashMap<String, MediaFormat> mInputFormat;
     private final MediaFormat mOutputFormat;
 
-    private MediaCodec mEncoder;
+    private MediaCodecQueue mEncoder;
     private MediaFormat mActualOutputFormat;
+    private boolean mAsyncCodecs;
+    private PipelineSignal mPipelineSignal;
 
     private HashMap<String, MediaCodecBufferCompatWrapper> mDecoderBuffers;
     private MediaCodecBufferCompatWrapper mEncoderBuffers;
 
     private boolean mIsEncoderEOS;
+    private PipelineMetrics mMetrics;
+    private TraceRecorder mTrace;
     private boolean mEncoderStarted;
 
     private AudioChannel mAudioChannel;
@@ -49,9 +56,9 @@ public class AudioTrackTranscoder implements TrackTranscoder {
     private long mLastBufferPresentationTime = 0l;
     private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
 
-    public AudioTrackTranscoder(LinkedHashMap<String, MediaExtractor> extractor,
+    public AudioTrackTranscoder(ExtractorPool extractorPool,
                                 MediaFormat outputFormat, QueuedMuxer muxer) {
-        mExtractors = extractor;
+        mExtractorPool = extractorPool;
         mTrackIndexes = new LinkedHashMap<String, Integer>();
         mOutputFormat = outputFormat;
         mMuxer = muxer;
@@ -67,39 +74,59 @@ public class AudioTrackTranscoder implements TrackTranscoder {
         private boolean mIsDecoderEOS;
         private boolean mIsSegmentEOS;
         private boolean mDecoderStarted;
-        private MediaExtractor mExtractor;
-        private MediaCodecBufferCompatWrapper mDecoderInputBuffers;
-        private MediaCodec mDecoder;
+        private SampleSource mExtractor;
+        private WavSource mPcmSource;      // Set with mPcmQueue when the input is PCM needing no decoder
+        private PcmQueue mPcmQueue;
+        private MediaCodecQueue mDecoder;
         private Integer mTrackIndex;
         boolean mBufferRequeued;
         int mResult;
         private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
-        DecoderWrapper(MediaExtractor mediaExtractor) {
-            mExtractor = mediaExtractor;
+        private final PipelineMetrics.InFlight mInFlight;
+        private final PipelineMetrics.StageSet mChannelMetrics;
+        private final String mExtractorKey;
+        DecoderWrapper(String channelName) {
+            mExtractorKey = ExtractorPool.audioKey(channelName);
+            mExtractor = mExtractorPool.acquire(mExtractorKey);
+            mInFlight = mMetrics != null ? new PipelineMetrics.InFlight() : null;
+            mChannelMetrics = mMetrics != null ? mMetrics.getChannel(channelName) : null;
         }
 
         private void start() {
-            MediaExtractorUtils.TrackResult trackResult = MediaExtractorUtils.getFirstVideoAndAudioTrack(mExtractor);
-            if (trackResult.mAudioTrackFormat != null) {
-                int trackIndex = trackResult.mAudioTrackIndex;
+            int trackIndex = mExtractorPool.getTrackIndex(mExtractorKey);
+            MediaFormat inputFormat = mExtractor.getTrackFormat(trackIndex);
+            if (inputFormat.getString(MediaFormat.KEY_MIME).startsWith("audio/")) {
                 mTrackIndex = trackIndex;
-                mExtractor.selectTrack(trackIndex);
-                MediaFormat inputFormat = mExtractor.getTrackFormat(trackIndex);
 
-                try {
-                    mDecoder = MediaCodec.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME));
-                } catch (IOException e) {
-                    throw new IllegalStateException(e);
+                if (mExtractor instanceof WavSource) {
+                    mPcmSource = (WavSource) mExtractor;
+                    mPcmQueue = new PcmQueue(inputFormat);
+                    mDecoder = mPcmQueue;
+                } else {
+                    try {
+                        mDecoder = new MediaCodecQueue(MediaCodec.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME)),
+                                "AudioDecoder", mAsyncCodecs, mPipelineSignal);
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
                 }
-                mDecoder.configure(inputFormat, null, null, 0);
+                mDecoder.configure(inputFormat, null, 0);
                 mDecoder.start();
                 mDecoderStarted = true;
-                mDecoderInputBuffers =  new MediaCodecBufferCompatWrapper(mDecoder);
             }
         }
         private int dequeueOutputBuffer(long timeoutUs) {
-            if (!mBufferRequeued)
+            if (!mBufferRequeued) {
+                long dequeueStartNs = mTrace != null ? System.nanoTime() : 0l;
                 mResult = mDecoder.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+                if (mTrace != null && mResult >= 0)
+                    mTrace.span(TraceRecorder.DECODER_DEQUEUE, TraceRecorder.TRACK_AUDIO, dequeueStartNs);
+                if (mInFlight != null && mResult >= 0 && mBufferInfo.size > 0) {
+                    long latencyUs = mInFlight.finish(mBufferInfo.presentationTimeUs);
+                    mMetrics.getAudio().record(PipelineMetrics.Stage.DECODE, latencyUs);
+                    mChannelMetrics.record(PipelineMetrics.Stage.DECODE, latencyUs);
+                }
+            }
             mBufferRequeued = false;
             return mResult;
         }
@@ -112,23 +139,63 @@ public class AudioTrackTranscoder implements TrackTranscoder {
                 mDecoder.release();
                 mDecoder = null;
             }
+            if (mExtractor != null) {
+                mExtractorPool.release(mExtractorKey);
+                mExtractor = null;
+            }
         }
 
     };
     LinkedHashMap<String, DecoderWrapper> mDecoderWrappers = new LinkedHashMap<String, DecoderWrapper>();
+    // Decoder of each of the current segment's audio slots, so steps don't look them up by name
+    private DecoderWrapper[] mSlotDecoders = new DecoderWrapper[0];
+
+    /**
+     * Signal raised when a codec has buffers for the pipeline, must be set before setupEncoder
+     * @param pipelineSignal
+     */
+    void setPipelineSignal(PipelineSignal pipelineSignal) {
+        mPipelineSignal = pipelineSignal;
+    }
+
+    /**
+     * Drive codecs through callbacks rather than polling where supported, must be set before
+     * setupEncoder
+     * @param asyncCodecs
+     */
+    void setAsyncCodecs(boolean asyncCodecs) {
+        mAsyncCodecs = asyncCodecs;
+    }
+
+    /**
+     * Record stage counts and latencies, must be set before setupDecoders
+     * @param metrics or null to record nothing
+     */
+    void setMetrics(PipelineMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Record stage spans for a timeline view
+     * @param trace or null to record nothing
+     */
+    void setTrace(TraceRecorder trace) {
+        mTrace = trace;
+    }
 
     @Override
     public void setupEncoder() {
 
         try {
-            mEncoder = MediaCodec.createEncoderByType(mOutputFormat.getString(MediaFormat.KEY_MIME));
+            mEncoder = new MediaCodecQueue(MediaCodec.createEncoderByType(mOutputFormat.getString(MediaFormat.KEY_MIME)),
+                    "AudioEncoder", mAsyncCodecs, mPipelineSignal);
         } catch (IOException e) {
             throw new IllegalStateException(e);
         }
-        mEncoder.configure(mOutputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mEncoder.configure(mOutputFormat, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mEncoder.start();
         mEncoderStarted = true;
-        mEncoderBuffers = new MediaCodecBufferCompatWrapper(mEncoder);
+        mEncoderBuffers = new MediaCodecBufferCompatWrapper(mEncoder.getCodec());
 
     }
     private void createWrapperSlot (TimeLine.Segment segment) {
@@ -139,8 +206,7 @@ public class AudioTrackTranscoder implements TrackTranscoder {
         Iterator<Map.Entry<String, DecoderWrapper>> iterator = mDecoderWrappers.entrySet().iterator();
         while (iterator.hasNext()) {
             Map.Entry<String, DecoderWrapper> decoderWrapperEntry = iterator.next();
-            if (!segment.getAudioChannels().containsKey(decoderWrapperEntry.getKey())) {
-                segment.timeLine().getChannels().get(decoderWrapperEntry.getKey()).mInputEndTimeUs = 0l;
+            if (segment.getAudioSlotIndex(decoderWrapperEntry.getKey()) < 0) {
                 decoderWrapperEntry.getValue().release();
                 iterator.remove();
                 TLog.d(TAG, "Releasing Audio Decoder " + decoderWrapperEntry.getKey());
@@ -152,31 +218,36 @@ public class AudioTrackTranscoder implements TrackTranscoder {
     @Override
     public void setupDecoders(TimeLine.Segment segment, MediaTranscoderEngine.TranscodeThrottle throttle, int outputRotation, int width, int height) {
 
-        LinkedHashMap<String, MediaCodec> decoders = new LinkedHashMap<String, MediaCodec>();
+        LinkedHashMap<String, MediaCodecQueue> decoders = new LinkedHashMap<String, MediaCodecQueue>();
         boolean hasAudioChannels = false;
 
         // Start any decoders being opened for the first time
-        for (Map.Entry<String, TimeLine.InputChannel> entry : segment.getAudioChannels().entrySet()) {
-            TimeLine.InputChannel inputChannel = entry.getValue();
-            String channelName = entry.getKey();
+        TimeLine.ChannelSlot[] slots = segment.getAudioSlots();
+        mSlotDecoders = new DecoderWrapper[slots.length];
+        for (int slot = 0; slot < slots.length; ++slot) {
+            String channelName = slots[slot].mName;
 
             DecoderWrapper decoderWrapper = mDecoderWrappers.get(channelName);
             if (decoderWrapper == null) {
                 createWrapperSlot(segment);
-                decoderWrapper = new DecoderWrapper(mExtractors.get(channelName));
+                decoderWrapper = new DecoderWrapper(channelName);
                 mDecoderWrappers.put(channelName, decoderWrapper);
-                throttle.participate("Audio" + channelName);
+                throttle.participate(slots[slot].mAudioThrottleKey);
+                // A fresh extractor starts at the beginning so take it to where the channel left off
+                if (slots[slot].mSegmentChannel.mSeek == null && slots[slot].mChannel.mAudioInputStartTimeUs > 0)
+                    slots[slot].mSegmentChannel.mSeek = slots[slot].mChannel.mAudioInputStartTimeUs;
             }
+            mSlotDecoders[slot] = decoderWrapper;
             if (!decoderWrapper.mDecoderStarted) {
                 decoderWrapper.start();
             }
             if (decoderWrapper.mIsDecoderEOS) {
                 TLog.d(TAG, "setupDecoders channel:" + channelName + " is at EOS -- dropping");
-                throttle.departicipate("Audio" + channelName);
+                throttle.departicipate(slots[slot].mAudioThrottleKey);
             } else {
                 TLog.d(TAG, "setupDecoders channel: " + channelName);
                 decoderWrapper.mIsSegmentEOS = false;
-                decoders.put(entry.getKey(), decoderWrapper.mDecoder);
+                decoders.put(channelName, decoderWrapper.mDecoder);
             }
             hasAudioChannels = true;
         }
@@ -188,16 +259,14 @@ public class AudioTrackTranscoder implements TrackTranscoder {
         mIsEncoderEOS = false;
         mIsLastSegment = segment.isLastSegment;
 
-        for (Map.Entry<String, TimeLine.InputChannel> entry : segment.getAudioChannels().entrySet()) {
-            TimeLine.InputChannel inputChannel = entry.getValue();
-            String channelName = entry.getKey();
-            if (inputChannel.mMuteAudio)
-                mAudioChannel.setMute(channelName);
+        for (TimeLine.ChannelSlot slot : slots) {
+            if (slot.mChannel.mMuteAudio)
+                mAudioChannel.setMute(slot.mName);
         }
 
         if (!hasAudioChannels) {
-            mLastBufferPresentationTime += segment.getDuration();
-            mOutputPresentationTimeDecodedUs += segment.getDuration();
+            mLastBufferPresentationTime += segment.getTiming().mDurationUs;
+            mOutputPresentationTimeDecodedUs += segment.getTiming().mDurationUs;
         }
     }
     @Override
@@ -220,7 +289,7 @@ public class AudioTrackTranscoder implements TrackTranscoder {
 
         while ((timeEncodedUs = mAudioChannel.feedEncoder(0)) != null) {
             if (timeEncodedUs >= 0) {
-                TLog.v(TAG, "Encoded audio duration " + timeEncodedUs);
+                TLog.v(TAG, "Encoded audio duration {}", timeEncodedUs);
                 mOutputPresentationTimeEncodedUs += timeEncodedUs;
             } else {
                 for (Map.Entry<String, DecoderWrapper> decoderWrapperEntry : mDecoderWrappers.entrySet()) {
@@ -238,10 +307,12 @@ public class AudioTrackTranscoder implements TrackTranscoder {
 
         boolean sampleProcessed = false;
 
-        for (Map.Entry<String, TimeLine.InputChannel> inputChannelEntry : segment.getAudioChannels().entrySet()) {
+        TimeLine.ChannelSlot[] slots = segment.getAudioSlots();
+        for (int slot = 0; slot < slots.length; ++slot) {
 
-            DecoderWrapper decoderWrapper = mDecoderWrappers.get(inputChannelEntry.getKey());
-            String channelName = inputChannelEntry.getKey();
+            TimeLine.ChannelSlot channelSlot = slots[slot];
+            DecoderWrapper decoderWrapper = mSlotDecoders[slot];
+            String channelName = channelSlot.mName;
             if (!decoderWrapper.mIsExtractorEOS) {
 
                 // Find out which track the extractor has samples for next
@@ -249,11 +320,25 @@ public class AudioTrackTranscoder implements TrackTranscoder {
 
                 // Sample is for a different track (like audio) ignore
                 if (trackIndex >= 0 && trackIndex != decoderWrapper.mTrackIndex) {
-                    if (inputChannelEntry.getValue().mChannelType == TimeLine.ChannelType.AUDIO)
+                    if (channelSlot.mChannel.mChannelType == TimeLine.ChannelType.AUDIO)
                         decoderWrapper.mExtractor.advance(); // Skip video
                     continue;
                 }
 
+                // Jump straight to the sync sample preceding the seek point when the index has one
+                TimeLine.SegmentChannel segmentChannel = channelSlot.mSegmentChannel;
+                Long seek = segmentChannel.getAudioSeek();
+                SampleTable sampleTable = channelSlot.mChannel.mAudioSampleTable;
+                if (seek != null && sampleTable != null && trackIndex >= 0) {
+                    long syncTimeUs = sampleTable.getSyncTimeUsAtOrBefore(seek);
+                    segmentChannel.seekRequestedAudio(); // So we don't repeat
+                    if (syncTimeUs > decoderWrapper.mExtractor.getSampleTime()) {
+                        decoderWrapper.mExtractor.seekTo(syncTimeUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                        TLog.d(TAG, "Extractor Seek " + seek + " to sync sample " + syncTimeUs);
+                        continue;
+                    }
+                }
+
                 // Get buffer index to be filled
                 int result = decoderWrapper.mDecoder.dequeueInputBuffer(timeoutUs);
 
@@ -267,17 +352,28 @@ public class AudioTrackTranscoder implements TrackTranscoder {
                     decoderWrapper.mDecoder.queueInputBuffer(result, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
                     continue;
                 }
-                int sampleSize = decoderWrapper.mExtractor.readSampleData(decoderWrapper.mDecoderInputBuffers.getInputBuffer(result), 0);
+                long readStartNs = mTrace != null ? System.nanoTime() : 0l;
+                int sampleSize;
+                if (decoderWrapper.mPcmQueue != null) {
+                    // PCM goes to the mixer as a view of the mapped input rather than through a decoder
+                    ByteBuffer samples = decoderWrapper.mPcmSource.getSampleBuffer();
+                    decoderWrapper.mPcmQueue.setInputData(result, samples);
+                    sampleSize = samples.remaining();
+                } else
+                    sampleSize = decoderWrapper.mExtractor.readSampleData(decoderWrapper.mDecoder.getInputBuffer(result), 0);
+                if (mTrace != null)
+                    mTrace.span(TraceRecorder.EXTRACTOR_READ, TraceRecorder.TRACK_AUDIO, readStartNs);
                 long sampleTime = decoderWrapper.mExtractor.getSampleTime();
                 boolean isKeyFrame = (decoderWrapper.mExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
                 decoderWrapper.mDecoder.queueInputBuffer(result, 0, sampleSize, decoderWrapper.mExtractor.getSampleTime(), isKeyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+                if (decoderWrapper.mInFlight != null)
+                    decoderWrapper.mInFlight.start(sampleTime);
 
                 decoderWrapper.mExtractor.advance();
                 sampleProcessed = true;
 
-                // Seek at least to previous key frame if needed cause it's a lot faster
-                TimeLine.SegmentChannel segmentChannel = segment.getSegmentChannel(channelName);
-                Long seek = segmentChannel.getAudioSeek();
+                // Without an index seek at least to previous key frame if needed cause it's a lot faster
+                seek = segmentChannel.getAudioSeek();
                 if (seek != null && (sampleTime + 500000) < seek) {
                     decoderWrapper.mExtractor.seekTo(seek, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
                     segmentChannel.seekRequestedAudio(); // So we don't repeat
@@ -294,14 +390,16 @@ public class AudioTrackTranscoder implements TrackTranscoder {
         boolean consumed = false;
 
         // Go through each decoder in the segment to get a buffer to process
-        for (Map.Entry<String, TimeLine.InputChannel> inputChannelEntry : segment.getAudioChannels().entrySet()) {
+        TimeLine.ChannelSlot[] slots = segment.getAudioSlots();
+        for (int slot = 0; slot < slots.length; ++slot) {
 
-            String channelName = inputChannelEntry.getKey();
-            TimeLine.InputChannel inputChannel = inputChannelEntry.getValue();
-            DecoderWrapper decoderWrapper = mDecoderWrappers.get(inputChannelEntry.getKey());
+            TimeLine.ChannelSlot channelSlot = slots[slot];
+            String channelName = channelSlot.mName;
+            TimeLine.InputChannel inputChannel = channelSlot.mChannel;
+            DecoderWrapper decoderWrapper = mSlotDecoders[slot];
 
             // Only process if we have not end end of stream for this decoder or extractor
-            if (throttle.canProceed("Audio" + channelName, mLastBufferPresentationTime, decoderWrapper.mIsDecoderEOS) &&
+            if (throttle.canProceed(channelSlot.mAudioThrottleKey, mLastBufferPresentationTime, decoderWrapper.mIsDecoderEOS) &&
                 !decoderWrapper.mIsDecoderEOS && !decoderWrapper.mIsSegmentEOS) {
 
                 int result = decoderWrapper.dequeueOutputBuffer(timeoutUs);
@@ -314,7 +412,7 @@ public class AudioTrackTranscoder implements TrackTranscoder {
                         TLog.d(TAG, "INFO_OUTPUT_BUFFERS_CHANGED for decoder " + channelName);
                         return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
                 }
-                TLog.v(TAG, "Dequeued Decoder Buffer " + result);
+                TLog.v(TAG, "Dequeued Decoder Buffer {}", result);
                 consumed = true;
                 long bufferInputStartTime = decoderWrapper.mBufferInfo.presentationTimeUs;
                 long bufferInputEndTime = bufferInputStartTime + mAudioChannel.getBufferDurationUs(channelName, result);
@@ -322,12 +420,14 @@ public class AudioTrackTranscoder implements TrackTranscoder {
                 long bufferOutputEndTime = bufferInputEndTime + inputChannel.mAudioInputOffsetUs;
                 mLastBufferPresentationTime = bufferOutputTime;
 
-                TLog.v(TAG, "Processing Audio Buffer on channel " + channelName +
-                        " mOutputPresentationTimeDecodedUs=" + mOutputPresentationTimeDecodedUs +
-                        " bufferInputStartTime=" + bufferInputStartTime +
-                        " bufferOutputTime=" + bufferOutputTime +
-                        " mAudioInputOffsetUs=" + inputChannel.mAudioInputOffsetUs +
-                        " mOutputPresentationTimeDecodedUs=" + mOutputPresentationTimeDecodedUs);
+                TLog.trace("AudioDecoded", bufferInputStartTime, bufferOutputTime);
+                if (TLog.isLoggable(TAG, TLog.VERBOSE))
+                    TLog.v(TAG, "Processing Audio Buffer on channel " + channelName +
+                            " mOutputPresentationTimeDecodedUs=" + mOutputPresentationTimeDecodedUs +
+                            " bufferInputStartTime=" + bufferInputStartTime +
+                            " bufferOutputTime=" + bufferOutputTime +
+                            " mAudioInputOffsetUs=" + inputChannel.mAudioInputOffsetUs +
+                            " mOutputPresentationTimeDecodedUs=" + mOutputPresentationTimeDecodedUs);
 
                 // End of stream - requeue the buffer
                 if ((decoderWrapper.mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
@@ -349,7 +449,7 @@ public class AudioTrackTranscoder implements TrackTranscoder {
                         // If there is a partial buffer to submit, submit it
                         if (bufferInputStartTime < inputChannel.mInputEndTimeUs && !inputChannel.mMuteAudio) {
                             inputChannel.mAudioInputAcutalEndTimeUs = inputChannel.mInputEndTimeUs;
-                            TLog.v(TAG, "Submitting truncated audio on channel " + channelName);
+                            TLog.v(TAG, "Submitting truncated audio on channel {}", channelName);
                             mOutputPresentationTimeDecodedUs = inputChannel.mInputEndTimeUs + inputChannel.mAudioInputOffsetUs;
                             mAudioChannel.drainDecoderBufferAndQueue(channelName, result, decoderWrapper.mBufferInfo.presentationTimeUs, inputChannel.mAudioInputOffsetUs,
                                     0l, bufferInputEndTime - inputChannel.mInputEndTimeUs);
@@ -366,14 +466,14 @@ public class AudioTrackTranscoder implements TrackTranscoder {
                         // Completely before start time
                         if (bufferInputEndTime < inputChannel.mAudioInputStartTimeUs || inputChannel.mMuteAudio) {
                             decoderWrapper.mDecoder.releaseOutputBuffer(result, false);
-                            TLog.v(TAG, "Skipping audio for channel " + channelName);
+                            TLog.v(TAG, "Skipping audio for channel {}", channelName);
                             inputChannel.mAudioInputAcutalEndTimeUs = bufferInputEndTime;
                             mOutputPresentationTimeDecodedUs = bufferOutputEndTime;
 
                             // Partially before start time
                         } else {
                             inputChannel.mAudioInputAcutalEndTimeUs = bufferInputEndTime;
-                            TLog.v(TAG, "Submitting truncated audio for channel " + channelName);
+                            TLog.v(TAG, "Submitting truncated audio for channel {}", channelName);
                             mOutputPresentationTimeDecodedUs = bufferOutputEndTime;
                             mAudioChannel.drainDecoderBufferAndQueue(channelName, result, inputChannel.mAudioInputStartTimeUs,
                                     inputChannel.mAudioInputOffsetUs, inputChannel.mAudioInputStartTimeUs - bufferInputStartTime, 0l);
@@ -381,7 +481,7 @@ public class AudioTrackTranscoder implements TrackTranscoder {
                     } else {
                         inputChannel.mAudioInputAcutalEndTimeUs = bufferInputEndTime;
                         mOutputPresentationTimeDecodedUs = bufferOutputEndTime;
-                        TLog.v(TAG, "Submitting audio for channel " + channelName);
+                        TLog.v(TAG, "Submitting audio for channel {}", channelName);
                         mAudioChannel.drainDecoderBufferAndQueue(channelName, result, decoderWrapper.mBufferInfo.presentationTimeUs,
                                 inputChannel.mAudioInputOffsetUs, 0l, 0l);
                     }
@@ -410,6 +510,7 @@ public class AudioTrackTranscoder implements TrackTranscoder {
     private int drainEncoder(long timeoutUs) {
         if (mIsEncoderEOS) return DRAIN_STATE_NONE;
 
+        long drainStartNs = mTrace != null ? System.nanoTime() : 0l;
         int result = mEncoder.dequeueOutputBuffer(mBufferInfo, timeoutUs);
         switch (result) {
             case MediaCodec.INFO_TRY_AGAIN_LATER:
@@ -422,7 +523,7 @@ public class AudioTrackTranscoder implements TrackTranscoder {
                 mMuxer.setOutputFormat(SAMPLE_TYPE, mActualOutputFormat);
                 return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
             case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
-                mEncoderBuffers = new MediaCodecBufferCompatWrapper(mEncoder);
+                mEncoderBuffers = new MediaCodecBufferCompatWrapper(mEncoder.getCodec());
                 return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
         }
 
@@ -441,9 +542,22 @@ public class AudioTrackTranscoder implements TrackTranscoder {
             return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
         }
 
-        mMuxer.writeSampleData(SAMPLE_TYPE, mEncoderBuffers.getOutputBuffer(result), mBufferInfo);
+        if ((mMetrics != null || mTrace != null) && mBufferInfo.size > 0) {
+            // Encoder input is queued by the AudioChannel mixer so only output is counted
+            if (mMetrics != null)
+                mMetrics.getAudio().record(PipelineMetrics.Stage.ENCODE, -1);
+            long muxStartNs = System.nanoTime();
+            mMuxer.writeSampleData(SAMPLE_TYPE, mEncoderBuffers.getOutputBuffer(result), mBufferInfo);
+            if (mMetrics != null)
+                mMetrics.getAudio().record(PipelineMetrics.Stage.MUX, (System.nanoTime() - muxStartNs) / 1000);
+            if (mTrace != null)
+                mTrace.span(TraceRecorder.MUXER_WRITE, TraceRecorder.TRACK_AUDIO, muxStartNs);
+        } else
+            mMuxer.writeSampleData(SAMPLE_TYPE, mEncoderBuffers.getOutputBuffer(result), mBufferInfo);
 
         mEncoder.releaseOutputBuffer(result, false);
+        if (mTrace != null)
+            mTrace.span(TraceRecorder.ENCODER_DRAIN, TraceRecorder.TRACK_AUDIO, drainStartNs);
         return DRAIN_STATE_CONSUMED;
     }
 
@@ -471,6 +585,8 @@ public class AudioTrackTranscoder implements TrackTranscoder {
         for (Map.Entry<String, DecoderWrapper> decoderWrapperEntry : mDecoderWrappers.entrySet()) {
             decoderWrapperEntry.getValue().release();
         }
+        // Any channel in a later segment opens a fresh decoder
+        mDecoderWrappers.clear();
     }
     @Override
     public void releaseEncoder() {
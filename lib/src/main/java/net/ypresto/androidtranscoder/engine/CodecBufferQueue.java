@@ -0,0 +1,152 @@
+package net.ypresto.androidtranscoder.engine;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+/**
+ * Buffers a codec has made available in callback mode, waiting for the pipeline thread to take
+ * them.  The codec's callback thread produces and the pipeline thread consumes through
+ * {@link IntRingBuffer}s so neither blocks the other.  Output format changes travel through the
+ * output ring as {@link MediaCodec#INFO_OUTPUT_FORMAT_CHANGED} so they stay in order with the
+ * buffers around them, and the consumer sees the same results as from the polling API.
+ */
+class CodecBufferQueue {
+    static final int MAX_BUFFERS = 256;
+
+    private final IntRingBuffer mInputBuffers = new IntRingBuffer(MAX_BUFFERS);
+    // Room for a format change between each buffer
+    private final IntRingBuffer mOutputBuffers = new IntRingBuffer(MAX_BUFFERS * 2);
+    private final int[] mOffsets = new int[MAX_BUFFERS];
+    private final int[] mSizes = new int[MAX_BUFFERS];
+    private final long[] mPresentationTimesUs = new long[MAX_BUFFERS];
+    private final int[] mFlags = new int[MAX_BUFFERS];
+    private final PipelineSignal mPipelineSignal;
+    private volatile MediaFormat mPendingOutputFormat;
+    private MediaFormat mOutputFormat;
+    private volatile RuntimeException mError;
+    private volatile boolean mStopped;
+
+    /**
+     * @param pipelineSignal raised whenever the codec makes something available, may be null
+     */
+    CodecBufferQueue(PipelineSignal pipelineSignal) {
+        mPipelineSignal = pipelineSignal;
+    }
+
+    // Callback thread
+
+    void onInputBufferAvailable(int index) {
+        if (mStopped)
+            return;
+        if (index >= MAX_BUFFERS || !mInputBuffers.offer(index))
+            onError(new IllegalStateException("Input buffer " + index + " does not fit the codec buffer queue"));
+        else
+            signal();
+    }
+
+    void onOutputBufferAvailable(int index, MediaCodec.BufferInfo info) {
+        if (mStopped)
+            return;
+        if (index >= MAX_BUFFERS) {
+            onError(new IllegalStateException("Output buffer " + index + " does not fit the codec buffer queue"));
+            return;
+        }
+        // Index is owned by us until released so its slot can be written before publishing it
+        mOffsets[index] = info.offset;
+        mSizes[index] = info.size;
+        mPresentationTimesUs[index] = info.presentationTimeUs;
+        mFlags[index] = info.flags;
+        if (!mOutputBuffers.offer(index))
+            onError(new IllegalStateException("Codec output buffer queue overflow"));
+        else
+            signal();
+    }
+
+    void onOutputFormatChanged(MediaFormat format) {
+        if (mStopped)
+            return;
+        mPendingOutputFormat = format;
+        if (!mOutputBuffers.offer(MediaCodec.INFO_OUTPUT_FORMAT_CHANGED))
+            onError(new IllegalStateException("Codec output buffer queue overflow"));
+        else
+            signal();
+    }
+
+    void onError(RuntimeException error) {
+        if (mError == null)
+            mError = error;
+        signal();
+    }
+
+    private void signal() {
+        if (mPipelineSignal != null)
+            mPipelineSignal.signal();
+    }
+
+    // Pipeline thread
+
+    /**
+     * @return buffer index or {@link MediaCodec#INFO_TRY_AGAIN_LATER}
+     */
+    int dequeueInputBuffer() {
+        throwIfError();
+        return mInputBuffers.poll(MediaCodec.INFO_TRY_AGAIN_LATER);
+    }
+
+    /**
+     * @param info receives the buffer's info
+     * @return buffer index, {@link MediaCodec#INFO_OUTPUT_FORMAT_CHANGED} or {@link MediaCodec#INFO_TRY_AGAIN_LATER}
+     */
+    int dequeueOutputBuffer(MediaCodec.BufferInfo info) {
+        throwIfError();
+        int index = mOutputBuffers.poll(MediaCodec.INFO_TRY_AGAIN_LATER);
+        if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED)
+            mOutputFormat = mPendingOutputFormat;
+        else if (index >= 0)
+            info.set(mOffsets[index], mSizes[index], mPresentationTimesUs[index], mFlags[index]);
+        return index;
+    }
+
+    /**
+     * Format as of the last {@link MediaCodec#INFO_OUTPUT_FORMAT_CHANGED} dequeued
+     */
+    MediaFormat getOutputFormat() {
+        return mOutputFormat;
+    }
+
+    boolean hasInputBuffer() {
+        return !mInputBuffers.isEmpty();
+    }
+
+    boolean hasOutputBuffer() {
+        return !mOutputBuffers.isEmpty();
+    }
+
+    /**
+     * Codec has been started, accept callbacks
+     */
+    void start() {
+        mStopped = false;
+    }
+
+    /**
+     * Codec is being stopped, callbacks still in flight are dropped
+     */
+    void stop() {
+        mStopped = true;
+    }
+
+    /**
+     * Codec has stopped, drop the buffers it had made available
+     */
+    void clear() {
+        mInputBuffers.clear();
+        mOutputBuffers.clear();
+    }
+
+    private void throwIfError() {
+        RuntimeException error = mError;
+        if (error != null)
+            throw new IllegalStateException("Codec failed", error);
+    }
+}
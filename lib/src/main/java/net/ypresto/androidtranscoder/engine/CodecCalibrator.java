@@ -0,0 +1,202 @@
+package net.ypresto.androidtranscoder.engine;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.opengl.GLES20;
+
+import net.ypresto.androidtranscoder.TLog;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures codec throughput with a short synthetic run.  An encoder is fed generated frames
+ * through an input surface and the clip it produces is kept so decoders of the same type can
+ * then be measured decoding it.
+ */
+public class CodecCalibrator {
+    private static final String TAG = "CodecCalibrator";
+    private static final int CALIBRATION_FRAMES = 60;
+    private static final int FRAME_RATE = 30;
+    private static final long TIMEOUT_US = 10000;
+    private static final long MAX_CALIBRATION_NS = 3000000000l;
+    private static final int RECTANGLES_PER_FRAME = 16;
+
+    /**
+     * Output of an encoder calibration run
+     */
+    public static class EncodedClip {
+        MediaFormat mFormat;
+        final List<byte[]> mSamples = new ArrayList<byte[]>();
+        final List<Long> mPresentationTimesUs = new ArrayList<Long>();
+    }
+
+    private CodecCalibrator() {
+    }
+
+    /**
+     * @param codecName encoder to measure
+     * @param mime
+     * @param width
+     * @param height
+     * @param bitrate
+     * @param clip receives the encoded output, may be null
+     * @return encoded frames per second or NaN if the encoder failed
+     */
+    public static double measureEncoder(String codecName, String mime, int width, int height, int bitrate, EncodedClip clip) {
+        MediaCodec encoder = null;
+        InputSurface inputSurface = null;
+        boolean started = false;
+        try {
+            MediaFormat format = MediaFormat.createVideoFormat(mime, width, height);
+            format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
+            format.setInteger(MediaFormat.KEY_FRAME_RATE, FRAME_RATE);
+            format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+            encoder = MediaCodec.createByCodecName(codecName);
+            encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            inputSurface = new InputSurface(encoder.createInputSurface());
+            inputSurface.makeCurrent();
+            encoder.start();
+            started = true;
+
+            Random random = new Random(width * 31 + height);
+            MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+            long startNs = System.nanoTime();
+            int submitted = 0;
+            int encoded = 0;
+            while (System.nanoTime() - startNs < MAX_CALIBRATION_NS) {
+                if (submitted < CALIBRATION_FRAMES) {
+                    drawFrame(random, width, height);
+                    inputSurface.setPresentationTime(submitted * 1000000000l / FRAME_RATE);
+                    inputSurface.swapBuffers();
+                    if (++submitted == CALIBRATION_FRAMES)
+                        encoder.signalEndOfInputStream();
+                }
+                int result = encoder.dequeueOutputBuffer(bufferInfo, submitted < CALIBRATION_FRAMES ? 0 : TIMEOUT_US);
+                if (result == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    if (clip != null)
+                        clip.mFormat = encoder.getOutputFormat();
+                } else if (result >= 0) {
+                    if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && bufferInfo.size > 0) {
+                        ++encoded;
+                        if (clip != null) {
+                            ByteBuffer buffer = encoder.getOutputBuffer(result);
+                            byte[] sample = new byte[bufferInfo.size];
+                            buffer.position(bufferInfo.offset);
+                            buffer.get(sample);
+                            clip.mSamples.add(sample);
+                            clip.mPresentationTimesUs.add(bufferInfo.presentationTimeUs);
+                        }
+                    }
+                    encoder.releaseOutputBuffer(result, false);
+                    if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)
+                        break;
+                }
+            }
+            long elapsedNs = System.nanoTime() - startNs;
+            return encoded > 0 ? encoded * 1000000000.0 / elapsedNs : Double.NaN;
+        } catch (IOException e) {
+            TLog.w(TAG, "Unable to calibrate " + codecName + ": " + e.getMessage());
+            return Double.NaN;
+        } catch (RuntimeException e) {
+            // Configure fails for sizes or formats the codec doesn't really support
+            TLog.w(TAG, "Unable to calibrate " + codecName + ": " + e.getMessage());
+            return Double.NaN;
+        } finally {
+            if (encoder != null) {
+                if (started)
+                    encoder.stop();
+                encoder.release();
+            }
+            if (inputSurface != null)
+                inputSurface.release();
+        }
+    }
+
+    /**
+     * @param codecName decoder to measure
+     * @param clip output of an encoder calibration run
+     * @return decoded frames per second or NaN if the decoder failed
+     */
+    public static double measureDecoder(String codecName, EncodedClip clip) {
+        if (clip.mFormat == null || clip.mSamples.isEmpty())
+            return Double.NaN;
+        MediaCodec decoder = null;
+        boolean started = false;
+        try {
+            decoder = MediaCodec.createByCodecName(codecName);
+            decoder.configure(clip.mFormat, null, null, 0);
+            decoder.start();
+            started = true;
+
+            MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+            long startNs = System.nanoTime();
+            int queued = 0;
+            int decoded = 0;
+            boolean inputDone = false;
+            while (System.nanoTime() - startNs < MAX_CALIBRATION_NS) {
+                if (!inputDone) {
+                    int index = decoder.dequeueInputBuffer(0);
+                    if (index >= 0) {
+                        if (queued < clip.mSamples.size()) {
+                            byte[] sample = clip.mSamples.get(queued);
+                            ByteBuffer buffer = decoder.getInputBuffer(index);
+                            buffer.clear();
+                            buffer.put(sample);
+                            decoder.queueInputBuffer(index, 0, sample.length, clip.mPresentationTimesUs.get(queued), 0);
+                            ++queued;
+                        } else {
+                            decoder.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            inputDone = true;
+                        }
+                    }
+                }
+                int result = decoder.dequeueOutputBuffer(bufferInfo, inputDone ? TIMEOUT_US : 0);
+                if (result >= 0) {
+                    if (bufferInfo.size > 0)
+                        ++decoded;
+                    decoder.releaseOutputBuffer(result, false);
+                    if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0)
+                        break;
+                }
+            }
+            long elapsedNs = System.nanoTime() - startNs;
+            return decoded > 0 ? decoded * 1000000000.0 / elapsedNs : Double.NaN;
+        } catch (IOException e) {
+            TLog.w(TAG, "Unable to calibrate " + codecName + ": " + e.getMessage());
+            return Double.NaN;
+        } catch (RuntimeException e) {
+            TLog.w(TAG, "Unable to calibrate " + codecName + ": " + e.getMessage());
+            return Double.NaN;
+        } finally {
+            if (decoder != null) {
+                if (started)
+                    decoder.stop();
+                decoder.release();
+            }
+        }
+    }
+
+    /**
+     * Fill the frame with random rectangles so the encoder has realistic work to do
+     */
+    private static void drawFrame(Random random, int width, int height) {
+        GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
+        GLES20.glClearColor(random.nextFloat(), random.nextFloat(), random.nextFloat(), 1.0f);
+        GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        GLES20.glEnable(GLES20.GL_SCISSOR_TEST);
+        for (int i = 0; i < RECTANGLES_PER_FRAME; ++i) {
+            int x = random.nextInt(width);
+            int y = random.nextInt(height);
+            GLES20.glScissor(x, y, 1 + random.nextInt(width - x), 1 + random.nextInt(height - y));
+            GLES20.glClearColor(random.nextFloat(), random.nextFloat(), random.nextFloat(), 1.0f);
+            GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT);
+        }
+        GLES20.glDisable(GLES20.GL_SCISSOR_TEST);
+    }
+}
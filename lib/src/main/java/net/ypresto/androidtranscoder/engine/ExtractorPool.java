@@ -0,0 +1,199 @@
+package net.ypresto.androidtranscoder.engine;
+
+import android.media.MediaExtractor;
+
+import net.ypresto.androidtranscoder.TLog;
+import net.ypresto.androidtranscoder.source.MediaExtractorSource;
+import net.ypresto.androidtranscoder.source.SampleSource;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Opens extractors when a track is first needed rather than all up front, and keeps at most
+ * a fixed number open.  Beyond that the least recently used extractor no decoder is reading
+ * from is released, remembering where it had got to, and is reopened there if the track is
+ * needed again.  Native memory and file descriptors stay flat however many inputs a time
+ * line has.
+ *
+ * Extractors are keyed by {@link #videoKey} and {@link #audioKey} since a channel with both
+ * reads each track from its own extractor.  Extractors are {@link SampleSource}s, MediaExtractor
+ * for container inputs and sources of their own for raw streams.
+ */
+public class ExtractorPool {
+    private static final String TAG = "ExtractorPool";
+    public static final int DEFAULT_CAPACITY = 8;
+
+    private static class Entry {
+        final SampleSource.Factory mFactory;
+        final int mTrackIndex;
+        SampleSource mExtractor;
+        long mPositionUs;       // Sample time when released, reopened extractors seek back to it
+        boolean mExhausted;     // Released at end of stream
+        boolean mEvicted;
+        int mPins;
+
+        Entry(SampleSource.Factory factory, int trackIndex) {
+            mFactory = factory;
+            mTrackIndex = trackIndex;
+        }
+    }
+
+    // Access ordered so the first entry is the least recently acquired
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private final int mCapacity;
+    private int mOpenCount;
+    private int mPeakOpenCount;
+    private int mReopenCount;
+
+    public ExtractorPool(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Extractor capacity must be at least 1");
+        mCapacity = capacity;
+    }
+
+    public static String videoKey(String channel) {
+        return "video/" + channel;
+    }
+
+    public static String audioKey(String channel) {
+        return "audio/" + channel;
+    }
+
+    /**
+     * Make a track available to {@link #acquire}, nothing is opened until then
+     * @param key
+     * @param fileDescriptor input the track is in
+     * @param trackIndex track to select once opened
+     */
+    public void register(String key, FileDescriptor fileDescriptor, int trackIndex) {
+        register(key, MediaExtractorSource.factory(fileDescriptor), trackIndex);
+    }
+
+    /**
+     * Make a track of a source other than MediaExtractor available to {@link #acquire}
+     * @param key
+     * @param factory opens the source the track is in
+     * @param trackIndex track to select once opened
+     */
+    public void register(String key, SampleSource.Factory factory, int trackIndex) {
+        mEntries.put(key, new Entry(factory, trackIndex));
+    }
+
+    public boolean contains(String key) {
+        return mEntries.containsKey(key);
+    }
+
+    public int getTrackIndex(String key) {
+        return entry(key).mTrackIndex;
+    }
+
+    /**
+     * Extractor for the track with the track selected, opening it if need be.  It stays open until
+     * every acquire has been matched by a {@link #release}, and after that until it is evicted.
+     * A reopened extractor is at the sync sample preceding where it was released.
+     */
+    public SampleSource acquire(String key) {
+        Entry entry = entry(key);
+        if (entry.mExtractor == null) {
+            evict();
+            entry.mExtractor = open(entry);
+            ++mOpenCount;
+            mPeakOpenCount = Math.max(mPeakOpenCount, mOpenCount);
+        }
+        ++entry.mPins;
+        return entry.mExtractor;
+    }
+
+    /**
+     * The extractor is no longer being read from and may be evicted
+     */
+    public void release(String key) {
+        Entry entry = entry(key);
+        if (entry.mPins > 0)
+            --entry.mPins;
+    }
+
+    /**
+     * Release every open extractor, each one regardless of another failing
+     */
+    public void releaseAll() {
+        RuntimeException releaseException = null;
+        for (Entry entry : mEntries.values()) {
+            if (entry.mExtractor != null) {
+                try {
+                    entry.mExtractor.release();
+                } catch (RuntimeException e) {
+                    releaseException = e;
+                }
+                entry.mExtractor = null;
+                entry.mPins = 0;
+            }
+        }
+        mOpenCount = 0;
+        TLog.d(TAG, "Peak of " + mPeakOpenCount + " open extractors, " + mReopenCount + " reopened");
+        if (releaseException != null)
+            throw releaseException;
+    }
+
+    public int getOpenCount() {
+        return mOpenCount;
+    }
+
+    public int getPeakOpenCount() {
+        return mPeakOpenCount;
+    }
+
+    public int getReopenCount() {
+        return mReopenCount;
+    }
+
+    private Entry entry(String key) {
+        Entry entry = mEntries.get(key);
+        if (entry == null)
+            throw new IllegalStateException("No track registered for " + key);
+        return entry;
+    }
+
+    // Make room for one more by releasing least recently used extractors that aren't pinned
+    private void evict() {
+        for (Map.Entry<String, Entry> mapEntry : mEntries.entrySet()) {
+            if (mOpenCount < mCapacity)
+                return;
+            Entry entry = mapEntry.getValue();
+            if (entry.mExtractor != null && entry.mPins == 0) {
+                entry.mPositionUs = entry.mExtractor.getSampleTime();
+                entry.mExhausted = entry.mPositionUs < 0;
+                entry.mEvicted = true;
+                entry.mExtractor.release();
+                entry.mExtractor = null;
+                --mOpenCount;
+                TLog.d(TAG, "Evicted " + mapEntry.getKey() + " at " + entry.mPositionUs);
+            }
+        }
+        if (mOpenCount >= mCapacity)
+            TLog.w(TAG, "All " + mOpenCount + " extractors in use, opening beyond capacity of " + mCapacity);
+    }
+
+    private SampleSource open(Entry entry) {
+        SampleSource extractor;
+        try {
+            extractor = entry.mFactory.open();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to reopen input", e);
+        }
+        extractor.selectTrack(entry.mTrackIndex);
+        if (entry.mEvicted)
+            ++mReopenCount;
+        if (entry.mExhausted) {
+            // Nothing left to read, leave the track at end of stream
+            extractor.unselectTrack(entry.mTrackIndex);
+        } else if (entry.mPositionUs > 0) {
+            // A new decoder has to start from a sync sample
+            extractor.seekTo(entry.mPositionUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+        }
+        return extractor;
+    }
+}
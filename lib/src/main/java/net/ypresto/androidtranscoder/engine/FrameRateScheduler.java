@@ -0,0 +1,112 @@
+package net.ypresto.androidtranscoder.engine;
+
+/**
+ * Converts an arbitrary (possibly variable) input frame cadence into a fixed output frame rate.
+ *
+ * Output frames are laid out on a fixed grid of slots, slot n being presented at
+ * origin + n * 1000000 / frameRate.  Slot times are always computed from the slot number rather
+ * than accumulated so the cadence cannot drift no matter how long the stream is.
+ *
+ * Each decoded frame is assigned to the slot nearest to its presentation time.  If that slot has
+ * already been filled the frame is dropped, and if slots were skipped since the previous frame
+ * the frame is duplicated to fill them.
+ */
+class FrameRateScheduler {
+    private static final long MICROSECS_PER_SEC = 1000000l;
+
+    private final int mFrameRate;
+    private long mOriginUs = 0l;
+    private long mNextSlot = 0l;
+    private long mFramesDropped = 0l;
+    private long mFramesDuplicated = 0l;
+
+    /**
+     * @param frameRate output frames per second, must be positive
+     */
+    FrameRateScheduler(int frameRate) {
+        if (frameRate <= 0)
+            throw new IllegalArgumentException("Frame rate must be positive: " + frameRate);
+        mFrameRate = frameRate;
+    }
+
+    /**
+     * Restart the grid so that slot 0 is presented at originUs
+     * @param originUs
+     */
+    void reset(long originUs) {
+        mOriginUs = originUs;
+        mNextSlot = 0l;
+    }
+
+    int getFrameRate() {
+        return mFrameRate;
+    }
+
+    /**
+     * Nominal output frame length, only used for bookkeeping as actual slot times are exact
+     * @return
+     */
+    long getFrameIntervalUs() {
+        return MICROSECS_PER_SEC / mFrameRate;
+    }
+
+    /**
+     * Presentation time of a given output slot
+     * @param slot
+     * @return
+     */
+    long getSlotTimeUs(long slot) {
+        return mOriginUs + (slot * MICROSECS_PER_SEC) / mFrameRate;
+    }
+
+    /**
+     * Presentation time of the next output frame to be emitted
+     * @return
+     */
+    long getOutputTimeUs() {
+        return getSlotTimeUs(mNextSlot);
+    }
+
+    /**
+     * Determine how many output frames a decoded frame should produce
+     * @param presentationTimeUs output presentation time of the decoded frame
+     * @return 0 if the frame should be dropped, 1 if emitted once, more than 1 if duplicated
+     */
+    int schedule(long presentationTimeUs) {
+        long slot = nearestSlot(presentationTimeUs);
+        if (slot < mNextSlot) {
+            ++mFramesDropped;
+            return 0;
+        }
+        long frames = slot - mNextSlot + 1;
+        mFramesDuplicated += frames - 1;
+        return (int) Math.min(frames, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Note that a frame has been emitted in the next slot
+     */
+    void advance() {
+        ++mNextSlot;
+    }
+
+    long getFramesEmitted() {
+        return mNextSlot;
+    }
+
+    long getFramesDropped() {
+        return mFramesDropped;
+    }
+
+    long getFramesDuplicated() {
+        return mFramesDuplicated;
+    }
+
+    private long nearestSlot(long presentationTimeUs) {
+        long relativeUs = presentationTimeUs - mOriginUs;
+        if (relativeUs <= 0)
+            return 0l;
+        // Round to nearest: (t * fps + 1/2 sec) / 1 sec, done in integers to avoid accumulating error
+        return (relativeUs * mFrameRate + MICROSECS_PER_SEC / 2) / MICROSECS_PER_SEC;
+    }
+}
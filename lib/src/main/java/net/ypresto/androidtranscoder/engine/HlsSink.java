@@ -0,0 +1,122 @@
+package net.ypresto.androidtranscoder.engine;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import net.ypresto.androidtranscoder.TLog;
+import net.ypresto.androidtranscoder.hls.HlsSegmenter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * HLS output, a playlist at the output path with transport stream segments beside it.  Only
+ * H.264 video and AAC audio can be carried.
+ */
+class HlsSink implements MediaSink {
+    private static final String TAG = "HlsSink";
+    private static final int TRACK_VIDEO = 0;
+    private static final int TRACK_AUDIO = 1;
+    private final HlsSegmenter mSegmenter;
+
+    HlsSink(String playlistPath, long segmentDurationUs) {
+        mSegmenter = new HlsSegmenter(new File(playlistPath), segmentDurationUs);
+    }
+
+    /**
+     * Cut segments on the key frames the video format asks the encoder for
+     * @param videoFormat format given to the encoder, null if video isn't encoded
+     */
+    void alignToKeyFrames(MediaFormat videoFormat) {
+        if (videoFormat != null && videoFormat.containsKey(MediaFormat.KEY_I_FRAME_INTERVAL))
+            mSegmenter.setKeyFrameIntervalUs(videoFormat.getInteger(MediaFormat.KEY_I_FRAME_INTERVAL) * 1000000l);
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        String mime = format.getString(MediaFormat.KEY_MIME);
+        if (MediaFormat.MIMETYPE_VIDEO_AVC.equals(mime)) {
+            byte[] sps = bytes(format.getByteBuffer("csd-0"));
+            byte[] pps = bytes(format.getByteBuffer("csd-1"));
+            byte[] parameterSets = new byte[sps.length + pps.length];
+            System.arraycopy(sps, 0, parameterSets, 0, sps.length);
+            System.arraycopy(pps, 0, parameterSets, sps.length, pps.length);
+            mSegmenter.setVideo(parameterSets);
+            return TRACK_VIDEO;
+        }
+        if (MediaFormat.MIMETYPE_AUDIO_AAC.equals(mime)) {
+            mSegmenter.setAudio(bytes(format.getByteBuffer("csd-0")));
+            return TRACK_AUDIO;
+        }
+        throw new IllegalStateException("HLS output can't carry " + mime);
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+        if (degrees != 0)
+            TLog.w(TAG, "Transport streams can't signal a rotation of " + degrees);
+    }
+
+    @Override
+    public void start() {
+        try {
+            mSegmenter.start();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to write playlist", e);
+        }
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        if (bufferInfo.size == 0 || (bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0)
+            return;
+        ByteBuffer data = byteBuf.duplicate();
+        data.limit(bufferInfo.offset + bufferInfo.size);
+        data.position(bufferInfo.offset);
+        try {
+            if (trackIndex == TRACK_VIDEO)
+                mSegmenter.writeVideo(data, bufferInfo.presentationTimeUs, (bufferInfo.flags & MediaCodec.BUFFER_FLAG_KEY_FRAME) != 0);
+            else
+                mSegmenter.writeAudio(data, bufferInfo.presentationTimeUs);
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to write segment", e);
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            mSegmenter.finish();
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to finish playlist", e);
+        }
+    }
+
+    @Override
+    public void release() {
+        try {
+            mSegmenter.close();
+        } catch (IOException e) {
+            TLog.w(TAG, "Unable to close segment", e);
+        }
+    }
+
+    @Override
+    public void deleteOutput() throws IOException {
+        for (File file : mSegmenter.getFiles()) {
+            if (file.exists() && !file.delete())
+                throw new IOException("Unable to delete " + file);
+        }
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        if (buffer == null)
+            return new byte[0];
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.rewind();
+        byte[] bytes = new byte[duplicate.remaining()];
+        duplicate.get(bytes);
+        return bytes;
+    }
+}
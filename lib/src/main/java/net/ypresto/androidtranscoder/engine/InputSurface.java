@@ -36,7 +36,10 @@ class InputSurface {
     private EGLDisplay mEGLDisplay = EGL14.EGL_NO_DISPLAY;
     private EGLContext mEGLContext = EGL14.EGL_NO_CONTEXT;
     private EGLSurface mEGLSurface = EGL14.EGL_NO_SURFACE;
+    private EGLConfig mEGLConfig;
+    private boolean mOwnsContext = true;
     private Surface mSurface;
+    private int mMakeCurrentCount;
     /**
      * Creates an InputSurface from a Surface.
      */
@@ -47,6 +50,21 @@ class InputSurface {
         mSurface = surface;
         eglSetup();
     }
+    /**
+     * Creates an InputSurface drawn with the context of another, so textures and programs made in
+     * that context can be drawn into both.  The context stays owned by the other surface.
+     */
+    public InputSurface(Surface surface, InputSurface shared) {
+        if (surface == null) {
+            throw new NullPointerException();
+        }
+        mSurface = surface;
+        mEGLDisplay = shared.mEGLDisplay;
+        mEGLContext = shared.mEGLContext;
+        mEGLConfig = shared.mEGLConfig;
+        mOwnsContext = false;
+        createWindowSurface();
+    }
     /**
      * Prepares EGL.  We want a GLES 2.0 context and a surface that supports recording.
      */
@@ -87,11 +105,17 @@ class InputSurface {
         if (mEGLContext == null) {
             throw new RuntimeException("null context");
         }
-        // Create a window surface, and attach it to the Surface we received.
+        mEGLConfig = configs[0];
+        createWindowSurface();
+    }
+    /**
+     * Create a window surface, and attach it to the Surface we received.
+     */
+    private void createWindowSurface() {
         int[] surfaceAttribs = {
                 EGL14.EGL_NONE
         };
-        mEGLSurface = EGL14.eglCreateWindowSurface(mEGLDisplay, configs[0], mSurface,
+        mEGLSurface = EGL14.eglCreateWindowSurface(mEGLDisplay, mEGLConfig, mSurface,
                 surfaceAttribs, 0);
         checkEglError("eglCreateWindowSurface");
         if (mEGLSurface == null) {
@@ -100,14 +124,17 @@ class InputSurface {
     }
     /**
      * Discard all resources held by this class, notably the EGL context.  Also releases the
-     * Surface that was passed to our constructor.
+     * Surface that was passed to our constructor.  Surfaces sharing the context must be released
+     * first.
      */
     public void release() {
         if (mEGLDisplay != EGL14.EGL_NO_DISPLAY) {
             EGL14.eglDestroySurface(mEGLDisplay, mEGLSurface);
-            EGL14.eglDestroyContext(mEGLDisplay, mEGLContext);
-            EGL14.eglReleaseThread();
-            EGL14.eglTerminate(mEGLDisplay);
+            if (mOwnsContext) {
+                EGL14.eglDestroyContext(mEGLDisplay, mEGLContext);
+                EGL14.eglReleaseThread();
+                EGL14.eglTerminate(mEGLDisplay);
+            }
         }
         mSurface.release();
         mEGLDisplay = EGL14.EGL_NO_DISPLAY;
@@ -119,10 +146,17 @@ class InputSurface {
      * Makes our EGL context and surface current.
      */
     public void makeCurrent() {
+        ++mMakeCurrentCount;
         if (!EGL14.eglMakeCurrent(mEGLDisplay, mEGLSurface, mEGLSurface, mEGLContext)) {
             throw new RuntimeException("eglMakeCurrent failed");
         }
     }
+    /**
+     * Number of context switches made through this surface
+     */
+    public int getMakeCurrentCount() {
+        return mMakeCurrentCount;
+    }
     public void makeUnCurrent() {
         if (!EGL14.eglMakeCurrent(mEGLDisplay, EGL14.EGL_NO_SURFACE, EGL14.EGL_NO_SURFACE,
                 EGL14.EGL_NO_CONTEXT)) {
@@ -0,0 +1,77 @@
+package net.ypresto.androidtranscoder.engine;
+
+/**
+ * Bounded FIFO of ints for exactly one producer thread and one consumer thread, without locks.
+ * Each side only writes its own position and publishes it through a volatile write, so a value
+ * is visible to the consumer before the position that covers it.
+ */
+class IntRingBuffer {
+    private final int[] mValues;
+    private final int mMask;
+    private volatile long mHead; // next to read, written by the consumer
+    private volatile long mTail; // next to write, written by the producer
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    IntRingBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        mValues = new int[size];
+        mMask = size - 1;
+    }
+
+    int capacity() {
+        return mValues.length;
+    }
+
+    /**
+     * Producer side
+     * @param value
+     * @return false if full
+     */
+    boolean offer(int value) {
+        long tail = mTail;
+        if (tail - mHead == mValues.length)
+            return false;
+        mValues[(int) (tail & mMask)] = value;
+        mTail = tail + 1;
+        return true;
+    }
+
+    /**
+     * Consumer side
+     * @param emptyValue returned when there is nothing to read
+     * @return
+     */
+    int poll(int emptyValue) {
+        long head = mHead;
+        if (head == mTail)
+            return emptyValue;
+        int value = mValues[(int) (head & mMask)];
+        mHead = head + 1;
+        return value;
+    }
+
+    /**
+     * Consumer side, value that the next poll will return
+     */
+    int peek(int emptyValue) {
+        long head = mHead;
+        return head == mTail ? emptyValue : mValues[(int) (head & mMask)];
+    }
+
+    int size() {
+        return (int) (mTail - mHead);
+    }
+
+    boolean isEmpty() {
+        return mTail == mHead;
+    }
+
+    /**
+     * Consumer side, discard everything written so far
+     */
+    void clear() {
+        mHead = mTail;
+    }
+}
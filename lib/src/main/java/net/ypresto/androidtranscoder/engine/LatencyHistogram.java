@@ -0,0 +1,73 @@
+package net.ypresto.androidtranscoder.engine;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of latencies in power of two microsecond buckets, cheap enough to record on every
+ * frame.  Percentiles are reported as the upper bound of their bucket.  Recording is lock free
+ * so the pipeline thread never waits on a reader; a reader racing a record may see the count
+ * one ahead of the buckets.
+ */
+public class LatencyHistogram {
+    private static final int BUCKETS = 32;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotalUs = new AtomicLong();
+    private final AtomicLong mMaxUs = new AtomicLong();
+
+    public void record(long latencyUs) {
+        if (latencyUs < 0)
+            latencyUs = 0;
+        mCounts.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(latencyUs)));
+        mCount.incrementAndGet();
+        mTotalUs.addAndGet(latencyUs);
+        long maxUs;
+        while (latencyUs > (maxUs = mMaxUs.get()) && !mMaxUs.compareAndSet(maxUs, latencyUs));
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMeanUs() {
+        long count = mCount.get();
+        return count > 0 ? mTotalUs.get() / count : 0;
+    }
+
+    public long getMaxUs() {
+        return mMaxUs.get();
+    }
+
+    /**
+     * @param percentile 0 to 100
+     * @return latency at or below which the percentile of samples fall, 0 if there are none
+     */
+    public long getPercentileUs(double percentile) {
+        long count = 0;
+        long[] counts = new long[BUCKETS];
+        for (int bucket = 0; bucket < BUCKETS; ++bucket) {
+            counts[bucket] = mCounts.get(bucket);
+            count += counts[bucket];
+        }
+        long maxUs = mMaxUs.get();
+        if (count == 0)
+            return 0;
+        long rank = (long) Math.ceil(percentile / 100.0 * count);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKETS; ++bucket) {
+            seen += counts[bucket];
+            // Last bucket is open ended
+            if (seen >= rank && seen > 0)
+                return bucket < BUCKETS - 1 ? Math.min(maxUs, (1l << bucket) - 1) : maxUs;
+        }
+        return maxUs;
+    }
+
+    @Override
+    public String toString() {
+        return "n=" + getCount() + " mean=" + getMeanUs() + "us p50=" + getPercentileUs(50) + "us p99=" +
+                getPercentileUs(99) + "us max=" + getMaxUs() + "us";
+    }
+}
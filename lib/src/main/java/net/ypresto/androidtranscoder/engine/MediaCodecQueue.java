@@ -0,0 +1,149 @@
+package net.ypresto.androidtranscoder.engine;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A MediaCodec driven either by polling or, on API 23+, by callbacks, behind the polling API so
+ * the transcoders work the same either way.  In callback mode the callbacks run on a handler
+ * thread of the codec's own and only hand buffer indexes to a {@link CodecBufferQueue}, which
+ * wakes the pipeline when the codec has something for it.  Dequeues never wait in callback mode.
+ */
+class MediaCodecQueue {
+    private final MediaCodec mCodec;
+    private final String mName;
+    private final CodecBufferQueue mBuffers;
+    private HandlerThread mCallbackThread;
+
+    /**
+     * @param codec
+     * @param name names the callback thread
+     * @param async use callback mode if the platform supports it
+     * @param pipelineSignal raised on codec callbacks, may be null
+     */
+    MediaCodecQueue(MediaCodec codec, String name, boolean async, PipelineSignal pipelineSignal) {
+        mCodec = codec;
+        mName = name;
+        mBuffers = async && isAsyncSupported() ? new CodecBufferQueue(pipelineSignal) : null;
+    }
+
+    static boolean isAsyncSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+    }
+
+    boolean isAsync() {
+        return mBuffers != null;
+    }
+
+    MediaCodec getCodec() {
+        return mCodec;
+    }
+
+    void configure(MediaFormat format, Surface surface, int flags) {
+        if (mBuffers != null)
+            setCallback();
+        mCodec.configure(format, surface, null, flags);
+    }
+
+    @TargetApi(Build.VERSION_CODES.M)
+    private void setCallback() {
+        mCallbackThread = new HandlerThread(mName);
+        mCallbackThread.start();
+        mCodec.setCallback(new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                mBuffers.onInputBufferAvailable(index);
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+                mBuffers.onOutputBufferAvailable(index, info);
+            }
+
+            @Override
+            public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                mBuffers.onError(e);
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                mBuffers.onOutputFormatChanged(format);
+            }
+        }, new Handler(mCallbackThread.getLooper()));
+    }
+
+    Surface createInputSurface() {
+        return mCodec.createInputSurface();
+    }
+
+    void start() {
+        if (mBuffers != null)
+            mBuffers.start();
+        mCodec.start();
+    }
+
+    /**
+     * @param timeoutUs only used when polling
+     * @return buffer index or {@link MediaCodec#INFO_TRY_AGAIN_LATER}
+     */
+    int dequeueInputBuffer(long timeoutUs) {
+        return mBuffers != null ? mBuffers.dequeueInputBuffer() : mCodec.dequeueInputBuffer(timeoutUs);
+    }
+
+    /**
+     * @param info
+     * @param timeoutUs only used when polling
+     * @return buffer index or one of the MediaCodec.INFO_ results
+     */
+    int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        return mBuffers != null ? mBuffers.dequeueOutputBuffer(info) : mCodec.dequeueOutputBuffer(info, timeoutUs);
+    }
+
+    ByteBuffer getInputBuffer(int index) {
+        return mCodec.getInputBuffer(index);
+    }
+
+    ByteBuffer getOutputBuffer(int index) {
+        return mCodec.getOutputBuffer(index);
+    }
+
+    MediaFormat getOutputFormat() {
+        MediaFormat format = mBuffers != null ? mBuffers.getOutputFormat() : null;
+        return format != null ? format : mCodec.getOutputFormat();
+    }
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    void releaseOutputBuffer(int index, boolean render) {
+        mCodec.releaseOutputBuffer(index, render);
+    }
+
+    void signalEndOfInputStream() {
+        mCodec.signalEndOfInputStream();
+    }
+
+    void stop() {
+        if (mBuffers != null)
+            mBuffers.stop();
+        mCodec.stop();
+        if (mBuffers != null)
+            mBuffers.clear();
+    }
+
+    void release() {
+        mCodec.release();
+        if (mCallbackThread != null) {
+            mCallbackThread.quit();
+            mCallbackThread = null;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package net.ypresto.androidtranscoder.engine;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * MP4 output through MediaMuxer
+ */
+class MediaMuxerSink implements MediaSink {
+    private final MediaMuxer mMuxer;
+    private final String mOutputPath;
+
+    MediaMuxerSink(String outputPath) throws IOException {
+        mMuxer = new MediaMuxer(outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        mOutputPath = outputPath;
+    }
+
+    @Override
+    public int addTrack(MediaFormat format) {
+        return mMuxer.addTrack(format);
+    }
+
+    @Override
+    public void setOrientationHint(int degrees) {
+        mMuxer.setOrientationHint(degrees);
+    }
+
+    @Override
+    public void start() {
+        mMuxer.start();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        mMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+    }
+
+    @Override
+    public void stop() {
+        mMuxer.stop();
+    }
+
+    @Override
+    public void release() {
+        mMuxer.release();
+    }
+
+    @Override
+    public void deleteOutput() throws IOException {
+        if (!new File(mOutputPath).delete())
+            throw new IOException("Unable to delete " + mOutputPath);
+    }
+}
@@ -0,0 +1,30 @@
+package net.ypresto.androidtranscoder.engine;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Where muxed samples go, an MP4 file through {@link android.media.MediaMuxer} or HLS segments.
+ * Follows the MediaMuxer call sequence: tracks are added, then started, written and stopped.
+ */
+public interface MediaSink {
+    int addTrack(MediaFormat format);
+
+    void setOrientationHint(int degrees);
+
+    void start();
+
+    void writeSampleData(int trackIndex, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo);
+
+    void stop();
+
+    void release();
+
+    /**
+     * Remove whatever has been written, after release
+     */
+    void deleteOutput() throws IOException;
+}
@@ -18,16 +18,32 @@ package net.ypresto.androidtranscoder.engine;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.media.MediaMetadataRetriever;
-import android.media.MediaMuxer;
+import android.os.ParcelFileDescriptor;
 import net.ypresto.androidtranscoder.TLog;
 
+import net.ypresto.androidtranscoder.format.CodecSelectionStrategy;
 import net.ypresto.androidtranscoder.format.MediaFormatStrategy;
+import net.ypresto.androidtranscoder.mp4.Mp4FastStart;
+import net.ypresto.androidtranscoder.mp4.Mp4Index;
+import net.ypresto.androidtranscoder.mp4.Mp4IndexCache;
+import net.ypresto.androidtranscoder.mp4.Mp4SampleTableReader;
+import net.ypresto.androidtranscoder.mp4.Mp4Trimmer;
+import net.ypresto.androidtranscoder.mp4.SampleTable;
+import net.ypresto.androidtranscoder.source.AnnexBSource;
+import net.ypresto.androidtranscoder.source.MediaExtractorSource;
+import net.ypresto.androidtranscoder.source.SampleSource;
+import net.ypresto.androidtranscoder.source.WavSource;
 import net.ypresto.androidtranscoder.utils.MediaExtractorUtils;
 
+import java.io.File;
 import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -42,11 +58,41 @@ public class MediaTranscoderEngine {
     private FileDescriptor mFirstFileDescriptorWithVideo;
     private TrackTranscoder mVideoTrackTranscoder;
     private TrackTranscoder mAudioTrackTranscoder;
-    private LinkedHashMap<String, MediaExtractor> mVideoExtractor;
-    private LinkedHashMap<String, MediaExtractor> mAudioExtractor;
-    private MediaMuxer mMuxer;
+    private ExtractorPool mExtractorPool;
+    private int mExtractorCapacity = ExtractorPool.DEFAULT_CAPACITY;
+    private List<Rendition> mRenditions = new ArrayList<Rendition>();
+    private MediaSink mMuxer;
+    private long mHlsSegmentDurationUs;
+    private boolean mFastStart;
+    private boolean mCopyTrim;
+    private QueuedMuxer mQueuedMuxer;
     private volatile double mProgress;
+    private volatile ProgressModel mProgressModel;
+    private double mLastReportedProgress;
+    private long mVideoSamplesBefore;
     private ProgressCallback mProgressCallback;
+    private Mp4IndexCache mIndexCache;
+    private final PipelineSignal mPipelineSignal = new PipelineSignal();
+    private long mFrameTimeoutMs = 10000l;
+    private boolean mAsyncCodecs;
+    private SegmentBoundaryListener mSegmentBoundaryListener;
+    private CancelPolicy mCancelPolicy = CancelPolicy.DELETE;
+    private volatile boolean mCanceled;
+    private volatile long mCancelRequestedNs;
+    private long mCancelToIdleMs = -1;
+    private File mCheckpointFile;
+    private MetricsListener mMetricsListener;
+    private long mMetricsIntervalMs;
+    private long mNextMetricsNs;
+    private volatile PipelineMetrics mMetrics;
+    private File mTraceFile;
+    private int mTraceCapacity;
+    private TraceRecorder mTrace;
+    private int mSegmentsPerPart;
+    private long mResumeVideoPresentationTimeUs;
+    private long mResumeAudioPresentationTimeUs;
+    private long mLastVideoPresentationTimeUs;
+    private long mLastAudioPresentationTimeUs;
     private long mDurationUs;
     private long mOutputPresentationTimeUs = 0l;
     int mOutputRotation = 0;
@@ -66,6 +112,7 @@ public class MediaTranscoderEngine {
     public class TranscodeThrottle {
         private long mPresentationThreshold = ThrottleLimit;
         private Date mBlockedStartTime = null;
+        private long mBlockedStartNs;
         private boolean mBufferProcessed = false;
         private boolean mShouldCancel = false;
         LinkedHashMap <String, Long> mLowestPresentationTime;
@@ -108,12 +155,17 @@ public class MediaTranscoderEngine {
 
             }
             if (!mBufferProcessed) {
-                if (mBlockedStartTime == null)
+                if (mBlockedStartTime == null) {
                     mBlockedStartTime = new Date();
-                else
+                    mBlockedStartNs = System.nanoTime();
+                } else
                     mShouldCancel = ((new Date()).getTime() > (mBlockedStartTime.getTime() + maxBlockTime));
             } else {
                 mShouldCancel = false;
+                if (mMetrics != null && mBlockedStartTime != null)
+                    mMetrics.throttleBlocked(((new Date()).getTime() - mBlockedStartTime.getTime()) * 1000);
+                if (mTrace != null && mBlockedStartTime != null)
+                    mTrace.span(TraceRecorder.THROTTLE_BLOCK, TraceRecorder.TRACK_ENGINE, mBlockedStartNs);
                 mBlockedStartTime = null;
             }
             mBufferProcessed = false;
@@ -134,8 +186,6 @@ public class MediaTranscoderEngine {
      * Do not use this constructor unless you know what you are doing.
      */
     public MediaTranscoderEngine() {
-        mAudioExtractor = new LinkedHashMap<String, MediaExtractor>();
-        mVideoExtractor = new LinkedHashMap<String, MediaExtractor>();
     }
 
     public ProgressCallback getProgressCallback() {
@@ -146,6 +196,197 @@ public class MediaTranscoderEngine {
         mProgressCallback = progressCallback;
     }
 
+    public Mp4IndexCache getIndexCache() {
+        return mIndexCache;
+    }
+
+    /**
+     * Cache input indexes on disk so inputs that are used again don't need to be parsed or probed
+     * @param indexCache cache or null to always parse inputs
+     */
+    public void setIndexCache(Mp4IndexCache indexCache) {
+        mIndexCache = indexCache;
+    }
+
+    public long getFrameTimeoutMs() {
+        return mFrameTimeoutMs;
+    }
+
+    /**
+     * How long a decoded frame may take to reach its surface before the transcode fails
+     * @param frameTimeoutMs
+     */
+    public void setFrameTimeoutMs(long frameTimeoutMs) {
+        mFrameTimeoutMs = frameTimeoutMs;
+    }
+
+    /**
+     * Most extractors to keep open at once, beyond that the least recently used are released
+     * and reopened when needed again
+     * @param extractorCapacity
+     */
+    public void setExtractorCapacity(int extractorCapacity) {
+        mExtractorCapacity = extractorCapacity;
+    }
+
+    /**
+     * Further outputs drawn from the same decode as the one passed to transcodeVideo, each
+     * encoded at the size its strategy gives and sharing the audio encode, so their strategies
+     * must give the same audio format as the first.  Not supported with checkpoints.
+     * @param renditions
+     */
+    public void setRenditions(List<Rendition> renditions) {
+        mRenditions = new ArrayList<Rendition>(renditions);
+    }
+
+    public List<Rendition> getRenditions() {
+        return mRenditions;
+    }
+
+    /**
+     * Write each output as an HLS playlist, at its output path, of transport stream segments of
+     * about this duration cut on the encoder's key frames.  Zero, the default, writes MP4.  Not
+     * supported with checkpoints.
+     * @param hlsSegmentDurationUs
+     */
+    public void setHlsSegmentDurationUs(long hlsSegmentDurationUs) {
+        mHlsSegmentDurationUs = hlsSegmentDurationUs;
+    }
+
+    public long getHlsSegmentDurationUs() {
+        return mHlsSegmentDurationUs;
+    }
+
+    /**
+     * Move the moov box of each MP4 output in front of its media data once it is written, so it
+     * can be played progressively.  Costs a copy of the output.
+     * @param fastStart
+     */
+    public void setFastStart(boolean fastStart) {
+        mFastStart = fastStart;
+    }
+
+    /**
+     * Trim time lines that are one unfiltered segment of a single MP4 input by copying its
+     * encoded samples rather than transcoding them.  The format strategy isn't applied to these.
+     * @param copyTrim
+     */
+    public void setCopyTrim(boolean copyTrim) {
+        mCopyTrim = copyTrim;
+    }
+
+    public void setSegmentBoundaryListener(SegmentBoundaryListener segmentBoundaryListener) {
+        mSegmentBoundaryListener = segmentBoundaryListener;
+    }
+
+    public CancelPolicy getCancelPolicy() {
+        return mCancelPolicy;
+    }
+
+    /**
+     * What to do with the partially written output when the transcode is canceled
+     * @param cancelPolicy
+     */
+    public void setCancelPolicy(CancelPolicy cancelPolicy) {
+        mCancelPolicy = cancelPolicy;
+    }
+
+    /**
+     * Stop the transcode from another thread.  The pipeline checks for this, or for its thread
+     * being interrupted, on every step and transcodeVideo throws InterruptedException once
+     * codecs, surfaces and extractors are released.
+     * NOTE: This method is thread safe.
+     */
+    public void cancel() {
+        if (mCancelRequestedNs == 0)
+            mCancelRequestedNs = System.nanoTime();
+        mCanceled = true;
+        mPipelineSignal.signal();
+    }
+
+    /**
+     * @return milliseconds from the cancel being noticed to all resources being released, -1 if
+     * the last transcode wasn't canceled
+     */
+    public long getCancelToIdleMs() {
+        return mCancelToIdleMs;
+    }
+
+    private void checkCanceled() throws InterruptedException {
+        if (mCanceled || Thread.currentThread().isInterrupted())
+            throw new InterruptedException("Transcode canceled");
+    }
+
+    private void noteCanceled() {
+        if (mCancelRequestedNs == 0)
+            mCancelRequestedNs = System.nanoTime();
+    }
+
+    /**
+     * Transcode in parts of a few segments, saving a checkpoint after each so a transcode that
+     * is killed continues from its last completed part when run again with the same time line
+     * and output.  Parts are written next to the output and joined once all are done.
+     * @param checkpointFile where progress is saved, null to transcode in one pass
+     * @param segmentsPerPart segments muxed into each part
+     */
+    public void setCheckpoint(File checkpointFile, int segmentsPerPart) {
+        if (checkpointFile != null && segmentsPerPart < 1)
+            throw new IllegalArgumentException("A part needs at least one segment");
+        mCheckpointFile = checkpointFile;
+        mSegmentsPerPart = segmentsPerPart;
+    }
+
+    public File getCheckpointFile() {
+        return mCheckpointFile;
+    }
+
+    /**
+     * Report stage counts, latencies, throttling and frame rate while transcoding.  Nothing is
+     * measured unless a listener is set.
+     * @param metricsListener called on the transcoding thread, null to stop measuring
+     * @param intervalMs      time between calls
+     */
+    public void setMetricsListener(MetricsListener metricsListener, long intervalMs) {
+        mMetricsListener = metricsListener;
+        mMetricsIntervalMs = intervalMs;
+    }
+
+    /**
+     * NOTE: This method is thread safe.
+     * @return metrics of the current or last transcode, null if no listener was set
+     */
+    public PipelineMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Record spans of each pipeline stage and write them as Chrome trace event JSON once the
+     * transcode ends, for chrome://tracing or the Perfetto UI.  Spans past the capacity are dropped.
+     * @param traceFile file to write, null to stop tracing
+     * @param capacity  spans to preallocate room for
+     */
+    public void setTraceFile(File traceFile, int capacity) {
+        mTraceFile = traceFile;
+        mTraceCapacity = capacity;
+    }
+
+    public File getTraceFile() {
+        return mTraceFile;
+    }
+
+    public boolean isAsyncCodecs() {
+        return mAsyncCodecs;
+    }
+
+    /**
+     * Drive codecs through MediaCodec callbacks on API 23+ so the pipeline wakes when a codec
+     * has buffers rather than polling for them.  Ignored on earlier versions.
+     * @param asyncCodecs
+     */
+    public void setAsyncCodecs(boolean asyncCodecs) {
+        mAsyncCodecs = asyncCodecs;
+    }
+
     /**
      * NOTE: This method is thread safe.
      */
@@ -153,6 +394,15 @@ public class MediaTranscoderEngine {
         return mProgress;
     }
 
+    /**
+     * NOTE: This method is thread safe.
+     * @return progress, ETA and frame rate of the current or last transcode, null until its inputs
+     * have been probed
+     */
+    public ProgressModel getProgressModel() {
+        return mProgressModel;
+    }
+
     /**
      * Run video transcoding. Blocks current thread.
      * Audio data will not be transcoded; original stream will be wrote to output file.
@@ -170,56 +420,319 @@ public class MediaTranscoderEngine {
         if (outputPath == null) {
             throw new NullPointerException("Output path cannot be null.");
         }
+        if (mCheckpointFile != null && !mRenditions.isEmpty())
+            throw new IllegalStateException("Renditions can't be transcoded in checkpointed parts");
+        if (mCheckpointFile != null && mHlsSegmentDurationUs > 0)
+            throw new IllegalStateException("HLS output can't be transcoded in checkpointed parts");
+        mMetrics = mMetricsListener != null ? new PipelineMetrics() : null;
+        mNextMetricsNs = System.nanoTime() + mMetricsIntervalMs * 1000000l;
+        mTrace = mTraceFile != null ? new TraceRecorder(mTraceCapacity) : null;
+        // Created once the inputs have been probed and the time line planned
+        mProgressModel = null;
+        mLastReportedProgress = -1;
+        mVideoSamplesBefore = 0;
+        if (mCopyTrim && mRenditions.isEmpty() && mHlsSegmentDurationUs == 0 && copyTrim(timeLine, outputPath))
+            return;
         try {
-             mMuxer = new MediaMuxer(outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            if (mCheckpointFile == null)
+                transcodePart(timeLine, timeLine.getSegments(), outputPath, formatStrategy);
+            else
+                transcodeCheckpointed(timeLine, outputPath, formatStrategy);
+        } finally {
+            writeTrace();
+        }
+        if (mFastStart && mHlsSegmentDurationUs == 0) {
+            Mp4FastStart.apply(new File(outputPath));
+            for (Rendition rendition : mRenditions)
+                Mp4FastStart.apply(new File(rendition.mOutputPath));
+        }
+    }
+
+    /**
+     * Transcode in parts, saving a checkpoint after each, then join the parts into the output
+     */
+    private void transcodeCheckpointed(TimeLine timeLine, String outputPath, MediaFormatStrategy formatStrategy) throws IOException, InterruptedException {
+        String fingerprint = TranscodeCheckpoint.fingerprint(timeLine, outputPath);
+        TranscodeCheckpoint checkpoint = TranscodeCheckpoint.load(mCheckpointFile, fingerprint);
+        if (checkpoint != null) {
+            TLog.i(TAG, "Resuming at segment " + checkpoint.getNextSegment() + " after " + checkpoint.getParts().size() + " parts");
+            checkpoint.restore(timeLine);
+            mOutputPresentationTimeUs = checkpoint.getOutputPresentationTimeUs();
+        } else
+            checkpoint = new TranscodeCheckpoint(fingerprint);
+        List<TimeLine.Segment> segments = timeLine.getSegments();
+        for (int start = checkpoint.getNextSegment(); start < segments.size(); start += mSegmentsPerPart) {
+            int end = Math.min(segments.size(), start + mSegmentsPerPart);
+            String partPath = outputPath + ".part" + checkpoint.getParts().size();
+            long partStartTimeUs = mOutputPresentationTimeUs;
+            mResumeVideoPresentationTimeUs = checkpoint.getVideoPresentationTimeUs();
+            mResumeAudioPresentationTimeUs = checkpoint.getAudioPresentationTimeUs();
+
+            // The encoders finish with the part so its last segment ends the stream
+            TimeLine.Segment lastSegment = segments.get(end - 1);
+            boolean isLastSegment = lastSegment.isLastSegment;
+            lastSegment.isLastSegment = true;
+            try {
+                transcodePart(timeLine, segments.subList(start, end), partPath, formatStrategy);
+            } finally {
+                lastSegment.isLastSegment = isLastSegment;
+            }
+            checkpoint.addPart(new TranscodeCheckpoint.Part(partPath, partStartTimeUs), end, timeLine,
+                    mOutputPresentationTimeUs, mLastVideoPresentationTimeUs, mLastAudioPresentationTimeUs);
+            checkpoint.save(mCheckpointFile);
+        }
+
+        PartConcatenator.concatenate(checkpoint.getParts(), outputPath, mOutputRotation);
+        for (TranscodeCheckpoint.Part part : checkpoint.getParts())
+            new File(part.mPath).delete();
+        mCheckpointFile.delete();
+    }
+
+    /**
+     * Copy the samples of the only channel from the sync sample at or before its seek, with an
+     * edit list so playback starts at the seek itself
+     * @return false if the input can't be copied and has to be transcoded
+     */
+    private boolean copyTrim(TimeLine timeLine, String outputPath) throws IOException, InterruptedException {
+        String channelName = timeLine.getTrimOnlyChannel();
+        if (channelName == null)
+            return false;
+        TimeLine.InputChannel channel = timeLine.getChannels().get(channelName);
+        TimeLine.Segment segment = timeLine.getSegments().get(0);
+        long startUs = segment.getSeek(channelName);
+        Long durationUs = segment.getRequestedDuration();
+        long endUs = durationUs != null ? startUs + durationUs : Long.MAX_VALUE;
+        checkCanceled();
+        long startNs = System.nanoTime();
+        ParcelFileDescriptor.AutoCloseInputStream inputStream =
+                new ParcelFileDescriptor.AutoCloseInputStream(ParcelFileDescriptor.dup(channel.mInputFileDescriptor));
+        try {
+            Mp4Trimmer trimmer;
+            try {
+                trimmer = Mp4Trimmer.create(inputStream.getChannel(), startUs, endUs,
+                        channel.mChannelType != TimeLine.ChannelType.AUDIO, channel.mChannelType != TimeLine.ChannelType.VIDEO);
+            } catch (IOException e) {
+                TLog.w(TAG, "Unable to read input for copying: " + e.getMessage());
+                trimmer = null;
+            }
+            if (trimmer == null) {
+                TLog.i(TAG, "Input can't be copied, transcoding the trim");
+                return false;
+            }
+            boolean written = false;
+            FileOutputStream outputStream = new FileOutputStream(outputPath);
+            try {
+                trimmer.write(outputStream.getChannel());
+                written = true;
+            } catch (ClosedByInterruptException e) {
+                noteCanceled();
+                InterruptedException interruptedException = new InterruptedException("Transcode canceled");
+                interruptedException.initCause(e);
+                throw interruptedException;
+            } finally {
+                outputStream.close();
+                if (!written && !new File(outputPath).delete())
+                    TLog.w(TAG, "Unable to delete incomplete output " + outputPath);
+            }
+            TLog.d(TAG, "Copied " + trimmer.getOutputSize() + " bytes from " + trimmer.getCopyStartUs()
+                    + "us in " + (System.nanoTime() - startNs) / 1000000l + "ms");
+        } finally {
+            inputStream.close();
+        }
+        mProgress = 1.0;
+        if (mProgressCallback != null)
+            mProgressCallback.onProgress(1.0);
+        return true;
+    }
+
+    // A failure writing the trace shouldn't mask the outcome of the transcode
+    private void writeTrace() {
+        if (mTrace == null)
+            return;
+        try {
+            mTrace.write(mTraceFile);
+            TLog.d(TAG, "Wrote {} trace spans, {} dropped", mTrace.getCount(), mTrace.getDropped());
+        } catch (IOException e) {
+            TLog.w(TAG, "Unable to write trace " + mTraceFile, e);
+        }
+    }
+
+    /**
+     * Transcode some consecutive segments of the time line to a file
+     */
+    private void transcodePart(TimeLine timeLine, List<TimeLine.Segment> segments, String outputPath, MediaFormatStrategy formatStrategy) throws IOException, InterruptedException {
+        mCancelToIdleMs = -1;
+        boolean completed = false;
+        boolean canceled = false;
+        try {
+            checkCanceled();
+            mMuxer = createSink(outputPath);
+            for (Rendition rendition : mRenditions)
+                rendition.mMuxer = createSink(rendition.mOutputPath);
             setupTrackTranscoders(timeLine, formatStrategy);
             if (mFirstFileDescriptorWithVideo == null) {
                 throw new IllegalStateException("Data source is not set.");
             }
             try {
                 mMuxer.setOrientationHint(mOutputRotation);
+                for (Rendition rendition : mRenditions)
+                    rendition.mMuxer.setOrientationHint(mOutputRotation);
             } catch (NumberFormatException e) {
                 TLog.e(TAG, "Unable to set orientaiton in Muxer");
             }
 
-            runPipelines(timeLine);
+            if (mVideoTrackTranscoder != null && mResumeVideoPresentationTimeUs > 0)
+                mVideoTrackTranscoder.setOutputPresentationTimeDecodedUs(mResumeVideoPresentationTimeUs);
+            if (mAudioTrackTranscoder != null && mResumeAudioPresentationTimeUs > 0)
+                mAudioTrackTranscoder.setOutputPresentationTimeDecodedUs(mResumeAudioPresentationTimeUs);
+            runPipelines(timeLine, segments);
+            mVideoSamplesBefore += mQueuedMuxer.getVideoSampleCount();
+            mLastVideoPresentationTimeUs = mVideoTrackTranscoder != null ? mVideoTrackTranscoder.getOutputPresentationTimeDecodedUs() : 0l;
+            mLastAudioPresentationTimeUs = mAudioTrackTranscoder != null ? mAudioTrackTranscoder.getOutputPresentationTimeDecodedUs() : 0l;
+            releaseTrackTranscoders();
             mMuxer.stop();
+            for (Rendition rendition : mRenditions)
+                rendition.mMuxer.stop();
+            completed = true;
             TLog.d(TAG, "Muxer Stopped");
+        } catch (InterruptedException e) {
+            canceled = true;
+            noteCanceled();
+            throw e;
+        } catch (RuntimeException e) {
+            // Codec and GL calls fail rather than return when the thread is interrupted under them
+            if (!mCanceled && !Thread.currentThread().isInterrupted())
+                throw e;
+            canceled = true;
+            noteCanceled();
+            InterruptedException interruptedException = new InterruptedException("Transcode canceled");
+            interruptedException.initCause(e);
+            throw interruptedException;
         } finally {
-            try {
-                if (mVideoTrackTranscoder != null) {
-                    //mVideoTrackTranscoder.release();
-                    mVideoTrackTranscoder = null;
-                }
-                if (mAudioTrackTranscoder != null) {
-                    //mAudioTrackTranscoder.release();
-                    mAudioTrackTranscoder = null;
-                }
-                for (Map.Entry<String, MediaExtractor> entry : mAudioExtractor.entrySet()) {
-                    entry.getValue().release();
-                }
-                for (Map.Entry<String, MediaExtractor> entry : mVideoExtractor.entrySet()) {
-                    entry.getValue().release();
+            // Each release stands alone so one failure doesn't leak the rest
+            releaseTrackTranscoders();
+            RuntimeException releaseException = null;
+            if (mExtractorPool != null) {
+                try {
+                    mExtractorPool.releaseAll();
+                } catch (RuntimeException e) {
+                    releaseException = e;
                 }
-            } catch (RuntimeException e) {
-                // Too fatal to make alive the app, because it may leak native resources.
-                //noinspection ThrowFromFinallyBlock
-                throw new Error("Could not shutdown extractor, codecs and muxer pipeline.", e);
             }
+            boolean finalized = completed;
+            MediaSink sink = mMuxer;
             try {
                 if (mMuxer != null) {
+                    if (canceled && mCancelPolicy == CancelPolicy.FINALIZE && mQueuedMuxer != null && mQueuedMuxer.isStarted()) {
+                        try {
+                            mMuxer.stop();
+                            finalized = true;
+                        } catch (RuntimeException e) {
+                            TLog.w(TAG, "Unable to finalize canceled output: " + e.getMessage());
+                        }
+                    }
                     mMuxer.release();
                     mMuxer = null;
                 }
             } catch (RuntimeException e) {
                 TLog.e(TAG, "Failed to release muxer.", e);
             }
+            mQueuedMuxer = null;
+            releaseRenditionMuxers(canceled, completed);
+            if (canceled) {
+                if (!finalized)
+                    deleteOutput(sink, outputPath);
+                mCancelToIdleMs = (System.nanoTime() - mCancelRequestedNs) / 1000000l;
+                TLog.d(TAG, "Canceled, idle after " + mCancelToIdleMs + "ms");
+            }
+            if (releaseException != null) {
+                // Too fatal to make alive the app, because it may leak native resources.
+                //noinspection ThrowFromFinallyBlock
+                throw new Error("Could not shutdown extractor, codecs and muxer pipeline.", releaseException);
+            }
+        }
+    }
+
+    /**
+     * Release the muxers of any renditions, finalizing or deleting their outputs on cancel the
+     * same as the primary output
+     */
+    private void releaseRenditionMuxers(boolean canceled, boolean completed) {
+        for (Rendition rendition : mRenditions) {
+            boolean finalized = completed;
+            MediaSink sink = rendition.mMuxer;
+            try {
+                if (rendition.mMuxer != null) {
+                    if (canceled && mCancelPolicy == CancelPolicy.FINALIZE && rendition.mQueuedMuxer != null && rendition.mQueuedMuxer.isStarted()) {
+                        try {
+                            rendition.mMuxer.stop();
+                            finalized = true;
+                        } catch (RuntimeException e) {
+                            TLog.w(TAG, "Unable to finalize canceled rendition: " + e.getMessage());
+                        }
+                    }
+                    rendition.mMuxer.release();
+                    rendition.mMuxer = null;
+                }
+            } catch (RuntimeException e) {
+                TLog.e(TAG, "Failed to release rendition muxer.", e);
+            }
+            rendition.mQueuedMuxer = null;
+            if (canceled && !finalized)
+                deleteOutput(sink, rendition.mOutputPath);
+        }
+    }
+
+    private MediaSink createSink(String outputPath) throws IOException {
+        if (mHlsSegmentDurationUs > 0)
+            return new HlsSink(outputPath, mHlsSegmentDurationUs);
+        return new MediaMuxerSink(outputPath);
+    }
+
+    private static void deleteOutput(MediaSink sink, String outputPath) {
+        try {
+            if (sink != null)
+                sink.deleteOutput();
+            else
+                new File(outputPath).delete();
+        } catch (IOException e) {
+            TLog.w(TAG, "Unable to delete canceled output " + outputPath);
         }
     }
 
+    // HLS segments can only be cut where the encoder puts key frames
+    private static void alignSegments(MediaSink sink, MediaFormat videoFormat) {
+        if (sink instanceof HlsSink)
+            ((HlsSink) sink).alignToKeyFrames(videoFormat);
+    }
 
     /**
-     * Setup MediaExtractors for ever possible case in each output segment but defer connecting
+     * Release decoders, encoders and their EGL surfaces, logging rather than throwing so every
+     * track gets released
+     */
+    private void releaseTrackTranscoders() {
+        if (mVideoTrackTranscoder != null) {
+            try {
+                mVideoTrackTranscoder.release();
+            } catch (RuntimeException e) {
+                TLog.e(TAG, "Failed to release video transcoder.", e);
+            }
+            mVideoTrackTranscoder = null;
+        }
+        if (mAudioTrackTranscoder != null) {
+            try {
+                mAudioTrackTranscoder.release();
+            } catch (RuntimeException e) {
+                TLog.e(TAG, "Failed to release audio transcoder.", e);
+            }
+            mAudioTrackTranscoder = null;
+        }
+    }
+
+
+    /**
+     * Probe every input for its tracks and register them with the extractor pool, which opens
+     * them as segments need them, but defer connecting
      * up the decoders until they are needed.  There is a limit based on device resources as to
      * how many decoders can run at the same time and this reduced to absolute minimum needed.
      *
@@ -230,80 +743,149 @@ public class MediaTranscoderEngine {
      * @param timeLine
      * @param formatStrategy
      * @throws IOException
+     * @throws InterruptedException when canceled during setup
      */
-    private void setupTrackTranscoders(TimeLine timeLine, MediaFormatStrategy formatStrategy) throws IOException {
+    private void setupTrackTranscoders(TimeLine timeLine, MediaFormatStrategy formatStrategy) throws IOException, InterruptedException {
 
-        // Setup all extractors for all segments, finding the first video and audio track to establish an interim output format
+        // Probe the tracks of all inputs, finding the first video and audio track to establish an interim output format
         MediaFormat videoOutputFormat = null;
         MediaFormat audioOutputFormat = null;
-        MediaExtractorUtils.TrackResult trackResult = null;
+        SampleTable firstVideoSampleTable = null;
+        String firstVideoChannel = null;
+        String firstAudioChannel = null;
+        MediaFormat firstVideoTrackFormat = null;
+        MediaFormat firstAudioTrackFormat = null;
+        boolean firstVideoElementaryStream = false;
+        boolean hasAudio = false;
+        mExtractorPool = new ExtractorPool(mExtractorCapacity);
         boolean allowPassthru = false;//timeLine.getChannels().size() == 1;
         for (Map.Entry<String, TimeLine.InputChannel> inputChannelEntry : timeLine.getChannels().entrySet()) {
+            checkCanceled();
 
             TimeLine.InputChannel inputChannel = inputChannelEntry.getValue();
             String channelName = inputChannelEntry.getKey();
             FileDescriptor fileDescriptor = inputChannel.mInputFileDescriptor;
-            if (inputChannel.mChannelType == TimeLine.ChannelType.VIDEO || inputChannel.mChannelType == TimeLine.ChannelType.AUDIO_VIDEO) {
-                MediaExtractor videoExtractor = new MediaExtractor();
+            if (inputChannel.mChannelType == TimeLine.ChannelType.IMAGE)
+                continue;
+            boolean wantVideo = (TimeLine.typeMask(inputChannel.mChannelType) & TimeLine.TYPE_VIDEO) != 0;
+            boolean wantAudio = (TimeLine.typeMask(inputChannel.mChannelType) & TimeLine.TYPE_AUDIO) != 0;
+            boolean elementaryStream = TimeLine.isElementaryStream(inputChannel.mChannelType);
+            SampleSource.Factory factory;
+            MediaFormat videoTrackFormat = null;
+            MediaFormat audioTrackFormat = null;
+            int videoTrackIndex = -1;
+            int audioTrackIndex = -1;
+            if (elementaryStream) {
+                // Raw streams are a single track read by a source of their own, probed from the stream itself
+                factory = inputChannel.mChannelType == TimeLine.ChannelType.WAV_AUDIO ? WavSource.factory(fileDescriptor)
+                        : AnnexBSource.factory(fileDescriptor, 1000000.0 / inputChannel.mVideoFrameLength);
+                SampleSource source;
                 try {
-                    videoExtractor.setDataSource(fileDescriptor);
+                    source = factory.open();
                 } catch (IOException e) {
-                    TLog.w(TAG, "Transcode failed: input file (fd: " + fileDescriptor.toString() + ") not found");
+                    TLog.w(TAG, "Transcode failed: input file (fd: " + fileDescriptor.toString() + ") not readable");
                     throw e;
                 }
-                trackResult = MediaExtractorUtils.getFirstVideoAndAudioTrack(videoExtractor);
-                if (trackResult.mVideoTrackFormat != null) {
-                    videoExtractor.selectTrack(trackResult.mVideoTrackIndex);
-                    mVideoExtractor.put(channelName, videoExtractor);
-                    if (videoOutputFormat == null) {
-                        videoOutputFormat = formatStrategy.createVideoOutputFormat(trackResult.mVideoTrackFormat, allowPassthru);
-                        mFirstFileDescriptorWithVideo = fileDescriptor;
+                try {
+                    MediaFormat format = source.getTrackFormat(0);
+                    inputChannel.mLengthUs = format.getLong(MediaFormat.KEY_DURATION);
+                    if (source instanceof AnnexBSource) {
+                        inputChannel.mVideoFrameLength = Math.round(1000000 / ((AnnexBSource) source).getFrameRate());
+                        videoTrackFormat = format;
+                        videoTrackIndex = 0;
+                    } else {
+                        audioTrackFormat = format;
+                        audioTrackIndex = 0;
+                    }
+                } finally {
+                    source.release();
+                }
+            } else {
+                Mp4Index index = readSampleIndex(fileDescriptor);
+                if (index != null) {
+                    inputChannel.mVideoSampleTable = index.getVideoTrack();
+                    inputChannel.mAudioSampleTable = index.getAudioTrack();
+                }
+                factory = MediaExtractorSource.factory(fileDescriptor);
+                // Only open long enough to probe, the pool reopens it when a segment needs it
+                MediaExtractor extractor = new MediaExtractor();
+                try {
+                    try {
+                        extractor.setDataSource(fileDescriptor);
+                    } catch (IOException e) {
+                        TLog.w(TAG, "Transcode failed: input file (fd: " + fileDescriptor.toString() + ") not found");
+                        throw e;
                     }
+                    MediaExtractorUtils.TrackResult trackResult = MediaExtractorUtils.getFirstVideoAndAudioTrack(extractor);
+                    videoTrackFormat = trackResult.mVideoTrackFormat;
+                    videoTrackIndex = trackResult.mVideoTrackIndex;
+                    audioTrackFormat = trackResult.mAudioTrackFormat;
+                    audioTrackIndex = trackResult.mAudioTrackIndex;
+                } finally {
+                    extractor.release();
+                }
+            }
+            if (wantVideo && videoTrackFormat != null) {
+                mExtractorPool.register(ExtractorPool.videoKey(channelName), factory, videoTrackIndex);
+                if (videoOutputFormat == null) {
+                    videoOutputFormat = formatStrategy.createVideoOutputFormat(videoTrackFormat, allowPassthru);
+                    mFirstFileDescriptorWithVideo = fileDescriptor;
+                    firstVideoSampleTable = inputChannel.mVideoSampleTable;
+                    firstVideoChannel = channelName;
+                    firstVideoTrackFormat = videoTrackFormat;
+                    firstVideoElementaryStream = elementaryStream;
+                }
+                Long duration;
+                if (elementaryStream) {
+                    duration = inputChannel.mLengthUs;
+                } else if (inputChannel.mVideoSampleTable != null && inputChannel.mVideoSampleTable.getDurationUs() > 0) {
+                    duration = inputChannel.mVideoSampleTable.getDurationUs();
+                } else {
                     MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
-                    mediaMetadataRetriever.setDataSource(fileDescriptor);
-                    Long duration;
                     try {
+                        mediaMetadataRetriever.setDataSource(fileDescriptor);
                         duration = Long.parseLong(mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION)) * 1000;
                     } catch (NumberFormatException e) {
                         duration = -1l;
+                    } finally {
+                        mediaMetadataRetriever.release();
                     }
-                    TLog.d(TAG, "Duration of " + channelName + ": (us): " + duration);
-                    inputChannel.mLengthUs = duration;
-                    MediaFormat format = videoExtractor.getTrackFormat(trackResult.mVideoTrackIndex);
-                    String mime = format.getString(MediaFormat.KEY_MIME);
-                    if (mime.startsWith("video/")) {
-                        if (format.containsKey(MediaFormat.KEY_FRAME_RATE)) {
-                            long frameLength = 1000000 / format.getInteger(MediaFormat.KEY_FRAME_RATE);
-                            TLog.d(TAG, "Frame Length of " + channelName + ": " + frameLength);
-                            inputChannel.mVideoFrameLength = frameLength;
-                        }
+                }
+                TLog.d(TAG, "Duration of " + channelName + ": (us): " + duration);
+                inputChannel.mLengthUs = duration;
+                MediaFormat format = videoTrackFormat;
+                String mime = format.getString(MediaFormat.KEY_MIME);
+                if (mime.startsWith("video/") && !elementaryStream) {
+                    if (format.containsKey(MediaFormat.KEY_FRAME_RATE)) {
+                        long frameLength = 1000000 / format.getInteger(MediaFormat.KEY_FRAME_RATE);
+                        TLog.d(TAG, "Frame Length of " + channelName + ": " + frameLength);
+                        inputChannel.mVideoFrameLength = frameLength;
+                    } else if (inputChannel.mVideoSampleTable != null && inputChannel.mVideoSampleTable.getFrameRate() > 0) {
+                        long frameLength = 1000000 / inputChannel.mVideoSampleTable.getFrameRate();
+                        TLog.d(TAG, "Indexed Frame Length of " + channelName + ": " + frameLength);
+                        inputChannel.mVideoFrameLength = frameLength;
                     }
                 }
             }
-            if (inputChannel.mChannelType == TimeLine.ChannelType.AUDIO || inputChannel.mChannelType == TimeLine.ChannelType.AUDIO_VIDEO) {
-                MediaExtractor audioExtractor = new MediaExtractor();
-                try {
-                    audioExtractor.setDataSource(fileDescriptor);
-                } catch (IOException e) {
-                    TLog.w(TAG, "Transcode failed: input file (fd: " + fileDescriptor.toString() + ") not found");
-                    throw e;
-                }
-                trackResult = MediaExtractorUtils.getFirstVideoAndAudioTrack(audioExtractor);
-                if (trackResult.mAudioTrackFormat != null) {
-                    audioExtractor.selectTrack(trackResult.mAudioTrackIndex);
-                    mAudioExtractor.put(inputChannelEntry.getKey(), audioExtractor);
-                    if (audioOutputFormat == null) {
-                        audioOutputFormat = formatStrategy.createAudioOutputFormat(trackResult.mAudioTrackFormat, allowPassthru);
-                    }
+            if (wantAudio && audioTrackFormat != null) {
+                mExtractorPool.register(ExtractorPool.audioKey(channelName), factory, audioTrackIndex);
+                hasAudio = true;
+                if (audioOutputFormat == null) {
+                    audioOutputFormat = formatStrategy.createAudioOutputFormat(audioTrackFormat, allowPassthru);
+                    firstAudioChannel = channelName;
+                    firstAudioTrackFormat = audioTrackFormat;
                 }
             }
         }
-        mDurationUs = timeLine.getDuration();
+        TimingPlan timingPlan = timeLine.plan();
+        TLog.d(TAG, "Timing plan\n{}", timingPlan);
+        mDurationUs = timingPlan.getDurationUs();
         TLog.d(TAG, "Total duration " + mDurationUs);
         if (videoOutputFormat == null && audioOutputFormat == null) {
             throw new InvalidOutputFormatException("MediaFormatStrategy returned pass-through for both video and audio. No transcoding is necessary.");
         }
-        QueuedMuxer queuedMuxer = new QueuedMuxer(mMuxer, mVideoExtractor.keySet().size() > 0, mAudioExtractor.keySet().size() > 0,
+        boolean hasVideo = firstVideoChannel != null;
+        mQueuedMuxer = new QueuedMuxer(mMuxer, hasVideo, hasAudio,
                 new QueuedMuxer.Listener() {
                     @Override
                     public void onDetermineOutputFormat() {
@@ -314,51 +896,166 @@ public class MediaTranscoderEngine {
                     }
                 }
          );
+        for (Rendition rendition : mRenditions) {
+            // Formats the transcoders settle on are validated through the primary output
+            rendition.mQueuedMuxer = new QueuedMuxer(rendition.mMuxer, hasVideo, hasAudio,
+                    new QueuedMuxer.Listener() {
+                        @Override
+                        public void onDetermineOutputFormat() {
+                        }
+                    });
+            if (hasAudio) {
+                MediaFormat renditionAudioFormat = rendition.mFormatStrategy.createAudioOutputFormat(firstAudioTrackFormat, allowPassthru);
+                if (!sameAudioSettings(audioOutputFormat, renditionAudioFormat))
+                    throw new InvalidOutputFormatException("Renditions must have the audio settings of the first output, " + rendition.mOutputPath);
+                mQueuedMuxer.shareAudioWith(rendition.mQueuedMuxer);
+            }
+        }
 
-        if (mVideoExtractor.keySet().size() > 0) {
-            if (videoOutputFormat == null && trackResult != null) {
-                mVideoTrackTranscoder = new PassThroughTrackTranscoder(mVideoExtractor.entrySet().iterator().next().getValue(),
-                        trackResult.mVideoTrackIndex, queuedMuxer, QueuedMuxer.SampleType.VIDEO);
+        if (hasVideo) {
+            if (videoOutputFormat == null && !mRenditions.isEmpty())
+                throw new InvalidOutputFormatException("Renditions need the video of the first output to be transcoded.");
+            if (videoOutputFormat == null) {
+                String key = ExtractorPool.videoKey(firstVideoChannel);
+                mVideoTrackTranscoder = new PassThroughTrackTranscoder(mExtractorPool.acquire(key),
+                        mExtractorPool.getTrackIndex(key), mQueuedMuxer, QueuedMuxer.SampleType.VIDEO);
             } else {
-                mVideoTrackTranscoder = new VideoTrackTranscoder(mVideoExtractor, videoOutputFormat, queuedMuxer);
+                VideoTrackTranscoder videoTrackTranscoder = new VideoTrackTranscoder(mExtractorPool, videoOutputFormat, mQueuedMuxer);
+                if (formatStrategy instanceof CodecSelectionStrategy)
+                    videoTrackTranscoder.setCodecSelectionStrategy((CodecSelectionStrategy) formatStrategy);
+                videoTrackTranscoder.setPipelineSignal(mPipelineSignal);
+                videoTrackTranscoder.setAsyncCodecs(mAsyncCodecs);
+                videoTrackTranscoder.setMetrics(mMetrics);
+                videoTrackTranscoder.setTrace(mTrace);
+                videoTrackTranscoder.setFrameTimeoutUs(mFrameTimeoutMs * 1000);
+                for (Rendition rendition : mRenditions) {
+                    MediaFormat renditionFormat = rendition.mFormatStrategy.createVideoOutputFormat(firstVideoTrackFormat, allowPassthru);
+                    if (renditionFormat == null)
+                        throw new InvalidOutputFormatException("Renditions can't pass video through, " + rendition.mOutputPath);
+                    videoTrackTranscoder.addRendition(renditionFormat, rendition.mQueuedMuxer);
+                    alignSegments(rendition.mMuxer, renditionFormat);
+                }
+                mVideoTrackTranscoder = videoTrackTranscoder;
+                alignSegments(mMuxer, videoOutputFormat);
             }
 
-            MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
-            mediaMetadataRetriever.setDataSource(mFirstFileDescriptorWithVideo);
-            mOutputRotation = Integer.parseInt(mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION));
-            mOutputHeight = Integer.parseInt(mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT));
-            mOutputWidth = Integer.parseInt(mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH));
+            if (firstVideoSampleTable != null && firstVideoSampleTable.getWidth() > 0 && firstVideoSampleTable.getHeight() > 0) {
+                mOutputRotation = firstVideoSampleTable.getRotation();
+                mOutputHeight = firstVideoSampleTable.getHeight();
+                mOutputWidth = firstVideoSampleTable.getWidth();
+            } else if (firstVideoElementaryStream) {
+                // Raw streams carry no rotation
+                mOutputRotation = 0;
+                mOutputHeight = firstVideoTrackFormat.getInteger(MediaFormat.KEY_HEIGHT);
+                mOutputWidth = firstVideoTrackFormat.getInteger(MediaFormat.KEY_WIDTH);
+            } else {
+                MediaMetadataRetriever mediaMetadataRetriever = new MediaMetadataRetriever();
+                try {
+                    mediaMetadataRetriever.setDataSource(mFirstFileDescriptorWithVideo);
+                    mOutputRotation = Integer.parseInt(mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_ROTATION));
+                    mOutputHeight = Integer.parseInt(mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_HEIGHT));
+                    mOutputWidth = Integer.parseInt(mediaMetadataRetriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_VIDEO_WIDTH));
+                } finally {
+                    mediaMetadataRetriever.release();
+                }
+            }
             mVideoTrackTranscoder.setupEncoder();
         }
 
-        if (mAudioExtractor.keySet().size() > 0) {
+        if (hasAudio) {
             if (audioOutputFormat == null) {
-                mAudioTrackTranscoder = new PassThroughTrackTranscoder(mAudioExtractor.entrySet().iterator().next().getValue(),
-                        trackResult.mAudioTrackIndex, queuedMuxer, QueuedMuxer.SampleType.AUDIO);
+                String key = ExtractorPool.audioKey(firstAudioChannel);
+                mAudioTrackTranscoder = new PassThroughTrackTranscoder(mExtractorPool.acquire(key),
+                        mExtractorPool.getTrackIndex(key), mQueuedMuxer, QueuedMuxer.SampleType.AUDIO);
             } else {
-                mAudioTrackTranscoder = new AudioTrackTranscoder(mAudioExtractor, audioOutputFormat, queuedMuxer);
+                AudioTrackTranscoder audioTrackTranscoder = new AudioTrackTranscoder(mExtractorPool, audioOutputFormat, mQueuedMuxer);
+                audioTrackTranscoder.setPipelineSignal(mPipelineSignal);
+                audioTrackTranscoder.setAsyncCodecs(mAsyncCodecs);
+                audioTrackTranscoder.setMetrics(mMetrics);
+                audioTrackTranscoder.setTrace(mTrace);
+                mAudioTrackTranscoder = audioTrackTranscoder;
             }
             mAudioTrackTranscoder.setupEncoder();
         }
     }
 
-    private void runPipelines(TimeLine timeLine) throws IOException, InterruptedException {
+    // Whether one audio encode can be muxed into both outputs, both null means pass through
+    private static boolean sameAudioSettings(MediaFormat format, MediaFormat other) {
+        if (format == null || other == null)
+            return format == other;
+        String[] keys = {MediaFormat.KEY_MIME, MediaFormat.KEY_SAMPLE_RATE, MediaFormat.KEY_CHANNEL_COUNT, MediaFormat.KEY_BIT_RATE};
+        for (String key : keys) {
+            boolean hasKey = format.containsKey(key);
+            if (hasKey != other.containsKey(key))
+                return false;
+            if (!hasKey)
+                continue;
+            if (key.equals(MediaFormat.KEY_MIME) ? !format.getString(key).equals(other.getString(key)) : format.getInteger(key) != other.getInteger(key))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Read the sync sample index of an input so that seeks can go straight to the key frame
+     * preceding the seek point, from the index cache if there is one.  Any failure just means
+     * seeking and probing fall back to the extractor and metadata retriever.
+     * @param fileDescriptor
+     * @return index or null if the input is not an MP4 file or can't be read
+     */
+    private Mp4Index readSampleIndex(FileDescriptor fileDescriptor) {
+        ParcelFileDescriptor.AutoCloseInputStream inputStream = null;
+        try {
+            // Read through a duplicate so the caller's descriptor is left open
+            inputStream = new ParcelFileDescriptor.AutoCloseInputStream(ParcelFileDescriptor.dup(fileDescriptor));
+            if (mIndexCache != null)
+                return mIndexCache.getOrRead(fileDescriptor, inputStream.getChannel());
+            return Mp4SampleTableReader.read(inputStream.getChannel());
+        } catch (IOException e) {
+            TLog.w(TAG, "Unable to read sample index: " + e.getMessage());
+            return null;
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+    private void runPipelines(TimeLine timeLine, List<TimeLine.Segment> segments) throws IOException, InterruptedException {
         long loopCount = 0;
 
         long outputSyncTimeUs = 0l;
-        double lastProgress = -1;
+        if (mProgressModel == null)
+            mProgressModel = ProgressModel.create(timeLine.getPlan());
+        mProgressModel.setTracks(mVideoTrackTranscoder != null, mAudioTrackTranscoder != null);
         if (mDurationUs <= 0) {
             double progress = PROGRESS_UNKNOWN;
             mProgress = progress;
             if (mProgressCallback != null)
                 mProgressCallback.onProgress(progress); // unknown
         }
-        for (TimeLine.Segment outputSegment : timeLine.getSegments()) {
+        for (TimeLine.Segment outputSegment : segments) {
+            checkCanceled();
+            if (outputSegment != timeLine.getSegments().get(0) && mSegmentBoundaryListener != null) {
+                // A job making way for others closes its decoders so only the encoders stay open while it waits
+                if (mSegmentBoundaryListener.shouldYield()) {
+                    if (mAudioTrackTranscoder != null)
+                        mAudioTrackTranscoder.releaseDecoders();
+                    if (mVideoTrackTranscoder != null)
+                        mVideoTrackTranscoder.releaseDecoders();
+                }
+                mSegmentBoundaryListener.onSegmentBoundary();
+            }
             outputSegment.start(mOutputPresentationTimeUs,
                     mVideoTrackTranscoder != null ? mVideoTrackTranscoder.getOutputPresentationTimeDecodedUs() : 0l,
                     mAudioTrackTranscoder != null ? mAudioTrackTranscoder.getOutputPresentationTimeDecodedUs() : 0l,
                     mVideoTrackTranscoder != null ? mVideoTrackTranscoder.getOutputPresentationTimeEncodedUs() : 0l,
                     mAudioTrackTranscoder != null ? mAudioTrackTranscoder.getOutputPresentationTimeEncodedUs() : 0l);
+            mProgressModel.startSegment(timeLine.getSegments().indexOf(outputSegment), outputSegment.mOutputStartTimeUs, System.nanoTime());
             mThrottle.startSegment();
             if (mAudioTrackTranscoder != null)
                 mAudioTrackTranscoder.setupDecoders(outputSegment, mThrottle, mOutputRotation, mOutputWidth, mOutputHeight);
@@ -376,43 +1073,57 @@ public class MediaTranscoderEngine {
                 loopCount++;
 
 
-                if (mVideoTrackTranscoder != null && mDurationUs > 0 && loopCount % PROGRESS_INTERVAL_STEPS == 0) {
-                    double progress = Math.min(1.0, (double) mVideoTrackTranscoder.getOutputPresentationTimeDecodedUs() / mDurationUs);
-                    mProgress = progress;
-                    double roundedProgress = Math.round(progress * 100);
-                    if (mProgressCallback != null && roundedProgress != lastProgress) mProgressCallback.onProgress(progress);
-                    lastProgress = roundedProgress;
+                if (mDurationUs > 0 && loopCount % PROGRESS_INTERVAL_STEPS == 0) {
+                    mProgressModel.update(
+                            mVideoTrackTranscoder != null ? mVideoTrackTranscoder.getOutputPresentationTimeDecodedUs() : 0l,
+                            mAudioTrackTranscoder != null ? mAudioTrackTranscoder.getOutputPresentationTimeDecodedUs() : 0l,
+                            mVideoSamplesBefore + mQueuedMuxer.getVideoSampleCount(), System.nanoTime());
+                    reportProgress();
                 }
 
-                if (!stepped) {
-                    try {
-                        Thread.sleep(SLEEP_TO_WAIT_TRACK_TRANSCODERS);
-                    } catch (InterruptedException e) {
-                        // nothing to do
-                    }
-                }
+                // Idle until a frame arrives or a codec calls back, polled codecs keep the wait bounded
+                if (!stepped)
+                    mPipelineSignal.await(SLEEP_TO_WAIT_TRACK_TRANSCODERS);
+                checkCanceled();
                 mThrottle.step();
+                if (mMetrics != null && System.nanoTime() >= mNextMetricsNs)
+                    reportMetrics();
                 if (mThrottle.shouldCancel()) {
                     TLog.d(TAG, "Cancel because of waiting for buffer");
                     mThrottle.log();
                     throw new IllegalStateException("Timed out waiting for buffer");
                 }
             }
+            TLog.i(TAG, "Segment at " + outputSegment.mOutputStartTimeUs + " pre-roll " +
+                    outputSegment.getPreRollFrames() + " frames in " + outputSegment.getPreRollTimeUs() + "us");
+            if (mDurationUs > 0) {
+                mProgressModel.finishSegment(outputSegment.getPreRollTimeUs(), System.nanoTime());
+                reportProgress();
+            }
 
         }
-        TLog.d(TAG, "Releasing transcoders");
+        if (mMetrics != null)
+            reportMetrics();
         if (mVideoTrackTranscoder != null) {
-            mVideoTrackTranscoder.release();
             TLog.d(TAG, "Video PT: " + mVideoTrackTranscoder.getOutputPresentationTimeDecodedUs() +
                     " Time " + mVideoTrackTranscoder.getOutputPresentationTimeEncodedUs());
         }
         if (mAudioTrackTranscoder != null) {
-            mAudioTrackTranscoder.release();
             TLog.d(TAG, " -- Audio PT:" + mAudioTrackTranscoder.getOutputPresentationTimeDecodedUs() +
                     " Time " + mAudioTrackTranscoder.getOutputPresentationTimeEncodedUs());
         }
      }
 
+    // Callbacks only when the percentage changes
+    private void reportProgress() {
+        double progress = mProgressModel.getProgress();
+        mProgress = progress;
+        double roundedProgress = Math.round(progress * 100);
+        if (mProgressCallback != null && roundedProgress != mLastReportedProgress)
+            mProgressCallback.onProgress(progress);
+        mLastReportedProgress = roundedProgress;
+    }
+
     public interface ProgressCallback {
         /**
          * Called to notify progress. Same thread which initiated transcode is used.
@@ -421,4 +1132,43 @@ public class MediaTranscoderEngine {
          */
         void onProgress(double progress);
     }
+
+    private void reportMetrics() {
+        mMetrics.sample();
+        mMetricsListener.onMetrics(mMetrics);
+        mNextMetricsNs = System.nanoTime() + mMetricsIntervalMs * 1000000l;
+    }
+
+    public interface MetricsListener {
+        /**
+         * Called on the transcoding thread at the interval it was set with and once at the end
+         * of each run of segments.  Keep it short, the pipeline waits for it.
+         */
+        void onMetrics(PipelineMetrics metrics);
+    }
+
+    public enum CancelPolicy {
+        /** Delete the partial output */
+        DELETE,
+        /** Finalize the output so it plays up to where the transcode stopped */
+        FINALIZE
+    }
+
+    public interface SegmentBoundaryListener {
+        /**
+         * Called on the transcoding thread between segments before {@link #onSegmentBoundary}
+         *
+         * @return whether the job will be held at this boundary, in which case the decoders are
+         * closed first and reopened for the next segment
+         */
+        boolean shouldYield();
+
+        /**
+         * Called on the transcoding thread between segments, where the job may be held while
+         * other work runs.
+         *
+         * @throws InterruptedException to cancel the transcode
+         */
+        void onSegmentBoundary() throws InterruptedException;
+    }
 }
@@ -64,6 +64,8 @@ class OutputSurface implements SurfaceTexture.OnFrameAvailableListener {
     private RectF mDestRect;
     private long mExtraTextureRenders = 0l;
     private boolean mIsDuplicateTexture = false;
+    private volatile PipelineSignal mPipelineSignal;
+    private long mFrameRequestedNs = -1l;
     /**
      * Creates an OutputSurface backed by a pbuffer with the specifed dimensions.  The new
      * EGL context and surface will be made current.  Creates a Surface that can be passed
@@ -117,6 +119,29 @@ class OutputSurface implements SurfaceTexture.OnFrameAvailableListener {
             mSurfaceTexture.setDefaultBufferSize(width, height);
         mSurface = new Surface(mSurfaceTexture);
     }
+    /**
+     * Return to the state of a new surface so it can be handed to another decoder.  A frame
+     * left by the previous decoder is latched and dropped so it can't be mistaken for one
+     * from the next.
+     */
+    void reset() {
+        synchronized (mFrameSyncObject) {
+            if (mFrameAvailable)
+                mSurfaceTexture.updateTexImage();
+            mFrameAvailable = false;
+        }
+        mFrameRequestedNs = -1l;
+        mTextureReady = false;
+        mIsDuplicateTexture = false;
+        mExtraTextureRenders = 0l;
+        mEndOfStream = false;
+        mAlpha = 1.0f;
+        mRotation = 0;
+        mSourceRotation = 0;
+        mOriginalSourceRect = null;
+        mSourceRect = null;
+        mDestRect = null;
+    }
     public int getTextureID () {
         return mTextureID;
     }
@@ -265,7 +290,8 @@ class OutputSurface implements SurfaceTexture.OnFrameAvailableListener {
                         throw new RuntimeException("Surface frame wait timed out");
                     }
                 } catch (InterruptedException ie) {
-                    // shouldn't happen
+                    // Keep the interrupt so the engine treats this as a cancel
+                    Thread.currentThread().interrupt();
                     throw new RuntimeException(ie);
                 }
             }
@@ -276,6 +302,45 @@ class OutputSurface implements SurfaceTexture.OnFrameAvailableListener {
         updateTexture();
 
     }
+    /**
+     * Wake this pipeline when a frame arrives
+     * @param pipelineSignal
+     */
+    void setPipelineSignal(PipelineSignal pipelineSignal) {
+        mPipelineSignal = pipelineSignal;
+    }
+    /**
+     * Note that the decoder is about to render a frame to the surface, to be picked up later by
+     * {@link #latchFrame}
+     */
+    public void requestFrame() {
+        mFrameRequestedNs = System.nanoTime();
+    }
+    public boolean isFramePending() {
+        return mFrameRequestedNs >= 0;
+    }
+    /**
+     * Latches the requested frame into the texture if it has arrived, without waiting for it.
+     * @param timeoutUs how long after the request a missing frame is treated as an error
+     * @param latency receives the time from request to latch, may be null
+     * @return true if the texture now holds the frame, false if it has yet to arrive
+     */
+    public boolean latchFrame(long timeoutUs, LatencyHistogram latency) {
+        long elapsedUs = (System.nanoTime() - mFrameRequestedNs) / 1000;
+        synchronized (mFrameSyncObject) {
+            if (!mFrameAvailable) {
+                if (elapsedUs > timeoutUs)
+                    throw new RuntimeException("Surface frame wait timed out after " + elapsedUs + "us");
+                return false;
+            }
+            mFrameAvailable = false;
+        }
+        mFrameRequestedNs = -1l;
+        if (latency != null)
+            latency.record(elapsedUs);
+        updateTexture();
+        return true;
+    }
     public void updateTexture () {
         this.checkGlError("before updateTexImage");
         mSurfaceTexture.updateTexImage();
@@ -292,6 +357,9 @@ class OutputSurface implements SurfaceTexture.OnFrameAvailableListener {
             mFrameAvailable = true;
             mFrameSyncObject.notifyAll();
         }
+        PipelineSignal pipelineSignal = mPipelineSignal;
+        if (pipelineSignal != null)
+            pipelineSignal.signal();
     }
     /**
      * Checks for EGL errors.
@@ -0,0 +1,96 @@
+package net.ypresto.androidtranscoder.engine;
+
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Joins the parts of a checkpointed transcode into the final output without re-encoding.  Each
+ * track of a part is rebased on its own first sample and shifted to the output time the part
+ * started at, as the muxer starts every file at zero and tracks don't start at exactly the same
+ * time.  Parts come from encoders configured with the same output format so the first part
+ * having a track describes it for all of them, even when earlier parts have no samples for it.
+ */
+class PartConcatenator {
+    private static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    static void concatenate(List<TranscodeCheckpoint.Part> parts, String outputPath, int rotation) throws IOException {
+        // Every track has to be added before the muxer starts, so find them in all the parts first
+        MediaFormat videoFormat = null;
+        MediaFormat audioFormat = null;
+        int bufferSize = DEFAULT_BUFFER_SIZE;
+        for (TranscodeCheckpoint.Part part : parts) {
+            MediaExtractor extractor = new MediaExtractor();
+            try {
+                extractor.setDataSource(part.mPath);
+                for (int track = 0; track < extractor.getTrackCount(); ++track) {
+                    MediaFormat format = extractor.getTrackFormat(track);
+                    String mime = format.getString(MediaFormat.KEY_MIME);
+                    if (format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE))
+                        bufferSize = Math.max(bufferSize, format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE));
+                    if (videoFormat == null && mime.startsWith("video/"))
+                        videoFormat = format;
+                    else if (audioFormat == null && mime.startsWith("audio/"))
+                        audioFormat = format;
+                }
+            } finally {
+                extractor.release();
+            }
+        }
+        if (videoFormat == null && audioFormat == null)
+            throw new IOException("No tracks in the parts of " + outputPath);
+
+        MediaMuxer muxer = new MediaMuxer(outputPath, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        try {
+            muxer.setOrientationHint(rotation);
+            int videoTrack = videoFormat != null ? muxer.addTrack(videoFormat) : -1;
+            int audioTrack = audioFormat != null ? muxer.addTrack(audioFormat) : -1;
+            muxer.start();
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+            MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+            for (TranscodeCheckpoint.Part part : parts) {
+                MediaExtractor extractor = new MediaExtractor();
+                try {
+                    extractor.setDataSource(part.mPath);
+                    int trackCount = extractor.getTrackCount();
+                    int[] outputTracks = new int[trackCount];
+                    long[] firstSampleTimesUs = new long[trackCount];
+                    for (int track = 0; track < trackCount; ++track) {
+                        String mime = extractor.getTrackFormat(track).getString(MediaFormat.KEY_MIME);
+                        outputTracks[track] = mime.startsWith("video/") ? videoTrack : mime.startsWith("audio/") ? audioTrack : -1;
+                        firstSampleTimesUs[track] = -1;
+                        if (outputTracks[track] >= 0)
+                            extractor.selectTrack(track);
+                    }
+
+                    int track;
+                    while ((track = extractor.getSampleTrackIndex()) >= 0) {
+                        buffer.clear();
+                        int size = extractor.readSampleData(buffer, 0);
+                        long sampleTimeUs = extractor.getSampleTime();
+                        // Decode order starts on a sync sample, which no later sample is presented before
+                        if (firstSampleTimesUs[track] < 0)
+                            firstSampleTimesUs[track] = sampleTimeUs;
+                        if (size > 0) {
+                            boolean sync = (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
+                            bufferInfo.set(0, size, part.mStartTimeUs + sampleTimeUs - firstSampleTimesUs[track],
+                                    sync ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0);
+                            muxer.writeSampleData(outputTracks[track], buffer, bufferInfo);
+                        }
+                        extractor.advance();
+                    }
+                } finally {
+                    extractor.release();
+                }
+            }
+            muxer.stop();
+        } finally {
+            muxer.release();
+        }
+    }
+}
@@ -20,11 +20,13 @@ import android.media.MediaCodec;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
 
+import net.ypresto.androidtranscoder.source.SampleSource;
+
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
 public class PassThroughTrackTranscoder implements TrackTranscoder {
-    private final MediaExtractor mExtractor;
+    private final SampleSource mExtractor;
     private final int mTrackIndex;
     private final QueuedMuxer mMuxer;
     private final QueuedMuxer.SampleType mSampleType;
@@ -36,7 +38,7 @@ public class PassThroughTrackTranscoder implements TrackTranscoder {
     private long mOutputPresentationTimeExtractedUs;
     private long mOutputPresentationTimeEncodedUs = 0;
 
-    public PassThroughTrackTranscoder(MediaExtractor extractor, int trackIndex,
+    public PassThroughTrackTranscoder(SampleSource extractor, int trackIndex,
                                       QueuedMuxer muxer, QueuedMuxer.SampleType sampleType) {
         mExtractor = extractor;
         mTrackIndex = trackIndex;
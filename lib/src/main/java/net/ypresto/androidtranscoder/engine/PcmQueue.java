@@ -0,0 +1,128 @@
+package net.ypresto.androidtranscoder.engine;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.view.Surface;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+
+/**
+ * Stands in for the decoder of an input that already is 16 bit PCM.  Input buffers are not
+ * filled but set to views of the input with {@link #setInputData} and come straight back out as
+ * output buffers, so samples reach AudioChannel without a codec or a copy.  A few buffers can
+ * be in flight at once as with a decoder, the first dequeue reports the output format.
+ */
+class PcmQueue extends MediaCodecQueue {
+    private static final int BUFFER_COUNT = 4;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0).order(ByteOrder.LITTLE_ENDIAN);
+
+    private final MediaFormat mFormat;
+    private final ByteBuffer[] mBuffers = new ByteBuffer[BUFFER_COUNT];
+    private final MediaCodec.BufferInfo[] mInfos = new MediaCodec.BufferInfo[BUFFER_COUNT];
+    private final ArrayDeque<Integer> mFree = new ArrayDeque<Integer>();
+    private final ArrayDeque<Integer> mQueued = new ArrayDeque<Integer>();
+    private boolean mFormatReported;
+
+    /**
+     * @param format of the PCM, sample rate and channel count
+     */
+    PcmQueue(MediaFormat format) {
+        super(null, "PcmQueue", false, null);
+        mFormat = format;
+        for (int i = 0; i < BUFFER_COUNT; ++i) {
+            mInfos[i] = new MediaCodec.BufferInfo();
+            mFree.add(i);
+        }
+    }
+
+    @Override
+    void configure(MediaFormat format, Surface surface, int flags) {
+    }
+
+    @Override
+    void start() {
+    }
+
+    @Override
+    int dequeueInputBuffer(long timeoutUs) {
+        Integer index = mFree.poll();
+        return index != null ? index : MediaCodec.INFO_TRY_AGAIN_LATER;
+    }
+
+    /**
+     * Use data, from its position to its limit, as the input buffer at index
+     */
+    void setInputData(int index, ByteBuffer data) {
+        mBuffers[index] = data;
+    }
+
+    @Override
+    ByteBuffer getInputBuffer(int index) {
+        return mBuffers[index];
+    }
+
+    @Override
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags) {
+        // The end of stream buffer has no data set, like a decoder it comes out empty rather than missing
+        if (mBuffers[index] == null)
+            mBuffers[index] = EMPTY;
+        mInfos[index].set(offset, size, presentationTimeUs, flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        mQueued.add(index);
+    }
+
+    @Override
+    int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        if (!mFormatReported) {
+            mFormatReported = true;
+            return MediaCodec.INFO_OUTPUT_FORMAT_CHANGED;
+        }
+        Integer index = mQueued.poll();
+        if (index == null)
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        MediaCodec.BufferInfo queued = mInfos[index];
+        info.set(queued.offset, queued.size, queued.presentationTimeUs, queued.flags);
+        return index;
+    }
+
+    /**
+     * The buffer is the view the input was set to, little endian like decoder output, or an
+     * empty one for the end of stream
+     */
+    @Override
+    ByteBuffer getOutputBuffer(int index) {
+        return mBuffers[index];
+    }
+
+    @Override
+    MediaFormat getOutputFormat() {
+        return mFormat;
+    }
+
+    @Override
+    void releaseOutputBuffer(int index, boolean render) {
+        mBuffers[index] = null;
+        mFree.add(index);
+    }
+
+    @Override
+    void signalEndOfInputStream() {
+        throw new UnsupportedOperationException("PCM input has no input surface");
+    }
+
+    @Override
+    void stop() {
+        mQueued.clear();
+        mFree.clear();
+        for (int i = 0; i < BUFFER_COUNT; ++i) {
+            mBuffers[i] = null;
+            mFree.add(i);
+        }
+        mFormatReported = false;
+    }
+
+    @Override
+    void release() {
+    }
+}
@@ -0,0 +1,238 @@
+package net.ypresto.androidtranscoder.engine;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts and latencies for each stage of the pipeline, per output track and per input channel.
+ * Written by the transcoding thread with atomic counters and read from any thread, so a
+ * listener can hand it off without copying.  The engine only creates one when a listener is
+ * set, transcoders skip all timing when they have none.
+ *
+ * Latencies are: decode, a sample being queued to the decoder until its frame comes out;
+ * render, drawing and submitting a frame to the encoder surface; encode, that submission until
+ * the encoded frame comes out; mux, writing a sample to the muxer.
+ */
+public class PipelineMetrics {
+
+    public enum Stage {DECODE, RENDER, ENCODE, MUX}
+
+    public static class StageMetrics {
+        private final AtomicLong mCount = new AtomicLong();
+        private final LatencyHistogram mLatency = new LatencyHistogram();
+
+        public long getCount() {
+            return mCount.get();
+        }
+
+        public LatencyHistogram getLatency() {
+            return mLatency;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + mCount.get() + " " + mLatency;
+        }
+    }
+
+    /**
+     * Stages of an output track or input channel, stages that don't apply stay at zero
+     */
+    public static class StageSet {
+        private final StageMetrics[] mStages = new StageMetrics[Stage.values().length];
+
+        StageSet() {
+            for (int stage = 0; stage < mStages.length; ++stage)
+                mStages[stage] = new StageMetrics();
+        }
+
+        public StageMetrics get(Stage stage) {
+            return mStages[stage.ordinal()];
+        }
+
+        /**
+         * Count a frame through a stage
+         * @param stage
+         * @param latencyUs or negative if not known
+         */
+        void record(Stage stage, long latencyUs) {
+            StageMetrics metrics = mStages[stage.ordinal()];
+            metrics.mCount.incrementAndGet();
+            if (latencyUs >= 0)
+                metrics.mLatency.record(latencyUs);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            for (Stage stage : Stage.values()) {
+                if (get(stage).getCount() > 0)
+                    builder.append(stage).append(": ").append(get(stage)).append(' ');
+            }
+            return builder.toString().trim();
+        }
+    }
+
+    /**
+     * Remembers when recent presentation times entered a codec to time them coming out. Codecs
+     * hold few frames so a small ring searched linearly is enough, and it doesn't allocate.
+     * Used from the transcoding thread only.
+     */
+    static class InFlight {
+        private static final int SIZE = 32;
+        private final long[] mTimesUs = new long[SIZE];
+        private final long[] mStartNs = new long[SIZE];
+        private int mNext;
+
+        InFlight() {
+            Arrays.fill(mTimesUs, Long.MIN_VALUE);
+        }
+
+        void start(long presentationTimeUs) {
+            mTimesUs[mNext] = presentationTimeUs;
+            mStartNs[mNext] = System.nanoTime();
+            mNext = (mNext + 1) % SIZE;
+        }
+
+        /**
+         * @return microseconds since the presentation time started, -1 if it wasn't seen
+         */
+        long finish(long presentationTimeUs) {
+            for (int i = 0; i < SIZE; ++i) {
+                if (mTimesUs[i] == presentationTimeUs) {
+                    mTimesUs[i] = Long.MIN_VALUE;
+                    return (System.nanoTime() - mStartNs[i]) / 1000;
+                }
+            }
+            return -1;
+        }
+    }
+
+    private final StageSet mVideo = new StageSet();
+    private final StageSet mAudio = new StageSet();
+    private final ConcurrentHashMap<String, StageSet> mChannels = new ConcurrentHashMap<String, StageSet>();
+    private final AtomicLong mFramesDropped = new AtomicLong();
+    private final AtomicLong mFramesDuplicated = new AtomicLong();
+    private final AtomicLong mThrottleBlockedUs = new AtomicLong();
+    private final AtomicLong mSetupUs = new AtomicLong();
+    private final AtomicLong mContextSwitches = new AtomicLong();
+    private final long mStartNs = System.nanoTime();
+    private volatile long mSampleNs = mStartNs;
+    private volatile long mSampleFrames;
+    private volatile double mFramesPerSecond;
+
+    public StageSet getVideo() {
+        return mVideo;
+    }
+
+    public StageSet getAudio() {
+        return mAudio;
+    }
+
+    /**
+     * @param channel input channel name
+     * @return stages for the channel, created on first use
+     */
+    public StageSet getChannel(String channel) {
+        StageSet stageSet = mChannels.get(channel);
+        if (stageSet == null) {
+            StageSet created = new StageSet();
+            stageSet = mChannels.putIfAbsent(channel, created);
+            if (stageSet == null)
+                stageSet = created;
+        }
+        return stageSet;
+    }
+
+    public Map<String, StageSet> getChannels() {
+        return Collections.unmodifiableMap(mChannels);
+    }
+
+    public long getFramesDropped() {
+        return mFramesDropped.get();
+    }
+
+    public long getFramesDuplicated() {
+        return mFramesDuplicated.get();
+    }
+
+    /**
+     * Time the pipeline made no progress because channels were waiting on each other
+     */
+    public long getThrottleBlockedUs() {
+        return mThrottleBlockedUs.get();
+    }
+
+    /**
+     * Time spent creating codecs, surfaces and GL state for the video
+     */
+    public long getSetupUs() {
+        return mSetupUs.get();
+    }
+
+    /**
+     * EGL context switches between the encoder surfaces
+     */
+    public long getContextSwitches() {
+        return mContextSwitches.get();
+    }
+
+    public long getElapsedUs() {
+        return (System.nanoTime() - mStartNs) / 1000;
+    }
+
+    /**
+     * Video frames encoded per second since the previous sample
+     */
+    public double getFramesPerSecond() {
+        return mFramesPerSecond;
+    }
+
+    void frameDropped() {
+        mFramesDropped.incrementAndGet();
+    }
+
+    void framesDuplicated(int frames) {
+        mFramesDuplicated.addAndGet(frames);
+    }
+
+    void throttleBlocked(long blockedUs) {
+        mThrottleBlockedUs.addAndGet(blockedUs);
+    }
+
+    void setup(long setupUs) {
+        mSetupUs.addAndGet(setupUs);
+    }
+
+    void contextSwitched() {
+        mContextSwitches.incrementAndGet();
+    }
+
+    /**
+     * Close a sampling interval, updating the frame rate
+     */
+    void sample() {
+        long nowNs = System.nanoTime();
+        long frames = mVideo.get(Stage.ENCODE).getCount();
+        if (nowNs > mSampleNs)
+            mFramesPerSecond = (frames - mSampleFrames) * 1000000000.0 / (nowNs - mSampleNs);
+        mSampleNs = nowNs;
+        mSampleFrames = frames;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        builder.append("video [").append(mVideo).append("] audio [").append(mAudio).append(']');
+        for (Map.Entry<String, StageSet> entry : mChannels.entrySet())
+            builder.append(" channel ").append(entry.getKey()).append(" [").append(entry.getValue()).append(']');
+        builder.append(" dropped=").append(getFramesDropped()).append(" duplicated=").append(getFramesDuplicated())
+                .append(" throttled=").append(getThrottleBlockedUs()).append("us setup=").append(getSetupUs())
+                .append("us contextSwitches=").append(getContextSwitches()).append(" fps=")
+                .append(Math.round(mFramesPerSecond));
+        return builder.toString();
+    }
+}
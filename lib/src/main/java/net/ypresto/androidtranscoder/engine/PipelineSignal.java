@@ -0,0 +1,34 @@
+package net.ypresto.androidtranscoder.engine;
+
+/**
+ * Wakes the pipeline thread when work becomes available on another thread, e.g. a decoded
+ * frame reaching its SurfaceTexture, so an idle pipeline sleeps only until then rather than for
+ * a fixed interval.  A signal raised while the pipeline is busy is kept until the next wait.
+ */
+class PipelineSignal {
+    private boolean mSignalled;
+
+    synchronized void signal() {
+        mSignalled = true;
+        notifyAll();
+    }
+
+    /**
+     * Wait for a signal raised since the last wait
+     * @param timeoutMs longest time to wait
+     * @return true if signalled, false on timeout
+     * @throws InterruptedException
+     */
+    synchronized boolean await(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        while (!mSignalled) {
+            long remaining = deadline - System.currentTimeMillis();
+            if (remaining <= 0)
+                break;
+            wait(remaining);
+        }
+        boolean signalled = mSignalled;
+        mSignalled = false;
+        return signalled;
+    }
+}
@@ -0,0 +1,186 @@
+package net.ypresto.androidtranscoder.engine;
+
+/**
+ * Estimates progress as work done over total work rather than output time over duration.  A
+ * segment's work is its output duration weighted by the tracks being encoded, audio costing a
+ * fraction of video, plus the decoding needed to reach each seek point.  The pre-roll estimate
+ * is replaced by what seeks actually cost as segments complete, and the time per unit of work
+ * is learned per segment and smoothed to give an ETA.
+ *
+ * Updated from the transcoding thread, the getters may be called from any thread.
+ */
+public class ProgressModel {
+    static final double AUDIO_WEIGHT = 0.1;
+    static final long DEFAULT_PRE_ROLL_US = 1000000l;   // Decoding from the previous key frame
+    private static final double SMOOTHING = 0.2;
+
+    private final long[] mDurationsUs;
+    private final int[] mSeeks;
+    private final double[] mNsPerWork;
+    private double mVideoWeight = 1.0;
+    private double mAudioWeight = AUDIO_WEIGHT;
+    private long mPreRollUs = DEFAULT_PRE_ROLL_US;
+    private int mSegment = -1;
+    private long mSegmentStartUs;
+    private long mSegmentStartNs;
+    private double mWorkBefore;
+    private double mLastWork;
+    private long mLastNs;
+    private long mLastFrames = -1;
+    private double mSmoothedNsPerWork;
+    private volatile double mProgress;
+    private volatile long mEtaMs = -1;
+    private volatile double mFramesPerSecond;
+
+    /**
+     * @param durationsUs output duration of each segment
+     * @param seeks       channels seeking at the start of each segment
+     */
+    public ProgressModel(long[] durationsUs, int[] seeks) {
+        mDurationsUs = durationsUs;
+        mSeeks = seeks;
+        mNsPerWork = new double[durationsUs.length];
+    }
+
+    /**
+     * @param plan timing of the time line, which needs the inputs probed so open ended segments
+     *             have a duration
+     */
+    public static ProgressModel create(TimingPlan plan) {
+        int count = plan.getSegments().size();
+        long[] durationsUs = new long[count];
+        int[] seeks = new int[count];
+        for (int segment = 0; segment < count; ++segment) {
+            TimingPlan.SegmentTiming timing = plan.getSegment(segment);
+            durationsUs[segment] = timing.mDurationUs;
+            for (TimingPlan.ChannelTiming channel : timing.getChannels().values()) {
+                if (channel.mSeekUs > 0)
+                    ++seeks[segment];
+            }
+        }
+        return new ProgressModel(durationsUs, seeks);
+    }
+
+    /**
+     * Weight the tracks being encoded, a track on its own carries all the work
+     */
+    void setTracks(boolean hasVideo, boolean hasAudio) {
+        mVideoWeight = hasVideo ? 1.0 : 0.0;
+        mAudioWeight = hasAudio ? (hasVideo ? AUDIO_WEIGHT : 1.0) : 0.0;
+    }
+
+    private double segmentWork(int segment) {
+        return mDurationsUs[segment] * (mVideoWeight + mAudioWeight) + mSeeks[segment] * mPreRollUs * mVideoWeight;
+    }
+
+    private double totalWork() {
+        double work = 0;
+        for (int segment = 0; segment < mDurationsUs.length; ++segment)
+            work += segmentWork(segment);
+        return work;
+    }
+
+    /**
+     * @param segment    index of the segment in the time line, earlier segments count as done
+     * @param outputUs   output time the segment starts at
+     * @param nowNs
+     */
+    void startSegment(int segment, long outputUs, long nowNs) {
+        mSegment = segment;
+        mSegmentStartUs = outputUs;
+        mSegmentStartNs = nowNs;
+        mWorkBefore = 0;
+        for (int before = 0; before < segment; ++before)
+            mWorkBefore += segmentWork(before);
+        mLastWork = mWorkBefore;
+        mLastNs = nowNs;
+    }
+
+    /**
+     * Learn the segment's cost once it is done
+     * @param preRollTimeUs wall time its seeks took, see {@link TimeLine.Segment#getPreRollTimeUs()}
+     */
+    void finishSegment(long preRollTimeUs, long nowNs) {
+        if (mSegment < 0)
+            return;
+        double work = segmentWork(mSegment);
+        if (work > 0 && nowNs > mSegmentStartNs) {
+            mNsPerWork[mSegment] = (nowNs - mSegmentStartNs) / work;
+            // A seek decodes input at about the rate segments are transcoded, so convert its wall
+            // time back into output time for the next segments' estimates
+            if (mSeeks[mSegment] > 0 && preRollTimeUs > 0 && mVideoWeight > 0)
+                mPreRollUs = (long) (preRollTimeUs * 1000.0 / mNsPerWork[mSegment] / mSeeks[mSegment] / mVideoWeight);
+            mSmoothedNsPerWork = mSmoothedNsPerWork == 0 ? mNsPerWork[mSegment] :
+                    mSmoothedNsPerWork + SMOOTHING * (mNsPerWork[mSegment] - mSmoothedNsPerWork);
+        }
+        update(mSegmentStartUs + mDurationsUs[mSegment], mSegmentStartUs + mDurationsUs[mSegment], mLastFrames, nowNs);
+    }
+
+    /**
+     * @param videoUs output time of the video track, ignored if there is none
+     * @param audioUs output time of the audio track, ignored if there is none
+     * @param frames  video frames written so far, negative if not known
+     * @param nowNs
+     */
+    void update(long videoUs, long audioUs, long frames, long nowNs) {
+        if (mSegment < 0)
+            return;
+        long durationUs = mDurationsUs[mSegment];
+        long videoDoneUs = Math.max(0, Math.min(durationUs, videoUs - mSegmentStartUs));
+        long audioDoneUs = Math.max(0, Math.min(durationUs, audioUs - mSegmentStartUs));
+        // Output only moves once the seeks are over
+        double preRoll = videoDoneUs > 0 || audioDoneUs > 0 ? mSeeks[mSegment] * mPreRollUs * mVideoWeight : 0;
+        double work = mWorkBefore + videoDoneUs * mVideoWeight + audioDoneUs * mAudioWeight + preRoll;
+        double total = totalWork();
+        if (total > 0)
+            mProgress = Math.max(mProgress, Math.min(1.0, work / total));
+
+        long elapsedNs = nowNs - mLastNs;
+        if (elapsedNs > 0 && work > mLastWork) {
+            double nsPerWork = elapsedNs / (work - mLastWork);
+            mSmoothedNsPerWork = mSmoothedNsPerWork == 0 ? nsPerWork :
+                    mSmoothedNsPerWork + SMOOTHING * (nsPerWork - mSmoothedNsPerWork);
+            mEtaMs = (long) (Math.max(0, total - work) * mSmoothedNsPerWork / 1000000);
+        }
+        if (elapsedNs > 0 && frames >= 0) {
+            if (mLastFrames >= 0 && frames >= mLastFrames) {
+                double framesPerSecond = (frames - mLastFrames) * 1000000000.0 / elapsedNs;
+                mFramesPerSecond = mFramesPerSecond == 0 ? framesPerSecond :
+                        mFramesPerSecond + SMOOTHING * (framesPerSecond - mFramesPerSecond);
+            }
+            mLastFrames = frames;
+        }
+        if (elapsedNs > 0) {
+            mLastWork = work;
+            mLastNs = nowNs;
+        }
+    }
+
+    /**
+     * @return fraction of the work done, never decreasing
+     */
+    public double getProgress() {
+        return mProgress;
+    }
+
+    /**
+     * @return smoothed estimate of the time left, -1 until there is enough to go on
+     */
+    public long getEtaMs() {
+        return mEtaMs;
+    }
+
+    /**
+     * @return smoothed rate video frames are written at
+     */
+    public double getFramesPerSecond() {
+        return mFramesPerSecond;
+    }
+
+    /**
+     * @return wall time per unit of work measured for a finished segment, 0 if not yet finished
+     */
+    public double getSegmentNsPerWork(int segment) {
+        return mNsPerWork[segment];
+    }
+}
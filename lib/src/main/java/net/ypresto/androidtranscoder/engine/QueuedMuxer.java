@@ -17,7 +17,6 @@ package net.ypresto.androidtranscoder.engine;
 
 import android.media.MediaCodec;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
 import net.ypresto.androidtranscoder.TLog;
 
 import java.nio.ByteBuffer;
@@ -31,7 +30,7 @@ import java.util.List;
 public class QueuedMuxer {
     private static final String TAG = "QueuedMuxer";
     private static final int BUFFER_SIZE = 512 * 1024; // I have no idea whether this value is appropriate or not...
-    private final MediaMuxer mMuxer;
+    private final MediaSink mMuxer;
     private final Listener mListener;
     private MediaFormat mVideoFormat;
     private MediaFormat mAudioFormat;
@@ -42,8 +41,10 @@ public class QueuedMuxer {
     private boolean mStarted;
     private boolean mHasVideo;
     private boolean mHasAudio;
+    private long mVideoSampleCount;
+    private final List<QueuedMuxer> mAudioFollowers = new ArrayList<>();
 
-    public QueuedMuxer(MediaMuxer muxer, boolean hasVideo, boolean hasAudio, Listener listener) {
+    public QueuedMuxer(MediaSink muxer, boolean hasVideo, boolean hasAudio, Listener listener) {
         mHasAudio = hasAudio;
         mHasVideo = hasVideo;
         mMuxer = muxer;
@@ -51,7 +52,19 @@ public class QueuedMuxer {
         mSampleInfoList = new ArrayList<>();
     }
 
+    /**
+     * Write the audio given to this muxer to another one as well, so renditions share an encode
+     * @param follower
+     */
+    public void shareAudioWith(QueuedMuxer follower) {
+        mAudioFollowers.add(follower);
+    }
+
     public void setOutputFormat(SampleType sampleType, MediaFormat format) {
+        if (sampleType == SampleType.AUDIO) {
+            for (QueuedMuxer follower : mAudioFollowers)
+                follower.setOutputFormat(sampleType, format);
+        }
         switch (sampleType) {
             case VIDEO:
                 mVideoFormat = format;
@@ -99,6 +112,18 @@ public class QueuedMuxer {
     }
 
     public void writeSampleData(SampleType sampleType, ByteBuffer byteBuf, MediaCodec.BufferInfo bufferInfo) {
+        if (sampleType == SampleType.AUDIO && !mAudioFollowers.isEmpty()) {
+            // Queuing moves the buffer's position and limit so each follower gets them back
+            int position = byteBuf.position();
+            int limit = byteBuf.limit();
+            for (QueuedMuxer follower : mAudioFollowers) {
+                follower.writeSampleData(sampleType, byteBuf, bufferInfo);
+                byteBuf.limit(limit);
+                byteBuf.position(position);
+            }
+        }
+        if (sampleType == SampleType.VIDEO && bufferInfo.size > 0)
+            ++mVideoSampleCount;
         if (mStarted) {
             mMuxer.writeSampleData(getTrackIndexForSampleType(sampleType), byteBuf, bufferInfo);
             return;
@@ -112,6 +137,20 @@ public class QueuedMuxer {
         mSampleInfoList.add(new SampleInfo(sampleType, bufferInfo.size, bufferInfo));
     }
 
+    /**
+     * @return whether the muxer has been started, so samples have been written and it can be stopped
+     */
+    public boolean isStarted() {
+        return mStarted;
+    }
+
+    /**
+     * @return video samples written or queued, for measuring the frame rate
+     */
+    public long getVideoSampleCount() {
+        return mVideoSampleCount;
+    }
+
     private int getTrackIndexForSampleType(SampleType sampleType) {
         switch (sampleType) {
             case VIDEO:
@@ -0,0 +1,31 @@
+package net.ypresto.androidtranscoder.engine;
+
+import net.ypresto.androidtranscoder.format.MediaFormatStrategy;
+
+/**
+ * One output of a transcode that writes several, such as a step of an adaptive bitrate ladder.
+ * Every rendition is drawn from the same decode and composite, and audio is encoded once and
+ * muxed into each.  Renditions should keep the aspect ratio and frame rate of the first output
+ * and must ask for the same audio settings.
+ */
+public class Rendition {
+    final String mOutputPath;
+    final MediaFormatStrategy mFormatStrategy;
+    MediaSink mMuxer;
+    QueuedMuxer mQueuedMuxer;
+
+    public Rendition(String outputPath, MediaFormatStrategy formatStrategy) {
+        if (outputPath == null)
+            throw new NullPointerException("Output path cannot be null.");
+        mOutputPath = outputPath;
+        mFormatStrategy = formatStrategy;
+    }
+
+    public String getOutputPath() {
+        return mOutputPath;
+    }
+
+    public MediaFormatStrategy getFormatStrategy() {
+        return mFormatStrategy;
+    }
+}
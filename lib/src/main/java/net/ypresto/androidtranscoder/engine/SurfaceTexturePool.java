@@ -0,0 +1,54 @@
+package net.ypresto.androidtranscoder.engine;
+
+import java.util.ArrayList;
+
+/**
+ * Keeps the decoder output surfaces (texture ID, SurfaceTexture and Surface) of an encoder
+ * session so decoders started for later segments reuse them rather than generating new
+ * textures.  All surfaces draw in the encoder InputSurface's EGL context so the pool must be
+ * used and released on the thread where that context is current.
+ */
+class SurfaceTexturePool {
+    private final ArrayList<OutputSurface> mFree = new ArrayList<OutputSurface>();
+    private int mCreated;
+    private int mReused;
+
+    /**
+     * @return a surface with no frame pending and default render state
+     */
+    OutputSurface acquire() {
+        if (mFree.isEmpty()) {
+            ++mCreated;
+            return new OutputSurface();
+        }
+        ++mReused;
+        OutputSurface outputSurface = mFree.remove(mFree.size() - 1);
+        outputSurface.reset();
+        return outputSurface;
+    }
+
+    /**
+     * Return a surface once the decoder writing to it has been released
+     * @param outputSurface
+     */
+    void recycle(OutputSurface outputSurface) {
+        mFree.add(outputSurface);
+    }
+
+    /**
+     * Release all pooled surfaces, called before the EGL context goes away
+     */
+    void release() {
+        for (OutputSurface outputSurface : mFree)
+            outputSurface.release();
+        mFree.clear();
+    }
+
+    int getCreatedCount() {
+        return mCreated;
+    }
+
+    int getReusedCount() {
+        return mReused;
+    }
+}
@@ -83,9 +83,7 @@ class TextureRender {
 
     public TextureRender(List<OutputSurface> outputSurfaces, OutputSurface overlaySurface) {
 
-        mOutputSurfaces = new ArrayList<>(outputSurfaces);
-        if (overlaySurface != null)
-            mOutputSurfaces.add(overlaySurface);
+        setSurfaces(outputSurfaces, overlaySurface);
 
         mTriangleVertices = ByteBuffer.allocateDirect(
                 mTriangleVerticesData.length * FLOAT_SIZE_BYTES)
@@ -174,10 +172,44 @@ class TextureRender {
             mOutputSurfaces.get(textureIndex).clearTextureReady();
         }
     }
+    /**
+     * Consume the latched textures without drawing them, used when a frame is dropped
+     */
+    public void skipFrame() {
+        for (int textureIndex = 0; textureIndex < mOutputSurfaces.size(); ++textureIndex) {
+            mOutputSurfaces.get(textureIndex).clearTextureReady();
+        }
+    }
     /**
      * Initializes GL state.  Call this after the EGL surface has been created and made current.
      */
+    private void setSurfaces(List<OutputSurface> outputSurfaces, OutputSurface overlaySurface) {
+        mOutputSurfaces = new ArrayList<>(outputSurfaces);
+        if (overlaySurface != null)
+            mOutputSurfaces.add(overlaySurface);
+    }
+
+    /**
+     * Switch to the surfaces of a new segment, keeping the compiled program
+     * @param outputSurfaces
+     * @param overlaySurface
+     */
+    public void changeSurfaces(List<OutputSurface> outputSurfaces, OutputSurface overlaySurface) {
+        setSurfaces(outputSurfaces, overlaySurface);
+        if (mProgram != 0)
+            setupTextures();
+    }
+
+    /**
+     * Compile the program, only done once for the life of the EGL context
+     */
     public void surfaceCreated() {
+        if (mProgram == 0)
+            createProgram();
+        setupTextures();
+    }
+
+    private void createProgram() {
         mProgram = createProgram(VERTEX_SHADER, FRAGMENT_SHADER);
         if (mProgram == 0) {
             throw new RuntimeException("failed creating program");
@@ -203,7 +235,9 @@ class TextureRender {
             throw new RuntimeException("Could not get attrib location for uSTMatrix");
         }
         muAlphaHandle = GLES20.glGetUniformLocation(mProgram, "uAlpha");
+    }
 
+    private void setupTextures() {
         for (int textureIndex = 0; textureIndex < mOutputSurfaces.size(); ++textureIndex) {
 
             OutputSurface outputSurface = mOutputSurfaces.get(textureIndex);
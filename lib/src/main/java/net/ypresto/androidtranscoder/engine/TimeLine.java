@@ -1,6 +1,7 @@
 package net.ypresto.androidtranscoder.engine;
 
 import net.ypresto.androidtranscoder.TLog;
+import net.ypresto.androidtranscoder.mp4.SampleTable;
 
 import java.io.FileDescriptor;
 import java.util.ArrayList;
@@ -50,6 +51,7 @@ public class TimeLine {
     static long TO_END_OF_FILE = -1;
     private List<Segment> mSegments = new ArrayList<Segment>();
     private LinkedHashMap<String, InputChannel> mTimeLineChannels = new LinkedHashMap<String, InputChannel>();
+    private TimingPlan mPlan;
     public TimeLine () {}
     public TimeLine (int logLevel) {
         TLog.setLevel(logLevel);
@@ -77,6 +79,26 @@ public class TimeLine {
                 channelEntry.getValue().mChannelType = ChannelType.VIDEO;
         }
 
+        // Channel types are final now so the segments can be compiled
+        for (Segment segment : mSegments)
+            segment.compile();
+    }
+
+    /**
+     * Work out the timing of every segment, once channel lengths and frame lengths are known
+     */
+    public TimingPlan plan() {
+        mPlan = TimingPlanner.plan(this);
+        return mPlan;
+    }
+
+    /**
+     * @return the timing worked out by {@link #plan()}, planning now if it hasn't been
+     */
+    public TimingPlan getPlan() {
+        if (mPlan == null)
+            plan();
+        return mPlan;
     }
 
     public Segment createSegment() {
@@ -85,6 +107,7 @@ public class TimeLine {
             segment.isLastSegment = false;
         Segment segment = new Segment(this);
         mSegments.add(segment);
+        mPlan = null;
         return segment;
     }
 
@@ -156,6 +179,37 @@ public class TimeLine {
         return this;
     }
 
+    /**
+     * Add a WAV file of 16 bit PCM as an audio channel, read without a decoder
+     *
+     * @param inputChannel
+     * @param inputFileDescriptor
+     * @return
+     */
+    public TimeLine addWavChannel(String inputChannel, FileDescriptor inputFileDescriptor) {
+        TLog.i(TAG, "addChannel (wav): " + inputChannel + ":" + inputFileDescriptor.toString());
+        mTimeLineChannels.put(inputChannel, new InputChannel(inputFileDescriptor, ChannelType.WAV_AUDIO));
+        return this;
+    }
+
+    /**
+     * Add a raw H.264 Annex-B stream as a video channel
+     *
+     * @param inputChannel
+     * @param inputFileDescriptor
+     * @param frameRate frames per second, used when the stream has no timing info of its own
+     * @return
+     */
+    public TimeLine addH264Channel(String inputChannel, FileDescriptor inputFileDescriptor, double frameRate) {
+        TLog.i(TAG, "addChannel (h264): " + inputChannel + ":" + inputFileDescriptor.toString());
+        if (frameRate <= 0)
+            throw new IllegalArgumentException("Frame rate must be positive");
+        InputChannel channel = new InputChannel(inputFileDescriptor, ChannelType.H264_VIDEO);
+        channel.mVideoFrameLength = Math.round(1000000 / frameRate);
+        mTimeLineChannels.put(inputChannel, channel);
+        return this;
+    }
+
     /**
      * Add a video/audio and assign as a channel
      *
@@ -170,6 +224,23 @@ public class TimeLine {
         return this;
     }
 
+    /**
+     * The channel of a time line that only trims it, one segment outputting a single channel
+     * unfiltered at its own speed, so its samples can be copied rather than transcoded
+     * @return channel name or null if the time line does more than trim
+     */
+    String getTrimOnlyChannel() {
+        if (mSegments.size() != 1 || mSegments.get(0).getChannelCount() != 1)
+            return null;
+        Map.Entry<String, SegmentChannel> entry = mSegments.get(0).getSegmentChannels().entrySet().iterator().next();
+        SegmentChannel segmentChannel = entry.getValue();
+        if (segmentChannel.mFilter != null || segmentChannel.mTimeScale != null
+                || segmentChannel.mChannel.mChannelType == ChannelType.IMAGE
+                || isElementaryStream(segmentChannel.mChannel.mChannelType))
+            return null;
+        return entry.getKey();
+    }
+
     /**
      * Get the entire timeline duration
      * @return
@@ -191,8 +262,12 @@ public class TimeLine {
         public Filter mFilter;
         public Long mTimeScale;
         public Long mSeek;
+        public int mPreRollFrames = 0;      // Frames decoded and discarded to reach the seek point
+        public long mPreRollTimeUs = 0l;    // Wall time spent decoding them
         boolean mAudioSeekRequested = false;
         boolean mVideoSeekRequested = false;
+        private long mPreRollStartNs = 0l;
+        private boolean mPreRollFinished = false;
 
         public Long getVideoSeek() {
             return  mVideoSeekRequested ? null : mSeek;
@@ -207,6 +282,28 @@ public class TimeLine {
             mAudioSeekRequested = true;
         }
 
+        /**
+         * Note that a decoded frame preceding the seek point was discarded
+         */
+        void preRollFrame() {
+            if (mPreRollFrames++ == 0)
+                mPreRollStartNs = System.nanoTime();
+        }
+
+        /**
+         * Note that the first frame of the segment was rendered, ending any pre-roll
+         * @return true if there was a pre-roll that has just been completed
+         */
+        boolean finishPreRoll() {
+            if (mPreRollFinished)
+                return false;
+            mPreRollFinished = true;
+            if (mPreRollFrames == 0)
+                return false;
+            mPreRollTimeUs = (System.nanoTime() - mPreRollStartNs) / 1000;
+            return true;
+        }
+
         SegmentChannel(InputChannel input, Filter filter) {
             mChannel = input;
             mFilter = filter;
@@ -214,16 +311,63 @@ public class TimeLine {
     }
 
     public enum Filter {OPACITY_UP_RAMP, OPACITY_DOWN_RAMP, MUTE, SUPPRESS};
-    public enum ChannelType {VIDEO, AUDIO, AUDIO_VIDEO, IMAGE}
+    public enum ChannelType {VIDEO, AUDIO, AUDIO_VIDEO, IMAGE, WAV_AUDIO, H264_VIDEO}
+
+    public static final int TYPE_VIDEO = 1;
+    public static final int TYPE_AUDIO = 2;
+    public static final int TYPE_IMAGE = 4;
+
+    static int typeMask(ChannelType channelType) {
+        switch (channelType) {
+            case VIDEO: return TYPE_VIDEO;
+            case AUDIO: return TYPE_AUDIO;
+            case AUDIO_VIDEO: return TYPE_VIDEO | TYPE_AUDIO;
+            case WAV_AUDIO: return TYPE_AUDIO;
+            case H264_VIDEO: return TYPE_VIDEO;
+            default: return TYPE_IMAGE;
+        }
+    }
+
+    /**
+     * Whether a channel is a raw stream read without MediaExtractor, one track and no container
+     */
+    static boolean isElementaryStream(ChannelType channelType) {
+        return channelType == ChannelType.WAV_AUDIO || channelType == ChannelType.H264_VIDEO;
+    }
+
+    /**
+     * A channel of a compiled segment with everything the pipeline needs each step, so the
+     * transcoders iterate arrays of these instead of building maps and looking up names.
+     */
+    public static class ChannelSlot {
+        public final String mName;
+        public final InputChannel mChannel;
+        public final SegmentChannel mSegmentChannel;
+        public final int mTypeMask;
+        public final String mVideoThrottleKey;
+        public final String mAudioThrottleKey;
+
+        ChannelSlot(String name, SegmentChannel segmentChannel) {
+            mName = name;
+            mChannel = segmentChannel.mChannel;
+            mSegmentChannel = segmentChannel;
+            mTypeMask = typeMask(mChannel.mChannelType);
+            mVideoThrottleKey = "Video" + name;
+            mAudioThrottleKey = "Audio" + name;
+        }
+    }
 
     /**
      * An input file / start time combination
      */
     public class InputChannel {
         public Long mLengthUs;  // Length based on metadata
+        // Where the current segment reads its input, copied from the timing plan
         public Long mVideoInputStartTimeUs = 0l;
         public Long mAudioInputStartTimeUs = 0l;
         public Long mInputEndTimeUs = 0l;
+        // Anchored to the output time and last input time actually reached, the plan's offsets are
+        // what these come to when every segment ends exactly where it was planned to
         public Long mVideoInputOffsetUs = 0l;
         public Long mAudioInputOffsetUs = 0l;
         public Long mVideoInputAcutalEndTimeUs =0l;
@@ -241,6 +385,8 @@ public class TimeLine {
         public boolean mFrameWasCut = false;
         public long mLastBufferPresentationTime = 0;
         public boolean mMuteAudio = false;
+        public SampleTable mVideoSampleTable = null;  // From the container index, null if unavailable
+        public SampleTable mAudioSampleTable = null;
         InputChannel() {
         }
 
@@ -256,9 +402,16 @@ public class TimeLine {
         private SegmentChannel mLastSegmentChannel = null;
         private HashMap<String, Long> mSeeks = new HashMap<String, Long>();
         private Long mDuration;
+        private ChannelSlot[] mSlots;
+        private ChannelSlot[] mVideoSlots;
+        private ChannelSlot[] mAudioSlots;
         public Long mOutputStartTimeUs;
         public boolean isLastSegment = true;
 
+        /**
+         * Nominal duration, an open ended segment is taken to run from the seek to the end of its
+         * first channel.  {@link #getTiming()} has the duration the transcode runs to.
+         */
         public Long getDuration () {
             if (mDuration != null)
                 return mDuration;
@@ -267,12 +420,53 @@ public class TimeLine {
             return firstChannelEntry.getValue().mChannel.mLengthUs -
                     (mSeeks.get(firstChannelEntry.getKey()) == null ? 0l : mSeeks.get(firstChannelEntry.getKey()));
         }
+        /**
+         * @return channels seeking at the start of the segment, each decoding up to the seek point
+         */
+        public int getSeekCount() {
+            int seeks = 0;
+            for (Long seek : mSeeks.values()) {
+                if (seek != null && seek > 0)
+                    ++seeks;
+            }
+            return seeks;
+        }
+        /**
+         * @return seek requested for the channel, 0 if none
+         */
+        long getSeek(String channel) {
+            Long seek = mSeeks.get(channel);
+            return seek != null ? seek : 0l;
+        }
         public SegmentChannel getSegmentChannel(String channel) {
             return mSegmentChannels.get(channel);
         }
+
+        /**
+         * Total frames decoded and discarded by all channels to reach their seek points
+         * @return
+         */
+        public int getPreRollFrames() {
+            int frames = 0;
+            for (SegmentChannel segmentChannel : mSegmentChannels.values())
+                frames += segmentChannel.mPreRollFrames;
+            return frames;
+        }
+
+        /**
+         * Total time spent by all channels decoding frames to reach their seek points
+         * @return
+         */
+        public long getPreRollTimeUs() {
+            long timeUs = 0l;
+            for (SegmentChannel segmentChannel : mSegmentChannels.values())
+                timeUs += segmentChannel.mPreRollTimeUs;
+            return timeUs;
+        }
         public void start (Long presentationTime, Long videoPresentationTime, Long audioPresentationTime, Long videoEncodedTime, Long audioEncodedTime) {
 
             mOutputStartTimeUs = presentationTime;
+            TimingPlan.SegmentTiming timing = getTiming();
 
             for (HashMap.Entry<String, SegmentChannel> segmentChannelEntry : mSegmentChannels.entrySet()) {
 
@@ -287,32 +481,15 @@ public class TimeLine {
                     audioPresentationTime = maxPresentation;
                 }
 
-                // Round seeks up to a frame
-                Long actualSeek = mSeeks.get(channelName) != null ?  mSeeks.get(channelName) : 0l;
-                Long seek = (actualSeek / inputChannel.mVideoFrameLength) * inputChannel.mVideoFrameLength;
-
-                // Calculate how much this rounding will effect the segment and add this to an ongoing error accumulator
-                // If the error gets to be the size of a frame then add it to the seek and remove it from the error accumulator
-                inputChannel.mSeekShortage += (actualSeek - seek);
-                Long seekAddition =  (inputChannel.mSeekShortage / inputChannel.mVideoFrameLength) * inputChannel.mVideoFrameLength;
-                inputChannel.mSeekShortage -= seekAddition;
-                seek += seekAddition;
-
-                // Get the requested track duration which is either the segment duration or in the case of time
-                // time scaling up it is the duration of the track
-                Long segmentDuration = getDuration();
-                Long actualTrackDuration = segmentChannel.mTimeScale  != null ? segmentChannel.mTimeScale : segmentDuration;
-
-                // As with seeks we round up to a frame, accumulate the error and add it back if it gets to be as big as a frame
-                Long trackDuration = (actualTrackDuration / inputChannel.mVideoFrameLength) * inputChannel.mVideoFrameLength;
-                inputChannel.mDurationShortage += (actualTrackDuration - trackDuration);
-                Long durationAddition =  (inputChannel.mDurationShortage / inputChannel.mVideoFrameLength) * inputChannel.mVideoFrameLength;
-                inputChannel.mDurationShortage -= durationAddition;
-                trackDuration += durationAddition;
+                // Frame aligned seek and track duration come from the plan
+                TimingPlan.ChannelTiming channelTiming = timing.getChannel(channelName);
+                long seek = channelTiming.mSeekUs;
+                long segmentDuration = timing.mDurationUs;
+                long trackDuration = channelTiming.mTrackDurationUs;
 
                 // The starting point in the track is where we left off plus the amount of the seek
-                inputChannel.mVideoInputStartTimeUs = seek + inputChannel.mInputEndTimeUs;
-                inputChannel.mAudioInputStartTimeUs = seek + inputChannel.mInputEndTimeUs;
+                inputChannel.mVideoInputStartTimeUs = channelTiming.mInputStartUs;
+                inputChannel.mAudioInputStartTimeUs = channelTiming.mInputStartUs;
 
                 // The amount we must add to the input time stamp to get the output time stamp is where we left off with
                 // the output time stamp minus where we left off with the input time stamp plus the amount we are seeking
@@ -321,7 +498,7 @@ public class TimeLine {
 
                 // Calculate the time to be used to know when we end the segment and seed the actual
                 // end times which will be updated during transcoding
-                inputChannel.mInputEndTimeUs = inputChannel.mInputEndTimeUs + seek + trackDuration;
+                inputChannel.mInputEndTimeUs = channelTiming.mInputEndUs;
                 inputChannel.mAudioInputAcutalEndTimeUs = inputChannel.mInputEndTimeUs;
                 inputChannel.mVideoInputAcutalEndTimeUs = inputChannel.mInputEndTimeUs;
 
@@ -330,24 +507,14 @@ public class TimeLine {
                 segmentChannel.mSeek = (seek > 0) ? inputChannel.mVideoInputStartTimeUs : null;
 
                 inputChannel.mFilter = segmentChannel.mFilter;
-                inputChannel.mMuteAudio = inputChannel.mFilter == Filter.MUTE || segmentChannel.mTimeScale  != null;
+                inputChannel.mMuteAudio = channelTiming.mMuteAudio;
 
+                // The transcoder doles out the planned cuts or duplicate frames evenly over the segment
+                inputChannel.mTimeToCut = channelTiming.mTimeToCutUs;
+                inputChannel.mTimeAlreadyCut = 0;
+                inputChannel.mTimeToAdd = channelTiming.mTimeToAddUs;
+                inputChannel.mTimeAlreadyAdded = 0;
                 if (segmentChannel.mTimeScale  != null) {
-
-                    // For time scaling up we figure out how much time should be cut and setup an
-                    // accumulator the transcoder can use to dole out the cuts evenly over the segment
-                    // this will be used to determine how many frames should be cut
-                    if (trackDuration > segmentDuration) {
-                        inputChannel.mTimeToCut = trackDuration - segmentDuration;
-                        inputChannel.mTimeAlreadyCut = 0;
-                    }
-                    // For time scaling down we figure out how much time should be added and setup an
-                    // accumulator the transcoder can use to dole out the additions evenly over the segment
-                    // this will be used to determine how many duplicate frames should be inserted
-                    if (trackDuration < segmentDuration) {
-                        inputChannel.mTimeToAdd = segmentDuration - trackDuration;
-                        inputChannel.mTimeAlreadyAdded = 0;
-                    }
                     inputChannel.mAudioInputOffsetUs -= trackDuration;
                     inputChannel.mAudioInputOffsetUs += segmentDuration;
                 }
@@ -373,6 +540,94 @@ public class TimeLine {
 
         public TimeLine timeLine () {return mTimeLine;}
 
+        /**
+         * @return the segment's timing from the time line's plan
+         */
+        public TimingPlan.SegmentTiming getTiming() {
+            return mTimeLine.getPlan().getSegment(mTimeLine.mSegments.indexOf(this));
+        }
+
+        /**
+         * Build the slot arrays, again whenever channels or their types change
+         */
+        void compile() {
+            mSlots = new ChannelSlot[mSegmentChannels.size()];
+            int videoSlots = 0;
+            int audioSlots = 0;
+            int slot = 0;
+            for (Map.Entry<String, SegmentChannel> entry : mSegmentChannels.entrySet()) {
+                mSlots[slot] = new ChannelSlot(entry.getKey(), entry.getValue());
+                if ((mSlots[slot].mTypeMask & TYPE_VIDEO) != 0)
+                    ++videoSlots;
+                if ((mSlots[slot].mTypeMask & TYPE_AUDIO) != 0)
+                    ++audioSlots;
+                ++slot;
+            }
+            mVideoSlots = selectSlots(TYPE_VIDEO, videoSlots);
+            mAudioSlots = selectSlots(TYPE_AUDIO, audioSlots);
+        }
+
+        private ChannelSlot[] selectSlots(int typeMask, int count) {
+            ChannelSlot[] slots = new ChannelSlot[count];
+            int selected = 0;
+            for (ChannelSlot slot : mSlots) {
+                if ((slot.mTypeMask & typeMask) != 0)
+                    slots[selected++] = slot;
+            }
+            return slots;
+        }
+
+        /**
+         * All channels in the order they were added, compiled on first use.  Shared, don't modify.
+         */
+        public ChannelSlot[] getSlots() {
+            if (mSlots == null)
+                compile();
+            return mSlots;
+        }
+
+        /**
+         * Channels with video, in the same order as {@link #getVideoChannels()}.  Shared, don't modify.
+         */
+        public ChannelSlot[] getVideoSlots() {
+            if (mSlots == null)
+                compile();
+            return mVideoSlots;
+        }
+
+        /**
+         * Channels with audio, in the same order as {@link #getAudioChannels()}.  Shared, don't modify.
+         */
+        public ChannelSlot[] getAudioSlots() {
+            if (mSlots == null)
+                compile();
+            return mAudioSlots;
+        }
+
+        /**
+         * @return the slot's index in the video slots, -1 if the channel has no video in this segment
+         */
+        public int getVideoSlotIndex(String channel) {
+            ChannelSlot[] slots = getVideoSlots();
+            for (int slot = 0; slot < slots.length; ++slot) {
+                if (slots[slot].mName.equals(channel))
+                    return slot;
+            }
+            return -1;
+        }
+
+        /**
+         * @return the slot's index in the audio slots, -1 if the channel has no audio in this segment
+         */
+        public int getAudioSlotIndex(String channel) {
+            ChannelSlot[] slots = getAudioSlots();
+            for (int slot = 0; slot < slots.length; ++slot) {
+                if (slots[slot].mName.equals(channel))
+                    return slot;
+            }
+            return -1;
+        }
+
         /**
          * Get all channels that participate in this segment
          * @return
@@ -403,7 +658,7 @@ public class TimeLine {
         public LinkedHashMap<String, InputChannel> getVideoChannels() {
             LinkedHashMap<String, InputChannel> channels = new LinkedHashMap<String, InputChannel>();
             for (Map.Entry<String, TimeLine.SegmentChannel> entry : mSegmentChannels.entrySet())
-                if (entry.getValue().mChannel.mChannelType == ChannelType.VIDEO || entry.getValue().mChannel.mChannelType == ChannelType.AUDIO_VIDEO)
+                if ((typeMask(entry.getValue().mChannel.mChannelType) & TYPE_VIDEO) != 0)
                     channels.put(entry.getKey(), entry.getValue().mChannel);
             return channels;
         }
@@ -415,7 +670,7 @@ public class TimeLine {
         public LinkedHashMap<String, InputChannel> getAudioChannels() {
             LinkedHashMap<String, InputChannel> channels = new LinkedHashMap<String, InputChannel>();
             for (Map.Entry<String, TimeLine.SegmentChannel> entry : mSegmentChannels.entrySet())
-                if (entry.getValue().mChannel.mChannelType == ChannelType.AUDIO || entry.getValue().mChannel.mChannelType == ChannelType.AUDIO_VIDEO)
+                if ((typeMask(entry.getValue().mChannel.mChannelType) & TYPE_AUDIO) != 0)
                     channels.put(entry.getKey(), entry.getValue().mChannel);
             return channels;
         }
@@ -461,6 +716,7 @@ public class TimeLine {
             //if (inputChannel.mChannelType != ChannelType.AUDIO)
             mLastSegmentChannel = new SegmentChannel(inputChannel, null);
             mSegmentChannels.put(inputChannelName, mLastSegmentChannel);
+            mSlots = null;
             return this;
         }
 
@@ -475,6 +731,7 @@ public class TimeLine {
             InputChannel inputChannel = mTimeLineChannels.get(inputChannelName);
             mLastSegmentChannel = new SegmentChannel(inputChannel, filter);
             mSegmentChannels.put(inputChannelName, mLastSegmentChannel );
+            mSlots = null;
             return this;
         }
 
@@ -504,6 +761,13 @@ public class TimeLine {
             return mSegmentChannels.size();
         }
 
+        /**
+         * @return duration set for the segment, null if it runs to the end of its input
+         */
+        Long getRequestedDuration() {
+            return mDuration;
+        }
+
         LinkedHashMap<String, SegmentChannel> getSegmentChannels() {
             return mSegmentChannels;
         }
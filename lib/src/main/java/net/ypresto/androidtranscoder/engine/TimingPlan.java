@@ -0,0 +1,107 @@
+package net.ypresto.androidtranscoder.engine;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where every channel of every segment reads its input and places its output, worked out
+ * before transcoding by {@link TimingPlanner}.  Immutable, so it can be checked, shared and
+ * used to estimate cost without running anything.  The transcode takes its segment durations,
+ * seeks and input positions from here.  The output offsets are nominal, the transcode anchors
+ * them to the output time each segment actually starts at so frame rounding leaves no gap.
+ */
+public class TimingPlan {
+
+    public static class ChannelTiming {
+        public final String mChannel;
+        public final long mSeekUs;            // Frame aligned seek, 0 if the channel continues where it left off
+        public final long mInputStartUs;      // Input time the channel starts at in this segment
+        public final long mInputEndUs;
+        public final long mTrackDurationUs;   // Input consumed, frame aligned
+        public final long mTimeToCutUs;       // Input time to drop when the track is longer than the segment
+        public final long mTimeToAddUs;       // Output time to fill when the track is shorter
+        public final long mVideoOutputOffsetUs;  // Added to input times to give output times
+        public final long mAudioOutputOffsetUs;
+        public final boolean mMuteAudio;
+
+        ChannelTiming(String channel, long seekUs, long inputStartUs, long trackDurationUs, long timeToCutUs,
+                      long timeToAddUs, long videoOutputOffsetUs, long audioOutputOffsetUs, boolean muteAudio) {
+            mChannel = channel;
+            mSeekUs = seekUs;
+            mInputStartUs = inputStartUs;
+            mInputEndUs = inputStartUs + trackDurationUs;
+            mTrackDurationUs = trackDurationUs;
+            mTimeToCutUs = timeToCutUs;
+            mTimeToAddUs = timeToAddUs;
+            mVideoOutputOffsetUs = videoOutputOffsetUs;
+            mAudioOutputOffsetUs = audioOutputOffsetUs;
+            mMuteAudio = muteAudio;
+        }
+
+        @Override
+        public String toString() {
+            return mChannel + " seek=" + mSeekUs + " input=" + mInputStartUs + "-" + mInputEndUs +
+                    " cut=" + mTimeToCutUs + " add=" + mTimeToAddUs +
+                    " offset=" + mVideoOutputOffsetUs + "/" + mAudioOutputOffsetUs + (mMuteAudio ? " muted" : "");
+        }
+    }
+
+    public static class SegmentTiming {
+        public final long mOutputStartUs;
+        public final long mDurationUs;
+        private final Map<String, ChannelTiming> mChannels;
+
+        SegmentTiming(long outputStartUs, long durationUs, LinkedHashMap<String, ChannelTiming> channels) {
+            mOutputStartUs = outputStartUs;
+            mDurationUs = durationUs;
+            mChannels = Collections.unmodifiableMap(channels);
+        }
+
+        /**
+         * @return timing of the channel, null if it isn't in the segment
+         */
+        public ChannelTiming getChannel(String channel) {
+            return mChannels.get(channel);
+        }
+
+        public Map<String, ChannelTiming> getChannels() {
+            return mChannels;
+        }
+    }
+
+    private final List<SegmentTiming> mSegments;
+
+    TimingPlan(List<SegmentTiming> segments) {
+        mSegments = Collections.unmodifiableList(segments);
+    }
+
+    public List<SegmentTiming> getSegments() {
+        return mSegments;
+    }
+
+    public SegmentTiming getSegment(int segment) {
+        return mSegments.get(segment);
+    }
+
+    public long getDurationUs() {
+        if (mSegments.isEmpty())
+            return 0;
+        SegmentTiming last = mSegments.get(mSegments.size() - 1);
+        return last.mOutputStartUs + last.mDurationUs;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder();
+        for (int segment = 0; segment < mSegments.size(); ++segment) {
+            SegmentTiming timing = mSegments.get(segment);
+            builder.append("Segment ").append(segment).append(" at ").append(timing.mOutputStartUs)
+                    .append(" for ").append(timing.mDurationUs).append('\n');
+            for (ChannelTiming channelTiming : timing.mChannels.values())
+                builder.append("  ").append(channelTiming).append('\n');
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,104 @@
+package net.ypresto.androidtranscoder.engine;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Works out a {@link TimingPlan} from a time line whose channel lengths and frame lengths have
+ * been probed.  Seeks and track durations are rounded down to whole frames, the rounding error
+ * of each channel is carried and given back a frame at a time once it adds up to one, so a
+ * channel never drifts by more than a frame however many segments it appears in.
+ *
+ * Channels continue from where they left off in their previous segment.  Nothing in the time
+ * line is changed.
+ */
+class TimingPlanner {
+
+    // What a channel carries from one segment to the next
+    private static class ChannelState {
+        long mInputEndUs;
+        long mSeekShortageUs;
+        long mDurationShortageUs;
+    }
+
+    static TimingPlan plan(TimeLine timeLine) {
+        Map<String, ChannelState> states = new HashMap<String, ChannelState>();
+        List<TimingPlan.SegmentTiming> segments = new ArrayList<TimingPlan.SegmentTiming>();
+        long outputStartUs = 0;
+        for (TimeLine.Segment segment : timeLine.getSegments()) {
+            long segmentDurationUs = segmentDuration(segment, states);
+            LinkedHashMap<String, TimingPlan.ChannelTiming> channels = new LinkedHashMap<String, TimingPlan.ChannelTiming>();
+            for (TimeLine.ChannelSlot slot : segment.getSlots()) {
+                ChannelState state = states.get(slot.mName);
+                if (state == null) {
+                    state = new ChannelState();
+                    states.put(slot.mName, state);
+                }
+                channels.put(slot.mName, planChannel(slot, segment.getSeek(slot.mName), segmentDurationUs, outputStartUs, state));
+            }
+            segments.add(new TimingPlan.SegmentTiming(outputStartUs, segmentDurationUs, channels));
+            outputStartUs += segmentDurationUs;
+        }
+        return new TimingPlan(segments);
+    }
+
+    private static TimingPlan.ChannelTiming planChannel(TimeLine.ChannelSlot slot, long requestedSeekUs, long segmentDurationUs,
+                                                        long outputStartUs, ChannelState state) {
+        long frameLengthUs = slot.mChannel.mVideoFrameLength;
+
+        long seekUs = alignedSeek(requestedSeekUs, frameLengthUs, state);
+        state.mSeekShortageUs += requestedSeekUs - seekUs;
+
+        // Time scaling consumes the scaled length of track in the segment's duration
+        Long timeScale = slot.mSegmentChannel.mTimeScale;
+        long requestedDurationUs = timeScale != null ? timeScale : segmentDurationUs;
+        long trackDurationUs = floorToFrame(requestedDurationUs, frameLengthUs);
+        state.mDurationShortageUs += requestedDurationUs - trackDurationUs;
+        long durationAdditionUs = floorToFrame(state.mDurationShortageUs, frameLengthUs);
+        state.mDurationShortageUs -= durationAdditionUs;
+        trackDurationUs += durationAdditionUs;
+
+        long inputStartUs = state.mInputEndUs + seekUs;
+        state.mInputEndUs = inputStartUs + trackDurationUs;
+
+        long timeToCutUs = 0;
+        long timeToAddUs = 0;
+        long videoOutputOffsetUs = outputStartUs - inputStartUs;
+        long audioOutputOffsetUs = videoOutputOffsetUs;
+        if (timeScale != null) {
+            timeToCutUs = Math.max(0, trackDurationUs - segmentDurationUs);
+            timeToAddUs = Math.max(0, segmentDurationUs - trackDurationUs);
+            // Scaled audio is muted and just fills the segment
+            audioOutputOffsetUs += segmentDurationUs - trackDurationUs;
+        }
+        boolean muteAudio = slot.mSegmentChannel.mFilter == TimeLine.Filter.MUTE || timeScale != null;
+        return new TimingPlan.ChannelTiming(slot.mName, seekUs, inputStartUs, trackDurationUs, timeToCutUs, timeToAddUs,
+                videoOutputOffsetUs, audioOutputOffsetUs, muteAudio);
+    }
+
+    // A segment without a duration runs to the end of its first channel, from where that channel is left off
+    private static long segmentDuration(TimeLine.Segment segment, Map<String, ChannelState> states) {
+        Long requestedUs = segment.getRequestedDuration();
+        if (requestedUs != null)
+            return requestedUs;
+        TimeLine.ChannelSlot first = segment.getSlots()[0];
+        ChannelState state = states.get(first.mName);
+        if (state == null)
+            state = new ChannelState();
+        long inputStartUs = state.mInputEndUs + alignedSeek(segment.getSeek(first.mName), first.mChannel.mVideoFrameLength, state);
+        return Math.max(0, first.mChannel.mLengthUs - inputStartUs);
+    }
+
+    // The seek rounded down to a frame, plus a frame for each one the earlier roundings add up to
+    private static long alignedSeek(long requestedSeekUs, long frameLengthUs, ChannelState state) {
+        long seekUs = floorToFrame(requestedSeekUs, frameLengthUs);
+        return seekUs + floorToFrame(state.mSeekShortageUs + requestedSeekUs - seekUs, frameLengthUs);
+    }
+
+    private static long floorToFrame(long timeUs, long frameLengthUs) {
+        return (timeUs / frameLengthUs) * frameLengthUs;
+    }
+}
@@ -0,0 +1,138 @@
+package net.ypresto.androidtranscoder.engine;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+/**
+ * Records timed spans of pipeline stages for a timeline view of a transcode.  Spans go into
+ * parallel arrays allocated up front so recording costs two clock reads and a few stores, once
+ * the arrays are full further spans are counted as dropped.  Names are stored by reference,
+ * callers pass the constants here.  Used from the transcoding thread only.
+ *
+ * The result is written in the Chrome trace event format, which chrome://tracing and the
+ * Perfetto UI open directly, with a row per output track.
+ */
+public class TraceRecorder {
+    public static final int DEFAULT_CAPACITY = 100000;
+
+    static final int TRACK_ENGINE = 0;
+    static final int TRACK_VIDEO = 1;
+    static final int TRACK_AUDIO = 2;
+    private static final String[] TRACK_NAMES = {"engine", "video", "audio"};
+
+    static final String EXTRACTOR_READ = "extractorRead";
+    static final String DECODER_DEQUEUE = "decoderDequeue";
+    static final String DECODER_RELEASE = "decoderRelease";
+    static final String AWAIT_NEW_IMAGE = "awaitNewImage";
+    static final String DRAW_FRAME = "drawFrame";
+    static final String SWAP_BUFFERS = "swapBuffers";
+    static final String ENCODER_DRAIN = "encoderDrain";
+    static final String MUXER_WRITE = "muxerWrite";
+    static final String THROTTLE_BLOCK = "throttleBlock";
+
+    private final String[] mNames;
+    private final int[] mTracks;
+    private final long[] mStartNs;
+    private final long[] mDurationNs;
+    private final long mOriginNs = System.nanoTime();
+    private int mCount;
+    private long mDropped;
+
+    public TraceRecorder(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Trace capacity must be positive");
+        mNames = new String[capacity];
+        mTracks = new int[capacity];
+        mStartNs = new long[capacity];
+        mDurationNs = new long[capacity];
+    }
+
+    /**
+     * Record a span ending now
+     * @param name one of the span name constants
+     * @param track row the span is shown on
+     * @param startNs System.nanoTime() when the span began
+     */
+    void span(String name, int track, long startNs) {
+        span(name, track, startNs, System.nanoTime() - startNs);
+    }
+
+    void span(String name, int track, long startNs, long durationNs) {
+        if (mCount == mNames.length) {
+            ++mDropped;
+            return;
+        }
+        mNames[mCount] = name;
+        mTracks[mCount] = track;
+        mStartNs[mCount] = startNs;
+        mDurationNs[mCount] = durationNs;
+        ++mCount;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Spans not recorded because the buffer was full
+     */
+    public long getDropped() {
+        return mDropped;
+    }
+
+    public void write(File file) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            writeJson(writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Write the spans as a trace event JSON object, times in microseconds from the recorder's creation
+     * @param writer
+     */
+    public void writeJson(Writer writer) throws IOException {
+        writer.write("{\"displayTimeUnit\":\"ms\",\"otherData\":{\"dropped\":");
+        writer.write(Long.toString(mDropped));
+        writer.write("},\"traceEvents\":[");
+        for (int track = 0; track < TRACK_NAMES.length; ++track) {
+            if (track > 0)
+                writer.write(',');
+            writer.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":");
+            writer.write(Integer.toString(track));
+            writer.write(",\"args\":{\"name\":\"");
+            writer.write(TRACK_NAMES[track]);
+            writer.write("\"}}");
+        }
+        for (int span = 0; span < mCount; ++span) {
+            writer.write(",\n{\"name\":\"");
+            writer.write(mNames[span]);
+            writer.write("\",\"ph\":\"X\",\"pid\":1,\"tid\":");
+            writer.write(Integer.toString(mTracks[span]));
+            writer.write(",\"ts\":");
+            writeMicros(writer, mStartNs[span] - mOriginNs);
+            writer.write(",\"dur\":");
+            writeMicros(writer, mDurationNs[span]);
+            writer.write('}');
+        }
+        writer.write("]}\n");
+    }
+
+    // Nanoseconds as fractional microseconds, keeping sub-microsecond spans visible
+    private static void writeMicros(Writer writer, long nanos) throws IOException {
+        if (nanos < 0) {
+            writer.write('-');
+            nanos = -nanos;
+        }
+        writer.write(Long.toString(nanos / 1000));
+        long fraction = nanos % 1000;
+        writer.write(fraction < 10 ? ".00" : fraction < 100 ? ".0" : ".");
+        writer.write(Long.toString(fraction));
+    }
+}
@@ -0,0 +1,374 @@
+package net.ypresto.androidtranscoder.engine;
+
+import net.ypresto.androidtranscoder.mp4.Mp4IndexCache;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Where a checkpointed transcode got to: the part files already muxed, the next segment to run,
+ * the output presentation times and the timing state of each input channel.  Saved after each
+ * part so a transcode that is killed can continue from the last completed part.
+ *
+ * Sample tables aren't stored here, they are reloaded through the Mp4IndexCache.
+ */
+public class TranscodeCheckpoint {
+    private static final int VERSION = 1;
+
+    /**
+     * Timing state of an {@link TimeLine.InputChannel} carried from one segment to the next
+     */
+    public static class ChannelState {
+        public long mVideoInputStartTimeUs;
+        public long mAudioInputStartTimeUs;
+        public long mInputEndTimeUs;
+        public long mVideoInputOffsetUs;
+        public long mAudioInputOffsetUs;
+        public long mVideoInputAcutalEndTimeUs;
+        public long mAudioInputAcutalEndTimeUs;
+        public long mSeekShortage;
+        public long mDurationShortage;
+        public long mTimeToCut;
+        public long mTimeAlreadyCut;
+        public long mTimeToAdd;
+        public long mTimeAlreadyAdded;
+        public long mLastBufferPresentationTime;
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ChannelState))
+                return false;
+            ChannelState other = (ChannelState) o;
+            return mVideoInputStartTimeUs == other.mVideoInputStartTimeUs &&
+                    mAudioInputStartTimeUs == other.mAudioInputStartTimeUs &&
+                    mInputEndTimeUs == other.mInputEndTimeUs &&
+                    mVideoInputOffsetUs == other.mVideoInputOffsetUs &&
+                    mAudioInputOffsetUs == other.mAudioInputOffsetUs &&
+                    mVideoInputAcutalEndTimeUs == other.mVideoInputAcutalEndTimeUs &&
+                    mAudioInputAcutalEndTimeUs == other.mAudioInputAcutalEndTimeUs &&
+                    mSeekShortage == other.mSeekShortage &&
+                    mDurationShortage == other.mDurationShortage &&
+                    mTimeToCut == other.mTimeToCut &&
+                    mTimeAlreadyCut == other.mTimeAlreadyCut &&
+                    mTimeToAdd == other.mTimeToAdd &&
+                    mTimeAlreadyAdded == other.mTimeAlreadyAdded &&
+                    mLastBufferPresentationTime == other.mLastBufferPresentationTime;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (mInputEndTimeUs ^ (mInputEndTimeUs >>> 32));
+        }
+    }
+
+    /**
+     * A muxed part of the output and the output time its samples start at
+     */
+    public static class Part {
+        public final String mPath;
+        public final long mStartTimeUs;
+
+        public Part(String path, long startTimeUs) {
+            mPath = path;
+            mStartTimeUs = startTimeUs;
+        }
+    }
+
+    private final String mFingerprint;
+    private int mNextSegment;
+    private long mOutputPresentationTimeUs;
+    private long mVideoPresentationTimeUs;
+    private long mAudioPresentationTimeUs;
+    private final List<Part> mParts = new ArrayList<Part>();
+    private final LinkedHashMap<String, ChannelState> mChannels = new LinkedHashMap<String, ChannelState>();
+
+    public TranscodeCheckpoint(String fingerprint) {
+        mFingerprint = fingerprint;
+    }
+
+    /**
+     * Identifies a time line, its input files and the output so a checkpoint isn't applied to a
+     * different transcode, or to inputs that were replaced or edited since it was saved
+     * @param timeLine
+     * @param outputPath
+     * @return
+     */
+    public static String fingerprint(TimeLine timeLine, String outputPath) {
+        Map<String, String> inputKeys = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, TimeLine.InputChannel> entry : timeLine.getChannels().entrySet())
+            inputKeys.put(entry.getKey(), Mp4IndexCache.keyFor(entry.getValue().mInputFileDescriptor));
+        return fingerprint(timeLine, outputPath, inputKeys);
+    }
+
+    /**
+     * @param timeLine
+     * @param outputPath
+     * @param inputKeys  size and modification time of each channel's input as given by
+     *                   {@link Mp4IndexCache#keyFor}, null where the input couldn't be stat'ed
+     * @return
+     */
+    static String fingerprint(TimeLine timeLine, String outputPath, Map<String, String> inputKeys) {
+        StringBuilder builder = new StringBuilder(outputPath);
+        for (Map.Entry<String, TimeLine.InputChannel> entry : timeLine.getChannels().entrySet()) {
+            builder.append('|').append(entry.getKey()).append(':').append(entry.getValue().mChannelType)
+                    .append(':').append(inputKeys.get(entry.getKey()));
+        }
+        for (TimeLine.Segment segment : timeLine.getSegments()) {
+            builder.append("|segment:").append(segment.getRequestedDuration());
+            for (String channel : segment.getChannels().keySet()) {
+                TimeLine.SegmentChannel segmentChannel = segment.getSegmentChannel(channel);
+                builder.append(':').append(channel).append('@').append(segment.getSeek(channel))
+                        .append('/').append(segmentChannel.mTimeScale).append('/').append(segmentChannel.mFilter);
+            }
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Record a completed part along with the state to continue from after it
+     * @param part
+     * @param nextSegment             index of the first segment of the next part
+     * @param timeLine                channels to take timing state from
+     * @param outputPresentationTimeUs
+     * @param videoPresentationTimeUs decoded video time at the end of the part
+     * @param audioPresentationTimeUs decoded audio time at the end of the part
+     */
+    public void addPart(Part part, int nextSegment, TimeLine timeLine, long outputPresentationTimeUs,
+                        long videoPresentationTimeUs, long audioPresentationTimeUs) {
+        mParts.add(part);
+        mNextSegment = nextSegment;
+        mOutputPresentationTimeUs = outputPresentationTimeUs;
+        mVideoPresentationTimeUs = videoPresentationTimeUs;
+        mAudioPresentationTimeUs = audioPresentationTimeUs;
+        mChannels.clear();
+        for (Map.Entry<String, TimeLine.InputChannel> entry : timeLine.getChannels().entrySet())
+            mChannels.put(entry.getKey(), capture(entry.getValue()));
+    }
+
+    /**
+     * Put the channels of the time line back to where they were at the last part
+     * @param timeLine
+     */
+    public void restore(TimeLine timeLine) {
+        for (Map.Entry<String, TimeLine.InputChannel> entry : timeLine.getChannels().entrySet()) {
+            ChannelState state = mChannels.get(entry.getKey());
+            if (state != null)
+                restore(entry.getValue(), state);
+        }
+    }
+
+    static ChannelState capture(TimeLine.InputChannel inputChannel) {
+        ChannelState state = new ChannelState();
+        state.mVideoInputStartTimeUs = inputChannel.mVideoInputStartTimeUs;
+        state.mAudioInputStartTimeUs = inputChannel.mAudioInputStartTimeUs;
+        state.mInputEndTimeUs = inputChannel.mInputEndTimeUs;
+        state.mVideoInputOffsetUs = inputChannel.mVideoInputOffsetUs;
+        state.mAudioInputOffsetUs = inputChannel.mAudioInputOffsetUs;
+        state.mVideoInputAcutalEndTimeUs = inputChannel.mVideoInputAcutalEndTimeUs;
+        state.mAudioInputAcutalEndTimeUs = inputChannel.mAudioInputAcutalEndTimeUs;
+        state.mSeekShortage = inputChannel.mSeekShortage;
+        state.mDurationShortage = inputChannel.mDurationShortage;
+        state.mTimeToCut = inputChannel.mTimeToCut;
+        state.mTimeAlreadyCut = inputChannel.mTimeAlreadyCut;
+        state.mTimeToAdd = inputChannel.mTimeToAdd;
+        state.mTimeAlreadyAdded = inputChannel.mTimeAlreadyAdded;
+        state.mLastBufferPresentationTime = inputChannel.mLastBufferPresentationTime;
+        return state;
+    }
+
+    static void restore(TimeLine.InputChannel inputChannel, ChannelState state) {
+        inputChannel.mVideoInputStartTimeUs = state.mVideoInputStartTimeUs;
+        inputChannel.mAudioInputStartTimeUs = state.mAudioInputStartTimeUs;
+        inputChannel.mInputEndTimeUs = state.mInputEndTimeUs;
+        inputChannel.mVideoInputOffsetUs = state.mVideoInputOffsetUs;
+        inputChannel.mAudioInputOffsetUs = state.mAudioInputOffsetUs;
+        inputChannel.mVideoInputAcutalEndTimeUs = state.mVideoInputAcutalEndTimeUs;
+        inputChannel.mAudioInputAcutalEndTimeUs = state.mAudioInputAcutalEndTimeUs;
+        inputChannel.mSeekShortage = state.mSeekShortage;
+        inputChannel.mDurationShortage = state.mDurationShortage;
+        inputChannel.mTimeToCut = state.mTimeToCut;
+        inputChannel.mTimeAlreadyCut = state.mTimeAlreadyCut;
+        inputChannel.mTimeToAdd = state.mTimeToAdd;
+        inputChannel.mTimeAlreadyAdded = state.mTimeAlreadyAdded;
+        inputChannel.mLastBufferPresentationTime = state.mLastBufferPresentationTime;
+    }
+
+    public String getFingerprint() {
+        return mFingerprint;
+    }
+
+    public int getNextSegment() {
+        return mNextSegment;
+    }
+
+    public long getOutputPresentationTimeUs() {
+        return mOutputPresentationTimeUs;
+    }
+
+    public long getVideoPresentationTimeUs() {
+        return mVideoPresentationTimeUs;
+    }
+
+    public long getAudioPresentationTimeUs() {
+        return mAudioPresentationTimeUs;
+    }
+
+    public List<Part> getParts() {
+        return Collections.unmodifiableList(mParts);
+    }
+
+    public Map<String, ChannelState> getChannels() {
+        return Collections.unmodifiableMap(mChannels);
+    }
+
+    public void write(DataOutputStream outputStream) throws IOException {
+        outputStream.writeInt(VERSION);
+        outputStream.writeUTF(mFingerprint);
+        outputStream.writeInt(mNextSegment);
+        outputStream.writeLong(mOutputPresentationTimeUs);
+        outputStream.writeLong(mVideoPresentationTimeUs);
+        outputStream.writeLong(mAudioPresentationTimeUs);
+        outputStream.writeInt(mParts.size());
+        for (Part part : mParts) {
+            outputStream.writeUTF(part.mPath);
+            outputStream.writeLong(part.mStartTimeUs);
+        }
+        outputStream.writeInt(mChannels.size());
+        for (Map.Entry<String, ChannelState> entry : mChannels.entrySet()) {
+            ChannelState state = entry.getValue();
+            outputStream.writeUTF(entry.getKey());
+            outputStream.writeLong(state.mVideoInputStartTimeUs);
+            outputStream.writeLong(state.mAudioInputStartTimeUs);
+            outputStream.writeLong(state.mInputEndTimeUs);
+            outputStream.writeLong(state.mVideoInputOffsetUs);
+            outputStream.writeLong(state.mAudioInputOffsetUs);
+            outputStream.writeLong(state.mVideoInputAcutalEndTimeUs);
+            outputStream.writeLong(state.mAudioInputAcutalEndTimeUs);
+            outputStream.writeLong(state.mSeekShortage);
+            outputStream.writeLong(state.mDurationShortage);
+            outputStream.writeLong(state.mTimeToCut);
+            outputStream.writeLong(state.mTimeAlreadyCut);
+            outputStream.writeLong(state.mTimeToAdd);
+            outputStream.writeLong(state.mTimeAlreadyAdded);
+            outputStream.writeLong(state.mLastBufferPresentationTime);
+        }
+    }
+
+    /**
+     * @param inputStream
+     * @param fingerprint of the transcode about to run
+     * @return the checkpoint or null if it was written by another version or for another transcode
+     * @throws IOException
+     */
+    public static TranscodeCheckpoint read(DataInputStream inputStream, String fingerprint) throws IOException {
+        if (inputStream.readInt() != VERSION)
+            return null;
+        TranscodeCheckpoint checkpoint = new TranscodeCheckpoint(inputStream.readUTF());
+        if (!checkpoint.mFingerprint.equals(fingerprint))
+            return null;
+        checkpoint.mNextSegment = inputStream.readInt();
+        checkpoint.mOutputPresentationTimeUs = inputStream.readLong();
+        checkpoint.mVideoPresentationTimeUs = inputStream.readLong();
+        checkpoint.mAudioPresentationTimeUs = inputStream.readLong();
+        int parts = inputStream.readInt();
+        for (int i = 0; i < parts; ++i)
+            checkpoint.mParts.add(new Part(inputStream.readUTF(), inputStream.readLong()));
+        int channels = inputStream.readInt();
+        for (int i = 0; i < channels; ++i) {
+            String name = inputStream.readUTF();
+            ChannelState state = new ChannelState();
+            state.mVideoInputStartTimeUs = inputStream.readLong();
+            state.mAudioInputStartTimeUs = inputStream.readLong();
+            state.mInputEndTimeUs = inputStream.readLong();
+            state.mVideoInputOffsetUs = inputStream.readLong();
+            state.mAudioInputOffsetUs = inputStream.readLong();
+            state.mVideoInputAcutalEndTimeUs = inputStream.readLong();
+            state.mAudioInputAcutalEndTimeUs = inputStream.readLong();
+            state.mSeekShortage = inputStream.readLong();
+            state.mDurationShortage = inputStream.readLong();
+            state.mTimeToCut = inputStream.readLong();
+            state.mTimeAlreadyCut = inputStream.readLong();
+            state.mTimeToAdd = inputStream.readLong();
+            state.mTimeAlreadyAdded = inputStream.readLong();
+            state.mLastBufferPresentationTime = inputStream.readLong();
+            checkpoint.mChannels.put(name, state);
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Write to a temporary file and rename it over the checkpoint so a crash mid-write leaves
+     * the previous checkpoint intact.  The newest part and the checkpoint are synced first so
+     * after a power loss the rename can't be on disk ahead of the data it refers to.
+     * @param file
+     * @throws IOException
+     */
+    public void save(File file) throws IOException {
+        if (!mParts.isEmpty())
+            sync(new File(mParts.get(mParts.size() - 1).mPath));
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        FileOutputStream fileOutputStream = new FileOutputStream(temporaryFile);
+        DataOutputStream outputStream = new DataOutputStream(fileOutputStream);
+        try {
+            write(outputStream);
+            outputStream.flush();
+            fileOutputStream.getFD().sync();
+        } finally {
+            outputStream.close();
+        }
+        if (!temporaryFile.renameTo(file))
+            throw new IOException("Unable to replace checkpoint " + file);
+    }
+
+    private static void sync(File file) throws IOException {
+        if (!file.exists())
+            return;
+        FileOutputStream outputStream = new FileOutputStream(file, true);
+        try {
+            outputStream.getFD().sync();
+        } finally {
+            outputStream.close();
+        }
+    }
+
+    /**
+     * @param file
+     * @param fingerprint of the transcode about to run
+     * @return the checkpoint or null if there is none that applies, or any of its parts are missing
+     */
+    public static TranscodeCheckpoint load(File file, String fingerprint) {
+        if (!file.exists())
+            return null;
+        DataInputStream inputStream = null;
+        try {
+            inputStream = new DataInputStream(new FileInputStream(file));
+            TranscodeCheckpoint checkpoint = read(inputStream, fingerprint);
+            if (checkpoint == null)
+                return null;
+            for (Part part : checkpoint.mParts) {
+                if (!new File(part.mPath).exists())
+                    return null;
+            }
+            return checkpoint;
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+}
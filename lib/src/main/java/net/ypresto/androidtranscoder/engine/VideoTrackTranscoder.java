@@ -23,18 +23,21 @@ import android.graphics.RectF;
 import android.media.MediaCodec;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
+import android.opengl.GLES20;
 import android.view.Surface;
 
 import net.ypresto.androidtranscoder.TLog;
 
+import net.ypresto.androidtranscoder.format.CodecSelectionStrategy;
 import net.ypresto.androidtranscoder.format.MediaFormatExtraConstants;
-import net.ypresto.androidtranscoder.utils.MediaExtractorUtils;
+import net.ypresto.androidtranscoder.mp4.SampleTable;
+import net.ypresto.androidtranscoder.source.SampleSource;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 // Refer: https://android.googlesource.com/platform/cts/+/lollipop-release/tests/tests/media/src/android/media/cts/ExtractDecodeEditEncodeMuxTest.java
@@ -50,26 +53,32 @@ public class VideoTrackTranscoder implements TrackTranscoder {
         private boolean mIsDecoderEOS;
         private boolean mIsSegmentEOS;
         private boolean mDecoderStarted;
-        private MediaExtractor mExtractor;
-        private MediaCodec mDecoder;
-        private ByteBuffer [] mDecoderInputBuffers;
+        private SampleSource mExtractor;
+        private MediaCodecQueue mDecoder;
         private OutputSurface mOutputSurface;
         private Integer mTrackIndex;
         boolean mBufferRequeued;
         int mResult;
+        private long mPendingOutputTimeUs;
+        private long mPendingInputEndTimeUs;
         private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
-        DecoderWrapper(MediaExtractor mediaExtractor) {
-            mExtractor = mediaExtractor;
+        private final PipelineMetrics.InFlight mInFlight;
+        private final PipelineMetrics.StageSet mChannelMetrics;
+        private final String mExtractorKey;
+        DecoderWrapper(String channelName) {
+            mExtractorKey = ExtractorPool.videoKey(channelName);
+            mExtractor = mExtractorPool.acquire(mExtractorKey);
+            mInFlight = mMetrics != null ? new PipelineMetrics.InFlight() : null;
+            mChannelMetrics = mMetrics != null ? mMetrics.getChannel(channelName) : null;
         }
 
         public void start(int outputRotation, int outputWidth, int outputHeight) {
-            mOutputSurface = new OutputSurface();
-            MediaExtractorUtils.TrackResult trackResult = MediaExtractorUtils.getFirstVideoAndAudioTrack(mExtractor);
-            if (trackResult.mVideoTrackFormat != null) {
-                int trackIndex = trackResult.mVideoTrackIndex;
+            mOutputSurface = mSurfacePool.acquire();
+            mOutputSurface.setPipelineSignal(mPipelineSignal);
+            int trackIndex = mExtractorPool.getTrackIndex(mExtractorKey);
+            MediaFormat inputFormat = mExtractor.getTrackFormat(trackIndex);
+            if (inputFormat.getString(MediaFormat.KEY_MIME).startsWith("video/")) {
                 mTrackIndex = trackIndex;
-                mExtractor.selectTrack(trackIndex);
-                MediaFormat inputFormat = mExtractor.getTrackFormat(trackIndex);
                 int clipRotation = 0;
                 if (inputFormat.containsKey(MediaFormatExtraConstants.KEY_ROTATION_DEGREES))
                     clipRotation = inputFormat.getInteger(MediaFormatExtraConstants.KEY_ROTATION_DEGREES);
@@ -91,15 +100,18 @@ public class VideoTrackTranscoder implements TrackTranscoder {
                 mOutputSurface.setOriginalSourceRect(new RectF(0, 0, clipWidth, clipHeight));
                 mOutputSurface.setDestRect(new RectF(0, 0, outputWidth, outputHeight));
 
+                MediaCodec decoder;
                 try {
-                    mDecoder = MediaCodec.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME));
+                    String decoderName = mCodecSelectionStrategy != null ? mCodecSelectionStrategy.selectVideoDecoder(inputFormat) : null;
+                    decoder = decoderName != null ? MediaCodec.createByCodecName(decoderName) :
+                            MediaCodec.createDecoderByType(inputFormat.getString(MediaFormat.KEY_MIME));
                 } catch (IOException e) {
                     throw new IllegalStateException(e);
                 }
-                mDecoder.configure(inputFormat, mOutputSurface.getSurface(), null, 0);
+                mDecoder = new MediaCodecQueue(decoder, "VideoDecoder", mAsyncCodecs, mPipelineSignal);
+                mDecoder.configure(inputFormat, mOutputSurface.getSurface(), 0);
                 mDecoder.start();
                 mDecoderStarted = true;
-                mDecoderInputBuffers = mDecoder.getInputBuffers();
             }
         }
         private float mPresentationTimeus;
@@ -120,8 +132,17 @@ public class VideoTrackTranscoder implements TrackTranscoder {
             }
         }
         private int dequeueOutputBuffer(long timeoutUs) {
-            if (!mBufferRequeued)
+            if (!mBufferRequeued) {
+                long dequeueStartNs = mTrace != null ? System.nanoTime() : 0l;
                 mResult = mDecoder.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+                if (mTrace != null && mResult >= 0)
+                    mTrace.span(TraceRecorder.DECODER_DEQUEUE, TraceRecorder.TRACK_VIDEO, dequeueStartNs);
+                if (mInFlight != null && mResult >= 0 && mBufferInfo.size > 0) {
+                    long latencyUs = mInFlight.finish(mBufferInfo.presentationTimeUs);
+                    mMetrics.getVideo().record(PipelineMetrics.Stage.DECODE, latencyUs);
+                    mChannelMetrics.record(PipelineMetrics.Stage.DECODE, latencyUs);
+                }
+            }
             mBufferRequeued = false;
             return mResult;
         }
@@ -130,15 +151,20 @@ public class VideoTrackTranscoder implements TrackTranscoder {
         }
 
         private void release() {
-            if (mOutputSurface != null) {
-                mOutputSurface.release();
-                mOutputSurface = null;
-            }
             if (mDecoder != null) {
                 mDecoder.stop();
                 mDecoder.release();
                 mDecoder = null;
             }
+            if (mExtractor != null) {
+                mExtractorPool.release(mExtractorKey);
+                mExtractor = null;
+            }
+            // Decoder has disconnected from the surface so it can go to the next one
+            if (mOutputSurface != null) {
+                mSurfacePool.recycle(mOutputSurface);
+                mOutputSurface = null;
+            }
         }
 
     };
@@ -148,20 +174,21 @@ public class VideoTrackTranscoder implements TrackTranscoder {
      * that it will ultimately be blended with in the TextureRenderer
      */
     private class CanvasWrapper {
-        private MediaExtractor mExtractor;
+        private SampleSource mExtractor;
+        private int mTrackIndex;
         private OutputSurface mOutputSurface;
         private boolean mDrawn = false;
-        CanvasWrapper(MediaExtractor mediaExtractor) {
-            mExtractor = mediaExtractor;
+        CanvasWrapper(SampleSource extractor, int trackIndex) {
+            mExtractor = extractor;
+            mTrackIndex = trackIndex;
         }
 
         public void start(int outputRotation, int outputWidth, int outputHeight) {
 
-            MediaExtractorUtils.TrackResult trackResult = MediaExtractorUtils.getFirstVideoAndAudioTrack(mExtractor);
-            if (trackResult.mVideoTrackFormat != null) {
-                int trackIndex = trackResult.mVideoTrackIndex;
+            MediaFormat inputFormat = mExtractor.getTrackFormat(mTrackIndex);
+            if (inputFormat.getString(MediaFormat.KEY_MIME).startsWith("video/")) {
+                int trackIndex = mTrackIndex;
                 mExtractor.selectTrack(trackIndex);
-                MediaFormat inputFormat = mExtractor.getTrackFormat(trackIndex);
 
                 // Determine rotation of this particular video base on meta tag
                 int clipRotation = 0;
@@ -284,7 +311,103 @@ public class VideoTrackTranscoder implements TrackTranscoder {
         }
 
     };
+    /**
+     * A further encoder drawn from the same composited textures at its own resolution and muxed to
+     * its own output.  It shares the primary encoder's EGL context and frame cadence.
+     */
+    private class RenditionEncoder {
+        private final MediaFormat mOutputFormat;
+        private final QueuedMuxer mMuxer;
+        private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+        private MediaCodecQueue mEncoder;
+        private InputSurface mInputSurface;
+        private MediaFormat mActualOutputFormat;
+        private boolean mEncoderStarted;
+        private boolean mIsEncoderEOS;
+        private int mWidth;
+        private int mHeight;
+
+        RenditionEncoder(MediaFormat outputFormat, QueuedMuxer muxer) {
+            mOutputFormat = outputFormat;
+            mMuxer = muxer;
+        }
+
+        private void setup() {
+            MediaCodec encoder;
+            try {
+                String encoderName = mCodecSelectionStrategy != null ? mCodecSelectionStrategy.selectVideoEncoder(mOutputFormat) : null;
+                encoder = encoderName != null ? MediaCodec.createByCodecName(encoderName) :
+                        MediaCodec.createEncoderByType(mOutputFormat.getString(MediaFormat.KEY_MIME));
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            mEncoder = new MediaCodecQueue(encoder, "RenditionEncoder", mAsyncCodecs, mPipelineSignal);
+            mEncoder.configure(mOutputFormat, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            mInputSurface = new InputSurface(mEncoder.createInputSurface(), mEncoderInputSurfaceWrapper);
+            mWidth = mOutputFormat.getInteger(MediaFormat.KEY_WIDTH);
+            mHeight = mOutputFormat.getInteger(MediaFormat.KEY_HEIGHT);
+            mEncoder.start();
+            mEncoderStarted = true;
+        }
+
+        private void render(long presentationTimeUs) {
+            makeCurrent(mInputSurface);
+            GLES20.glViewport(0, 0, mWidth, mHeight);
+            mTextureRender.drawFrame();
+            mInputSurface.setPresentationTime(presentationTimeUs * 1000);
+            mInputSurface.swapBuffers();
+        }
+
+        private int drain(long timeoutUs) {
+            if (mIsEncoderEOS) return DRAIN_STATE_NONE;
+            int result = mEncoder.dequeueOutputBuffer(mBufferInfo, timeoutUs);
+            switch (result) {
+                case MediaCodec.INFO_TRY_AGAIN_LATER:
+                    return DRAIN_STATE_NONE;
+                case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
+                    if (mActualOutputFormat != null)
+                        throw new RuntimeException("Rendition output format changed twice.");
+                    mActualOutputFormat = mEncoder.getOutputFormat();
+                    mMuxer.setOutputFormat(QueuedMuxer.SampleType.VIDEO, mActualOutputFormat);
+                    return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
+                case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
+                    return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
+            }
+            if (mActualOutputFormat == null) {
+                throw new RuntimeException("Could not determine actual rendition output format.");
+            }
+            if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                mIsEncoderEOS = true;
+                mBufferInfo.set(0, 0, 0, mBufferInfo.flags);
+            }
+            if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                mEncoder.releaseOutputBuffer(result, false);
+                return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
+            }
+            mMuxer.writeSampleData(QueuedMuxer.SampleType.VIDEO, mEncoder.getOutputBuffer(result), mBufferInfo);
+            mEncoder.releaseOutputBuffer(result, false);
+            return DRAIN_STATE_CONSUMED;
+        }
+
+        private void release() {
+            if (mInputSurface != null) {
+                mInputSurface.release();
+                mInputSurface = null;
+            }
+            if (mEncoder != null) {
+                if (mEncoderStarted) mEncoder.stop();
+                mEncoder.release();
+                mEncoder = null;
+            }
+        }
+    }
+    private final List<RenditionEncoder> mRenditions = new ArrayList<RenditionEncoder>();
+    private int mEncoderWidth;
+    private int mEncoderHeight;
+
     LinkedHashMap<String, DecoderWrapper> mDecoderWrappers = new LinkedHashMap<String, DecoderWrapper>();
+    // Decoder of each of the current segment's video slots, so steps don't look them up by name
+    private DecoderWrapper[] mSlotDecoders = new DecoderWrapper[0];
     CanvasWrapper mCanvasWrapper = null;
 
     private static final String TAG = "VideoTrackTranscoder";
@@ -292,14 +415,17 @@ public class VideoTrackTranscoder implements TrackTranscoder {
     private static final int DRAIN_STATE_NONE = 0;
     private static final int DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY = 1;
     private static final int DRAIN_STATE_CONSUMED = 2;
-    private final LinkedHashMap<String, MediaExtractor> mExtractors;
+    private static final long DEFAULT_FRAME_TIMEOUT_US = 10000000l;
+    private final ExtractorPool mExtractorPool;
     private final MediaFormat mOutputFormat;
     private final QueuedMuxer mMuxer;
-    private MediaCodec mEncoder;
-    private ByteBuffer[] mEncoderOutputBuffers;
+    private MediaCodecQueue mEncoder;
     private MediaFormat mActualOutputFormat;
     private InputSurface mEncoderInputSurfaceWrapper;
     private boolean mIsEncoderEOS;
+    private PipelineMetrics mMetrics;
+    private PipelineMetrics.InFlight mEncoderInFlight;
+    private TraceRecorder mTrace;
     private boolean mIsSegmentFinished;
     private boolean mEncoderStarted;
     private int mTexturesReady = 0;
@@ -308,30 +434,133 @@ public class VideoTrackTranscoder implements TrackTranscoder {
     private long mOutputPresentationTimeEncodedUs = 0;
     private long mLastBufferPresentationTime = 0l;
     private long mFrameLength = 0l;
+    private FrameRateScheduler mFrameRateScheduler;
     private TextureRender mTextureRender;
+    private final SurfaceTexturePool mSurfacePool = new SurfaceTexturePool();
+    private long mSetupTimeUs = 0l;
+    private PipelineSignal mPipelineSignal;
+    private boolean mAsyncCodecs;
+    private long mFrameTimeoutUs = DEFAULT_FRAME_TIMEOUT_US;
+    private final LinkedHashMap<String, LatencyHistogram> mFrameLatency = new LinkedHashMap<String, LatencyHistogram>();
+    private CodecSelectionStrategy mCodecSelectionStrategy;
     private boolean mIsLastSegment = false;
     private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
 
-    public VideoTrackTranscoder(LinkedHashMap<String, MediaExtractor> extractors,
+    public VideoTrackTranscoder(ExtractorPool extractorPool,
                                 MediaFormat outputFormat, QueuedMuxer muxer) {
         mOutputFormat = outputFormat;
         mMuxer = muxer;
-        mExtractors = extractors;
+        mExtractorPool = extractorPool;
+        // Output cadence is fixed by the strategy's frame rate rather than derived from input buffers
+        if (outputFormat.containsKey(MediaFormat.KEY_FRAME_RATE))
+            mFrameRateScheduler = new FrameRateScheduler(outputFormat.getInteger(MediaFormat.KEY_FRAME_RATE));
+    }
+
+    /**
+     * Choose codecs with this strategy rather than by type, must be set before setupEncoder
+     * @param codecSelectionStrategy
+     */
+    public void setCodecSelectionStrategy(CodecSelectionStrategy codecSelectionStrategy) {
+        mCodecSelectionStrategy = codecSelectionStrategy;
+    }
+
+    /**
+     * Signal raised when a decoded frame reaches its surface, must be set before setupDecoders
+     * @param pipelineSignal
+     */
+    void setPipelineSignal(PipelineSignal pipelineSignal) {
+        mPipelineSignal = pipelineSignal;
+    }
+
+    /**
+     * Drive codecs through callbacks rather than polling where supported, must be set before
+     * setupEncoder
+     * @param asyncCodecs
+     */
+    void setAsyncCodecs(boolean asyncCodecs) {
+        mAsyncCodecs = asyncCodecs;
+    }
+
+    /**
+     * Record stage counts and latencies, must be set before setupDecoders
+     * @param metrics or null to record nothing
+     */
+    void setMetrics(PipelineMetrics metrics) {
+        mMetrics = metrics;
+        mEncoderInFlight = metrics != null ? new PipelineMetrics.InFlight() : null;
+    }
+
+    /**
+     * Record stage spans for a timeline view
+     * @param trace or null to record nothing
+     */
+    void setTrace(TraceRecorder trace) {
+        mTrace = trace;
+    }
+
+    /**
+     * How long a frame released to a surface may take to arrive before the transcode fails
+     * @param frameTimeoutUs
+     */
+    public void setFrameTimeoutUs(long frameTimeoutUs) {
+        mFrameTimeoutUs = frameTimeoutUs;
+    }
+
+    /**
+     * Encode the same frames a second time at the rendition's size and mux them to its own
+     * output, must be called before setupEncoder
+     * @param outputFormat format with the same frame rate as the primary output
+     * @param muxer
+     */
+    void addRendition(MediaFormat outputFormat, QueuedMuxer muxer) {
+        mRenditions.add(new RenditionEncoder(outputFormat, muxer));
+    }
+
+    /**
+     * Time from releasing each frame to its surface until it was latched, by channel
+     */
+    public Map<String, LatencyHistogram> getFrameLatencyHistograms() {
+        return mFrameLatency;
+    }
+
+    private LatencyHistogram frameLatency(String channelName) {
+        LatencyHistogram histogram = mFrameLatency.get(channelName);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            mFrameLatency.put(channelName, histogram);
+        }
+        return histogram;
     }
 
     @Override
     public void setupEncoder() {
+        long startTimeNs = System.nanoTime();
+        MediaCodec encoder;
         try {
-            mEncoder = MediaCodec.createEncoderByType(mOutputFormat.getString(MediaFormat.KEY_MIME));
+            String encoderName = mCodecSelectionStrategy != null ? mCodecSelectionStrategy.selectVideoEncoder(mOutputFormat) : null;
+            encoder = encoderName != null ? MediaCodec.createByCodecName(encoderName) :
+                    MediaCodec.createEncoderByType(mOutputFormat.getString(MediaFormat.KEY_MIME));
         } catch (IOException e) {
             throw new IllegalStateException(e);
         }
-        mEncoder.configure(mOutputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+        mEncoder = new MediaCodecQueue(encoder, "VideoEncoder", mAsyncCodecs, mPipelineSignal);
+        mEncoder.configure(mOutputFormat, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mEncoderInputSurfaceWrapper = new InputSurface(mEncoder.createInputSurface());
-        mEncoderInputSurfaceWrapper.makeCurrent();
+        makeCurrent(mEncoderInputSurfaceWrapper);
         mEncoder.start();
         mEncoderStarted = true;
-        mEncoderOutputBuffers = mEncoder.getOutputBuffers();
+        if (!mRenditions.isEmpty()) {
+            // Renditions switch the viewport so the primary has to put its own back
+            mEncoderWidth = mEncoderInputSurfaceWrapper.getWidth();
+            mEncoderHeight = mEncoderInputSurfaceWrapper.getHeight();
+            for (RenditionEncoder rendition : mRenditions)
+                rendition.setup();
+            makeCurrent(mEncoderInputSurfaceWrapper);
+        }
+
+        if (mFrameRateScheduler != null)
+            mFrameRateScheduler.reset(mOutputPresentationTimeDecodedUs);
+        addSetupTime(startTimeNs);
     }
     private void createWrapperSlot (TimeLine.Segment segment) {
 
@@ -342,9 +571,8 @@ public class VideoTrackTranscoder implements TrackTranscoder {
         Iterator<Map.Entry<String, VideoTrackTranscoder.DecoderWrapper>> iterator = mDecoderWrappers.entrySet().iterator();
         while (iterator.hasNext()) {
             Map.Entry<String, VideoTrackTranscoder.DecoderWrapper> decoderWrapperEntry = iterator.next();
-            if (!segment.getVideoChannels().containsKey(decoderWrapperEntry.getKey())) {
+            if (segment.getVideoSlotIndex(decoderWrapperEntry.getKey()) < 0) {
                 decoderWrapperEntry.getValue().release();
-                segment.timeLine().getChannels().get(decoderWrapperEntry.getKey()).mInputEndTimeUs = 0l;
                 iterator.remove();
                 TLog.d(TAG, "setupDecoders Releasing Decoder " + decoderWrapperEntry.getKey());
                 return;
@@ -359,21 +587,27 @@ public class VideoTrackTranscoder implements TrackTranscoder {
      */
     @Override
     public void setupDecoders(TimeLine.Segment segment, MediaTranscoderEngine.TranscodeThrottle throttle, int outputRotation, int width, int height) {
+        long startTimeNs = System.nanoTime();
         if (mCanvasWrapper != null) {
             mCanvasWrapper.release();
             mCanvasWrapper = null;
         }
         // Start any decoders being opened for the first time
 
-        for (Map.Entry<String, TimeLine.InputChannel> entry : segment.getVideoChannels().entrySet()) {
-            TimeLine.InputChannel inputChannel = entry.getValue();
-            String channelName = entry.getKey();
+        TimeLine.ChannelSlot[] slots = segment.getVideoSlots();
+        mSlotDecoders = new DecoderWrapper[slots.length];
+        for (int slot = 0; slot < slots.length; ++slot) {
+            String channelName = slots[slot].mName;
             DecoderWrapper decoderWrapper = mDecoderWrappers.get(channelName);
             if (decoderWrapper == null) {
                 createWrapperSlot(segment);
-                decoderWrapper = new DecoderWrapper(mExtractors.get(channelName));
+                decoderWrapper = new DecoderWrapper(channelName);
                 mDecoderWrappers.put(channelName, decoderWrapper);
+                // A fresh extractor starts at the beginning so take it to where the channel left off
+                if (slots[slot].mSegmentChannel.mSeek == null && slots[slot].mChannel.mVideoInputStartTimeUs > 0)
+                    slots[slot].mSegmentChannel.mSeek = slots[slot].mChannel.mVideoInputStartTimeUs;
             }
+            mSlotDecoders[slot] = decoderWrapper;
             decoderWrapper.mIsSegmentEOS = false;
             if (!decoderWrapper.mDecoderStarted) {
                 TLog.d(TAG, "setupDecoders starting decoder for " + channelName);
@@ -381,7 +615,7 @@ public class VideoTrackTranscoder implements TrackTranscoder {
             }
 
             if (false && mCanvasWrapper == null) {
-                mCanvasWrapper = new CanvasWrapper(mExtractors.get(channelName));
+                mCanvasWrapper = new CanvasWrapper(decoderWrapper.mExtractor, decoderWrapper.mTrackIndex);
                 mCanvasWrapper.start(outputRotation, width, height);
             }
 
@@ -391,23 +625,24 @@ public class VideoTrackTranscoder implements TrackTranscoder {
         // Create array of texture renderers for each patch in the segment
 
         ArrayList<OutputSurface> outputSurfaces = new ArrayList<OutputSurface>(2);
-        for (Map.Entry<String, TimeLine.InputChannel> inputChannelEntry : segment.getVideoChannels().entrySet()) {
-            String channelName = inputChannelEntry.getKey();
-            TimeLine.InputChannel inputChannel = inputChannelEntry.getValue();
-            DecoderWrapper decoderWrapper = mDecoderWrappers.get(channelName);
+        for (int slot = 0; slot < slots.length; ++slot) {
+            TimeLine.InputChannel inputChannel = slots[slot].mChannel;
+            DecoderWrapper decoderWrapper = mSlotDecoders[slot];
             decoderWrapper.mOutputSurface.setAlpha(1.0f);
             if (!decoderWrapper.mIsDecoderEOS) {
                 outputSurfaces.add(decoderWrapper.mOutputSurface);
-                decoderWrapper.setFilter(inputChannel.mFilter, mOutputPresentationTimeDecodedUs, segment.getDuration());
-                throttle.participate("Video" + channelName);
+                decoderWrapper.setFilter(inputChannel.mFilter, mOutputPresentationTimeDecodedUs, segment.getTiming().mDurationUs);
+                throttle.participate(slots[slot].mVideoThrottleKey);
             } else
                 decoderWrapper.mIsSegmentEOS = true;
         }
-        if (mCanvasWrapper != null)
-            mTextureRender = new TextureRender(outputSurfaces, mCanvasWrapper.mOutputSurface);
-        else
-            mTextureRender = new TextureRender(outputSurfaces, null);
-        mTextureRender.surfaceCreated();
+        // The program is compiled once for the encoder's context, later segments just switch surfaces
+        OutputSurface overlaySurface = mCanvasWrapper != null ? mCanvasWrapper.mOutputSurface : null;
+        if (mTextureRender == null) {
+            mTextureRender = new TextureRender(outputSurfaces, overlaySurface);
+            mTextureRender.surfaceCreated();
+        } else
+            mTextureRender.changeSurfaces(outputSurfaces, overlaySurface);
         TLog.d(TAG, "Surface Texture Created for " + outputSurfaces.size() + " surfaces");
         mTextures = outputSurfaces.size();
         mIsSegmentFinished = false;
@@ -416,6 +651,7 @@ public class VideoTrackTranscoder implements TrackTranscoder {
         mTexturesReady = 0;
         if (mCanvasWrapper != null)
             mCanvasWrapper.draw(null);
+        addSetupTime(startTimeNs);
     }
 
     @Override
@@ -428,6 +664,7 @@ public class VideoTrackTranscoder implements TrackTranscoder {
         boolean stepped = false;
         int status;
         while (drainEncoder(0) != DRAIN_STATE_NONE) stepped = true;
+        if (drainRenditions()) stepped = true;
         do {
             status = drainDecoders(outputSegment, 0, throttle);
             if (status != DRAIN_STATE_NONE) stepped = true;
@@ -450,6 +687,9 @@ public class VideoTrackTranscoder implements TrackTranscoder {
     @Override
     public void setOutputPresentationTimeDecodedUs(long presentationTimeDecodedUs) {
         mOutputPresentationTimeDecodedUs = presentationTimeDecodedUs;
+        // A resumed part's cadence starts where the last part ended, not at zero
+        if (mFrameRateScheduler != null)
+            mFrameRateScheduler.reset(presentationTimeDecodedUs);
     }
 
     @Override
@@ -457,11 +697,65 @@ public class VideoTrackTranscoder implements TrackTranscoder {
         return mIsSegmentFinished;
     }
 
+    FrameRateScheduler getFrameRateScheduler() {
+        return mFrameRateScheduler;
+    }
+
+    /**
+     * Frames dropped to hold the output frame rate
+     */
+    public long getFramesDropped() {
+        return mFrameRateScheduler != null ? mFrameRateScheduler.getFramesDropped() : 0l;
+    }
+
+    /**
+     * Frames duplicated to hold the output frame rate
+     */
+    public long getFramesDuplicated() {
+        return mFrameRateScheduler != null ? mFrameRateScheduler.getFramesDuplicated() : 0l;
+    }
+
+    /**
+     * Time spent creating codecs, surfaces and GL state across all segments
+     */
+    public long getSetupTimeUs() {
+        return mSetupTimeUs;
+    }
+
+    private void addSetupTime(long startTimeNs) {
+        long setupUs = (System.nanoTime() - startTimeNs) / 1000;
+        mSetupTimeUs += setupUs;
+        if (mMetrics != null)
+            mMetrics.setup(setupUs);
+    }
+
+    private void makeCurrent(InputSurface surface) {
+        surface.makeCurrent();
+        if (mMetrics != null)
+            mMetrics.contextSwitched();
+    }
+
+    /**
+     * EGL context switches made for the encoder session
+     */
+    public int getContextSwitchCount() {
+        return mEncoderInputSurfaceWrapper != null ? mEncoderInputSurfaceWrapper.getMakeCurrentCount() : 0;
+    }
+
     // TODO: CloseGuard
     @Override
     public void releaseEncoder() {
         TLog.d(TAG, "ReleaseEncoder");
+        // Pooled textures belong to the encoder's EGL context so go first, as do surfaces sharing it
+        mSurfacePool.release();
+        for (RenditionEncoder rendition : mRenditions)
+            rendition.release();
+        mRenditions.clear();
         if (mEncoderInputSurfaceWrapper != null) {
+            TLog.i(TAG, "Setup " + mSetupTimeUs + "us, " + getContextSwitchCount() + " context switches, " +
+                    mSurfacePool.getCreatedCount() + " surfaces created, " + mSurfacePool.getReusedCount() + " reused");
+            for (Map.Entry<String, LatencyHistogram> entry : mFrameLatency.entrySet())
+                TLog.i(TAG, "Frame latency on channel " + entry.getKey() + ": " + entry.getValue());
             mEncoderInputSurfaceWrapper.release();
             mEncoderInputSurfaceWrapper = null;
         }
@@ -471,6 +765,7 @@ public class VideoTrackTranscoder implements TrackTranscoder {
             mEncoder = null;
         }
         //mTextureRender.surfaceFinished();
+        mTextureRender = null;
     }
 
     /**
@@ -481,6 +776,8 @@ public class VideoTrackTranscoder implements TrackTranscoder {
         for (Map.Entry<String, DecoderWrapper> decoderWrapperEntry : mDecoderWrappers.entrySet()) {
             decoderWrapperEntry.getValue().release();
         }
+        // Any channel in a later segment opens a fresh decoder
+        mDecoderWrappers.clear();
     }
 
     /**
@@ -502,10 +799,12 @@ public class VideoTrackTranscoder implements TrackTranscoder {
 
         boolean sampleProcessed = false;
 
-        for (Map.Entry<String, TimeLine.InputChannel> inputChannelEntry : segment.getVideoChannels().entrySet()) {
+        TimeLine.ChannelSlot[] slots = segment.getVideoSlots();
+        for (int slot = 0; slot < slots.length; ++slot) {
 
-            String channelName = inputChannelEntry.getKey();
-            DecoderWrapper decoderWrapper = mDecoderWrappers.get(channelName);
+            TimeLine.ChannelSlot channelSlot = slots[slot];
+            String channelName = channelSlot.mName;
+            DecoderWrapper decoderWrapper = mSlotDecoders[slot];
             if (!decoderWrapper.mIsExtractorEOS  && !decoderWrapper.mOutputSurface.isExtraTextures()) {
 
                 // Find out which track the extractor has samples for next
@@ -513,11 +812,25 @@ public class VideoTrackTranscoder implements TrackTranscoder {
 
                 // Sample is for a different track (like audio) ignore
                 if (trackIndex >= 0 && trackIndex != decoderWrapper.mTrackIndex) {
-                    if (inputChannelEntry.getValue().mChannelType == TimeLine.ChannelType.AUDIO)
+                    if (channelSlot.mChannel.mChannelType == TimeLine.ChannelType.AUDIO)
                         decoderWrapper.mExtractor.advance(); // Skip video
                     continue;
                 }
 
+                // Jump straight to the sync sample preceding the seek point when the index has one
+                TimeLine.SegmentChannel segmentChannel = channelSlot.mSegmentChannel;
+                Long seek = segmentChannel.getVideoSeek();
+                SampleTable sampleTable = channelSlot.mChannel.mVideoSampleTable;
+                if (seek != null && sampleTable != null && trackIndex >= 0) {
+                    long syncTimeUs = sampleTable.getSyncTimeUsAtOrBefore(seek);
+                    segmentChannel.seekRequestedVideo(); // So we don't repeat
+                    if (syncTimeUs > decoderWrapper.mExtractor.getSampleTime()) {
+                        decoderWrapper.mExtractor.seekTo(syncTimeUs, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
+                        TLog.d(TAG, "Extractor Seek " + seek + " to sync sample " + syncTimeUs);
+                        continue;
+                    }
+                }
+
                 // Get buffer index to be filled
                 int result = decoderWrapper.mDecoder.dequeueInputBuffer(timeoutUs);
 
@@ -533,16 +846,20 @@ public class VideoTrackTranscoder implements TrackTranscoder {
                 }
 
                 // Get the sample into the buffer
-                int sampleSize = decoderWrapper.mExtractor.readSampleData(decoderWrapper.mDecoderInputBuffers[result], 0);
+                long readStartNs = mTrace != null ? System.nanoTime() : 0l;
+                int sampleSize = decoderWrapper.mExtractor.readSampleData(decoderWrapper.mDecoder.getInputBuffer(result), 0);
+                if (mTrace != null)
+                    mTrace.span(TraceRecorder.EXTRACTOR_READ, TraceRecorder.TRACK_VIDEO, readStartNs);
                 long sampleTime = decoderWrapper.mExtractor.getSampleTime();
                 boolean isKeyFrame = (decoderWrapper.mExtractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0;
                 decoderWrapper.mDecoder.queueInputBuffer(result, 0, sampleSize, sampleTime, isKeyFrame ? MediaCodec.BUFFER_FLAG_SYNC_FRAME : 0);
+                if (decoderWrapper.mInFlight != null)
+                    decoderWrapper.mInFlight.start(sampleTime);
                 decoderWrapper.mExtractor.advance();
                 sampleProcessed = true;
 
-                // Seek at least to previous key frame if needed cause it's a lot faster
-                TimeLine.SegmentChannel segmentChannel = segment.getSegmentChannel(channelName);
-                Long seek = segmentChannel.getVideoSeek();
+                // Without an index seek at least to previous key frame if needed cause it's a lot faster
+                seek = segmentChannel.getVideoSeek();
                 if (seek != null && (sampleTime + 500000) < seek) {
                     decoderWrapper.mExtractor.seekTo(seek, MediaExtractor.SEEK_TO_PREVIOUS_SYNC);
                     segmentChannel.seekRequestedVideo(); // So we don't repeat
@@ -564,25 +881,36 @@ public class VideoTrackTranscoder implements TrackTranscoder {
         String info = "";
 
         // Go through each decoder in the segment and get it's frame into a texture
-        for (Map.Entry<String, TimeLine.InputChannel> inputChannelEntry : segment.getVideoChannels().entrySet()) {
+        TimeLine.ChannelSlot[] slots = segment.getVideoSlots();
+        for (int slot = 0; slot < slots.length; ++slot) {
 
-            String channelName = inputChannelEntry.getKey();
-            TimeLine.InputChannel inputChannel = inputChannelEntry.getValue();
-            DecoderWrapper decoderWrapper = mDecoderWrappers.get(channelName);
+            TimeLine.ChannelSlot channelSlot = slots[slot];
+            String channelName = channelSlot.mName;
+            TimeLine.InputChannel inputChannel = channelSlot.mChannel;
+            DecoderWrapper decoderWrapper = mSlotDecoders[slot];
 
             // Only process if we have not end end of stream for this decoder or extractor
-            if (throttle.canProceed("Video" + channelName, mLastBufferPresentationTime, decoderWrapper.mIsDecoderEOS) &&
+            if (throttle.canProceed(channelSlot.mVideoThrottleKey, mLastBufferPresentationTime, decoderWrapper.mIsDecoderEOS) &&
                 !decoderWrapper.mIsDecoderEOS && !decoderWrapper.mIsSegmentEOS) {
 
-                info += channelName + ": " + (decoderWrapper.mOutputSurface.isExtraTextures() ? "duplicate" :
+                if (mCanvasWrapper != null)
+                    info += channelName + ": " + (decoderWrapper.mOutputSurface.isFramePending() ? "pending" :
+                        decoderWrapper.mOutputSurface.isExtraTextures() ? "duplicate" :
                         decoderWrapper.mOutputSurface.isTextureReady() ? "deferred" : "fresh");
 
-                if (!decoderWrapper.mOutputSurface.isTextureReady() && decoderWrapper.mOutputSurface.consumeDuplicateTexture()) {
+                // A frame released on an earlier step is latched once it arrives, other channels and
+                // the encoder keep moving in the meantime
+                if (decoderWrapper.mOutputSurface.isFramePending()) {
+                    if (latchFrame(decoderWrapper, channelName)) {
+                        frameLatched(decoderWrapper, inputChannel, channelName);
+                        consumed = true;
+                    }
+                } else if (!decoderWrapper.mOutputSurface.isTextureReady() && decoderWrapper.mOutputSurface.consumeDuplicateTexture()) {
                     inputChannel.mVideoInputOffsetUs += mFrameLength;
                     mOutputPresentationTimeDecodedUs = Math.max(mOutputPresentationTimeDecodedUs, decoderWrapper.mBufferInfo.presentationTimeUs + inputChannel.mVideoInputOffsetUs);
                     decoderWrapper.filterTick(mOutputPresentationTimeDecodedUs);
                     ++mTexturesReady;
-                    TLog.v(TAG, "Duplicate Texture ready " + mOutputPresentationTimeDecodedUs + " (" + decoderWrapper.mBufferInfo.presentationTimeUs + ")" + " for decoder " + channelName);
+                    TLog.v(TAG, "Duplicate Texture ready {} ({}) for decoder {}", mOutputPresentationTimeDecodedUs, decoderWrapper.mBufferInfo.presentationTimeUs, channelName);
 
                     consumed = true;
                     decoderWrapper.mOutputSurface.setDuplicateTextureReady();
@@ -614,12 +942,14 @@ public class VideoTrackTranscoder implements TrackTranscoder {
                     inputChannel.mLastBufferPresentationTime = bufferInputStartTime;
                     mLastBufferPresentationTime = bufferOutputTime;
 
-                    TLog.v(TAG, "Processing Video Buffer on channel " + channelName +
-                            " bufferInputStartTime=" + bufferInputStartTime +
-                            " mFrameLength= " + mFrameLength +
-                            " bufferOutputTime=" + bufferOutputTime +
-                            " mVideoInputOffsetUs=" + inputChannel.mVideoInputOffsetUs +
-                            " mOutputPresentationTimeDecodedUs=" + mOutputPresentationTimeDecodedUs);
+                    TLog.trace("VideoDecoded", bufferInputStartTime, bufferOutputTime);
+                    if (TLog.isLoggable(TAG, TLog.VERBOSE))
+                        TLog.v(TAG, "Processing Video Buffer on channel " + channelName +
+                                " bufferInputStartTime=" + bufferInputStartTime +
+                                " mFrameLength= " + mFrameLength +
+                                " bufferOutputTime=" + bufferOutputTime +
+                                " mVideoInputOffsetUs=" + inputChannel.mVideoInputOffsetUs +
+                                " mOutputPresentationTimeDecodedUs=" + mOutputPresentationTimeDecodedUs);
 
                     // See if encoder is end-of-stream and propagate to output surface
                     if ((decoderWrapper.mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
@@ -664,7 +994,7 @@ public class VideoTrackTranscoder implements TrackTranscoder {
                                     long framesToAdd = Math.round(((double) timeLeftToAdd) / ((double) timeLeft));
                                     if (framesToAdd > 0) {
                                         decoderWrapper.mOutputSurface.duplicateTextures(framesToAdd);
-                                        TLog.v(TAG, "Scaling up channel " + channelName + " framesToAdd=" + framesToAdd );
+                                        TLog.v(TAG, "Scaling up channel {} framesToAdd={}", channelName, framesToAdd);
                                         inputChannel.mTimeAlreadyAdded += framesToAdd * mFrameLength;
                                     }
                                 }
@@ -672,26 +1002,32 @@ public class VideoTrackTranscoder implements TrackTranscoder {
 
                             // If we are cutting a frame make adjustments to the offset and cut amounts
                             if (cutFrame) {
-                                TLog.v(TAG, "Scaling down channel " + channelName + " skipping buffer");
+                                TLog.v(TAG, "Scaling down channel {} skipping buffer", channelName);
                                 inputChannel.mFrameWasCut = true;
                                 inputChannel.mVideoInputAcutalEndTimeUs = bufferInputEndTime;
                                 decoderWrapper.mDecoder.releaseOutputBuffer(result, false);
 
                                 // Otherwise prepare texture for rending
                             } else {
+                                decoderWrapper.mOutputSurface.requestFrame();
+                                long releaseStartNs = mTrace != null ? System.nanoTime() : 0l;
                                 decoderWrapper.mDecoder.releaseOutputBuffer(result, true);
-                                decoderWrapper.mOutputSurface.awaitNewImage();
-                                decoderWrapper.filterTick(mOutputPresentationTimeDecodedUs);
-                                ++mTexturesReady;
-                                consumed = true;
-                                mOutputPresentationTimeDecodedUs = bufferOutputTime;
-                                TLog.v(TAG, "Texture ready channel " + channelName + " mOutputPresentationTimeDecodedUs=" + mOutputPresentationTimeDecodedUs);
-                                inputChannel.mVideoInputAcutalEndTimeUs = bufferInputEndTime;
+                                if (mTrace != null)
+                                    mTrace.span(TraceRecorder.DECODER_RELEASE, TraceRecorder.TRACK_VIDEO, releaseStartNs);
+                                TimeLine.SegmentChannel segmentChannel = channelSlot.mSegmentChannel;
+                                if (segmentChannel.finishPreRoll())
+                                    TLog.i(TAG, "Pre-roll on channel " + channelName + " took " + segmentChannel.mPreRollFrames +
+                                            " frames in " + segmentChannel.mPreRollTimeUs + "us");
+                                decoderWrapper.mPendingOutputTimeUs = bufferOutputTime;
+                                decoderWrapper.mPendingInputEndTimeUs = bufferInputEndTime;
+                                if (latchFrame(decoderWrapper, channelName))
+                                    frameLatched(decoderWrapper, inputChannel, channelName);
                             }
 
                         // Seeking - release it without rendering
                         } else {
-                            TLog.v(TAG, "Skipping video on channel" + channelName);
+                            TLog.v(TAG, "Skipping video on channel {}", channelName);
+                            channelSlot.mSegmentChannel.preRollFrame();
                             decoderWrapper.mDecoder.releaseOutputBuffer(result, false);
                             inputChannel.mVideoInputAcutalEndTimeUs = bufferInputEndTime;
                             mOutputPresentationTimeDecodedUs = bufferOutputEndTime;
@@ -704,8 +1040,11 @@ public class VideoTrackTranscoder implements TrackTranscoder {
 
 
         if (allDecodersEndOfStream()) {
-            if (mIsLastSegment && !mIsSegmentFinished)
+            if (mIsLastSegment && !mIsSegmentFinished) {
                 mEncoder.signalEndOfInputStream();
+                for (RenditionEncoder rendition : mRenditions)
+                    rendition.mEncoder.signalEndOfInputStream();
+            }
             mIsSegmentFinished = true;
         }
 
@@ -717,19 +1056,92 @@ public class VideoTrackTranscoder implements TrackTranscoder {
                 mCanvasWrapper.draw(info);
                 mCanvasWrapper.mOutputSurface.updateTexture();
             }
-            mTextureRender.drawFrame();
 
-            TLog.v(TAG, "Encoded video " + mOutputPresentationTimeDecodedUs + " for decoder ");
-            mEncoderInputSurfaceWrapper.setPresentationTime(mOutputPresentationTimeDecodedUs * 1000);
-            mEncoderInputSurfaceWrapper.swapBuffers();
+            // Place the frame on the output cadence, dropping or duplicating it as needed
+            int frames = mFrameRateScheduler != null ? mFrameRateScheduler.schedule(mOutputPresentationTimeDecodedUs) : 1;
+            if (frames == 0) {
+                TLog.v(TAG, "Dropped video {} to maintain frame rate", mOutputPresentationTimeDecodedUs);
+                mTextureRender.skipFrame();
+                if (mMetrics != null)
+                    mMetrics.frameDropped();
+            } else if (frames > 1 && mMetrics != null)
+                mMetrics.framesDuplicated(frames - 1);
+            for (int frame = 0; frame < frames; ++frame) {
+                long presentationTimeUs = mFrameRateScheduler != null ? mFrameRateScheduler.getOutputTimeUs() : mOutputPresentationTimeDecodedUs;
+                long renderStartNs = mMetrics != null || mTrace != null ? System.nanoTime() : 0l;
+                mTextureRender.drawFrame();
+                if (mTrace != null)
+                    mTrace.span(TraceRecorder.DRAW_FRAME, TraceRecorder.TRACK_VIDEO, renderStartNs);
+
+                TLog.v(TAG, "Encoded video {}", presentationTimeUs);
+                TLog.trace("VideoRendered", presentationTimeUs, frame);
+                mEncoderInputSurfaceWrapper.setPresentationTime(presentationTimeUs * 1000);
+                long swapStartNs = mTrace != null ? System.nanoTime() : 0l;
+                mEncoderInputSurfaceWrapper.swapBuffers();
+                if (mTrace != null)
+                    mTrace.span(TraceRecorder.SWAP_BUFFERS, TraceRecorder.TRACK_VIDEO, swapStartNs);
+                if (!mRenditions.isEmpty())
+                    renderRenditions(presentationTimeUs);
+                if (mMetrics != null) {
+                    mMetrics.getVideo().record(PipelineMetrics.Stage.RENDER, (System.nanoTime() - renderStartNs) / 1000);
+                    mEncoderInFlight.start(presentationTimeUs);
+                }
+                if (mFrameRateScheduler != null)
+                    mFrameRateScheduler.advance();
+
+                // Keep the encoder moving when duplicating so swapBuffers can't block on a full queue
+                if (frame + 1 < frames) {
+                    while (drainEncoder(0) != DRAIN_STATE_NONE);
+                    drainRenditions();
+                }
+            }
             mTexturesReady = 0;
-            mOutputPresentationTimeEncodedUs += mFrameLength;
+            if (mFrameRateScheduler != null)
+                mOutputPresentationTimeEncodedUs = mFrameRateScheduler.getOutputTimeUs();
+            else
+                mOutputPresentationTimeEncodedUs += mFrameLength;
             mOutputPresentationTimeDecodedUs = Math.max(mFrameLength + mOutputPresentationTimeDecodedUs, mOutputPresentationTimeDecodedUs);
         }
 
         return consumed ? DRAIN_STATE_CONSUMED : DRAIN_STATE_NONE;
     }
 
+    /**
+     * Draw the frame just encoded into each rendition then return to the primary surface
+     */
+    private void renderRenditions(long presentationTimeUs) {
+        for (RenditionEncoder rendition : mRenditions)
+            rendition.render(presentationTimeUs);
+        makeCurrent(mEncoderInputSurfaceWrapper);
+        GLES20.glViewport(0, 0, mEncoderWidth, mEncoderHeight);
+    }
+
+    private boolean drainRenditions() {
+        boolean drained = false;
+        for (RenditionEncoder rendition : mRenditions)
+            while (rendition.drain(0) != DRAIN_STATE_NONE) drained = true;
+        return drained;
+    }
+
+    private boolean latchFrame(DecoderWrapper decoderWrapper, String channelName) {
+        long latchStartNs = mTrace != null ? System.nanoTime() : 0l;
+        boolean latched = decoderWrapper.mOutputSurface.latchFrame(mFrameTimeoutUs, frameLatency(channelName));
+        if (mTrace != null)
+            mTrace.span(TraceRecorder.AWAIT_NEW_IMAGE, TraceRecorder.TRACK_VIDEO, latchStartNs);
+        return latched;
+    }
+
+    /**
+     * Account for a rendered frame once its texture has been latched
+     */
+    private void frameLatched(DecoderWrapper decoderWrapper, TimeLine.InputChannel inputChannel, String channelName) {
+        decoderWrapper.filterTick(mOutputPresentationTimeDecodedUs);
+        ++mTexturesReady;
+        mOutputPresentationTimeDecodedUs = decoderWrapper.mPendingOutputTimeUs;
+        TLog.v(TAG, "Texture ready channel {} mOutputPresentationTimeDecodedUs={}", channelName, mOutputPresentationTimeDecodedUs);
+        inputChannel.mVideoInputAcutalEndTimeUs = decoderWrapper.mPendingInputEndTimeUs;
+    }
+
     boolean allDecodersEndOfStream () {
         boolean isDecoderEndOfStream = true;
         for (Map.Entry<String, DecoderWrapper> decoderWrapperEntry : mDecoderWrappers.entrySet()) {
@@ -741,6 +1153,7 @@ public class VideoTrackTranscoder implements TrackTranscoder {
 
     private int drainEncoder(long timeoutUs) {
         if (mIsEncoderEOS) return DRAIN_STATE_NONE;
+        long drainStartNs = mTrace != null ? System.nanoTime() : 0l;
         int result = mEncoder.dequeueOutputBuffer(mBufferInfo, timeoutUs);
         switch (result) {
             case MediaCodec.INFO_TRY_AGAIN_LATER:
@@ -752,7 +1165,7 @@ public class VideoTrackTranscoder implements TrackTranscoder {
                 mMuxer.setOutputFormat(QueuedMuxer.SampleType.VIDEO, mActualOutputFormat);
                 return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
             case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
-                mEncoderOutputBuffers = mEncoder.getOutputBuffers();
+                // Buffers are fetched by index
                 return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
         }
         if (mActualOutputFormat == null) {
@@ -770,8 +1183,20 @@ public class VideoTrackTranscoder implements TrackTranscoder {
             return DRAIN_STATE_SHOULD_RETRY_IMMEDIATELY;
         }
 
-        mMuxer.writeSampleData(QueuedMuxer.SampleType.VIDEO, mEncoderOutputBuffers[result], mBufferInfo);
+        if ((mMetrics != null || mTrace != null) && mBufferInfo.size > 0) {
+            if (mMetrics != null)
+                mMetrics.getVideo().record(PipelineMetrics.Stage.ENCODE, mEncoderInFlight.finish(mBufferInfo.presentationTimeUs));
+            long muxStartNs = System.nanoTime();
+            mMuxer.writeSampleData(QueuedMuxer.SampleType.VIDEO, mEncoder.getOutputBuffer(result), mBufferInfo);
+            if (mMetrics != null)
+                mMetrics.getVideo().record(PipelineMetrics.Stage.MUX, (System.nanoTime() - muxStartNs) / 1000);
+            if (mTrace != null)
+                mTrace.span(TraceRecorder.MUXER_WRITE, TraceRecorder.TRACK_VIDEO, muxStartNs);
+        } else
+            mMuxer.writeSampleData(QueuedMuxer.SampleType.VIDEO, mEncoder.getOutputBuffer(result), mBufferInfo);
         mEncoder.releaseOutputBuffer(result, false);
+        if (mTrace != null)
+            mTrace.span(TraceRecorder.ENCODER_DRAIN, TraceRecorder.TRACK_VIDEO, drainStartNs);
         return DRAIN_STATE_CONSUMED;
     }
 }
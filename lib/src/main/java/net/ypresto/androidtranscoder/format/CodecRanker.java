@@ -0,0 +1,91 @@
+package net.ypresto.androidtranscoder.format;
+
+import net.ypresto.androidtranscoder.compat.CodecCapabilityTable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Orders candidate codecs by expected throughput at a frame size.  A measured frame rate is used
+ * when there is one, then the frame rate the vendor declares achievable, and codecs with
+ * neither are placed after the others with hardware codecs ahead of software ones.  Codecs that
+ * can't handle the frame size are left out.  Equal candidates keep their MediaCodecList order.
+ */
+public class CodecRanker {
+
+    /**
+     * Source of declared frame rates, i.e. VideoCapabilities.getAchievableFrameRatesFor
+     */
+    public interface FrameRateEstimator {
+        /**
+         * @return achievable frames per second or NaN if unknown
+         */
+        double getAchievableFrameRate(CodecCapabilityTable.Entry entry, int width, int height);
+    }
+
+    private CodecRanker() {
+    }
+
+    /**
+     * @param candidates codecs in MediaCodecList order
+     * @param width
+     * @param height
+     * @param measurements calibration results, may be null
+     * @param estimator declared frame rates, may be null
+     * @return codecs supporting the size, fastest first
+     */
+    public static List<CodecCapabilityTable.Entry> rank(List<CodecCapabilityTable.Entry> candidates, int width, int height,
+                                                        CodecThroughputTable measurements, FrameRateEstimator estimator) {
+        List<Candidate> ranked = new ArrayList<Candidate>();
+        for (CodecCapabilityTable.Entry entry : candidates) {
+            if (!entry.isSizeSupported(width, height))
+                continue;
+            double score = measurements != null ? measurements.getFramesPerSecond(entry.mName, width, height) : Double.NaN;
+            if (Double.isNaN(score) && estimator != null)
+                score = estimator.getAchievableFrameRate(entry, width, height);
+            ranked.add(new Candidate(entry, score));
+        }
+        Collections.sort(ranked, new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate lhs, Candidate rhs) {
+                boolean lhsKnown = !Double.isNaN(lhs.mScore);
+                boolean rhsKnown = !Double.isNaN(rhs.mScore);
+                if (lhsKnown && rhsKnown)
+                    return Double.compare(rhs.mScore, lhs.mScore);
+                if (lhsKnown != rhsKnown)
+                    return lhsKnown ? -1 : 1;
+                if (lhs.mIsSoftware != rhs.mIsSoftware)
+                    return lhs.mIsSoftware ? 1 : -1;
+                return 0;
+            }
+        });
+        List<CodecCapabilityTable.Entry> entries = new ArrayList<CodecCapabilityTable.Entry>(ranked.size());
+        for (Candidate candidate : ranked)
+            entries.add(candidate.mEntry);
+        return entries;
+    }
+
+    private static class Candidate {
+        final CodecCapabilityTable.Entry mEntry;
+        final double mScore;
+        final boolean mIsSoftware;
+
+        Candidate(CodecCapabilityTable.Entry entry, double score) {
+            mEntry = entry;
+            mScore = score;
+            mIsSoftware = isSoftwareCodec(entry.mName);
+        }
+    }
+
+    /**
+     * Software codecs by the platform's naming conventions
+     * @param codecName
+     * @return
+     */
+    public static boolean isSoftwareCodec(String codecName) {
+        return codecName.startsWith("OMX.google.") || codecName.startsWith("c2.android.") ||
+                codecName.contains(".sw.");
+    }
+}
@@ -0,0 +1,22 @@
+package net.ypresto.androidtranscoder.format;
+
+import android.media.MediaFormat;
+
+/**
+ * Optional extension of {@link MediaFormatStrategy} that picks which codec instances are used
+ * rather than leaving it to MediaCodec.createEncoderByType / createDecoderByType.
+ */
+public interface CodecSelectionStrategy {
+
+    /**
+     * @param outputFormat format returned by {@link MediaFormatStrategy#createVideoOutputFormat}
+     * @return codec name for MediaCodec.createByCodecName or null for the default encoder
+     */
+    public String selectVideoEncoder(MediaFormat outputFormat);
+
+    /**
+     * @param inputFormat format of the track to be decoded
+     * @return codec name for MediaCodec.createByCodecName or null for the default decoder
+     */
+    public String selectVideoDecoder(MediaFormat inputFormat);
+}
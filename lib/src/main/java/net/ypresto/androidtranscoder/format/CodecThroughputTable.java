@@ -0,0 +1,74 @@
+package net.ypresto.androidtranscoder.format;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measured frames per second of codecs at given frame sizes, as produced by a calibration run.
+ * Measurements are only meaningful on the build they were taken on so the persisted form is
+ * tagged with a build fingerprint.
+ */
+public class CodecThroughputTable {
+    private static final int FILE_VERSION = 1;
+
+    private final Map<String, Double> mFramesPerSecond = new HashMap<String, Double>();
+
+    private static String key(String codecName, int width, int height) {
+        return codecName + "|" + width + "x" + height;
+    }
+
+    public synchronized void put(String codecName, int width, int height, double framesPerSecond) {
+        mFramesPerSecond.put(key(codecName, width, height), framesPerSecond);
+    }
+
+    /**
+     * @param codecName
+     * @param width
+     * @param height
+     * @return measured frames per second or NaN if the codec hasn't been measured at this size
+     */
+    public synchronized double getFramesPerSecond(String codecName, int width, int height) {
+        Double framesPerSecond = mFramesPerSecond.get(key(codecName, width, height));
+        return framesPerSecond != null ? framesPerSecond : Double.NaN;
+    }
+
+    public synchronized boolean contains(String codecName, int width, int height) {
+        return mFramesPerSecond.containsKey(key(codecName, width, height));
+    }
+
+    public synchronized int size() {
+        return mFramesPerSecond.size();
+    }
+
+    public synchronized void write(DataOutputStream outputStream, String fingerprint) throws IOException {
+        outputStream.writeInt(FILE_VERSION);
+        outputStream.writeUTF(fingerprint);
+        outputStream.writeInt(mFramesPerSecond.size());
+        for (Map.Entry<String, Double> entry : mFramesPerSecond.entrySet()) {
+            outputStream.writeUTF(entry.getKey());
+            outputStream.writeDouble(entry.getValue());
+        }
+    }
+
+    /**
+     * Replace the contents with a table written by {@link #write(DataOutputStream, String)}
+     * @param inputStream
+     * @param fingerprint build the measurements must have been taken on
+     * @return false if they were taken on another build, leaving the table unchanged
+     * @throws IOException
+     */
+    public synchronized boolean read(DataInputStream inputStream, String fingerprint) throws IOException {
+        if (inputStream.readInt() != FILE_VERSION || !inputStream.readUTF().equals(fingerprint))
+            return false;
+        Map<String, Double> framesPerSecond = new HashMap<String, Double>();
+        int count = inputStream.readInt();
+        for (int i = 0; i < count; ++i)
+            framesPerSecond.put(inputStream.readUTF(), inputStream.readDouble());
+        mFramesPerSecond.clear();
+        mFramesPerSecond.putAll(framesPerSecond);
+        return true;
+    }
+}
@@ -0,0 +1,235 @@
+package net.ypresto.androidtranscoder.format;
+
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.util.Range;
+
+import net.ypresto.androidtranscoder.TLog;
+import net.ypresto.androidtranscoder.compat.CodecCapabilityTable;
+import net.ypresto.androidtranscoder.engine.CodecCalibrator;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Wraps a {@link MediaFormatStrategy} and picks the fastest video encoder and decoder for the
+ * frame size rather than the first one MediaCodecList lists, which may be a software codec.
+ *
+ * Codecs are ranked by {@link CodecRanker}.  With calibration enabled, codecs that haven't been
+ * measured at the size they're selected for, the output size for encoders and the input size for
+ * decoders, get a short synthetic run the first time they are considered and the result is kept
+ * in the measurement file so the run happens once per size and build.
+ */
+public class ThroughputCodecSelectionStrategy implements MediaFormatStrategy, CodecSelectionStrategy {
+    private static final String TAG = "ThroughputCodecSelection";
+    private static final int DEFAULT_CALIBRATION_BITRATE = 8000 * 1000;
+
+    private final MediaFormatStrategy mFormatStrategy;
+    private final File mMeasurementFile;
+    private final boolean mCalibrate;
+    private final CodecThroughputTable mMeasurements = new CodecThroughputTable();
+    private Map<String, MediaCodecInfo> mCodecInfos;
+    private boolean mMeasurementsLoaded;
+
+    /**
+     * @param formatStrategy  decides the output formats
+     * @param measurementFile where calibration results are kept, null to keep them in memory only
+     * @param calibrate       whether to run calibration for codecs that haven't been measured,
+     *                        otherwise only cached measurements and declared frame rates are used
+     */
+    public ThroughputCodecSelectionStrategy(MediaFormatStrategy formatStrategy, File measurementFile, boolean calibrate) {
+        mFormatStrategy = formatStrategy;
+        mMeasurementFile = measurementFile;
+        mCalibrate = calibrate;
+    }
+
+    @Override
+    public MediaFormat createVideoOutputFormat(MediaFormat inputFormat, boolean allowPassthru) {
+        return mFormatStrategy.createVideoOutputFormat(inputFormat, allowPassthru);
+    }
+
+    @Override
+    public MediaFormat createAudioOutputFormat(MediaFormat inputFormat, boolean allowPassthru) {
+        return mFormatStrategy.createAudioOutputFormat(inputFormat, allowPassthru);
+    }
+
+    @Override
+    public synchronized String selectVideoEncoder(MediaFormat outputFormat) {
+        loadMeasurements();
+        String mime = outputFormat.getString(MediaFormat.KEY_MIME);
+        int width = outputFormat.getInteger(MediaFormat.KEY_WIDTH);
+        int height = outputFormat.getInteger(MediaFormat.KEY_HEIGHT);
+        CodecCapabilityTable table = CodecCapabilityTable.getInstance();
+        List<CodecCapabilityTable.Entry> encoders = table.getEncoders(mime);
+        if (mCalibrate)
+            calibrateEncoders(encoders, mime, width, height, getBitrate(outputFormat));
+        List<CodecCapabilityTable.Entry> ranked = CodecRanker.rank(encoders, width, height, mMeasurements, mEstimator);
+        String name = ranked.isEmpty() ? null : ranked.get(0).mName;
+        TLog.d(TAG, "Selected encoder " + name + " for " + mime + " " + width + "x" + height);
+        return name;
+    }
+
+    @Override
+    public synchronized String selectVideoDecoder(MediaFormat inputFormat) {
+        loadMeasurements();
+        String mime = inputFormat.getString(MediaFormat.KEY_MIME);
+        int width = inputFormat.getInteger(MediaFormat.KEY_WIDTH);
+        int height = inputFormat.getInteger(MediaFormat.KEY_HEIGHT);
+        CodecCapabilityTable table = CodecCapabilityTable.getInstance();
+        List<CodecCapabilityTable.Entry> decoders = table.getDecoders(mime);
+        if (mCalibrate)
+            calibrateDecoders(decoders, table.getEncoders(mime), mime, width, height, getBitrate(inputFormat));
+        List<CodecCapabilityTable.Entry> ranked = CodecRanker.rank(decoders, width, height, mMeasurements, mEstimator);
+        String name = ranked.isEmpty() ? null : ranked.get(0).mName;
+        TLog.d(TAG, "Selected decoder " + name + " for " + mime + " " + width + "x" + height);
+        return name;
+    }
+
+    public CodecThroughputTable getMeasurements() {
+        return mMeasurements;
+    }
+
+    private static int getBitrate(MediaFormat format) {
+        return format.containsKey(MediaFormat.KEY_BIT_RATE) ? format.getInteger(MediaFormat.KEY_BIT_RATE) : DEFAULT_CALIBRATION_BITRATE;
+    }
+
+    /**
+     * Measure encoders not yet measured at this size
+     */
+    private void calibrateEncoders(List<CodecCapabilityTable.Entry> encoders, String mime, int width, int height, int bitrate) {
+        boolean measured = false;
+        for (CodecCapabilityTable.Entry encoder : encoders) {
+            if (!encoder.isSizeSupported(width, height) || mMeasurements.contains(encoder.mName, width, height))
+                continue;
+            measureEncoder(encoder, mime, width, height, bitrate, null);
+            measured = true;
+        }
+        if (measured)
+            saveMeasurements();
+    }
+
+    /**
+     * Measure decoders not yet measured at this size on a clip encoded at the same size by the
+     * first encoder able to produce one
+     */
+    private void calibrateDecoders(List<CodecCapabilityTable.Entry> decoders, List<CodecCapabilityTable.Entry> encoders,
+                                   String mime, int width, int height, int bitrate) {
+        boolean unmeasured = false;
+        for (CodecCapabilityTable.Entry decoder : decoders) {
+            if (decoder.isSizeSupported(width, height) && !mMeasurements.contains(decoder.mName, width, height))
+                unmeasured = true;
+        }
+        if (!unmeasured)
+            return;
+        CodecCalibrator.EncodedClip clip = null;
+        for (CodecCapabilityTable.Entry encoder : encoders) {
+            if (!encoder.isSizeSupported(width, height))
+                continue;
+            CodecCalibrator.EncodedClip encoderClip = new CodecCalibrator.EncodedClip();
+            if (!Double.isNaN(measureEncoder(encoder, mime, width, height, bitrate, encoderClip))) {
+                clip = encoderClip;
+                break;
+            }
+        }
+        for (CodecCapabilityTable.Entry decoder : decoders) {
+            if (!decoder.isSizeSupported(width, height) || mMeasurements.contains(decoder.mName, width, height))
+                continue;
+            // Without a clip the decoders are recorded as failed so the encoders aren't rerun every time
+            double framesPerSecond = clip != null ? CodecCalibrator.measureDecoder(decoder.mName, clip) : Double.NaN;
+            TLog.i(TAG, "Calibrated decoder " + decoder.mName + " at " + width + "x" + height + ": " + framesPerSecond + " fps");
+            mMeasurements.put(decoder.mName, width, height, framesPerSecond);
+        }
+        saveMeasurements();
+    }
+
+    private double measureEncoder(CodecCapabilityTable.Entry encoder, String mime, int width, int height, int bitrate,
+                                  CodecCalibrator.EncodedClip clip) {
+        double framesPerSecond = CodecCalibrator.measureEncoder(encoder.mName, mime, width, height, bitrate, clip);
+        TLog.i(TAG, "Calibrated encoder " + encoder.mName + " at " + width + "x" + height + ": " + framesPerSecond + " fps");
+        mMeasurements.put(encoder.mName, width, height, framesPerSecond);
+        return framesPerSecond;
+    }
+
+    private final CodecRanker.FrameRateEstimator mEstimator = new CodecRanker.FrameRateEstimator() {
+        @Override
+        public double getAchievableFrameRate(CodecCapabilityTable.Entry entry, int width, int height) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M)
+                return Double.NaN;
+            MediaCodecInfo info = getCodecInfo(entry.mName);
+            if (info == null)
+                return Double.NaN;
+            try {
+                MediaCodecInfo.VideoCapabilities video = info.getCapabilitiesForType(entry.mMime).getVideoCapabilities();
+                Range<Double> frameRates = video != null ? video.getAchievableFrameRatesFor(width, height) : null;
+                // The lower bound is what the vendor measured as reliably achievable
+                return frameRates != null ? frameRates.getLower() : Double.NaN;
+            } catch (IllegalArgumentException e) {
+                return Double.NaN;
+            }
+        }
+    };
+
+    private MediaCodecInfo getCodecInfo(String name) {
+        if (mCodecInfos == null) {
+            mCodecInfos = new HashMap<String, MediaCodecInfo>();
+            for (MediaCodecInfo info : new MediaCodecList(MediaCodecList.ALL_CODECS).getCodecInfos())
+                mCodecInfos.put(info.getName(), info);
+        }
+        return mCodecInfos.get(name);
+    }
+
+    private void loadMeasurements() {
+        if (mMeasurementsLoaded)
+            return;
+        mMeasurementsLoaded = true;
+        if (mMeasurementFile == null || !mMeasurementFile.isFile())
+            return;
+        DataInputStream inputStream = null;
+        try {
+            inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(mMeasurementFile)));
+            if (!mMeasurements.read(inputStream, Build.FINGERPRINT))
+                TLog.i(TAG, "Discarding codec measurements from another build");
+        } catch (IOException e) {
+            TLog.w(TAG, "Unable to read codec measurements: " + e.getMessage());
+        } finally {
+            if (inputStream != null) {
+                try {
+                    inputStream.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+    private void saveMeasurements() {
+        if (mMeasurementFile == null)
+            return;
+        DataOutputStream outputStream = null;
+        try {
+            outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mMeasurementFile)));
+            mMeasurements.write(outputStream, Build.FINGERPRINT);
+        } catch (IOException e) {
+            TLog.w(TAG, "Unable to write codec measurements: " + e.getMessage());
+        } finally {
+            if (outputStream != null) {
+                try {
+                    outputStream.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+}
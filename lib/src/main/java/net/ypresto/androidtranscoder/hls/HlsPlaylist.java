@@ -0,0 +1,114 @@
+package net.ypresto.androidtranscoder.hls;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Media playlist of an HLS stream that is still being written.  It is an EVENT playlist, so
+ * players may start before the last segment is added, and is ended once the stream is complete.
+ */
+public class HlsPlaylist {
+
+    public static class Segment {
+        public final String mUri;
+        public final long mDurationUs;
+
+        public Segment(String uri, long durationUs) {
+            mUri = uri;
+            mDurationUs = durationUs;
+        }
+    }
+
+    private final long mTargetDurationUs;
+    private final List<Segment> mSegments = new ArrayList<Segment>();
+    private long mLongestDurationUs;
+    private boolean mEnded;
+
+    /**
+     * @param targetDurationUs duration segments are cut at
+     */
+    public HlsPlaylist(long targetDurationUs) {
+        mTargetDurationUs = targetDurationUs;
+    }
+
+    public void addSegment(String uri, long durationUs) {
+        if (mEnded)
+            throw new IllegalStateException("Playlist has ended");
+        mSegments.add(new Segment(uri, durationUs));
+        mLongestDurationUs = Math.max(mLongestDurationUs, durationUs);
+    }
+
+    /**
+     * No more segments will be added
+     */
+    public void end() {
+        mEnded = true;
+    }
+
+    public boolean isEnded() {
+        return mEnded;
+    }
+
+    public List<Segment> getSegments() {
+        return Collections.unmodifiableList(mSegments);
+    }
+
+    /**
+     * Whole seconds no segment is longer than, segments cut late for want of a key frame raise it
+     */
+    public int getTargetDuration() {
+        long durationUs = Math.max(mTargetDurationUs, mLongestDurationUs);
+        return (int) ((durationUs + 999999) / 1000000);
+    }
+
+    public void write(Writer writer) throws IOException {
+        writer.write("#EXTM3U\n");
+        writer.write("#EXT-X-VERSION:3\n");
+        writer.write("#EXT-X-PLAYLIST-TYPE:EVENT\n");
+        writer.write("#EXT-X-TARGETDURATION:" + getTargetDuration() + "\n");
+        writer.write("#EXT-X-MEDIA-SEQUENCE:0\n");
+        for (Segment segment : mSegments) {
+            writer.write(String.format(Locale.US, "#EXTINF:%.6f,\n", segment.mDurationUs / 1000000.0));
+            writer.write(segment.mUri);
+            writer.write('\n');
+        }
+        if (mEnded)
+            writer.write("#EXT-X-ENDLIST\n");
+    }
+
+    /**
+     * Replace the playlist file, through a temporary file so a player never reads half of it
+     */
+    public void write(File file) throws IOException {
+        File temporary = new File(file.getPath() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(temporary), "UTF-8");
+        try {
+            write(writer);
+        } finally {
+            writer.close();
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("Unable to replace playlist " + file);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringWriter writer = new StringWriter();
+        try {
+            write(writer);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return writer.toString();
+    }
+}
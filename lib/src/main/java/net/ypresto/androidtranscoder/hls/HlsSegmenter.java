@@ -0,0 +1,221 @@
+package net.ypresto.androidtranscoder.hls;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Cuts an H.264 and AAC stream into transport stream segments of about a target duration and
+ * keeps an HLS playlist beside them up to date as each segment is finished.  Segments are cut at
+ * the first video key frame at or after the target, or at an audio frame when there is no video,
+ * so the encoder's key frame interval should divide the target.
+ *
+ * Segments are named after the playlist, "out.m3u8" is cut into "out_0.ts", "out_1.ts" and so on.
+ */
+public class HlsSegmenter {
+    private static final byte[] ACCESS_UNIT_DELIMITER = {0x00, 0x00, 0x00, 0x01, 0x09, (byte) 0xf0};
+    private static final int ADTS_HEADER_SIZE = 7;
+
+    private final File mPlaylistFile;
+    private final String mBaseName;
+    private long mTargetDurationUs;
+    private HlsPlaylist mPlaylist;
+    private byte[] mParameterSets;
+    private int mAudioObjectType;
+    private int mSampleRateIndex = -1;
+    private int mChannelConfig;
+    private TsWriter mTsWriter;
+    private OutputStream mSegmentStream;
+    private File mSegmentFile;
+    private final List<File> mFiles = new ArrayList<File>();
+    private long mSegmentStartUs;
+    private long mLastPtsUs = -1;
+    private long mFrameDurationUs;
+    private byte[] mFrame = new byte[64 * 1024];
+
+    /**
+     * @param playlistFile      m3u8 file, segments are written in the same directory
+     * @param targetDurationUs  duration to cut segments at
+     */
+    public HlsSegmenter(File playlistFile, long targetDurationUs) {
+        if (targetDurationUs <= 0)
+            throw new IllegalArgumentException("Segment duration must be positive");
+        mPlaylistFile = playlistFile;
+        String name = playlistFile.getName();
+        int extension = name.lastIndexOf('.');
+        mBaseName = extension > 0 ? name.substring(0, extension) : name;
+        mTargetDurationUs = targetDurationUs;
+    }
+
+    /**
+     * Round the target duration up to a whole number of key frame intervals so segments can be
+     * cut on time, must be called before start
+     */
+    public void setKeyFrameIntervalUs(long keyFrameIntervalUs) {
+        if (keyFrameIntervalUs > 0)
+            mTargetDurationUs = (mTargetDurationUs + keyFrameIntervalUs - 1) / keyFrameIntervalUs * keyFrameIntervalUs;
+    }
+
+    public long getTargetDurationUs() {
+        return mTargetDurationUs;
+    }
+
+    /**
+     * @param parameterSets Annex-B SPS and PPS, repeated before every key frame
+     */
+    public void setVideo(byte[] parameterSets) {
+        mParameterSets = parameterSets;
+    }
+
+    /**
+     * @param audioSpecificConfig AAC decoder configuration, the format's csd-0
+     */
+    public void setAudio(byte[] audioSpecificConfig) {
+        if (audioSpecificConfig == null || audioSpecificConfig.length < 2)
+            throw new IllegalArgumentException("AAC configuration is too short");
+        mAudioObjectType = (audioSpecificConfig[0] & 0xff) >> 3;
+        mSampleRateIndex = ((audioSpecificConfig[0] & 0x07) << 1) | ((audioSpecificConfig[1] & 0xff) >> 7);
+        mChannelConfig = (audioSpecificConfig[1] >> 3) & 0x0f;
+        if (mAudioObjectType < 1 || mAudioObjectType > 4 || mSampleRateIndex > 12)
+            throw new IllegalArgumentException("AAC configuration can't be carried in ADTS");
+    }
+
+    public void start() throws IOException {
+        mTsWriter = new TsWriter(hasVideo(), hasAudio());
+        mPlaylist = new HlsPlaylist(mTargetDurationUs);
+        mPlaylist.write(mPlaylistFile);
+        mFiles.add(mPlaylistFile);
+    }
+
+    /**
+     * @param data     Annex-B access unit from its position to its limit
+     * @param ptsUs    presentation time
+     * @param keyFrame whether decoding can start here
+     */
+    public void writeVideo(ByteBuffer data, long ptsUs, boolean keyFrame) throws IOException {
+        if (mSegmentStream != null && keyFrame && ptsUs - mSegmentStartUs >= mTargetDurationUs - mFrameDurationUs / 2)
+            finishSegment(ptsUs);
+        if (mSegmentStream == null)
+            startSegment(ptsUs);
+        int length = 0;
+        length = append(length, ACCESS_UNIT_DELIMITER, 0, ACCESS_UNIT_DELIMITER.length);
+        if (keyFrame && mParameterSets != null)
+            length = append(length, mParameterSets, 0, mParameterSets.length);
+        length = append(length, data);
+        mTsWriter.writeVideo(mSegmentStream, mFrame, 0, length, ptsUs, keyFrame);
+        advance(ptsUs);
+    }
+
+    /**
+     * @param data  raw AAC frame from its position to its limit
+     * @param ptsUs presentation time
+     */
+    public void writeAudio(ByteBuffer data, long ptsUs) throws IOException {
+        if (!hasAudio())
+            throw new IllegalStateException("No audio configuration");
+        if (!hasVideo() && mSegmentStream != null && ptsUs - mSegmentStartUs >= mTargetDurationUs - mFrameDurationUs / 2)
+            finishSegment(ptsUs);
+        if (mSegmentStream == null)
+            startSegment(ptsUs);
+        int frameLength = ADTS_HEADER_SIZE + data.remaining();
+        ensureFrame(frameLength);
+        mFrame[0] = (byte) 0xff;
+        mFrame[1] = (byte) 0xf1;
+        mFrame[2] = (byte) (((mAudioObjectType - 1) << 6) | (mSampleRateIndex << 2) | (mChannelConfig >> 2));
+        mFrame[3] = (byte) (((mChannelConfig & 0x03) << 6) | (frameLength >> 11));
+        mFrame[4] = (byte) (frameLength >> 3);
+        mFrame[5] = (byte) (((frameLength & 0x07) << 5) | 0x1f);
+        mFrame[6] = (byte) 0xfc;
+        append(ADTS_HEADER_SIZE, data);
+        mTsWriter.writeAudio(mSegmentStream, mFrame, 0, frameLength, ptsUs);
+        if (!hasVideo())
+            advance(ptsUs);
+    }
+
+    /**
+     * Finish the last segment and end the playlist
+     */
+    public void finish() throws IOException {
+        if (mSegmentStream != null)
+            finishSegment(mLastPtsUs + mFrameDurationUs);
+        mPlaylist.end();
+        mPlaylist.write(mPlaylistFile);
+    }
+
+    /**
+     * Close the segment being written without adding it to the playlist
+     */
+    public void close() throws IOException {
+        if (mSegmentStream != null) {
+            mSegmentStream.close();
+            mSegmentStream = null;
+        }
+    }
+
+    public HlsPlaylist getPlaylist() {
+        return mPlaylist;
+    }
+
+    /**
+     * The playlist and every segment written so far
+     */
+    public List<File> getFiles() {
+        return mFiles;
+    }
+
+    private boolean hasVideo() {
+        return mParameterSets != null;
+    }
+
+    private boolean hasAudio() {
+        return mSampleRateIndex >= 0;
+    }
+
+    private void startSegment(long ptsUs) throws IOException {
+        mSegmentFile = new File(mPlaylistFile.getParentFile(), mBaseName + "_" + mPlaylist.getSegments().size() + ".ts");
+        mFiles.add(mSegmentFile);
+        mSegmentStream = new BufferedOutputStream(new FileOutputStream(mSegmentFile), 64 * 1024);
+        mSegmentStartUs = ptsUs;
+        mTsWriter.writeTables(mSegmentStream);
+    }
+
+    private void finishSegment(long endUs) throws IOException {
+        mSegmentStream.close();
+        mSegmentStream = null;
+        mPlaylist.addSegment(mSegmentFile.getName(), endUs - mSegmentStartUs);
+        mPlaylist.write(mPlaylistFile);
+    }
+
+    // Track the frame duration of the stream segments are timed by
+    private void advance(long ptsUs) {
+        if (mLastPtsUs >= 0 && ptsUs > mLastPtsUs)
+            mFrameDurationUs = ptsUs - mLastPtsUs;
+        mLastPtsUs = Math.max(mLastPtsUs, ptsUs);
+    }
+
+    private int append(int length, byte[] data, int offset, int size) {
+        ensureFrame(length + size);
+        System.arraycopy(data, offset, mFrame, length, size);
+        return length + size;
+    }
+
+    private int append(int length, ByteBuffer data) {
+        int size = data.remaining();
+        ensureFrame(length + size);
+        data.duplicate().get(mFrame, length, size);
+        return length + size;
+    }
+
+    private void ensureFrame(int size) {
+        if (mFrame.length < size) {
+            byte[] frame = new byte[Math.max(size, mFrame.length * 2)];
+            System.arraycopy(mFrame, 0, frame, 0, mFrame.length);
+            mFrame = frame;
+        }
+    }
+}
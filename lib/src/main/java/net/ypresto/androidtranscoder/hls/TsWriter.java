@@ -0,0 +1,247 @@
+package net.ypresto.androidtranscoder.hls;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes an MPEG-2 transport stream with at most one H.264 and one AAC elementary stream, as
+ * used by HLS.  Video access units are expected in Annex-B form and audio frames with their
+ * ADTS header.  Each segment starts with {@link #writeTables} so it can be decoded on its own.
+ */
+public class TsWriter {
+    public static final int PACKET_SIZE = 188;
+    static final int PID_PAT = 0x0000;
+    static final int PID_PMT = 0x1000;
+    static final int PID_VIDEO = 0x0100;
+    static final int PID_AUDIO = 0x0101;
+    private static final int STREAM_TYPE_H264 = 0x1b;
+    private static final int STREAM_TYPE_AAC = 0x0f;
+    private static final int STREAM_ID_VIDEO = 0xe0;
+    private static final int STREAM_ID_AUDIO = 0xc0;
+    // Timestamps are offset so the PCR, which trails them, never goes negative
+    static final long PTS_OFFSET = 63000;
+    private static final int[] CRC_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; ++i) {
+            int crc = i << 24;
+            for (int bit = 0; bit < 8; ++bit)
+                crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04c11db7 : crc << 1;
+            CRC_TABLE[i] = crc;
+        }
+    }
+
+    private final boolean mHasVideo;
+    private final boolean mHasAudio;
+    private final byte[] mPacket = new byte[PACKET_SIZE];
+    private final byte[] mSection = new byte[64];
+    private byte[] mPes = new byte[64 * 1024];
+    private int mPatContinuity;
+    private int mPmtContinuity;
+    private int mVideoContinuity;
+    private int mAudioContinuity;
+
+    public TsWriter(boolean hasVideo, boolean hasAudio) {
+        if (!hasVideo && !hasAudio)
+            throw new IllegalArgumentException("A transport stream needs a video or audio stream");
+        mHasVideo = hasVideo;
+        mHasAudio = hasAudio;
+    }
+
+    /**
+     * Write the program association and program map tables
+     */
+    public void writeTables(OutputStream out) throws IOException {
+        // Program 1 is described by the PMT
+        int length = 0;
+        mSection[length++] = 0x00;
+        length = sectionHeader(length, 1);
+        mSection[length++] = 0x00;
+        mSection[length++] = 0x01;
+        mSection[length++] = (byte) (0xe0 | (PID_PMT >> 8));
+        mSection[length++] = (byte) PID_PMT;
+        length = finishSection(length);
+        mPatContinuity = writeSection(out, PID_PAT, length, mPatContinuity);
+
+        length = 0;
+        mSection[length++] = 0x02;
+        length = sectionHeader(length, 1);
+        int pcrPid = mHasVideo ? PID_VIDEO : PID_AUDIO;
+        mSection[length++] = (byte) (0xe0 | (pcrPid >> 8));
+        mSection[length++] = (byte) pcrPid;
+        mSection[length++] = (byte) 0xf0;
+        mSection[length++] = 0x00;
+        if (mHasVideo)
+            length = streamEntry(length, STREAM_TYPE_H264, PID_VIDEO);
+        if (mHasAudio)
+            length = streamEntry(length, STREAM_TYPE_AAC, PID_AUDIO);
+        length = finishSection(length);
+        mPmtContinuity = writeSection(out, PID_PMT, length, mPmtContinuity);
+    }
+
+    /**
+     * @param accessUnit Annex-B NAL units of one picture
+     * @param ptsUs      presentation time
+     * @param keyFrame   whether decoding can start here
+     */
+    public void writeVideo(OutputStream out, byte[] accessUnit, int offset, int length, long ptsUs, boolean keyFrame) throws IOException {
+        if (!mHasVideo)
+            throw new IllegalStateException("No video stream");
+        // Video PES packets may leave their length unbounded
+        int headerLength = pesHeader(STREAM_ID_VIDEO, 0, ptsUs);
+        mVideoContinuity = writePes(out, PID_VIDEO, headerLength, accessUnit, offset, length, keyFrame, true, ptsUs, mVideoContinuity);
+    }
+
+    /**
+     * @param frame AAC frame with its ADTS header
+     */
+    public void writeAudio(OutputStream out, byte[] frame, int offset, int length, long ptsUs) throws IOException {
+        if (!mHasAudio)
+            throw new IllegalStateException("No audio stream");
+        int headerLength = pesHeader(STREAM_ID_AUDIO, length, ptsUs);
+        mAudioContinuity = writePes(out, PID_AUDIO, headerLength, frame, offset, length, true, !mHasVideo, ptsUs, mAudioContinuity);
+    }
+
+    /**
+     * 90kHz clock ticks of a presentation time
+     */
+    static long toTicks(long timeUs) {
+        return timeUs * 9 / 100 + PTS_OFFSET;
+    }
+
+    /**
+     * MPEG-2 CRC32 of PSI sections
+     */
+    static int crc32(byte[] data, int offset, int length) {
+        int crc = 0xffffffff;
+        for (int i = offset; i < offset + length; ++i)
+            crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ data[i]) & 0xff];
+        return crc;
+    }
+
+    private int sectionHeader(int length, int id) {
+        // Section length is filled in by finishSection
+        length += 2;
+        mSection[length++] = (byte) (id >> 8);
+        mSection[length++] = (byte) id;
+        mSection[length++] = (byte) 0xc1;   // Version 0, current
+        mSection[length++] = 0x00;
+        mSection[length++] = 0x00;
+        return length;
+    }
+
+    private int streamEntry(int length, int streamType, int pid) {
+        mSection[length++] = (byte) streamType;
+        mSection[length++] = (byte) (0xe0 | (pid >> 8));
+        mSection[length++] = (byte) pid;
+        mSection[length++] = (byte) 0xf0;
+        mSection[length++] = 0x00;
+        return length;
+    }
+
+    private int finishSection(int length) {
+        int sectionLength = length - 3 + 4;
+        mSection[1] = (byte) (0xb0 | (sectionLength >> 8));
+        mSection[2] = (byte) sectionLength;
+        int crc = crc32(mSection, 0, length);
+        mSection[length++] = (byte) (crc >> 24);
+        mSection[length++] = (byte) (crc >> 16);
+        mSection[length++] = (byte) (crc >> 8);
+        mSection[length++] = (byte) crc;
+        return length;
+    }
+
+    private int writeSection(OutputStream out, int pid, int length, int continuity) throws IOException {
+        int position = packetHeader(pid, true, continuity);
+        mPacket[position++] = 0x00;  // Pointer field
+        System.arraycopy(mSection, 0, mPacket, position, length);
+        position += length;
+        while (position < PACKET_SIZE)
+            mPacket[position++] = (byte) 0xff;
+        out.write(mPacket);
+        return (continuity + 1) & 0x0f;
+    }
+
+    private int pesHeader(int streamId, int payloadLength, long ptsUs) {
+        long pts = toTicks(ptsUs);
+        int pesLength = payloadLength > 0 ? payloadLength + 8 : 0;
+        if (pesLength > 0xffff)
+            pesLength = 0;
+        mPes[0] = 0x00;
+        mPes[1] = 0x00;
+        mPes[2] = 0x01;
+        mPes[3] = (byte) streamId;
+        mPes[4] = (byte) (pesLength >> 8);
+        mPes[5] = (byte) pesLength;
+        mPes[6] = (byte) 0x80;
+        mPes[7] = (byte) 0x80;  // PTS only
+        mPes[8] = 0x05;
+        mPes[9] = (byte) (0x21 | ((pts >> 29) & 0x0e));
+        mPes[10] = (byte) (pts >> 22);
+        mPes[11] = (byte) (0x01 | ((pts >> 14) & 0xfe));
+        mPes[12] = (byte) (pts >> 7);
+        mPes[13] = (byte) (0x01 | ((pts << 1) & 0xfe));
+        return 14;
+    }
+
+    private int writePes(OutputStream out, int pid, int headerLength, byte[] payload, int offset, int length,
+                         boolean randomAccess, boolean withPcr, long ptsUs, int continuity) throws IOException {
+        int total = headerLength + length;
+        if (mPes.length < total) {
+            byte[] pes = new byte[Math.max(total, mPes.length * 2)];
+            System.arraycopy(mPes, 0, pes, 0, headerLength);
+            mPes = pes;
+        }
+        System.arraycopy(payload, offset, mPes, headerLength, length);
+        int written = 0;
+        boolean first = true;
+        while (written < total) {
+            boolean pcr = first && withPcr;
+            int position = packetHeader(pid, first, continuity);
+            // Adaptation field carries the clock and random access flag, and stuffs the last packet
+            int adaptationLength = pcr ? 8 : first && randomAccess ? 2 : 0;
+            int room = PACKET_SIZE - position - adaptationLength;
+            int chunk = Math.min(room, total - written);
+            int stuffing = room - chunk;
+            if (adaptationLength == 0 && stuffing > 0) {
+                adaptationLength = stuffing;
+                stuffing = 0;
+            } else
+                adaptationLength += stuffing;
+            if (adaptationLength > 0) {
+                mPacket[3] |= 0x20;
+                mPacket[position++] = (byte) (adaptationLength - 1);
+                if (adaptationLength > 1) {
+                    int flags = (first && randomAccess ? 0x40 : 0) | (pcr ? 0x10 : 0);
+                    mPacket[position++] = (byte) flags;
+                    if (pcr) {
+                        long base = toTicks(ptsUs) - PTS_OFFSET;
+                        mPacket[position++] = (byte) (base >> 25);
+                        mPacket[position++] = (byte) (base >> 17);
+                        mPacket[position++] = (byte) (base >> 9);
+                        mPacket[position++] = (byte) (base >> 1);
+                        mPacket[position++] = (byte) (((base & 1) << 7) | 0x7e);
+                        mPacket[position++] = 0x00;
+                    }
+                    int end = position + adaptationLength - 2 - (pcr ? 6 : 0);
+                    while (position < end)
+                        mPacket[position++] = (byte) 0xff;
+                }
+            }
+            System.arraycopy(mPes, written, mPacket, position, chunk);
+            out.write(mPacket);
+            written += chunk;
+            continuity = (continuity + 1) & 0x0f;
+            first = false;
+        }
+        return continuity;
+    }
+
+    private int packetHeader(int pid, boolean unitStart, int continuity) {
+        mPacket[0] = 0x47;
+        mPacket[1] = (byte) ((unitStart ? 0x40 : 0) | (pid >> 8));
+        mPacket[2] = (byte) pid;
+        mPacket[3] = (byte) (0x10 | continuity);
+        return 4;
+    }
+}
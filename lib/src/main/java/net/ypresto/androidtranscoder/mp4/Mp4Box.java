@@ -0,0 +1,209 @@
+package net.ypresto.androidtranscoder.mp4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A box of an MP4 / ISO base media file held in memory, either a container of child boxes or a
+ * leaf whose body is kept as is.  Only the boxes that make up the track structure of a moov are
+ * treated as containers, everything else is copied through untouched, so parsing and writing a
+ * tree gives back the same bytes.
+ *
+ * Refer: ISO/IEC 14496-12
+ */
+public class Mp4Box {
+    private static final int[] CONTAINER_TYPES = {
+            Mp4SampleTableReader.TYPE_MOOV, Mp4SampleTableReader.TYPE_TRAK, Mp4SampleTableReader.TYPE_EDTS,
+            Mp4SampleTableReader.TYPE_MDIA, Mp4SampleTableReader.TYPE_MINF, Mp4SampleTableReader.TYPE_STBL,
+            Mp4SampleTableReader.fourcc("dinf"), Mp4SampleTableReader.fourcc("mvex")};
+
+    private final int mType;
+    private final boolean mLargeSize;
+    private final List<Mp4Box> mChildren;
+    private ByteBuffer mBody;
+
+    /**
+     * Leaf box
+     * @param body contents after the header, from its position to its limit
+     */
+    public Mp4Box(int type, ByteBuffer body) {
+        this(type, false, null, body);
+    }
+
+    /**
+     * Container box
+     */
+    public Mp4Box(int type, List<Mp4Box> children) {
+        this(type, false, children, null);
+    }
+
+    private Mp4Box(int type, boolean largeSize, List<Mp4Box> children, ByteBuffer body) {
+        mType = type;
+        mLargeSize = largeSize;
+        mChildren = children;
+        mBody = body != null ? body.slice().order(ByteOrder.BIG_ENDIAN) : null;
+    }
+
+    /**
+     * Parse the boxes from the buffer's position to its limit
+     * @throws IOException if a box size runs outside the buffer
+     */
+    public static List<Mp4Box> parse(ByteBuffer buffer) throws IOException {
+        List<Mp4Box> boxes = new ArrayList<Mp4Box>();
+        ByteBuffer data = buffer.slice().order(ByteOrder.BIG_ENDIAN);
+        int position = 0;
+        while (position < data.limit()) {
+            if (position + 8 > data.limit())
+                throw new IOException("Truncated box header at " + position);
+            long size = data.getInt(position) & 0xffffffffl;
+            int type = data.getInt(position + 4);
+            int headerSize = 8;
+            if (size == 1) {
+                if (position + 16 > data.limit())
+                    throw new IOException("Truncated box header at " + position);
+                size = data.getLong(position + 8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = data.limit() - position;
+            }
+            if (size < headerSize || position + size > data.limit())
+                throw new IOException("Invalid box size " + size + " at " + position);
+            ByteBuffer body = data.duplicate();
+            body.limit((int) (position + size));
+            body.position(position + headerSize);
+            if (isContainerType(type))
+                boxes.add(new Mp4Box(type, headerSize == 16, parse(body), null));
+            else
+                boxes.add(new Mp4Box(type, headerSize == 16, null, body));
+            position += size;
+        }
+        return boxes;
+    }
+
+    private static boolean isContainerType(int type) {
+        for (int containerType : CONTAINER_TYPES) {
+            if (containerType == type)
+                return true;
+        }
+        return false;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public boolean isContainer() {
+        return mChildren != null;
+    }
+
+    /**
+     * Child boxes of a container, the list may be changed to add, remove or replace them
+     */
+    public List<Mp4Box> getChildren() {
+        if (mChildren == null)
+            throw new IllegalStateException(Mp4SampleTableReader.fourccToString(mType) + " is not a container");
+        return mChildren;
+    }
+
+    /**
+     * Body of a leaf, positioned at zero
+     */
+    public ByteBuffer getBody() {
+        if (mBody == null)
+            throw new IllegalStateException(Mp4SampleTableReader.fourccToString(mType) + " is a container");
+        ByteBuffer body = mBody.duplicate().order(ByteOrder.BIG_ENDIAN);
+        body.rewind();
+        return body;
+    }
+
+    public void setBody(ByteBuffer body) {
+        if (mBody == null)
+            throw new IllegalStateException(Mp4SampleTableReader.fourccToString(mType) + " is a container");
+        mBody = body.slice().order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * First child of the given type or null
+     */
+    public Mp4Box findChild(int type) {
+        for (Mp4Box child : getChildren()) {
+            if (child.mType == type)
+                return child;
+        }
+        return null;
+    }
+
+    /**
+     * Every box of the given type below this one, in file order
+     */
+    public List<Mp4Box> findDescendants(int type) {
+        List<Mp4Box> found = new ArrayList<Mp4Box>();
+        findDescendants(type, found);
+        return found;
+    }
+
+    private void findDescendants(int type, List<Mp4Box> found) {
+        if (mChildren == null)
+            return;
+        for (Mp4Box child : mChildren) {
+            if (child.mType == type)
+                found.add(child);
+            child.findDescendants(type, found);
+        }
+    }
+
+    /**
+     * Size of the box including its header
+     */
+    public long getSize() {
+        long bodySize = 0;
+        if (mChildren != null) {
+            for (Mp4Box child : mChildren)
+                bodySize += child.getSize();
+        } else
+            bodySize = mBody.limit();
+        boolean largeSize = mLargeSize || bodySize + 8 > 0xffffffffl;
+        return bodySize + (largeSize ? 16 : 8);
+    }
+
+    /**
+     * Write the box at the buffer's position, advancing it
+     */
+    public void write(ByteBuffer out) {
+        long size = getSize();
+        if (mLargeSize || size > 0xffffffffl) {
+            out.putInt(1);
+            out.putInt(mType);
+            out.putLong(size);
+        } else {
+            out.putInt((int) size);
+            out.putInt(mType);
+        }
+        if (mChildren != null) {
+            for (Mp4Box child : mChildren)
+                child.write(out);
+        } else
+            out.put(getBody());
+    }
+
+    /**
+     * The box written to a new buffer, ready to be read
+     */
+    public ByteBuffer toByteBuffer() {
+        long size = getSize();
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalStateException("Box is too large to buffer, " + size + " bytes");
+        ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.BIG_ENDIAN);
+        write(buffer);
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    public String toString() {
+        return Mp4SampleTableReader.fourccToString(mType) + "(" + getSize() + ")";
+    }
+}
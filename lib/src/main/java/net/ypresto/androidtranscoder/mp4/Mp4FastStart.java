@@ -0,0 +1,223 @@
+package net.ypresto.androidtranscoder.mp4;
+
+import net.ypresto.androidtranscoder.TLog;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+/**
+ * Moves the moov box of an MP4 ahead of its media data so it can be played while it downloads.
+ * MediaMuxer writes moov last since the sample tables aren't known until the end.  The chunk
+ * offsets in every stco are shifted by the move, and upgraded to co64 if they no longer fit in
+ * 32 bits.  Only moov is held in memory, media data is copied between channels with
+ * {@link FileChannel#transferTo} so no large buffer is needed.
+ */
+public class Mp4FastStart {
+    private static final String TAG = "Mp4FastStart";
+    private static final int MAX_MOOV_SIZE = 64 * 1024 * 1024;
+    private static final int TYPE_MDAT = Mp4SampleTableReader.fourcc("mdat");
+
+    private Mp4FastStart() {
+    }
+
+    /**
+     * Rewrite the file with moov first, through a temporary file beside it that replaces it
+     * @return false if the file already starts with moov and is left alone
+     * @throws IOException if the file isn't an MP4 or can't be rewritten
+     */
+    public static boolean apply(File file) throws IOException {
+        long startNs = System.nanoTime();
+        File temporary = new File(file.getPath() + ".faststart");
+        FileInputStream inputStream = new FileInputStream(file);
+        try {
+            FileChannel input = inputStream.getChannel();
+            long fileSize = input.size();
+            long firstMdatPosition = -1;
+            long moovPosition = -1;
+            long moovSize = 0;
+            ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.BIG_ENDIAN);
+            for (long position = 0; position + 8 <= fileSize; ) {
+                header.clear();
+                header.limit((int) Math.min(16, fileSize - position));
+                readFully(input, header, position);
+                long size = header.getInt(0) & 0xffffffffl;
+                int type = header.getInt(4);
+                if (size == 1) {
+                    if (header.limit() < 16)
+                        throw new IOException("Truncated box header at " + position);
+                    size = header.getLong(8);
+                } else if (size == 0)
+                    size = fileSize - position;
+                if (size < 8 || position + size > fileSize)
+                    throw new IOException("Invalid box size " + size + " at " + position);
+                if (type == TYPE_MDAT && firstMdatPosition < 0)
+                    firstMdatPosition = position;
+                if (type == Mp4SampleTableReader.TYPE_MOOV) {
+                    moovPosition = position;
+                    moovSize = size;
+                }
+                position += size;
+            }
+            if (moovPosition < 0)
+                throw new IOException("No moov box in " + file);
+            if (firstMdatPosition < 0 || moovPosition < firstMdatPosition)
+                return false;
+            if (moovSize > MAX_MOOV_SIZE)
+                throw new IOException("Invalid moov size " + moovSize);
+
+            ByteBuffer moovBytes = ByteBuffer.allocate((int) moovSize);
+            readFully(input, moovBytes, moovPosition);
+            moovBytes.flip();
+            List<Mp4Box> boxes = Mp4Box.parse(moovBytes);
+            if (boxes.size() != 1 || boxes.get(0).getType() != Mp4SampleTableReader.TYPE_MOOV)
+                throw new IOException("Malformed moov box");
+            Mp4Box moov = relocate(boxes.get(0), firstMdatPosition, moovPosition, moovSize);
+
+            FileOutputStream outputStream = new FileOutputStream(temporary);
+            try {
+                FileChannel output = outputStream.getChannel();
+                transfer(input, 0, firstMdatPosition, output);
+                ByteBuffer moovOut = moov.toByteBuffer();
+                while (moovOut.hasRemaining())
+                    output.write(moovOut);
+                transfer(input, firstMdatPosition, moovPosition - firstMdatPosition, output);
+                transfer(input, moovPosition + moovSize, fileSize - moovPosition - moovSize, output);
+                output.force(false);
+            } finally {
+                outputStream.close();
+            }
+        } catch (IOException e) {
+            temporary.delete();
+            throw e;
+        } finally {
+            inputStream.close();
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("Unable to replace " + file);
+        }
+        TLog.d(TAG, "Moved moov of " + file + " to the front in " + (System.nanoTime() - startNs) / 1000000l + "ms");
+        return true;
+    }
+
+    /**
+     * Shift the chunk offsets of a moov being moved from after the media data to in front of it,
+     * switching a track to co64 once any of its offsets needs it
+     * @param moov              parsed moov, changed in place
+     * @param insertPosition    where moov will be written, the start of the first mdat
+     * @param moovPosition      where moov was
+     * @param moovSize          size moov was
+     * @return moov
+     */
+    static Mp4Box relocate(Mp4Box moov, long insertPosition, long moovPosition, long moovSize) throws IOException {
+        List<Mp4Box> sampleTables = moov.findDescendants(Mp4SampleTableReader.TYPE_STBL);
+        long[][] offsets = new long[sampleTables.size()][];
+        for (int i = 0; i < sampleTables.size(); ++i)
+            offsets[i] = readChunkOffsets(sampleTables.get(i));
+
+        // Upgrading a table grows moov, which moves the data further, so repeat until stable
+        boolean upgraded = true;
+        while (upgraded) {
+            upgraded = false;
+            long newMoovSize = moov.getSize();
+            for (int i = 0; i < sampleTables.size(); ++i) {
+                Mp4Box stbl = sampleTables.get(i);
+                if (offsets[i] == null || stbl.findChild(Mp4SampleTableReader.TYPE_CO64) != null)
+                    continue;
+                for (long offset : offsets[i]) {
+                    if (shift(offset, insertPosition, moovPosition, moovSize, newMoovSize) > 0xffffffffl) {
+                        replaceChunkOffsets(stbl, new Mp4Box(Mp4SampleTableReader.TYPE_CO64,
+                                ByteBuffer.allocate(8 + offsets[i].length * 8)));
+                        upgraded = true;
+                        break;
+                    }
+                }
+            }
+        }
+
+        long newMoovSize = moov.getSize();
+        for (int i = 0; i < sampleTables.size(); ++i) {
+            if (offsets[i] == null)
+                continue;
+            Mp4Box stbl = sampleTables.get(i);
+            boolean co64 = stbl.findChild(Mp4SampleTableReader.TYPE_CO64) != null;
+            ByteBuffer body = ByteBuffer.allocate(8 + offsets[i].length * (co64 ? 8 : 4)).order(ByteOrder.BIG_ENDIAN);
+            body.putInt(0);
+            body.putInt(offsets[i].length);
+            for (long offset : offsets[i]) {
+                long shifted = shift(offset, insertPosition, moovPosition, moovSize, newMoovSize);
+                if (co64)
+                    body.putLong(shifted);
+                else
+                    body.putInt((int) shifted);
+            }
+            body.flip();
+            replaceChunkOffsets(stbl, new Mp4Box(co64 ? Mp4SampleTableReader.TYPE_CO64 : Mp4SampleTableReader.TYPE_STCO, body));
+        }
+        return moov;
+    }
+
+    // Where a byte of the file ends up once moov is moved
+    private static long shift(long offset, long insertPosition, long moovPosition, long moovSize, long newMoovSize) {
+        if (offset < insertPosition)
+            return offset;
+        if (offset < moovPosition)
+            return offset + newMoovSize;
+        return offset + newMoovSize - moovSize;
+    }
+
+    private static long[] readChunkOffsets(Mp4Box stbl) throws IOException {
+        Mp4Box co64 = stbl.findChild(Mp4SampleTableReader.TYPE_CO64);
+        Mp4Box stco = stbl.findChild(Mp4SampleTableReader.TYPE_STCO);
+        if (co64 == null && stco == null)
+            return null;
+        ByteBuffer body = (co64 != null ? co64 : stco).getBody();
+        int entrySize = co64 != null ? 8 : 4;
+        if (body.limit() < 8)
+            throw new IOException("Truncated chunk offset box");
+        int count = body.getInt(4);
+        if (count < 0 || body.limit() < 8 + (long) count * entrySize)
+            throw new IOException("Chunk offset count " + count + " overruns its box");
+        long[] offsets = new long[count];
+        for (int i = 0; i < count; ++i)
+            offsets[i] = co64 != null ? body.getLong(8 + i * 8) : body.getInt(8 + i * 4) & 0xffffffffl;
+        return offsets;
+    }
+
+    private static void replaceChunkOffsets(Mp4Box stbl, Mp4Box chunkOffsets) {
+        List<Mp4Box> children = stbl.getChildren();
+        for (int i = 0; i < children.size(); ++i) {
+            int type = children.get(i).getType();
+            if (type == Mp4SampleTableReader.TYPE_STCO || type == Mp4SampleTableReader.TYPE_CO64) {
+                children.set(i, chunkOffsets);
+                return;
+            }
+        }
+        children.add(chunkOffsets);
+    }
+
+    private static void transfer(FileChannel input, long position, long count, FileChannel output) throws IOException {
+        while (count > 0) {
+            long transferred = input.transferTo(position, count, output);
+            if (transferred <= 0)
+                throw new IOException("Unable to copy media data at " + position);
+            position += transferred;
+            count -= transferred;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new IOException("Unexpected end of file");
+            position += read;
+        }
+    }
+}
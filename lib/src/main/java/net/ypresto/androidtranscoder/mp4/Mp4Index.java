@@ -0,0 +1,40 @@
+package net.ypresto.androidtranscoder.mp4;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Sample tables of all tracks of an MP4 file as read by {@link Mp4SampleTableReader}
+ */
+public class Mp4Index {
+    private final List<SampleTable> mTracks;
+
+    public Mp4Index(List<SampleTable> tracks) {
+        mTracks = Collections.unmodifiableList(new ArrayList<SampleTable>(tracks));
+    }
+
+    public List<SampleTable> getTracks() {
+        return mTracks;
+    }
+
+    /**
+     * Get the first track with the given handler
+     * @param handlerType {@link SampleTable#HANDLER_VIDEO} or {@link SampleTable#HANDLER_AUDIO}
+     * @return track or null if there is none
+     */
+    public SampleTable getFirstTrack(String handlerType) {
+        for (SampleTable track : mTracks)
+            if (track.getHandlerType().equals(handlerType))
+                return track;
+        return null;
+    }
+
+    public SampleTable getVideoTrack() {
+        return getFirstTrack(SampleTable.HANDLER_VIDEO);
+    }
+
+    public SampleTable getAudioTrack() {
+        return getFirstTrack(SampleTable.HANDLER_AUDIO);
+    }
+}
@@ -0,0 +1,253 @@
+package net.ypresto.androidtranscoder.mp4;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.StructStat;
+
+import net.ypresto.androidtranscoder.TLog;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * On-disk cache of {@link Mp4Index}es so inputs that are transcoded repeatedly don't have to be
+ * parsed again.  Entries are keyed by file identity (device, inode, size and modification time)
+ * so an edited file is never served a stale index.  Each entry is a compact binary file that is
+ * memory mapped when loaded.  The least recently used entries are deleted to keep the cache
+ * within its disk budget.
+ */
+public class Mp4IndexCache {
+    private static final String TAG = "Mp4IndexCache";
+    private static final String SUFFIX = ".idx";
+    private static final int MAGIC = Mp4SampleTableReader.fourcc("TIDX");
+    private static final int VERSION = 1;
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+
+    /**
+     * @param directory where to keep the cache, created if needed
+     * @param maxBytes disk budget for all entries
+     */
+    public Mp4IndexCache(File directory, long maxBytes) {
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+        if (!directory.isDirectory() && !directory.mkdirs())
+            TLog.w(TAG, "Unable to create cache directory " + directory);
+    }
+
+    /**
+     * Get the index of a file from the cache, reading and caching it on a miss
+     * @param fileDescriptor identifies the file
+     * @param channel to read the file through on a miss
+     * @return index or null if the file is not an MP4 file
+     * @throws IOException if the file can't be read
+     */
+    public Mp4Index getOrRead(FileDescriptor fileDescriptor, FileChannel channel) throws IOException {
+        String key = keyFor(fileDescriptor);
+        Mp4Index index = key != null ? get(key) : null;
+        if (index != null)
+            return index;
+        index = Mp4SampleTableReader.read(channel);
+        if (index != null && key != null)
+            put(key, index);
+        return index;
+    }
+
+    /**
+     * Cache key identifying the file content, null if the descriptor can't be stat'ed
+     * @param fileDescriptor
+     * @return
+     */
+    public static String keyFor(FileDescriptor fileDescriptor) {
+        try {
+            StructStat stat = Os.fstat(fileDescriptor);
+            return Long.toHexString(stat.st_dev) + "_" + Long.toHexString(stat.st_ino) + "_" +
+                    Long.toHexString(stat.st_size) + "_" + Long.toHexString(stat.st_mtime);
+        } catch (ErrnoException e) {
+            TLog.w(TAG, "Unable to stat input: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @param key
+     * @return cached index or null on a miss or a corrupt entry
+     */
+    public synchronized Mp4Index get(String key) {
+        File file = fileFor(key);
+        if (!file.isFile())
+            return null;
+        RandomAccessFile randomAccessFile = null;
+        try {
+            randomAccessFile = new RandomAccessFile(file, "r");
+            FileChannel channel = randomAccessFile.getChannel();
+            Mp4Index index = decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+            file.setLastModified(System.currentTimeMillis());
+            return index;
+        } catch (IOException e) {
+            TLog.w(TAG, "Discarding unreadable cache entry " + key + ": " + e.getMessage());
+            file.delete();
+            return null;
+        } finally {
+            closeQuietly(randomAccessFile);
+        }
+    }
+
+    /**
+     * Store an index and then evict least recently used entries until within budget
+     * @param key
+     * @param index
+     */
+    public synchronized void put(String key, Mp4Index index) {
+        File file = fileFor(key);
+        File tempFile = new File(mDirectory, key + ".tmp");
+        DataOutputStream outputStream = null;
+        try {
+            outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+            encode(index, outputStream);
+            outputStream.close();
+            outputStream = null;
+            if (!tempFile.renameTo(file))
+                throw new IOException("Unable to rename " + tempFile);
+        } catch (IOException e) {
+            TLog.w(TAG, "Unable to write cache entry " + key + ": " + e.getMessage());
+            closeQuietly(outputStream);
+            tempFile.delete();
+            return;
+        }
+        trimToSize(mMaxBytes);
+    }
+
+    /**
+     * Delete least recently used entries until the cache fits in maxBytes
+     * @param maxBytes
+     */
+    public synchronized void trimToSize(long maxBytes) {
+        File[] files = mDirectory.listFiles();
+        if (files == null)
+            return;
+        List<File> entries = new ArrayList<File>();
+        long totalBytes = 0l;
+        for (File file : files) {
+            if (file.getName().endsWith(SUFFIX)) {
+                entries.add(file);
+                totalBytes += file.length();
+            }
+        }
+        File[] sorted = entries.toArray(new File[entries.size()]);
+        Arrays.sort(sorted, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+        for (int i = 0; i < sorted.length && totalBytes > maxBytes; ++i) {
+            long length = sorted[i].length();
+            if (sorted[i].delete()) {
+                totalBytes -= length;
+                TLog.d(TAG, "Evicted " + sorted[i].getName());
+            }
+        }
+    }
+
+    private File fileFor(String key) {
+        return new File(mDirectory, key + SUFFIX);
+    }
+
+    static void encode(Mp4Index index, DataOutputStream outputStream) throws IOException {
+        outputStream.writeInt(MAGIC);
+        outputStream.writeInt(VERSION);
+        outputStream.writeInt(index.getTracks().size());
+        for (SampleTable track : index.getTracks()) {
+            outputStream.writeInt(track.getTrackId());
+            outputStream.writeInt(Mp4SampleTableReader.fourcc(track.getHandlerType()));
+            outputStream.writeInt(track.getSampleEntryType() != null ? Mp4SampleTableReader.fourcc(track.getSampleEntryType()) : 0);
+            outputStream.writeLong(track.getTimescale());
+            outputStream.writeLong(track.getDurationUs());
+            outputStream.writeInt(track.getWidth());
+            outputStream.writeInt(track.getHeight());
+            outputStream.writeInt(track.getRotation());
+            outputStream.writeInt(track.getSampleRate());
+            outputStream.writeInt(track.getChannelCount());
+            outputStream.writeInt(track.getSampleCount());
+            outputStream.writeInt(track.getSyncSampleCount());
+            for (long presentationTimeUs : track.getPresentationTimesUs())
+                outputStream.writeLong(presentationTimeUs);
+            for (long offset : track.getOffsets())
+                outputStream.writeLong(offset);
+            for (int size : track.getSizes())
+                outputStream.writeInt(size);
+            for (int syncSample : track.getSyncSamples())
+                outputStream.writeInt(syncSample);
+        }
+    }
+
+    static Mp4Index decode(ByteBuffer buffer) throws IOException {
+        try {
+            buffer.order(ByteOrder.BIG_ENDIAN);
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+                throw new IOException("Not an index cache entry");
+            int trackCount = buffer.getInt();
+            List<SampleTable> tracks = new ArrayList<SampleTable>(trackCount);
+            for (int track = 0; track < trackCount; ++track) {
+                int trackId = buffer.getInt();
+                String handlerType = Mp4SampleTableReader.fourccToString(buffer.getInt());
+                int sampleEntry = buffer.getInt();
+                long timescale = buffer.getLong();
+                long durationUs = buffer.getLong();
+                int width = buffer.getInt();
+                int height = buffer.getInt();
+                int rotation = buffer.getInt();
+                int sampleRate = buffer.getInt();
+                int channelCount = buffer.getInt();
+                long[] presentationTimesUs = new long[buffer.getInt()];
+                int[] syncSamples = new int[buffer.getInt()];
+                long[] offsets = new long[presentationTimesUs.length];
+                int[] sizes = new int[presentationTimesUs.length];
+                // Bulk copies straight out of the mapping
+                buffer.asLongBuffer().get(presentationTimesUs);
+                buffer.position(buffer.position() + presentationTimesUs.length * 8);
+                buffer.asLongBuffer().get(offsets);
+                buffer.position(buffer.position() + offsets.length * 8);
+                buffer.asIntBuffer().get(sizes);
+                buffer.position(buffer.position() + sizes.length * 4);
+                buffer.asIntBuffer().get(syncSamples);
+                buffer.position(buffer.position() + syncSamples.length * 4);
+                tracks.add(new SampleTable(trackId, handlerType,
+                        sampleEntry != 0 ? Mp4SampleTableReader.fourccToString(sampleEntry) : null,
+                        timescale, durationUs, width, height, rotation, sampleRate, channelCount,
+                        presentationTimesUs, offsets, sizes, syncSamples));
+            }
+            return new Mp4Index(tracks);
+        } catch (RuntimeException e) {
+            // Buffer underflows and the like mean the entry is truncated
+            throw new IOException("Corrupt index cache entry", e);
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+        }
+    }
+}
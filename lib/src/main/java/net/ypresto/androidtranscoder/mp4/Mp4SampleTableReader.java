@@ -0,0 +1,310 @@
+package net.ypresto.androidtranscoder.mp4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the sample tables (stts, ctts, stss, stsz, stsc, stco/co64) of every track in an MP4 /
+ * ISO base media file without going through MediaExtractor.  Only the moov box is read so this
+ * is cheap even for very long files.
+ *
+ * Refer: ISO/IEC 14496-12
+ */
+public class Mp4SampleTableReader {
+    private static final int MAX_MOOV_SIZE = 64 * 1024 * 1024;
+
+    static final int TYPE_MOOV = fourcc("moov");
+    static final int TYPE_TRAK = fourcc("trak");
+    static final int TYPE_TKHD = fourcc("tkhd");
+    static final int TYPE_EDTS = fourcc("edts");
+    static final int TYPE_ELST = fourcc("elst");
+    static final int TYPE_MDIA = fourcc("mdia");
+    static final int TYPE_MDHD = fourcc("mdhd");
+    static final int TYPE_HDLR = fourcc("hdlr");
+    static final int TYPE_MINF = fourcc("minf");
+    static final int TYPE_STBL = fourcc("stbl");
+    static final int TYPE_STSD = fourcc("stsd");
+    static final int TYPE_STTS = fourcc("stts");
+    static final int TYPE_CTTS = fourcc("ctts");
+    static final int TYPE_STSS = fourcc("stss");
+    static final int TYPE_STSZ = fourcc("stsz");
+    static final int TYPE_STSC = fourcc("stsc");
+    static final int TYPE_STCO = fourcc("stco");
+    static final int TYPE_CO64 = fourcc("co64");
+
+    private Mp4SampleTableReader() {
+    }
+
+    /**
+     * Read the sample tables of all tracks.  Reads are positional so the channel position is
+     * not disturbed.
+     * @param channel
+     * @return index of all tracks or null if the file has no moov box (not an MP4 file)
+     * @throws IOException if the file can't be read or the moov box is malformed
+     */
+    public static Mp4Index read(FileChannel channel) throws IOException {
+        long fileSize = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.BIG_ENDIAN);
+        while (position + 8 <= fileSize) {
+            header.clear();
+            header.limit((int) Math.min(16, fileSize - position));
+            readFully(channel, header, position);
+            long size = header.getInt(0) & 0xffffffffl;
+            int type = header.getInt(4);
+            int headerSize = 8;
+            if (size == 1) {
+                if (header.limit() < 16)
+                    throw new IOException("Truncated box header at " + position);
+                size = header.getLong(8);
+                headerSize = 16;
+            } else if (size == 0) {
+                size = fileSize - position;
+            }
+            if (size < headerSize)
+                throw new IOException("Invalid box size " + size + " at " + position);
+            if (type == TYPE_MOOV) {
+                long bodySize = size - headerSize;
+                if (bodySize > MAX_MOOV_SIZE || position + size > fileSize)
+                    throw new IOException("Invalid moov size " + size);
+                ByteBuffer moov = ByteBuffer.allocate((int) bodySize).order(ByteOrder.BIG_ENDIAN);
+                readFully(channel, moov, position + headerSize);
+                moov.flip();
+                return parseMoov(moov);
+            }
+            position += size;
+        }
+        return null;
+    }
+
+    static Mp4Index parseMoov(ByteBuffer moov) throws IOException {
+        List<SampleTable> tracks = new ArrayList<SampleTable>();
+        try {
+            for (int position = 0; position + 8 <= moov.limit(); ) {
+                int size = boxSize(moov, position);
+                if (moov.getInt(position + 4) == TYPE_TRAK) {
+                    SampleTable track = parseTrak(body(moov, position, size));
+                    if (track != null)
+                        tracks.add(track);
+                }
+                position += size;
+            }
+        } catch (RuntimeException e) {
+            // Buffer under/overflows and the like mean the box tree is corrupt
+            throw new IOException("Malformed moov box", e);
+        }
+        return new Mp4Index(tracks);
+    }
+
+    private static SampleTable parseTrak(ByteBuffer trak) throws IOException {
+        ByteBuffer tkhd = findChild(trak, TYPE_TKHD);
+        ByteBuffer mdia = findChild(trak, TYPE_MDIA);
+        ByteBuffer mdhd = mdia != null ? findChild(mdia, TYPE_MDHD) : null;
+        ByteBuffer hdlr = mdia != null ? findChild(mdia, TYPE_HDLR) : null;
+        ByteBuffer minf = mdia != null ? findChild(mdia, TYPE_MINF) : null;
+        ByteBuffer stbl = minf != null ? findChild(minf, TYPE_STBL) : null;
+        if (tkhd == null || mdhd == null || hdlr == null || stbl == null)
+            return null;
+
+        boolean tkhdVersion1 = tkhd.get(0) == 1;
+        int trackId = tkhdVersion1 ? tkhd.getInt(20) : tkhd.getInt(12);
+        int rotation = matrixRotation(tkhd, tkhdVersion1 ? 52 : 40);
+        long timescale;
+        long duration;
+        if (mdhd.get(0) == 1) {
+            timescale = mdhd.getInt(20) & 0xffffffffl;
+            duration = mdhd.getLong(24);
+        } else {
+            timescale = mdhd.getInt(12) & 0xffffffffl;
+            duration = mdhd.getInt(16) & 0xffffffffl;
+        }
+        if (timescale == 0)
+            throw new IOException("Track " + trackId + " has no timescale");
+        String handlerType = fourccToString(hdlr.getInt(8));
+
+        // First non empty edit gives the media time presented at time zero
+        long mediaTimeOffset = 0;
+        ByteBuffer edts = findChild(trak, TYPE_EDTS);
+        ByteBuffer elst = edts != null ? findChild(edts, TYPE_ELST) : null;
+        if (elst != null) {
+            boolean version1 = elst.get(0) == 1;
+            int entryCount = elst.getInt(4);
+            for (int entry = 0, position = 8; entry < entryCount; ++entry) {
+                long mediaTime = version1 ? elst.getLong(position + 8) : elst.getInt(position + 4);
+                position += version1 ? 20 : 12;
+                if (mediaTime != -1) {
+                    mediaTimeOffset = mediaTime;
+                    break;
+                }
+            }
+        }
+
+        // Dimensions come from the visual sample entry, rate and channels from the audio one
+        ByteBuffer stsd = findChild(stbl, TYPE_STSD);
+        String sampleEntryType = null;
+        int width = 0;
+        int height = 0;
+        int sampleRate = 0;
+        int channelCount = 0;
+        if (stsd != null && stsd.getInt(4) > 0) {
+            sampleEntryType = fourccToString(stsd.getInt(12));
+            if (handlerType.equals(SampleTable.HANDLER_VIDEO) && stsd.limit() >= 44) {
+                width = stsd.getShort(40) & 0xffff;
+                height = stsd.getShort(42) & 0xffff;
+            } else if (handlerType.equals(SampleTable.HANDLER_AUDIO) && stsd.limit() >= 44) {
+                channelCount = stsd.getShort(32) & 0xffff;
+                sampleRate = stsd.getInt(40) >>> 16;
+            }
+        }
+
+        // Sample sizes determine the sample count; compact stz2 tables are not supported
+        ByteBuffer stsz = findChild(stbl, TYPE_STSZ);
+        ByteBuffer stts = findChild(stbl, TYPE_STTS);
+        ByteBuffer stsc = findChild(stbl, TYPE_STSC);
+        ByteBuffer stco = findChild(stbl, TYPE_STCO);
+        ByteBuffer co64 = findChild(stbl, TYPE_CO64);
+        if (stsz == null || stts == null || stsc == null || (stco == null && co64 == null))
+            return null;
+        int constantSize = stsz.getInt(4);
+        int sampleCount = stsz.getInt(8);
+        int[] sizes = new int[sampleCount];
+        for (int sample = 0; sample < sampleCount; ++sample)
+            sizes[sample] = constantSize != 0 ? constantSize : stsz.getInt(12 + sample * 4);
+
+        // Decode times from stts plus composition offsets from ctts
+        long[] times = new long[sampleCount];
+        int sample = 0;
+        long decodeTime = 0;
+        int sttsEntries = stts.getInt(4);
+        for (int entry = 0; entry < sttsEntries && sample < sampleCount; ++entry) {
+            int count = stts.getInt(8 + entry * 8);
+            long delta = stts.getInt(12 + entry * 8) & 0xffffffffl;
+            for (int i = 0; i < count && sample < sampleCount; ++i) {
+                times[sample++] = decodeTime;
+                decodeTime += delta;
+            }
+        }
+        while (sample < sampleCount)
+            times[sample++] = decodeTime;
+        ByteBuffer ctts = findChild(stbl, TYPE_CTTS);
+        if (ctts != null) {
+            boolean signed = ctts.get(0) == 1;
+            int cttsEntries = ctts.getInt(4);
+            sample = 0;
+            for (int entry = 0; entry < cttsEntries && sample < sampleCount; ++entry) {
+                int count = ctts.getInt(8 + entry * 8);
+                int rawOffset = ctts.getInt(12 + entry * 8);
+                long offset = signed ? rawOffset : rawOffset & 0xffffffffl;
+                for (int i = 0; i < count && sample < sampleCount; ++i)
+                    times[sample++] += offset;
+            }
+        }
+        for (sample = 0; sample < sampleCount; ++sample)
+            times[sample] = ((times[sample] - mediaTimeOffset) * 1000000l) / timescale;
+
+        // Chunk offsets, and from the sample-to-chunk runs the offset of every sample
+        int chunkCount = co64 != null ? co64.getInt(4) : stco.getInt(4);
+        long[] offsets = new long[sampleCount];
+        int stscEntries = stsc.getInt(4);
+        sample = 0;
+        for (int entry = 0; entry < stscEntries; ++entry) {
+            int firstChunk = stsc.getInt(8 + entry * 12) - 1;
+            int samplesPerChunk = stsc.getInt(12 + entry * 12);
+            int lastChunk = entry + 1 < stscEntries ? stsc.getInt(8 + (entry + 1) * 12) - 1 : chunkCount;
+            for (int chunk = firstChunk; chunk < lastChunk && sample < sampleCount; ++chunk) {
+                long offset = co64 != null ? co64.getLong(8 + chunk * 8) : stco.getInt(8 + chunk * 4) & 0xffffffffl;
+                for (int i = 0; i < samplesPerChunk && sample < sampleCount; ++i) {
+                    offsets[sample] = offset;
+                    offset += sizes[sample++];
+                }
+            }
+        }
+
+        int[] syncSamples = null;
+        ByteBuffer stss = findChild(stbl, TYPE_STSS);
+        if (stss != null) {
+            syncSamples = new int[stss.getInt(4)];
+            for (int i = 0; i < syncSamples.length; ++i)
+                syncSamples[i] = stss.getInt(8 + i * 4) - 1;
+        }
+
+        return new SampleTable(trackId, handlerType, sampleEntryType, timescale, (duration * 1000000l) / timescale,
+                width, height, rotation, sampleRate, channelCount, times, offsets, sizes, syncSamples);
+    }
+
+    /**
+     * Rotation in degrees described by a track header matrix, 0 unless it is an exact
+     * quarter turn
+     */
+    private static int matrixRotation(ByteBuffer tkhd, int position) {
+        if (tkhd.limit() < position + 36)
+            return 0;
+        int a = tkhd.getInt(position);
+        int b = tkhd.getInt(position + 4);
+        int c = tkhd.getInt(position + 12);
+        int d = tkhd.getInt(position + 16);
+        int one = 0x10000;
+        if (a == 0 && b == one && c == -one && d == 0)
+            return 90;
+        if (a == -one && b == 0 && c == 0 && d == -one)
+            return 180;
+        if (a == 0 && b == -one && c == one && d == 0)
+            return 270;
+        return 0;
+    }
+
+    /**
+     * Find the first child box of the given type
+     * @return the body of the box (after its header) or null
+     */
+    static ByteBuffer findChild(ByteBuffer parent, int type) {
+        for (int position = 0; position + 8 <= parent.limit(); ) {
+            int size = boxSize(parent, position);
+            if (parent.getInt(position + 4) == type)
+                return body(parent, position, size);
+            position += size;
+        }
+        return null;
+    }
+
+    private static int boxSize(ByteBuffer parent, int position) {
+        long size = parent.getInt(position) & 0xffffffffl;
+        if (size == 1)
+            size = parent.getLong(position + 8);
+        else if (size == 0)
+            size = parent.limit() - position;
+        if (size < 8 || position + size > parent.limit())
+            throw new IllegalStateException("Invalid box size " + size + " at " + position);
+        return (int) size;
+    }
+
+    private static ByteBuffer body(ByteBuffer parent, int position, int size) {
+        int headerSize = (parent.getInt(position) == 1) ? 16 : 8;
+        ByteBuffer duplicate = parent.duplicate();
+        duplicate.limit(position + size);
+        duplicate.position(position + headerSize);
+        return duplicate.slice().order(ByteOrder.BIG_ENDIAN);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new IOException("Unexpected end of file");
+            position += read;
+        }
+    }
+
+    static int fourcc(String type) {
+        return (type.charAt(0) << 24) | (type.charAt(1) << 16) | (type.charAt(2) << 8) | type.charAt(3);
+    }
+
+    static String fourccToString(int type) {
+        return new String(new char[] {(char) ((type >> 24) & 0xff), (char) ((type >> 16) & 0xff),
+                (char) ((type >> 8) & 0xff), (char) (type & 0xff)});
+    }
+}
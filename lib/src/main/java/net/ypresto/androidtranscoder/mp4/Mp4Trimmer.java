@@ -0,0 +1,607 @@
+package net.ypresto.androidtranscoder.mp4;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Trims an MP4 without decoding by copying its encoded samples.  Each track is copied from the
+ * sync sample at or before the start, and an edit list skips to the exact start so players
+ * don't show the frames before it.  The output is written moov first, followed by the samples
+ * interleaved in short chunks, which are copied between channels with
+ * {@link FileChannel#transferTo}.
+ *
+ * Refer: ISO/IEC 14496-12
+ */
+public class Mp4Trimmer {
+    private static final int MAX_MOOV_SIZE = 64 * 1024 * 1024;
+    private static final long CHUNK_DURATION_US = 500000;
+    private static final int TYPE_FTYP = Mp4SampleTableReader.fourcc("ftyp");
+    private static final int TYPE_MDAT = Mp4SampleTableReader.fourcc("mdat");
+    private static final int TYPE_MVHD = Mp4SampleTableReader.fourcc("mvhd");
+    private static final int TYPE_MVEX = Mp4SampleTableReader.fourcc("mvex");
+
+    private static class Track {
+        Mp4Box mTrak;
+        SampleTable mTable;
+        long mTimescale;
+        long[] mDecodeTimes;            // Ticks, one more than samples for the end of the last
+        int[] mCompositionOffsets;      // Ticks, null without ctts
+        boolean mSyncTable;             // Whether there was an stss
+        long mEditMediaTime;            // Media time the input presented at zero
+        int mFirstSample;
+        int mEndSample;
+        long mMediaTime;                // Media time the output presents at zero
+        long mDurationUs;               // Presented duration
+        List<Long> mChunkOffsets = new ArrayList<Long>();
+        List<Integer> mChunkSamples = new ArrayList<Integer>();
+    }
+
+    private static class Chunk {
+        final Track mTrack;
+        final int mFirstSample;
+        final int mSampleCount;
+
+        Chunk(Track track, int firstSample, int sampleCount) {
+            mTrack = track;
+            mFirstSample = firstSample;
+            mSampleCount = sampleCount;
+        }
+    }
+
+    private final FileChannel mInput;
+    private final Mp4Box mFtyp;
+    private final Mp4Box mMoov;
+    private final List<Track> mTracks;
+    private final List<Chunk> mChunks;
+    private final long mDataSize;
+
+    private Mp4Trimmer(FileChannel input, Mp4Box ftyp, Mp4Box moov, List<Track> tracks, List<Chunk> chunks, long dataSize) {
+        mInput = input;
+        mFtyp = ftyp;
+        mMoov = moov;
+        mTracks = tracks;
+        mChunks = chunks;
+        mDataSize = dataSize;
+    }
+
+    /**
+     * Work out what to copy for a trim
+     * @param input     MP4 to trim, read positionally
+     * @param startUs   presentation time the output starts at
+     * @param endUs     presentation time the output ends at, Long.MAX_VALUE for the end
+     * @param video     whether to copy the video track
+     * @param audio     whether to copy the audio track
+     * @return trimmer or null if the input isn't an MP4 whose wanted tracks can all be copied
+     * @throws IOException if the input can't be read or is malformed
+     */
+    public static Mp4Trimmer create(FileChannel input, long startUs, long endUs, boolean video, boolean audio) throws IOException {
+        Mp4Box ftyp = null;
+        Mp4Box moov = null;
+        ByteBuffer moovBody = null;
+        long fileSize = input.size();
+        ByteBuffer header = ByteBuffer.allocate(16).order(ByteOrder.BIG_ENDIAN);
+        for (long position = 0; position + 8 <= fileSize && moov == null; ) {
+            header.clear();
+            header.limit((int) Math.min(16, fileSize - position));
+            readFully(input, header, position);
+            long size = header.getInt(0) & 0xffffffffl;
+            int type = header.getInt(4);
+            if (size == 1) {
+                if (header.limit() < 16)
+                    throw new IOException("Truncated box header at " + position);
+                size = header.getLong(8);
+            } else if (size == 0)
+                size = fileSize - position;
+            if (size < 8 || position + size > fileSize)
+                throw new IOException("Invalid box size " + size + " at " + position);
+            if (type == TYPE_FTYP || type == Mp4SampleTableReader.TYPE_MOOV) {
+                if (size > MAX_MOOV_SIZE)
+                    throw new IOException("Invalid box size " + size + " at " + position);
+                ByteBuffer bytes = ByteBuffer.allocate((int) size);
+                readFully(input, bytes, position);
+                bytes.flip();
+                Mp4Box box = Mp4Box.parse(bytes).get(0);
+                if (type == TYPE_FTYP) {
+                    ftyp = box;
+                } else {
+                    moov = box;
+                    bytes.position(bytes.getInt(0) == 1 ? 16 : 8);
+                    moovBody = bytes.slice();
+                }
+            }
+            position += size;
+        }
+        // Fragmented files keep their samples outside the sample tables
+        if (moov == null || moov.findChild(TYPE_MVEX) != null || moov.findChild(TYPE_MVHD) == null)
+            return null;
+
+        Mp4Index index = Mp4SampleTableReader.parseMoov(moovBody);
+        List<Track> tracks = new ArrayList<Track>();
+        Iterator<Mp4Box> traks = moov.getChildren().iterator();
+        boolean videoFound = false;
+        boolean audioFound = false;
+        while (traks.hasNext()) {
+            Mp4Box trak = traks.next();
+            if (trak.getType() != Mp4SampleTableReader.TYPE_TRAK)
+                continue;
+            SampleTable table = findTable(index, trak);
+            boolean keep = false;
+            if (table != null && table.getHandlerType().equals(SampleTable.HANDLER_VIDEO) && video && !videoFound)
+                keep = videoFound = true;
+            else if (table != null && table.getHandlerType().equals(SampleTable.HANDLER_AUDIO) && audio && !audioFound)
+                keep = audioFound = true;
+            if (!keep) {
+                traks.remove();
+                continue;
+            }
+            // A wanted track that can't be copied leaves the trim to transcoding rather than dropping it
+            Track track = readTrack(trak, table);
+            if (track == null || !selectSamples(track, startUs, endUs))
+                return null;
+            tracks.add(track);
+        }
+        if (tracks.isEmpty())
+            return null;
+
+        List<Chunk> chunks = interleave(tracks);
+        long dataSize = 0;
+        for (Chunk chunk : chunks) {
+            for (int sample = chunk.mFirstSample; sample < chunk.mFirstSample + chunk.mSampleCount; ++sample)
+                dataSize += chunk.mTrack.mTable.getSize(sample);
+        }
+        if (ftyp == null) {
+            ByteBuffer brands = ByteBuffer.allocate(16);
+            brands.putInt(Mp4SampleTableReader.fourcc("isom")).putInt(0x200)
+                    .putInt(Mp4SampleTableReader.fourcc("isom")).putInt(Mp4SampleTableReader.fourcc("mp41"));
+            brands.flip();
+            ftyp = new Mp4Box(TYPE_FTYP, brands);
+        }
+        Mp4Trimmer trimmer = new Mp4Trimmer(input, ftyp, moov, tracks, chunks, dataSize);
+        trimmer.buildMoov();
+        return trimmer;
+    }
+
+    /**
+     * Size of the trimmed file
+     */
+    public long getOutputSize() {
+        return mFtyp.getSize() + mMoov.getSize() + mdatHeaderSize() + mDataSize;
+    }
+
+    /**
+     * Presentation time of the first sample copied for each track, before the start asked for
+     * when it isn't on a sync sample
+     */
+    public long getCopyStartUs() {
+        long startUs = Long.MAX_VALUE;
+        for (Track track : mTracks)
+            startUs = Math.min(startUs, track.mTable.getPresentationTimeUs(track.mFirstSample));
+        return startUs;
+    }
+
+    /**
+     * Write the trimmed file at the output's position
+     */
+    public void write(FileChannel output) throws IOException {
+        writeFully(output, mFtyp.toByteBuffer());
+        writeFully(output, mMoov.toByteBuffer());
+        ByteBuffer header = ByteBuffer.allocate(mdatHeaderSize()).order(ByteOrder.BIG_ENDIAN);
+        if (mdatHeaderSize() == 16)
+            header.putInt(1).putInt(TYPE_MDAT).putLong(16 + mDataSize);
+        else
+            header.putInt((int) (8 + mDataSize)).putInt(TYPE_MDAT);
+        header.flip();
+        writeFully(output, header);
+
+        // Neighbouring samples are usually contiguous in the input too
+        long rangeStart = -1;
+        long rangeEnd = -1;
+        for (Chunk chunk : mChunks) {
+            SampleTable table = chunk.mTrack.mTable;
+            for (int sample = chunk.mFirstSample; sample < chunk.mFirstSample + chunk.mSampleCount; ++sample) {
+                long offset = table.getOffset(sample);
+                if (offset != rangeEnd) {
+                    transfer(rangeStart, rangeEnd - rangeStart, output);
+                    rangeStart = offset;
+                }
+                rangeEnd = offset + table.getSize(sample);
+            }
+        }
+        transfer(rangeStart, rangeEnd - rangeStart, output);
+    }
+
+    private int mdatHeaderSize() {
+        return mDataSize + 8 > 0xffffffffl ? 16 : 8;
+    }
+
+    private static SampleTable findTable(Mp4Index index, Mp4Box trak) {
+        Mp4Box tkhd = trak.findChild(Mp4SampleTableReader.TYPE_TKHD);
+        if (tkhd == null)
+            return null;
+        ByteBuffer body = tkhd.getBody();
+        int trackId = body.get(0) == 1 ? body.getInt(20) : body.getInt(12);
+        for (SampleTable table : index.getTracks()) {
+            if (table.getTrackId() == trackId)
+                return table;
+        }
+        return null;
+    }
+
+    // Raw timing of a track, the sample table only has it rounded to microseconds
+    private static Track readTrack(Mp4Box trak, SampleTable table) {
+        Mp4Box mdia = trak.findChild(Mp4SampleTableReader.TYPE_MDIA);
+        Mp4Box stbl = mdia.findChild(Mp4SampleTableReader.TYPE_MINF).findChild(Mp4SampleTableReader.TYPE_STBL);
+        Mp4Box stsd = stbl.findChild(Mp4SampleTableReader.TYPE_STSD);
+        // Samples all have to share the one sample description the copy keeps
+        if (stsd == null || stsd.getBody().getInt(4) != 1)
+            return null;
+        Track track = new Track();
+        track.mTrak = trak;
+        track.mTable = table;
+        track.mTimescale = table.getTimescale();
+        int sampleCount = table.getSampleCount();
+
+        track.mDecodeTimes = new long[sampleCount + 1];
+        ByteBuffer stts = stbl.findChild(Mp4SampleTableReader.TYPE_STTS).getBody();
+        int sample = 0;
+        long delta = 0;
+        for (int entry = 0, entries = stts.getInt(4); entry < entries && sample < sampleCount; ++entry) {
+            int count = stts.getInt(8 + entry * 8);
+            delta = stts.getInt(12 + entry * 8) & 0xffffffffl;
+            for (int i = 0; i < count && sample < sampleCount; ++i, ++sample)
+                track.mDecodeTimes[sample + 1] = track.mDecodeTimes[sample] + delta;
+        }
+        for (; sample < sampleCount; ++sample)
+            track.mDecodeTimes[sample + 1] = track.mDecodeTimes[sample] + delta;
+
+        Mp4Box cttsBox = stbl.findChild(Mp4SampleTableReader.TYPE_CTTS);
+        if (cttsBox != null) {
+            ByteBuffer ctts = cttsBox.getBody();
+            track.mCompositionOffsets = new int[sampleCount];
+            sample = 0;
+            for (int entry = 0, entries = ctts.getInt(4); entry < entries && sample < sampleCount; ++entry) {
+                int count = ctts.getInt(8 + entry * 8);
+                int offset = ctts.getInt(12 + entry * 8);
+                for (int i = 0; i < count && sample < sampleCount; ++i)
+                    track.mCompositionOffsets[sample++] = offset;
+            }
+        }
+        track.mSyncTable = stbl.findChild(Mp4SampleTableReader.TYPE_STSS) != null;
+
+        Mp4Box edts = trak.findChild(Mp4SampleTableReader.TYPE_EDTS);
+        Mp4Box elstBox = edts != null ? edts.findChild(Mp4SampleTableReader.TYPE_ELST) : null;
+        if (elstBox != null) {
+            ByteBuffer elst = elstBox.getBody();
+            boolean version1 = elst.get(0) == 1;
+            for (int entry = 0, position = 8, entries = elst.getInt(4); entry < entries; ++entry) {
+                long mediaTime = version1 ? elst.getLong(position + 8) : elst.getInt(position + 4);
+                position += version1 ? 20 : 12;
+                if (mediaTime != -1) {
+                    track.mEditMediaTime = mediaTime;
+                    break;
+                }
+            }
+        }
+        return track;
+    }
+
+    private static long compositionTime(Track track, int sample) {
+        long offset = track.mCompositionOffsets != null ? track.mCompositionOffsets[sample] : 0;
+        return track.mDecodeTimes[sample] + offset;
+    }
+
+    /**
+     * Copy from the last sync sample presented at or before the start, through every sample in
+     * decode order up to the last one presented before the end
+     * @return false if no samples fall in the trim
+     */
+    private static boolean selectSamples(Track track, long startUs, long endUs) {
+        SampleTable table = track.mTable;
+        long startTime = track.mEditMediaTime + startUs * track.mTimescale / 1000000;
+        long endTime = endUs == Long.MAX_VALUE ? Long.MAX_VALUE : track.mEditMediaTime + endUs * track.mTimescale / 1000000;
+        int first = -1;
+        for (int i = 0; i < table.getSyncSampleCount(); ++i) {
+            int sync = table.getSyncSample(i);
+            if (first < 0 || compositionTime(track, sync) <= startTime)
+                first = sync;
+        }
+        if (first < 0)
+            return false;
+        int end = first;
+        long presentedEnd = 0;
+        for (int sample = first; sample < table.getSampleCount(); ++sample) {
+            long time = compositionTime(track, sample);
+            if (time < endTime) {
+                end = sample + 1;
+                presentedEnd = Math.max(presentedEnd, time + track.mDecodeTimes[sample + 1] - track.mDecodeTimes[sample]);
+            }
+        }
+        if (end == first)
+            return false;
+        track.mFirstSample = first;
+        track.mEndSample = end;
+        track.mMediaTime = Math.max(0, startTime - track.mDecodeTimes[first]);
+        long presentedStart = Math.max(startTime, compositionTime(track, first));
+        track.mDurationUs = (Math.min(endTime, presentedEnd) - presentedStart) * 1000000 / track.mTimescale;
+        return track.mDurationUs > 0;
+    }
+
+    // Chunks of each track in turn covering the same stretch of decode time
+    private static List<Chunk> interleave(List<Track> tracks) {
+        List<Chunk> chunks = new ArrayList<Chunk>();
+        int[] next = new int[tracks.size()];
+        boolean remaining = true;
+        for (int i = 0; i < tracks.size(); ++i)
+            next[i] = tracks.get(i).mFirstSample;
+        for (long windowUs = CHUNK_DURATION_US; remaining; windowUs += CHUNK_DURATION_US) {
+            remaining = false;
+            for (int i = 0; i < tracks.size(); ++i) {
+                Track track = tracks.get(i);
+                int first = next[i];
+                long base = track.mDecodeTimes[track.mFirstSample];
+                while (next[i] < track.mEndSample && (track.mDecodeTimes[next[i]] - base) * 1000000 / track.mTimescale < windowUs)
+                    ++next[i];
+                if (next[i] > first)
+                    chunks.add(new Chunk(track, first, next[i] - first));
+                remaining |= next[i] < track.mEndSample;
+            }
+        }
+        return chunks;
+    }
+
+    private void buildMoov() {
+        ByteBuffer mvhd = copy(mMoov.findChild(TYPE_MVHD));
+        boolean mvhdVersion1 = mvhd.get(0) == 1;
+        long movieTimescale = mvhdVersion1 ? mvhd.getInt(20) & 0xffffffffl : mvhd.getInt(12) & 0xffffffffl;
+        long movieDuration = 0;
+        for (Track track : mTracks) {
+            long duration = track.mDurationUs * movieTimescale / 1000000;
+            movieDuration = Math.max(movieDuration, duration);
+            buildTrak(track, duration);
+        }
+        if (mvhdVersion1)
+            mvhd.putLong(24, movieDuration);
+        else
+            mvhd.putInt(16, (int) movieDuration);
+        mMoov.findChild(TYPE_MVHD).setBody(mvhd);
+
+        // Offsets are known once moov's size is, which depends on whether they need 64 bits
+        boolean co64 = false;
+        long moovSize = -1;
+        while (mMoov.getSize() != moovSize) {
+            moovSize = mMoov.getSize();
+            long offset = mFtyp.getSize() + moovSize + mdatHeaderSize();
+            co64 |= offset + mDataSize > 0xffffffffl;
+            for (Track track : mTracks) {
+                track.mChunkOffsets.clear();
+                track.mChunkSamples.clear();
+            }
+            for (Chunk chunk : mChunks) {
+                chunk.mTrack.mChunkOffsets.add(offset);
+                chunk.mTrack.mChunkSamples.add(chunk.mSampleCount);
+                for (int sample = chunk.mFirstSample; sample < chunk.mFirstSample + chunk.mSampleCount; ++sample)
+                    offset += chunk.mTrack.mTable.getSize(sample);
+            }
+            for (Track track : mTracks) {
+                Mp4Box stbl = stbl(track);
+                replaceChild(stbl, Mp4SampleTableReader.TYPE_STSC, stsc(track));
+                replaceChild(stbl, Mp4SampleTableReader.TYPE_STCO, chunkOffsets(track, co64));
+            }
+        }
+    }
+
+    private void buildTrak(Track track, long movieDuration) {
+        ByteBuffer tkhd = copy(track.mTrak.findChild(Mp4SampleTableReader.TYPE_TKHD));
+        if (tkhd.get(0) == 1)
+            tkhd.putLong(28, movieDuration);
+        else
+            tkhd.putInt(20, (int) movieDuration);
+        track.mTrak.findChild(Mp4SampleTableReader.TYPE_TKHD).setBody(tkhd);
+
+        // One edit presenting the trim, starting part way into the first copied sample's run
+        boolean elstVersion1 = movieDuration > Integer.MAX_VALUE || track.mMediaTime > Integer.MAX_VALUE;
+        ByteBuffer elst = ByteBuffer.allocate(elstVersion1 ? 28 : 20).order(ByteOrder.BIG_ENDIAN);
+        elst.putInt(elstVersion1 ? 0x01000000 : 0);
+        elst.putInt(1);
+        if (elstVersion1)
+            elst.putLong(movieDuration).putLong(track.mMediaTime);
+        else
+            elst.putInt((int) movieDuration).putInt((int) track.mMediaTime);
+        elst.putInt(0x00010000);
+        elst.flip();
+        List<Mp4Box> edtsChildren = new ArrayList<Mp4Box>();
+        edtsChildren.add(new Mp4Box(Mp4SampleTableReader.TYPE_ELST, elst));
+        Mp4Box edts = new Mp4Box(Mp4SampleTableReader.TYPE_EDTS, edtsChildren);
+        List<Mp4Box> trakChildren = track.mTrak.getChildren();
+        int tkhdIndex = trakChildren.indexOf(track.mTrak.findChild(Mp4SampleTableReader.TYPE_TKHD));
+        Mp4Box oldEdts = track.mTrak.findChild(Mp4SampleTableReader.TYPE_EDTS);
+        if (oldEdts != null)
+            trakChildren.set(trakChildren.indexOf(oldEdts), edts);
+        else
+            trakChildren.add(tkhdIndex + 1, edts);
+
+        Mp4Box mdia = track.mTrak.findChild(Mp4SampleTableReader.TYPE_MDIA);
+        ByteBuffer mdhd = copy(mdia.findChild(Mp4SampleTableReader.TYPE_MDHD));
+        long mediaDuration = track.mDecodeTimes[track.mEndSample] - track.mDecodeTimes[track.mFirstSample];
+        if (mdhd.get(0) == 1)
+            mdhd.putLong(24, mediaDuration);
+        else
+            mdhd.putInt(16, (int) mediaDuration);
+        mdia.findChild(Mp4SampleTableReader.TYPE_MDHD).setBody(mdhd);
+
+        // Sample tables are rebuilt for the copied samples, anything else describing the old ones goes
+        Mp4Box stbl = stbl(track);
+        List<Mp4Box> stblChildren = stbl.getChildren();
+        Mp4Box stsd = stbl.findChild(Mp4SampleTableReader.TYPE_STSD);
+        stblChildren.clear();
+        stblChildren.add(stsd);
+        stblChildren.add(new Mp4Box(Mp4SampleTableReader.TYPE_STTS, stts(track)));
+        if (track.mCompositionOffsets != null)
+            stblChildren.add(new Mp4Box(Mp4SampleTableReader.TYPE_CTTS, ctts(track)));
+        if (track.mSyncTable)
+            stblChildren.add(new Mp4Box(Mp4SampleTableReader.TYPE_STSS, stss(track)));
+        stblChildren.add(new Mp4Box(Mp4SampleTableReader.TYPE_STSZ, stsz(track)));
+        stblChildren.add(new Mp4Box(Mp4SampleTableReader.TYPE_STSC, ByteBuffer.allocate(0)));
+        stblChildren.add(new Mp4Box(Mp4SampleTableReader.TYPE_STCO, ByteBuffer.allocate(0)));
+    }
+
+    private static Mp4Box stbl(Track track) {
+        return track.mTrak.findChild(Mp4SampleTableReader.TYPE_MDIA).findChild(Mp4SampleTableReader.TYPE_MINF)
+                .findChild(Mp4SampleTableReader.TYPE_STBL);
+    }
+
+    private static ByteBuffer stts(Track track) {
+        List<long[]> runs = new ArrayList<long[]>();
+        for (int sample = track.mFirstSample; sample < track.mEndSample; ++sample) {
+            long delta = track.mDecodeTimes[sample + 1] - track.mDecodeTimes[sample];
+            if (!runs.isEmpty() && runs.get(runs.size() - 1)[1] == delta)
+                ++runs.get(runs.size() - 1)[0];
+            else
+                runs.add(new long[]{1, delta});
+        }
+        return runs(0, runs);
+    }
+
+    private static ByteBuffer ctts(Track track) {
+        List<long[]> runs = new ArrayList<long[]>();
+        boolean negative = false;
+        for (int sample = track.mFirstSample; sample < track.mEndSample; ++sample) {
+            int offset = track.mCompositionOffsets[sample];
+            negative |= offset < 0;
+            if (!runs.isEmpty() && runs.get(runs.size() - 1)[1] == offset)
+                ++runs.get(runs.size() - 1)[0];
+            else
+                runs.add(new long[]{1, offset});
+        }
+        return runs(negative ? 0x01000000 : 0, runs);
+    }
+
+    private static ByteBuffer runs(int versionAndFlags, List<long[]> runs) {
+        ByteBuffer body = ByteBuffer.allocate(8 + runs.size() * 8).order(ByteOrder.BIG_ENDIAN);
+        body.putInt(versionAndFlags);
+        body.putInt(runs.size());
+        for (long[] run : runs)
+            body.putInt((int) run[0]).putInt((int) run[1]);
+        body.flip();
+        return body;
+    }
+
+    private static ByteBuffer stss(Track track) {
+        SampleTable table = track.mTable;
+        List<Integer> syncSamples = new ArrayList<Integer>();
+        for (int i = 0; i < table.getSyncSampleCount(); ++i) {
+            int sync = table.getSyncSample(i);
+            if (sync >= track.mFirstSample && sync < track.mEndSample)
+                syncSamples.add(sync - track.mFirstSample + 1);
+        }
+        ByteBuffer body = ByteBuffer.allocate(8 + syncSamples.size() * 4).order(ByteOrder.BIG_ENDIAN);
+        body.putInt(0);
+        body.putInt(syncSamples.size());
+        for (int sync : syncSamples)
+            body.putInt(sync);
+        body.flip();
+        return body;
+    }
+
+    private static ByteBuffer stsz(Track track) {
+        SampleTable table = track.mTable;
+        int count = track.mEndSample - track.mFirstSample;
+        int constantSize = table.getSize(track.mFirstSample);
+        for (int sample = track.mFirstSample; sample < track.mEndSample && constantSize != 0; ++sample) {
+            if (table.getSize(sample) != constantSize)
+                constantSize = 0;
+        }
+        ByteBuffer body = ByteBuffer.allocate(12 + (constantSize == 0 ? count * 4 : 0)).order(ByteOrder.BIG_ENDIAN);
+        body.putInt(0);
+        body.putInt(constantSize);
+        body.putInt(count);
+        if (constantSize == 0) {
+            for (int sample = track.mFirstSample; sample < track.mEndSample; ++sample)
+                body.putInt(table.getSize(sample));
+        }
+        body.flip();
+        return body;
+    }
+
+    private static Mp4Box stsc(Track track) {
+        List<int[]> entries = new ArrayList<int[]>();
+        for (int chunk = 0; chunk < track.mChunkSamples.size(); ++chunk) {
+            int samples = track.mChunkSamples.get(chunk);
+            if (entries.isEmpty() || entries.get(entries.size() - 1)[1] != samples)
+                entries.add(new int[]{chunk + 1, samples});
+        }
+        ByteBuffer body = ByteBuffer.allocate(8 + entries.size() * 12).order(ByteOrder.BIG_ENDIAN);
+        body.putInt(0);
+        body.putInt(entries.size());
+        for (int[] entry : entries)
+            body.putInt(entry[0]).putInt(entry[1]).putInt(1);
+        body.flip();
+        return new Mp4Box(Mp4SampleTableReader.TYPE_STSC, body);
+    }
+
+    private static Mp4Box chunkOffsets(Track track, boolean co64) {
+        ByteBuffer body = ByteBuffer.allocate(8 + track.mChunkOffsets.size() * (co64 ? 8 : 4)).order(ByteOrder.BIG_ENDIAN);
+        body.putInt(0);
+        body.putInt(track.mChunkOffsets.size());
+        for (long offset : track.mChunkOffsets) {
+            if (co64)
+                body.putLong(offset);
+            else
+                body.putInt((int) offset);
+        }
+        body.flip();
+        return new Mp4Box(co64 ? Mp4SampleTableReader.TYPE_CO64 : Mp4SampleTableReader.TYPE_STCO, body);
+    }
+
+    // Replace the child of the type, stco and co64 standing in for each other
+    private static void replaceChild(Mp4Box parent, int type, Mp4Box child) {
+        List<Mp4Box> children = parent.getChildren();
+        for (int i = 0; i < children.size(); ++i) {
+            int childType = children.get(i).getType();
+            boolean chunkOffsets = type == Mp4SampleTableReader.TYPE_STCO
+                    && (childType == Mp4SampleTableReader.TYPE_STCO || childType == Mp4SampleTableReader.TYPE_CO64);
+            if (childType == type || chunkOffsets) {
+                children.set(i, child);
+                return;
+            }
+        }
+        children.add(child);
+    }
+
+    private static ByteBuffer copy(Mp4Box box) {
+        ByteBuffer body = box.getBody();
+        ByteBuffer copy = ByteBuffer.allocate(body.remaining()).order(ByteOrder.BIG_ENDIAN);
+        copy.put(body);
+        copy.flip();
+        return copy;
+    }
+
+    private void transfer(long position, long count, FileChannel output) throws IOException {
+        while (count > 0) {
+            long transferred = mInput.transferTo(position, count, output);
+            if (transferred <= 0)
+                throw new IOException("Unable to copy samples at " + position);
+            position += transferred;
+            count -= transferred;
+        }
+    }
+
+    private static void writeFully(FileChannel output, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            output.write(buffer);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if (read < 0)
+                throw new IOException("Unexpected end of file");
+            position += read;
+        }
+    }
+}
@@ -0,0 +1,221 @@
+package net.ypresto.androidtranscoder.mp4;
+
+import java.util.Arrays;
+
+/**
+ * Immutable sample table of a single MP4 track: per-sample presentation times, file offsets,
+ * sizes and the list of sync (key) samples.  Times are expressed in microseconds on the
+ * presentation timeline, i.e. after applying composition offsets and the track's edit list.
+ */
+public class SampleTable {
+    public static final String HANDLER_VIDEO = "vide";
+    public static final String HANDLER_AUDIO = "soun";
+
+    private final int mTrackId;
+    private final String mHandlerType;
+    private final String mSampleEntryType;
+    private final long mTimescale;
+    private final long mDurationUs;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mRotation;
+    private final int mSampleRate;
+    private final int mChannelCount;
+    private final long[] mPresentationTimesUs;
+    private final long[] mOffsets;
+    private final int[] mSizes;
+    private final int[] mSyncSamples;   // sample indexes (0 based) in decode order
+    private final long[] mSyncTimesUs;  // presentation times of mSyncSamples, ascending
+
+    /**
+     * @param width video width, 0 for audio tracks
+     * @param height video height, 0 for audio tracks
+     * @param rotation video rotation in degrees from the track matrix
+     * @param sampleRate audio sample rate, 0 for video tracks
+     * @param channelCount audio channel count, 0 for video tracks
+     */
+    public SampleTable(int trackId, String handlerType, String sampleEntryType, long timescale, long durationUs,
+                       int width, int height, int rotation, int sampleRate, int channelCount,
+                       long[] presentationTimesUs, long[] offsets, int[] sizes, int[] syncSamples) {
+        if (presentationTimesUs.length != offsets.length || offsets.length != sizes.length)
+            throw new IllegalArgumentException("Sample table arrays differ in length");
+        mTrackId = trackId;
+        mHandlerType = handlerType;
+        mSampleEntryType = sampleEntryType;
+        mTimescale = timescale;
+        mDurationUs = durationUs;
+        mWidth = width;
+        mHeight = height;
+        mRotation = rotation;
+        mSampleRate = sampleRate;
+        mChannelCount = channelCount;
+        mPresentationTimesUs = presentationTimesUs;
+        mOffsets = offsets;
+        mSizes = sizes;
+
+        // No sync sample table means every sample is a sync sample
+        if (syncSamples == null) {
+            syncSamples = new int[presentationTimesUs.length];
+            for (int i = 0; i < syncSamples.length; ++i)
+                syncSamples[i] = i;
+        }
+        mSyncSamples = syncSamples;
+        mSyncTimesUs = new long[syncSamples.length];
+        for (int i = 0; i < syncSamples.length; ++i)
+            mSyncTimesUs[i] = presentationTimesUs[syncSamples[i]];
+        Arrays.sort(mSyncTimesUs);
+    }
+
+    public int getTrackId() {
+        return mTrackId;
+    }
+
+    public String getHandlerType() {
+        return mHandlerType;
+    }
+
+    /**
+     * @return four character code of the sample entry such as avc1 or mp4a
+     */
+    public String getSampleEntryType() {
+        return mSampleEntryType;
+    }
+
+    public long getTimescale() {
+        return mTimescale;
+    }
+
+    public long getDurationUs() {
+        return mDurationUs;
+    }
+
+    /**
+     * @return MIME type for the sample entry type or null if it is not one we know
+     */
+    public String getMimeType() {
+        if (mSampleEntryType == null)
+            return null;
+        if (mSampleEntryType.equals("avc1") || mSampleEntryType.equals("avc3"))
+            return "video/avc";
+        if (mSampleEntryType.equals("hvc1") || mSampleEntryType.equals("hev1"))
+            return "video/hevc";
+        if (mSampleEntryType.equals("mp4v"))
+            return "video/mp4v-es";
+        if (mSampleEntryType.equals("s263"))
+            return "video/3gpp";
+        if (mSampleEntryType.equals("mp4a"))
+            return "audio/mp4a-latm";
+        if (mSampleEntryType.equals("samr"))
+            return "audio/3gpp";
+        if (mSampleEntryType.equals("sawb"))
+            return "audio/amr-wb";
+        return null;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getRotation() {
+        return mRotation;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    /**
+     * Average frame rate over the whole track
+     * @return frames per second or 0 if unknown
+     */
+    public int getFrameRate() {
+        if (mDurationUs <= 0)
+            return 0;
+        return (int) Math.round(getSampleCount() * 1000000.0 / mDurationUs);
+    }
+
+    public int getSampleCount() {
+        return mPresentationTimesUs.length;
+    }
+
+    public long getPresentationTimeUs(int sample) {
+        return mPresentationTimesUs[sample];
+    }
+
+    public long getOffset(int sample) {
+        return mOffsets[sample];
+    }
+
+    public int getSize(int sample) {
+        return mSizes[sample];
+    }
+
+    public int getSyncSampleCount() {
+        return mSyncSamples.length;
+    }
+
+    public int getSyncSample(int index) {
+        return mSyncSamples[index];
+    }
+
+    /**
+     * @return sync sample indexes (0 based) in decode order, callers must not modify
+     */
+    int[] getSyncSamples() {
+        return mSyncSamples;
+    }
+
+    long[] getPresentationTimesUs() {
+        return mPresentationTimesUs;
+    }
+
+    long[] getOffsets() {
+        return mOffsets;
+    }
+
+    int[] getSizes() {
+        return mSizes;
+    }
+
+    public boolean isSyncSample(int sample) {
+        return Arrays.binarySearch(mSyncSamples, sample) >= 0;
+    }
+
+    /**
+     * Find the presentation time of the closest sync sample at or before the given time
+     * @param timeUs
+     * @return sync sample time, or the first sync sample time if timeUs precedes all of them,
+     * or -1 if the track has no samples
+     */
+    public long getSyncTimeUsAtOrBefore(long timeUs) {
+        if (mSyncTimesUs.length == 0)
+            return -1l;
+        int index = Arrays.binarySearch(mSyncTimesUs, timeUs);
+        if (index < 0)
+            index = -index - 2;
+        return mSyncTimesUs[Math.max(0, index)];
+    }
+
+    /**
+     * Count the samples whose presentation time falls in [fromUs, toUs), useful to estimate the
+     * amount of decoding needed to pre-roll from a sync sample to a seek point
+     * @param fromUs
+     * @param toUs
+     * @return
+     */
+    public int countSamplesBetween(long fromUs, long toUs) {
+        int count = 0;
+        for (long presentationTimeUs : mPresentationTimesUs)
+            if (presentationTimeUs >= fromUs && presentationTimeUs < toUs)
+                ++count;
+        return count;
+    }
+}
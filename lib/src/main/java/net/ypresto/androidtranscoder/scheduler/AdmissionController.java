@@ -0,0 +1,322 @@
+package net.ypresto.androidtranscoder.scheduler;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Decides which transcode jobs may run at once given a budget of codec instances and codec
+ * memory.  Waiting jobs are admitted highest priority first and in submission order within a
+ * priority.  A job that doesn't fit holds back the jobs behind it so large jobs can't starve,
+ * and one that exceeds the whole budget is admitted on its own.  When a waiting job can't fit
+ * because lower priority jobs are running those jobs are asked to yield, which they do at their
+ * next segment boundary by calling {@link #suspend}; a suspended job goes back into the queue
+ * ahead of later jobs of its priority.  A suspended job stays charged for the codecs it keeps
+ * open, such as its encoders, and only the rest is freed for others.  Yields are only requested
+ * when they would make room, and with nothing left running a suspended job is resumed before
+ * a waiting one so it can finish and give back what it holds.
+ *
+ * Not tied to threads or clocks, callers pass the time so behaviour is deterministic.
+ */
+public class AdmissionController {
+
+    public enum State {WAITING, RUNNING, SUSPENDED, FINISHED}
+
+    public static class Job {
+        private final long mSequence;
+        private final int mPriority;
+        private final int mCodecs;
+        private final long mMemoryBytes;
+        private final int mHeldCodecs;
+        private final long mHeldMemoryBytes;
+        private State mState = State.WAITING;
+        private long mQueuedTimeMs;
+        private boolean mYieldRequested;
+
+        private Job(long sequence, int priority, int codecs, long memoryBytes, int heldCodecs, long heldMemoryBytes, long nowMs) {
+            mSequence = sequence;
+            mPriority = priority;
+            mCodecs = codecs;
+            mMemoryBytes = memoryBytes;
+            mHeldCodecs = Math.min(heldCodecs, codecs);
+            mHeldMemoryBytes = Math.min(heldMemoryBytes, memoryBytes);
+            mQueuedTimeMs = nowMs;
+        }
+
+        public int getPriority() {
+            return mPriority;
+        }
+
+        public int getCodecs() {
+            return mCodecs;
+        }
+
+        public long getMemoryBytes() {
+            return mMemoryBytes;
+        }
+
+        public int getHeldCodecs() {
+            return mHeldCodecs;
+        }
+
+        public long getHeldMemoryBytes() {
+            return mHeldMemoryBytes;
+        }
+
+        @Override
+        public String toString() {
+            return "Job " + mSequence + " priority " + mPriority + " " + mState;
+        }
+    }
+
+    private static final Comparator<Job> QUEUE_ORDER = new Comparator<Job>() {
+        @Override
+        public int compare(Job lhs, Job rhs) {
+            if (lhs.mPriority != rhs.mPriority)
+                return lhs.mPriority > rhs.mPriority ? -1 : 1;
+            return lhs.mSequence < rhs.mSequence ? -1 : lhs.mSequence == rhs.mSequence ? 0 : 1;
+        }
+    };
+
+    private final int mCodecBudget;
+    private final long mMemoryBudget;
+    private final List<Job> mQueue = new ArrayList<Job>();
+    private final List<Job> mRunning = new ArrayList<Job>();
+    private long mNextSequence;
+    private int mCodecsInUse;
+    private long mMemoryInUse;
+    private long mAdmittedCount;
+    private long mTotalWaitMs;
+    private long mMaxWaitMs;
+
+    /**
+     * @param codecBudget  codec instances that may be open at once
+     * @param memoryBudget bytes of codec buffers that may be allocated at once
+     */
+    public AdmissionController(int codecBudget, long memoryBudget) {
+        mCodecBudget = codecBudget;
+        mMemoryBudget = memoryBudget;
+    }
+
+    /**
+     * Queue a job that keeps all of its codecs open while suspended
+     */
+    public Job enqueue(int priority, int codecs, long memoryBytes, long nowMs) {
+        return enqueue(priority, codecs, memoryBytes, codecs, memoryBytes, nowMs);
+    }
+
+    /**
+     * Queue a job, it runs once returned by {@link #admit}
+     * @param priority        higher runs first
+     * @param codecs          codec instances the job opens at once
+     * @param memoryBytes     estimated codec memory of the job
+     * @param heldCodecs      codec instances still open while the job is suspended
+     * @param heldMemoryBytes codec memory still allocated while the job is suspended
+     * @param nowMs
+     * @return
+     */
+    public synchronized Job enqueue(int priority, int codecs, long memoryBytes, int heldCodecs, long heldMemoryBytes, long nowMs) {
+        Job job = new Job(mNextSequence++, priority, codecs, memoryBytes, heldCodecs, heldMemoryBytes, nowMs);
+        insert(job);
+        return job;
+    }
+
+    /**
+     * Admit the jobs that now fit and request yields from lower priority jobs in the way of the
+     * next one
+     * @param nowMs
+     * @return jobs moved to running, including resumed ones, in admission order
+     */
+    public synchronized List<Job> admit(long nowMs) {
+        List<Job> admitted = new ArrayList<Job>();
+        while (!mQueue.isEmpty()) {
+            Job job = mQueue.get(0);
+            if (!fits(job)) {
+                if (!mRunning.isEmpty()) {
+                    requestYields(job);
+                    break;
+                }
+                // Nothing is left to make way so let a suspended job finish and free what it holds
+                for (Job queued : mQueue) {
+                    if (queued.mState == State.SUSPENDED) {
+                        job = queued;
+                        break;
+                    }
+                }
+            }
+            mCodecsInUse += codecsToAdmit(job);
+            mMemoryInUse += memoryToAdmit(job);
+            mQueue.remove(job);
+            job.mState = State.RUNNING;
+            job.mYieldRequested = false;
+            mRunning.add(job);
+            long waitMs = nowMs - job.mQueuedTimeMs;
+            mTotalWaitMs += waitMs;
+            mMaxWaitMs = Math.max(mMaxWaitMs, waitMs);
+            ++mAdmittedCount;
+            admitted.add(job);
+        }
+        return admitted;
+    }
+
+    /**
+     * @param job
+     * @return whether a running job should call {@link #suspend} at its next segment boundary
+     */
+    public synchronized boolean shouldYield(Job job) {
+        return job.mState == State.RUNNING && job.mYieldRequested;
+    }
+
+    /**
+     * Give up the budget of the codecs a running job has closed and queue it to be admitted again
+     * @param job
+     * @param nowMs
+     */
+    public synchronized void suspend(Job job, long nowMs) {
+        if (job.mState != State.RUNNING)
+            throw new IllegalStateException("Suspending " + job);
+        release(job);
+        mCodecsInUse += job.mHeldCodecs;
+        mMemoryInUse += job.mHeldMemoryBytes;
+        job.mState = State.SUSPENDED;
+        job.mQueuedTimeMs = nowMs;
+        insert(job);
+    }
+
+    /**
+     * A running job has ended, its budget is free for others
+     * @param job
+     */
+    public synchronized void finish(Job job) {
+        if (job.mState == State.RUNNING)
+            release(job);
+        else
+            dequeue(job);
+        job.mState = State.FINISHED;
+    }
+
+    /**
+     * Remove a job that hasn't been admitted
+     * @param job
+     * @return false if the job is running or finished
+     */
+    public synchronized boolean cancel(Job job) {
+        if (job.mState != State.WAITING && job.mState != State.SUSPENDED)
+            return false;
+        dequeue(job);
+        job.mState = State.FINISHED;
+        return true;
+    }
+
+    public synchronized State getState(Job job) {
+        return job.mState;
+    }
+
+    private boolean fits(Job job) {
+        return mCodecsInUse + codecsToAdmit(job) <= mCodecBudget && mMemoryInUse + memoryToAdmit(job) <= mMemoryBudget;
+    }
+
+    // A suspended job is already charged for what it held on to
+    private int codecsToAdmit(Job job) {
+        return job.mState == State.SUSPENDED ? job.mCodecs - job.mHeldCodecs : job.mCodecs;
+    }
+
+    private long memoryToAdmit(Job job) {
+        return job.mState == State.SUSPENDED ? job.mMemoryBytes - job.mHeldMemoryBytes : job.mMemoryBytes;
+    }
+
+    private void dequeue(Job job) {
+        if (mQueue.remove(job) && job.mState == State.SUSPENDED) {
+            mCodecsInUse -= job.mHeldCodecs;
+            mMemoryInUse -= job.mHeldMemoryBytes;
+        }
+    }
+
+    private void insert(Job job) {
+        int index = Collections.binarySearch(mQueue, job, QUEUE_ORDER);
+        mQueue.add(index < 0 ? -index - 1 : index, job);
+    }
+
+    private void release(Job job) {
+        mRunning.remove(job);
+        mCodecsInUse -= job.mCodecs;
+        mMemoryInUse -= job.mMemoryBytes;
+        job.mYieldRequested = false;
+    }
+
+    /**
+     * Ask the lowest priority, most recently admitted running jobs below the waiting job's
+     * priority to yield until enough would be freed for it, or none if the codecs they hold on
+     * to while suspended would still leave it short
+     */
+    private void requestYields(Job waiting) {
+        int codecs = mCodecsInUse;
+        long memory = mMemoryInUse;
+        int freeableCodecs = 0;
+        long freeableMemory = 0;
+        for (Job running : mRunning) {
+            if (running.mYieldRequested) {
+                codecs -= running.mCodecs - running.mHeldCodecs;
+                memory -= running.mMemoryBytes - running.mHeldMemoryBytes;
+            } else if (running.mPriority < waiting.mPriority) {
+                freeableCodecs += running.mCodecs - running.mHeldCodecs;
+                freeableMemory += running.mMemoryBytes - running.mHeldMemoryBytes;
+            }
+        }
+        int waitingCodecs = codecsToAdmit(waiting);
+        long waitingMemory = memoryToAdmit(waiting);
+        if (codecs - freeableCodecs + waitingCodecs > mCodecBudget || memory - freeableMemory + waitingMemory > mMemoryBudget)
+            return;
+        List<Job> candidates = new ArrayList<Job>(mRunning);
+        Collections.sort(candidates, Collections.reverseOrder(QUEUE_ORDER));
+        for (Job running : candidates) {
+            if (codecs + waitingCodecs <= mCodecBudget && memory + waitingMemory <= mMemoryBudget)
+                break;
+            if (running.mPriority >= waiting.mPriority || running.mYieldRequested)
+                continue;
+            running.mYieldRequested = true;
+            codecs -= running.mCodecs - running.mHeldCodecs;
+            memory -= running.mMemoryBytes - running.mHeldMemoryBytes;
+        }
+    }
+
+    public synchronized int getQueueDepth() {
+        return mQueue.size();
+    }
+
+    public synchronized int getRunningCount() {
+        return mRunning.size();
+    }
+
+    public synchronized int getCodecsInUse() {
+        return mCodecsInUse;
+    }
+
+    public synchronized long getMemoryInUse() {
+        return mMemoryInUse;
+    }
+
+    public int getCodecBudget() {
+        return mCodecBudget;
+    }
+
+    public long getMemoryBudget() {
+        return mMemoryBudget;
+    }
+
+    public synchronized long getAdmittedCount() {
+        return mAdmittedCount;
+    }
+
+    /**
+     * Mean time from queueing, or suspension, to admission
+     */
+    public synchronized long getMeanWaitMs() {
+        return mAdmittedCount > 0 ? mTotalWaitMs / mAdmittedCount : 0;
+    }
+
+    public synchronized long getMaxWaitMs() {
+        return mMaxWaitMs;
+    }
+}
@@ -0,0 +1,169 @@
+package net.ypresto.androidtranscoder.scheduler;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs jobs on an executor as the {@link AdmissionController} admits them.  A job is handed a
+ * {@link Ticket} whose {@link Ticket#checkpoint()} it calls at segment boundaries, which is
+ * where it gives way to higher priority work when asked to and waits to be admitted again.
+ * Cancelling the returned Future removes a job that hasn't started and interrupts one that has.
+ *
+ * A suspended job keeps its thread while it waits, so the executor has to start every job it is
+ * given straight away, as the one from {@link #newExecutor} does.  The admission budget is what
+ * limits how many run at once.
+ */
+public class TranscodeScheduler {
+
+    public interface Task<T> {
+        T call(Ticket ticket) throws Exception;
+    }
+
+    public class Ticket {
+        private final AdmissionController.Job mJob;
+
+        private Ticket(AdmissionController.Job job) {
+            mJob = job;
+        }
+
+        /**
+         * Yield to higher priority jobs if they are waiting on this one, returning once this job
+         * has been admitted again.  A job that closes codecs before it yields asks
+         * {@link #shouldYield} first and reopens them once this returns.
+         * @throws InterruptedException if cancelled while suspended
+         */
+        public void checkpoint() throws InterruptedException {
+            if (!mAdmissionController.shouldYield(mJob))
+                return;
+            mAdmissionController.suspend(mJob, nowMs());
+            dispatch();
+            synchronized (TranscodeScheduler.this) {
+                try {
+                    while (mAdmissionController.getState(mJob) != AdmissionController.State.RUNNING)
+                        TranscodeScheduler.this.wait();
+                } catch (InterruptedException e) {
+                    mAdmissionController.cancel(mJob);
+                    throw e;
+                }
+            }
+        }
+
+        /**
+         * @return whether the next {@link #checkpoint()} will suspend the job
+         */
+        public boolean shouldYield() {
+            return mAdmissionController.shouldYield(mJob);
+        }
+
+        public AdmissionController.Job getJob() {
+            return mJob;
+        }
+    }
+
+    private class JobFuture<T> extends FutureTask<T> {
+        private final AdmissionController.Job mJob;
+
+        JobFuture(Callable<T> callable, AdmissionController.Job job) {
+            super(callable);
+            mJob = job;
+        }
+
+        @Override
+        protected void done() {
+            // Covers jobs cancelled before they were admitted as well as ones that ran
+            synchronized (TranscodeScheduler.this) {
+                mPending.remove(mJob);
+            }
+            mAdmissionController.finish(mJob);
+            dispatch();
+        }
+    }
+
+    private final AdmissionController mAdmissionController;
+    private final Executor mExecutor;
+    private final Map<AdmissionController.Job, JobFuture<?>> mPending = new HashMap<AdmissionController.Job, JobFuture<?>>();
+
+    public TranscodeScheduler(AdmissionController admissionController, Executor executor) {
+        mAdmissionController = admissionController;
+        mExecutor = executor;
+    }
+
+    /**
+     * An executor that starts each job on an idle thread or a new one, never queueing it.  One
+     * with a fixed number of threads would leave admitted jobs waiting behind suspended ones for
+     * a thread that only frees up once they resume.
+     * @param coreThreads idle threads kept for a minute
+     * @param threadFactory
+     */
+    public static ThreadPoolExecutor newExecutor(int coreThreads, ThreadFactory threadFactory) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(coreThreads, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), threadFactory);
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    public AdmissionController getAdmissionController() {
+        return mAdmissionController;
+    }
+
+    /**
+     * Submit a job that keeps all of its codecs open while suspended
+     */
+    public <T> Future<T> submit(int priority, int codecs, long memoryBytes, final Task<T> task) {
+        return submit(priority, codecs, memoryBytes, codecs, memoryBytes, task);
+    }
+
+    /**
+     * @param priority        higher runs first
+     * @param codecs          codec instances the job opens at once
+     * @param memoryBytes     estimated codec memory of the job
+     * @param heldCodecs      codec instances still open while the job is suspended
+     * @param heldMemoryBytes codec memory still allocated while the job is suspended
+     * @param task
+     * @return
+     */
+    public <T> Future<T> submit(int priority, int codecs, long memoryBytes, int heldCodecs, long heldMemoryBytes, final Task<T> task) {
+        JobFuture<T> future;
+        synchronized (this) {
+            AdmissionController.Job job = mAdmissionController.enqueue(priority, codecs, memoryBytes, heldCodecs, heldMemoryBytes, nowMs());
+            final Ticket ticket = new Ticket(job);
+            future = new JobFuture<T>(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    return task.call(ticket);
+                }
+            }, job);
+            mPending.put(job, future);
+        }
+        dispatch();
+        return future;
+    }
+
+    /**
+     * Start newly admitted jobs and wake resumed ones
+     */
+    private synchronized void dispatch() {
+        List<AdmissionController.Job> admitted = mAdmissionController.admit(nowMs());
+        if (admitted.isEmpty())
+            return;
+        for (AdmissionController.Job job : admitted) {
+            JobFuture<?> future = mPending.remove(job);
+            if (future != null)
+                mExecutor.execute(future);
+        }
+        notifyAll();
+    }
+
+    private static long nowMs() {
+        return System.nanoTime() / 1000000l;
+    }
+}
@@ -0,0 +1,263 @@
+package net.ypresto.androidtranscoder.source;
+
+import net.ypresto.androidtranscoder.utils.AvcSps;
+import net.ypresto.androidtranscoder.utils.AvcSpsUtils;
+import net.ypresto.androidtranscoder.utils.BitReader;
+import net.ypresto.androidtranscoder.utils.NalScanner;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Indexes the access units of a raw H.264 Annex-B stream held in a buffer, normally a mapping of
+ * the whole file.  Each access unit is handed out as a view of the buffer, start codes and all,
+ * which is what decoders take as input.
+ *
+ * Streams carry no timestamps, so units get the index of their place in output order.  That is
+ * worked out from the picture order count of pic_order_cnt_type 0 streams, the ones that have B
+ * frames, and taken to be decoding order otherwise.  The first SPS and PPS describe the stream.
+ *
+ * Refer: ITU-T H.264 7.4.1.2.3, 7.3.3 and 8.2.1.1
+ */
+public class AnnexBReader {
+    private static final int NAL_SLICE = 1;
+    private static final int NAL_IDR_SLICE = 5;
+    private static final int NAL_SEI = 6;
+    private static final int NAL_SPS = 7;
+    private static final int NAL_PPS = 8;
+    private static final int NAL_AUD = 9;
+    private static final int SLICE_HEADER_BYTES = 32;
+
+    private final ByteBuffer mFile;
+    private ByteBuffer mSpsUnit;
+    private ByteBuffer mPpsUnit;
+    private AvcSps mSps;
+    private int mCount;
+    private int[] mOffsets = new int[64];
+    private int[] mSizes = new int[64];
+    private int[] mOrderCounts = new int[64];
+    private int[] mPresentationIndices;
+    private int[] mSyncSamples = new int[8];
+    private int mSyncCount;
+    private int mMaxSize;
+    private boolean mReordered;
+
+    // Picture order count state carried from one reference picture to the next, 8.2.1.1
+    private final BitReader mBitReader = new BitReader();
+    private final byte[] mSliceHeader = new byte[SLICE_HEADER_BYTES];
+    private int mPrevOrderCountMsb;
+    private int mPrevOrderCountLsb;
+
+    /**
+     * @param file whole stream from its position to its limit
+     */
+    public AnnexBReader(ByteBuffer file) {
+        mFile = file.slice();
+        index();
+        if (mSps == null || mPpsUnit == null)
+            throw new IllegalStateException("H.264 stream has no SPS and PPS");
+        if (mCount == 0)
+            throw new IllegalStateException("H.264 stream has no pictures");
+        order();
+    }
+
+    private void index() {
+        NalScanner scanner = new NalScanner();
+        int units = scanner.scanAnnexB(mFile);
+        int start = -1;
+        int end = 0;
+        boolean hasPicture = false;
+        boolean idr = false;
+        int orderCount = 0;
+        for (int i = 0; i < units; ++i) {
+            int offset = scanner.getOffset(i);
+            int length = scanner.getLength(i);
+            int type = scanner.getType(mFile, i);
+            boolean slice = type == NAL_SLICE || type == NAL_IDR_SLICE;
+            // The first slice of a picture has first_mb_in_slice 0, coded as a single one bit
+            boolean startsUnit = slice ? hasPicture && length > 1 && (mFile.get(offset + 1) & 0x80) != 0
+                    : hasPicture && (type == NAL_AUD || type == NAL_SPS || type == NAL_PPS || type == NAL_SEI
+                    || (type >= 14 && type <= 18));
+            if (start < 0 || startsUnit) {
+                if (hasPicture)
+                    add(start, end, idr, orderCount);
+                start = offset - 3;
+                hasPicture = false;
+                idr = false;
+            }
+            end = offset + length;
+            if (type == NAL_SPS && mSps == null) {
+                mSpsUnit = unit(offset, length);
+                mSps = AvcSpsUtils.parseSps(unit(offset + 1, length - 1));
+            } else if (type == NAL_PPS && mPpsUnit == null) {
+                mPpsUnit = unit(offset, length);
+            } else if (slice && !hasPicture) {
+                hasPicture = true;
+                idr = type == NAL_IDR_SLICE;
+                orderCount = mSps != null && mSps.mPicOrderCntType == 0 ? readOrderCount(offset, length, idr) : mCount;
+            }
+        }
+        if (hasPicture)
+            add(start, end, idr, orderCount);
+    }
+
+    // PicOrderCnt of a frame from pic_order_cnt_lsb in its first slice header
+    private int readOrderCount(int offset, int length, boolean idr) {
+        int refIdc = (mFile.get(offset) >> 5) & 3;
+        int headerLength = Math.min(length - 1, SLICE_HEADER_BYTES);
+        for (int i = 0; i < headerLength; ++i)
+            mSliceHeader[i] = mFile.get(offset + 1 + i);
+        BitReader reader = mBitReader;
+        reader.reset(mSliceHeader, 0, headerLength);
+        reader.readUnsignedExpGolomb();         // first_mb_in_slice
+        reader.readUnsignedExpGolomb();         // slice_type
+        reader.readUnsignedExpGolomb();         // pic_parameter_set_id
+        if (mSps.mSeparateColourPlane)
+            reader.skipBits(2);
+        reader.skipBits(mSps.mLog2MaxFrameNum);
+        if (!mSps.mFrameMbsOnly && reader.readBit())
+            reader.skipBits(1);                 // bottom_field_flag
+        if (idr)
+            reader.readUnsignedExpGolomb();     // idr_pic_id
+        int lsb = reader.readBits(mSps.mLog2MaxPicOrderCntLsb);
+        if (idr) {
+            mPrevOrderCountMsb = 0;
+            mPrevOrderCountLsb = 0;
+        }
+        int maxLsb = 1 << mSps.mLog2MaxPicOrderCntLsb;
+        int msb = mPrevOrderCountMsb;
+        if (lsb < mPrevOrderCountLsb && mPrevOrderCountLsb - lsb >= maxLsb / 2)
+            msb += maxLsb;
+        else if (lsb > mPrevOrderCountLsb && lsb - mPrevOrderCountLsb > maxLsb / 2)
+            msb -= maxLsb;
+        if (refIdc != 0) {
+            mPrevOrderCountMsb = msb;
+            mPrevOrderCountLsb = lsb;
+        }
+        return msb + lsb;
+    }
+
+    private void add(int start, int end, boolean idr, int orderCount) {
+        if (mCount == mOffsets.length) {
+            mOffsets = Arrays.copyOf(mOffsets, mCount * 2);
+            mSizes = Arrays.copyOf(mSizes, mCount * 2);
+            mOrderCounts = Arrays.copyOf(mOrderCounts, mCount * 2);
+        }
+        // Decoding can always start at the first unit, whether or not the stream begins with an IDR
+        if (idr || mCount == 0) {
+            if (mSyncCount == mSyncSamples.length)
+                mSyncSamples = Arrays.copyOf(mSyncSamples, mSyncCount * 2);
+            mSyncSamples[mSyncCount++] = mCount;
+        }
+        mOffsets[mCount] = start;
+        mSizes[mCount] = end - start;
+        mOrderCounts[mCount] = orderCount;
+        mMaxSize = Math.max(mMaxSize, end - start);
+        ++mCount;
+    }
+
+    // Rank units by order count within each run from one sync unit to the next
+    private void order() {
+        mPresentationIndices = new int[mCount];
+        long[] keys = new long[mCount];
+        for (int i = 0; i < mCount; ++i)
+            keys[i] = (long) mOrderCounts[i] << 32 | i;
+        for (int s = 0; s < mSyncCount; ++s) {
+            int from = mSyncSamples[s];
+            int to = s + 1 < mSyncCount ? mSyncSamples[s + 1] : mCount;
+            Arrays.sort(keys, from, to);
+            for (int i = from; i < to; ++i) {
+                int unit = (int) keys[i];
+                mPresentationIndices[unit] = i;
+                if (unit != i)
+                    mReordered = true;
+            }
+        }
+        mOrderCounts = null;
+    }
+
+    private ByteBuffer unit(int offset, int length) {
+        ByteBuffer unit = mFile.duplicate();
+        unit.limit(offset + length);
+        unit.position(offset);
+        return unit.slice();
+    }
+
+    public AvcSps getSps() {
+        return mSps;
+    }
+
+    /**
+     * First SPS NAL unit, header included and start code not
+     */
+    public ByteBuffer getSpsUnit() {
+        return mSpsUnit.duplicate();
+    }
+
+    /**
+     * First PPS NAL unit, header included and start code not
+     */
+    public ByteBuffer getPpsUnit() {
+        return mPpsUnit.duplicate();
+    }
+
+    /**
+     * Number of access units
+     */
+    public int getCount() {
+        return mCount;
+    }
+
+    public int getSize(int index) {
+        return mSizes[index];
+    }
+
+    public int getMaxSize() {
+        return mMaxSize;
+    }
+
+    /**
+     * Access unit in decoding order as a view of the stream, from its first start code to the
+     * end of its last NAL unit
+     */
+    public ByteBuffer getSample(int index) {
+        return unit(mOffsets[index], mSizes[index]);
+    }
+
+    /**
+     * Place of an access unit in output order
+     */
+    public int getPresentationIndex(int index) {
+        return mPresentationIndices[index];
+    }
+
+    /**
+     * Whether any access unit is output in a different order than it is decoded
+     */
+    public boolean isReordered() {
+        return mReordered;
+    }
+
+    public boolean isSync(int index) {
+        return Arrays.binarySearch(mSyncSamples, 0, mSyncCount, index) >= 0;
+    }
+
+    /**
+     * Last sync unit at or before an access unit in decoding order.  Sync units are output
+     * first among those decoded after them, so this is where decoding starts to output it.
+     */
+    public int getSyncSampleBefore(int index) {
+        int i = Arrays.binarySearch(mSyncSamples, 0, mSyncCount, index);
+        return mSyncSamples[i >= 0 ? i : Math.max(0, -i - 2)];
+    }
+
+    /**
+     * First sync unit at or after an access unit in decoding order, or getCount if there is none
+     */
+    public int getSyncSampleAfter(int index) {
+        int i = Arrays.binarySearch(mSyncSamples, 0, mSyncCount, index);
+        if (i < 0)
+            i = -i - 1;
+        return i < mSyncCount ? mSyncSamples[i] : mCount;
+    }
+}
@@ -0,0 +1,165 @@
+package net.ypresto.androidtranscoder.source;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import net.ypresto.androidtranscoder.TLog;
+import net.ypresto.androidtranscoder.utils.AvcSps;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A raw H.264 Annex-B stream as a single video track.  Samples are access units timed by their
+ * place in output order at the frame rate of the SPS timing info, or a given one without it.
+ */
+public class AnnexBSource implements SampleSource {
+    private static final String TAG = "AnnexBSource";
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    private final AnnexBReader mReader;
+    private final double mFrameRate;
+    private boolean mSelected;
+    private int mIndex;
+
+    /**
+     * @param frameRate frames per second if the stream has no timing info
+     */
+    public AnnexBSource(AnnexBReader reader, double frameRate) {
+        mReader = reader;
+        double streamFrameRate = reader.getSps().getFrameRate();
+        mFrameRate = streamFrameRate > 0 ? streamFrameRate : frameRate;
+        if (mFrameRate <= 0)
+            throw new IllegalArgumentException("H.264 stream has no frame rate and none was given");
+    }
+
+    /**
+     * Maps and indexes the stream once, sources opened after an eviction share the index
+     */
+    public static Factory factory(final FileDescriptor fileDescriptor, final double frameRate) {
+        return new Factory() {
+            private AnnexBReader mReader;
+
+            @Override
+            public SampleSource open() throws IOException {
+                if (mReader == null) {
+                    mReader = new AnnexBReader(MappedFile.map(fileDescriptor));
+                    AvcSps sps = mReader.getSps();
+                    TLog.d(TAG, "Indexed " + mReader.getCount() + " access units, " + sps);
+                    if (!mReader.isReordered() && sps.mPicOrderCntType == 1 && sps.getMaxReorderFrames() > 0)
+                        TLog.w(TAG, "Output order of pic_order_cnt_type 1 isn't worked out, frames are timed in decoding order");
+                }
+                return new AnnexBSource(mReader, frameRate);
+            }
+        };
+    }
+
+    public double getFrameRate() {
+        return mFrameRate;
+    }
+
+    @Override
+    public int getTrackCount() {
+        return 1;
+    }
+
+    @Override
+    public MediaFormat getTrackFormat(int index) {
+        checkTrack(index);
+        AvcSps sps = mReader.getSps();
+        MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, sps.getWidth(), sps.getHeight());
+        format.setByteBuffer("csd-0", withStartCode(mReader.getSpsUnit()));
+        format.setByteBuffer("csd-1", withStartCode(mReader.getPpsUnit()));
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, (int) Math.round(mFrameRate));
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, mReader.getMaxSize());
+        format.setLong(MediaFormat.KEY_DURATION, getTimeUs(mReader.getCount()));
+        return format;
+    }
+
+    private static ByteBuffer withStartCode(ByteBuffer unit) {
+        ByteBuffer buffer = ByteBuffer.allocate(START_CODE.length + unit.remaining());
+        buffer.put(START_CODE).put(unit);
+        buffer.flip();
+        return buffer;
+    }
+
+    @Override
+    public void selectTrack(int index) {
+        checkTrack(index);
+        mSelected = true;
+    }
+
+    @Override
+    public void unselectTrack(int index) {
+        checkTrack(index);
+        mSelected = false;
+    }
+
+    @Override
+    public int getSampleTrackIndex() {
+        return hasSample() ? 0 : -1;
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        if (!hasSample())
+            return -1;
+        ByteBuffer sample = mReader.getSample(mIndex);
+        int size = sample.remaining();
+        buffer.limit(offset + size);
+        buffer.position(offset);
+        buffer.put(sample);
+        buffer.position(offset);
+        return size;
+    }
+
+    @Override
+    public long getSampleTime() {
+        return hasSample() ? getTimeUs(mReader.getPresentationIndex(mIndex)) : -1;
+    }
+
+    @Override
+    public int getSampleFlags() {
+        return hasSample() && mReader.isSync(mIndex) ? MediaExtractor.SAMPLE_FLAG_SYNC : 0;
+    }
+
+    @Override
+    public boolean advance() {
+        if (!hasSample())
+            return false;
+        ++mIndex;
+        return hasSample();
+    }
+
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        int frame = (int) Math.max(0, Math.min(timeUs * mFrameRate / 1000000, mReader.getCount() - 1));
+        int before = mReader.getSyncSampleBefore(frame);
+        int after = mReader.getSyncSampleAfter(frame);
+        if (mode == MediaExtractor.SEEK_TO_NEXT_SYNC)
+            mIndex = after;
+        else if (mode == MediaExtractor.SEEK_TO_CLOSEST_SYNC && after < mReader.getCount())
+            mIndex = timeUs - getTimeUs(before) <= getTimeUs(after) - timeUs ? before : after;
+        else
+            mIndex = before;
+    }
+
+    @Override
+    public void release() {
+        mSelected = false;
+    }
+
+    private long getTimeUs(int frame) {
+        return Math.round(frame * 1000000 / mFrameRate);
+    }
+
+    private boolean hasSample() {
+        return mSelected && mIndex < mReader.getCount();
+    }
+
+    private void checkTrack(int index) {
+        if (index != 0)
+            throw new IllegalArgumentException("H.264 input has no track " + index);
+    }
+}
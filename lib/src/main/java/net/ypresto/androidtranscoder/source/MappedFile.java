@@ -0,0 +1,30 @@
+package net.ypresto.androidtranscoder.source;
+
+import android.os.ParcelFileDescriptor;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+class MappedFile {
+    /**
+     * Map an input read only, through a duplicate so the caller's descriptor is left open.  The
+     * mapping outlives the duplicate.
+     */
+    static ByteBuffer map(FileDescriptor fileDescriptor) throws IOException {
+        ParcelFileDescriptor.AutoCloseInputStream inputStream =
+                new ParcelFileDescriptor.AutoCloseInputStream(ParcelFileDescriptor.dup(fileDescriptor));
+        try {
+            FileChannel channel = inputStream.getChannel();
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Input of " + channel.size() + " bytes is too large to map");
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    private MappedFile() {
+    }
+}
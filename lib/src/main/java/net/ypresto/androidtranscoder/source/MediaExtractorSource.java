@@ -0,0 +1,90 @@
+package net.ypresto.androidtranscoder.source;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A container input read by MediaExtractor
+ */
+public class MediaExtractorSource implements SampleSource {
+    private final MediaExtractor mExtractor;
+
+    public MediaExtractorSource(MediaExtractor extractor) {
+        mExtractor = extractor;
+    }
+
+    public static Factory factory(final FileDescriptor fileDescriptor) {
+        return new Factory() {
+            @Override
+            public SampleSource open() throws IOException {
+                MediaExtractor extractor = new MediaExtractor();
+                try {
+                    extractor.setDataSource(fileDescriptor);
+                } catch (IOException e) {
+                    extractor.release();
+                    throw e;
+                }
+                return new MediaExtractorSource(extractor);
+            }
+        };
+    }
+
+    @Override
+    public int getTrackCount() {
+        return mExtractor.getTrackCount();
+    }
+
+    @Override
+    public MediaFormat getTrackFormat(int index) {
+        return mExtractor.getTrackFormat(index);
+    }
+
+    @Override
+    public void selectTrack(int index) {
+        mExtractor.selectTrack(index);
+    }
+
+    @Override
+    public void unselectTrack(int index) {
+        mExtractor.unselectTrack(index);
+    }
+
+    @Override
+    public int getSampleTrackIndex() {
+        return mExtractor.getSampleTrackIndex();
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        return mExtractor.readSampleData(buffer, offset);
+    }
+
+    @Override
+    public long getSampleTime() {
+        return mExtractor.getSampleTime();
+    }
+
+    @Override
+    public int getSampleFlags() {
+        return mExtractor.getSampleFlags();
+    }
+
+    @Override
+    public boolean advance() {
+        return mExtractor.advance();
+    }
+
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        mExtractor.seekTo(timeUs, mode);
+    }
+
+    @Override
+    public void release() {
+        mExtractor.release();
+    }
+}
@@ -0,0 +1,50 @@
+package net.ypresto.androidtranscoder.source;
+
+import android.media.MediaFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The part of MediaExtractor the transcoders read samples through, so that inputs in no container
+ * MediaExtractor can parse are read by sources of their own.  Methods behave as their
+ * MediaExtractor namesakes, flags and seek modes are MediaExtractor's constants.
+ */
+public interface SampleSource {
+    int getTrackCount();
+
+    MediaFormat getTrackFormat(int index);
+
+    void selectTrack(int index);
+
+    void unselectTrack(int index);
+
+    /**
+     * @return track of the current sample or -1 at end of stream
+     */
+    int getSampleTrackIndex();
+
+    /**
+     * Copy the current sample into the buffer at offset, leaving the buffer's position at offset
+     * and its limit at the end of the sample
+     * @return sample size or -1 at end of stream
+     */
+    int readSampleData(ByteBuffer buffer, int offset);
+
+    long getSampleTime();
+
+    int getSampleFlags();
+
+    boolean advance();
+
+    void seekTo(long timeUs, int mode);
+
+    void release();
+
+    /**
+     * Opens a source, the first time a track is needed and again after it was evicted
+     */
+    interface Factory {
+        SampleSource open() throws IOException;
+    }
+}
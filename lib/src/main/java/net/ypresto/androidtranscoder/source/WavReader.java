@@ -0,0 +1,144 @@
+package net.ypresto.androidtranscoder.source;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Finds the format and PCM data of a WAV file held in a buffer, normally a mapping of the whole
+ * file, and hands out runs of frames as views of that buffer.  Only 16 bit integer PCM is read,
+ * the one sample format AudioChannel mixes.
+ *
+ * Refer: Microsoft RIFF WAVE format and WAVEFORMATEXTENSIBLE
+ */
+public class WavReader {
+    private static final int WAVE_FORMAT_PCM = 1;
+    private static final int WAVE_FORMAT_EXTENSIBLE = 0xfffe;
+
+    private final ByteBuffer mFile;
+    private int mChannelCount;
+    private int mSampleRate;
+    private int mBitsPerSample;
+    private int mBlockAlign;
+    private int mDataOffset = -1;
+    private int mDataSize;
+
+    /**
+     * @param file whole file from its position to its limit
+     */
+    public WavReader(ByteBuffer file) {
+        mFile = file.slice().order(ByteOrder.LITTLE_ENDIAN);
+        parse();
+    }
+
+    private void parse() {
+        if (mFile.remaining() < 12 || mFile.getInt(0) != fourCc("RIFF") || mFile.getInt(8) != fourCc("WAVE"))
+            throw new IllegalStateException("Not a RIFF WAVE file");
+        boolean haveFormat = false;
+        int i = 12;
+        while (i + 8 <= mFile.limit()) {
+            int id = mFile.getInt(i);
+            long size = mFile.getInt(i + 4) & 0xffffffffl;
+            int body = i + 8;
+            if (id == fourCc("fmt ")) {
+                if (size < 16 || body + size > mFile.limit())
+                    throw new IllegalStateException("Truncated fmt chunk");
+                parseFormat(body, (int) size);
+                haveFormat = true;
+            } else if (id == fourCc("data")) {
+                // Recorders that never came back to fill the size in leave it zero or all ones
+                long available = mFile.limit() - body;
+                if (size == 0 || size > available)
+                    size = available;
+                mDataOffset = body;
+                mDataSize = (int) size;
+                break;
+            }
+            // Chunks are padded to an even size
+            i = (int) Math.min(body + size + (size & 1), mFile.limit());
+        }
+        if (!haveFormat)
+            throw new IllegalStateException("WAV file has no fmt chunk ahead of its data");
+        if (mDataOffset < 0)
+            throw new IllegalStateException("WAV file has no data chunk");
+        mDataSize -= mDataSize % mBlockAlign;
+    }
+
+    private void parseFormat(int offset, int size) {
+        int formatTag = mFile.getShort(offset) & 0xffff;
+        mChannelCount = mFile.getShort(offset + 2) & 0xffff;
+        mSampleRate = mFile.getInt(offset + 4);
+        mBlockAlign = mFile.getShort(offset + 12) & 0xffff;
+        mBitsPerSample = mFile.getShort(offset + 14) & 0xffff;
+        // The subformat GUID starts with the format tag it extends
+        if (formatTag == WAVE_FORMAT_EXTENSIBLE && size >= 40)
+            formatTag = mFile.getShort(offset + 24) & 0xffff;
+        if (formatTag != WAVE_FORMAT_PCM)
+            throw new UnsupportedOperationException("WAV format " + formatTag + " isn't integer PCM");
+        if (mBitsPerSample != 16)
+            throw new UnsupportedOperationException("WAV sample size " + mBitsPerSample + " isn't 16 bits");
+        if (mChannelCount < 1 || mSampleRate <= 0 || mBlockAlign != 2 * mChannelCount)
+            throw new IllegalStateException("Invalid WAV format: " + mChannelCount + " channels at " + mSampleRate
+                    + "Hz, " + mBlockAlign + " byte frames");
+    }
+
+    private static int fourCc(String id) {
+        return id.charAt(0) | id.charAt(1) << 8 | id.charAt(2) << 16 | id.charAt(3) << 24;
+    }
+
+    public int getChannelCount() {
+        return mChannelCount;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    public int getBitsPerSample() {
+        return mBitsPerSample;
+    }
+
+    /**
+     * Bytes in a frame, one sample of each channel
+     */
+    public int getFrameSize() {
+        return mBlockAlign;
+    }
+
+    public int getDataOffset() {
+        return mDataOffset;
+    }
+
+    public int getFrameCount() {
+        return mDataSize / mBlockAlign;
+    }
+
+    public long getDurationUs() {
+        return getTimeUs(getFrameCount());
+    }
+
+    public long getTimeUs(long frame) {
+        return frame * 1000000 / mSampleRate;
+    }
+
+    /**
+     * First frame at or after a time
+     */
+    public int getFrame(long timeUs) {
+        if (timeUs >= getDurationUs())
+            return getFrameCount();
+        long frame = (timeUs * mSampleRate + 999999) / 1000000;
+        return (int) Math.max(0, Math.min(frame, getFrameCount()));
+    }
+
+    /**
+     * Frames from first up to count of them as a little endian view of the file, no data is copied
+     */
+    public ByteBuffer getFrames(int first, int count) {
+        if (first < 0 || count < 0 || first + count > getFrameCount())
+            throw new IndexOutOfBoundsException("Frames " + first + "+" + count + " outside " + getFrameCount());
+        ByteBuffer frames = mFile.duplicate();
+        frames.limit(mDataOffset + (first + count) * mBlockAlign);
+        frames.position(mDataOffset + first * mBlockAlign);
+        return frames.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
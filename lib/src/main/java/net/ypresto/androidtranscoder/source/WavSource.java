@@ -0,0 +1,141 @@
+package net.ypresto.androidtranscoder.source;
+
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A WAV file as a single track of raw 16 bit PCM.  Samples are runs of frames the size AAC
+ * encodes, read straight out of a mapping of the file, and every one of them is a sync sample.
+ */
+public class WavSource implements SampleSource {
+    public static final String MIMETYPE_AUDIO_RAW = "audio/raw";
+    private static final int FRAMES_PER_SAMPLE = 1024;
+
+    private final WavReader mReader;
+    private boolean mSelected;
+    private int mFrame;
+
+    public WavSource(WavReader reader) {
+        mReader = reader;
+    }
+
+    /**
+     * Maps and parses the file once, sources opened after an eviction share the mapping
+     */
+    public static Factory factory(final FileDescriptor fileDescriptor) {
+        return new Factory() {
+            private WavReader mReader;
+
+            @Override
+            public SampleSource open() throws IOException {
+                if (mReader == null)
+                    mReader = new WavReader(MappedFile.map(fileDescriptor));
+                return new WavSource(mReader);
+            }
+        };
+    }
+
+    public WavReader getReader() {
+        return mReader;
+    }
+
+    @Override
+    public int getTrackCount() {
+        return 1;
+    }
+
+    @Override
+    public MediaFormat getTrackFormat(int index) {
+        checkTrack(index);
+        MediaFormat format = MediaFormat.createAudioFormat(MIMETYPE_AUDIO_RAW, mReader.getSampleRate(), mReader.getChannelCount());
+        format.setLong(MediaFormat.KEY_DURATION, mReader.getDurationUs());
+        format.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, FRAMES_PER_SAMPLE * mReader.getFrameSize());
+        return format;
+    }
+
+    @Override
+    public void selectTrack(int index) {
+        checkTrack(index);
+        mSelected = true;
+    }
+
+    @Override
+    public void unselectTrack(int index) {
+        checkTrack(index);
+        mSelected = false;
+    }
+
+    @Override
+    public int getSampleTrackIndex() {
+        return hasSample() ? 0 : -1;
+    }
+
+    /**
+     * Current sample as a little endian view of the mapped file, for consumers that take PCM
+     * without it being copied, or null at end of stream
+     */
+    public ByteBuffer getSampleBuffer() {
+        return hasSample() ? mReader.getFrames(mFrame, getSampleFrames()) : null;
+    }
+
+    @Override
+    public int readSampleData(ByteBuffer buffer, int offset) {
+        ByteBuffer sample = getSampleBuffer();
+        if (sample == null)
+            return -1;
+        int size = sample.remaining();
+        buffer.limit(offset + size);
+        buffer.position(offset);
+        buffer.put(sample);
+        buffer.position(offset);
+        return size;
+    }
+
+    @Override
+    public long getSampleTime() {
+        return hasSample() ? mReader.getTimeUs(mFrame) : -1;
+    }
+
+    @Override
+    public int getSampleFlags() {
+        return hasSample() ? MediaExtractor.SAMPLE_FLAG_SYNC : 0;
+    }
+
+    @Override
+    public boolean advance() {
+        if (!hasSample())
+            return false;
+        mFrame += getSampleFrames();
+        return hasSample();
+    }
+
+    /**
+     * Any frame can be seeked to, so every mode lands on the first frame at or after the time
+     */
+    @Override
+    public void seekTo(long timeUs, int mode) {
+        mFrame = mReader.getFrame(timeUs);
+    }
+
+    @Override
+    public void release() {
+        mSelected = false;
+    }
+
+    private boolean hasSample() {
+        return mSelected && mFrame < mReader.getFrameCount();
+    }
+
+    private int getSampleFrames() {
+        return Math.min(FRAMES_PER_SAMPLE, mReader.getFrameCount() - mFrame);
+    }
+
+    private void checkTrack(int index) {
+        if (index != 0)
+            throw new IllegalArgumentException("WAV input has no track " + index);
+    }
+}
@@ -29,6 +29,7 @@ public class AvcCsdUtils {
     private static final byte[] AVC_START_CODE_4 = {0x00, 0x00, 0x00, 0x01};
     // Refer: http://www.cardinalpeak.com/blog/the-h-264-sequence-parameter-set/
     private static final byte AVC_SPS_NAL = 103; // 0<<7 + 3<<5 + 7<<0
+    private static final int AVC_PPS_NAL_TYPE = 8;
 
     /**
      * @return ByteBuffer contains SPS without NAL header.
@@ -46,6 +47,22 @@ public class AvcCsdUtils {
         return prefixedSpsBuffer.slice();
     }
 
+    /**
+     * @return ByteBuffer contains PPS without NAL header.
+     */
+    public static ByteBuffer getPpsBuffer(MediaFormat format) {
+        ByteBuffer sourceBuffer = format.getByteBuffer(MediaFormatExtraConstants.KEY_AVC_PPS).asReadOnlyBuffer();
+        ByteBuffer prefixedPpsBuffer = ByteBuffer.allocate(sourceBuffer.limit()).order(sourceBuffer.order());
+        prefixedPpsBuffer.put(sourceBuffer);
+        prefixedPpsBuffer.flip();
+
+        skipStartCode(prefixedPpsBuffer);
+        if ((prefixedPpsBuffer.get() & 0x1f) != AVC_PPS_NAL_TYPE) {
+            throw new IllegalStateException("Got non PPS NAL data.");
+        }
+        return prefixedPpsBuffer.slice();
+    }
+
     private static void skipStartCode(ByteBuffer prefixedSpsBuffer) {
         byte[] prefix3 = new byte[3];
         prefixedSpsBuffer.get(prefix3);
@@ -0,0 +1,36 @@
+package net.ypresto.androidtranscoder.utils;
+
+/**
+ * H.264 picture parameter set, as parsed by {@link AvcSpsUtils#parsePps}.  Fields carry the
+ * syntax element values with the _minus1 and _minus26 style offsets applied.
+ *
+ * Refer: ITU-T H.264 7.3.2.2
+ */
+public class AvcPps {
+    public int mPicParameterSetId;
+    public int mSeqParameterSetId;
+    public boolean mEntropyCodingMode;          // CABAC rather than CAVLC
+    public boolean mBottomFieldPicOrderInFramePresent;
+    public int mNumSliceGroups;
+    public int mSliceGroupMapType;
+    public int mNumRefIdxL0DefaultActive;
+    public int mNumRefIdxL1DefaultActive;
+    public boolean mWeightedPred;
+    public int mWeightedBipredIdc;
+    public int mPicInitQp;
+    public int mPicInitQs;
+    public int mChromaQpIndexOffset;
+    public boolean mDeblockingFilterControlPresent;
+    public boolean mConstrainedIntraPred;
+    public boolean mRedundantPicCntPresent;
+    public boolean mTransform8x8Mode;
+    public boolean mScalingMatrixPresent;
+    public int mSecondChromaQpIndexOffset;      // Same as the first unless signalled
+
+    @Override
+    public String toString() {
+        return "PPS " + mPicParameterSetId + " of SPS " + mSeqParameterSetId + ": " + (mEntropyCodingMode ? "CABAC" : "CAVLC")
+                + " slice groups " + mNumSliceGroups + " refs " + mNumRefIdxL0DefaultActive + "/" + mNumRefIdxL1DefaultActive
+                + " qp " + mPicInitQp + " 8x8 " + mTransform8x8Mode;
+    }
+}
@@ -0,0 +1,161 @@
+package net.ypresto.androidtranscoder.utils;
+
+/**
+ * H.264 sequence parameter set, as parsed by {@link AvcSpsUtils#parseSps}.  Fields carry the
+ * syntax element values with the _minus1 style offsets applied, and elements that are absent
+ * take the values the standard infers for them.
+ *
+ * Refer: ITU-T H.264 7.3.2.1.1 and E.1.1
+ */
+public class AvcSps {
+    public static final int PROFILE_BASELINE = 66;
+    public static final int PROFILE_MAIN = 77;
+    public static final int PROFILE_EXTENDED = 88;
+    public static final int PROFILE_HIGH = 100;
+    public static final int PROFILE_HIGH_10 = 110;
+    public static final int PROFILE_HIGH_422 = 122;
+    public static final int PROFILE_HIGH_444 = 244;
+    public static final int CHROMA_MONOCHROME = 0;
+    public static final int CHROMA_420 = 1;
+    public static final int CHROMA_422 = 2;
+    public static final int CHROMA_444 = 3;
+
+    public int mProfileIdc;
+    public int mConstraintFlags;            // constraint_set0_flag in the high bit, through set5 and two reserved
+    public int mLevelIdc;
+    public int mSeqParameterSetId;
+    public int mChromaFormatIdc = CHROMA_420;
+    public boolean mSeparateColourPlane;
+    public int mBitDepthLuma = 8;
+    public int mBitDepthChroma = 8;
+    public boolean mQpprimeYZeroTransformBypass;
+    public boolean mScalingMatrixPresent;
+    public int mLog2MaxFrameNum;
+    public int mPicOrderCntType;
+    public int mLog2MaxPicOrderCntLsb;
+    public boolean mDeltaPicOrderAlwaysZero;
+    public int mOffsetForNonRefPic;
+    public int mOffsetForTopToBottomField;
+    public int[] mOffsetForRefFrame = new int[0];
+    public int mMaxNumRefFrames;
+    public boolean mGapsInFrameNumAllowed;
+    public int mPicWidthInMbs;
+    public int mPicHeightInMapUnits;
+    public boolean mFrameMbsOnly;
+    public boolean mMbAdaptiveFrameField;
+    public boolean mDirect8x8Inference;
+    public int mFrameCropLeft;
+    public int mFrameCropRight;
+    public int mFrameCropTop;
+    public int mFrameCropBottom;
+
+    public boolean mVuiPresent;
+    public int mSarWidth;                   // 0 when the aspect ratio is unspecified
+    public int mSarHeight;
+    public boolean mOverscanInfoPresent;
+    public boolean mOverscanAppropriate;
+    public int mVideoFormat = 5;
+    public boolean mFullRange;
+    public int mColourPrimaries = 2;
+    public int mTransferCharacteristics = 2;
+    public int mMatrixCoefficients = 2;
+    public int mChromaSampleLocTop;
+    public int mChromaSampleLocBottom;
+    public long mNumUnitsInTick;            // 0 without timing info
+    public long mTimeScale;
+    public boolean mFixedFrameRate;
+    public boolean mNalHrdPresent;
+    public boolean mVclHrdPresent;
+    public boolean mLowDelayHrd;
+    public boolean mPicStructPresent;
+    public boolean mBitstreamRestriction;
+    public int mMaxNumReorderFrames = -1;   // -1 when not signalled, see getMaxReorderFrames
+    public int mMaxDecFrameBuffering = -1;
+
+    public boolean getConstraintFlag(int index) {
+        return (mConstraintFlags & (0x80 >> index)) != 0;
+    }
+
+    /**
+     * ChromaArrayType, 0 for monochrome or separately coded colour planes
+     */
+    public int getChromaArrayType() {
+        return mSeparateColourPlane ? 0 : mChromaFormatIdc;
+    }
+
+    public int getFrameHeightInMbs() {
+        return (mFrameMbsOnly ? 1 : 2) * mPicHeightInMapUnits;
+    }
+
+    /**
+     * Width in pixels after cropping
+     */
+    public int getWidth() {
+        int cropUnitX = getChromaArrayType() == 0 ? 1 : (mChromaFormatIdc == CHROMA_444 ? 1 : 2);
+        return mPicWidthInMbs * 16 - cropUnitX * (mFrameCropLeft + mFrameCropRight);
+    }
+
+    /**
+     * Height in pixels after cropping
+     */
+    public int getHeight() {
+        int cropUnitY = (mFrameMbsOnly ? 1 : 2)
+                * (getChromaArrayType() == 0 ? 1 : (mChromaFormatIdc == CHROMA_420 ? 2 : 1));
+        return getFrameHeightInMbs() * 16 - cropUnitY * (mFrameCropTop + mFrameCropBottom);
+    }
+
+    /**
+     * Frames per second from the VUI timing, two ticks a frame, or 0 if there is none
+     */
+    public double getFrameRate() {
+        if (mNumUnitsInTick == 0 || mTimeScale == 0)
+            return 0;
+        return mTimeScale / (2.0 * mNumUnitsInTick);
+    }
+
+    /**
+     * Most frames that can precede another in decoding order and follow it in output order,
+     * from the bitstream restriction or else as the standard infers it from the level
+     */
+    public int getMaxReorderFrames() {
+        if (mMaxNumReorderFrames >= 0)
+            return mMaxNumReorderFrames;
+        // Intra profiles and Baseline's lack of B slices rule reordering out
+        boolean intra = getConstraintFlag(3) && (mProfileIdc == 44 || mProfileIdc == PROFILE_HIGH_10
+                || mProfileIdc == PROFILE_HIGH_422 || mProfileIdc == PROFILE_HIGH_444);
+        if (intra || mProfileIdc == PROFILE_BASELINE)
+            return 0;
+        return getMaxDpbFrames();
+    }
+
+    /**
+     * MaxDpbFrames for the level and frame size, A.3.1 and Table A-1
+     */
+    public int getMaxDpbFrames() {
+        int maxDpbMbs;
+        switch (mLevelIdc) {
+            case 9: maxDpbMbs = 396; break;
+            case 10: maxDpbMbs = 396; break;
+            case 11: maxDpbMbs = getConstraintFlag(3) && mProfileIdc != PROFILE_HIGH ? 396 : 900; break;
+            case 12: case 13: case 20: maxDpbMbs = 2376; break;
+            case 21: maxDpbMbs = 4752; break;
+            case 22: case 30: maxDpbMbs = 8100; break;
+            case 31: maxDpbMbs = 18000; break;
+            case 32: maxDpbMbs = 20480; break;
+            case 40: case 41: maxDpbMbs = 32768; break;
+            case 42: maxDpbMbs = 34816; break;
+            case 50: maxDpbMbs = 110400; break;
+            case 51: case 52: maxDpbMbs = 184320; break;
+            default: maxDpbMbs = 696320; break;
+        }
+        int frameMbs = mPicWidthInMbs * getFrameHeightInMbs();
+        return frameMbs > 0 ? Math.min(maxDpbMbs / frameMbs, 16) : 16;
+    }
+
+    @Override
+    public String toString() {
+        return "SPS " + mSeqParameterSetId + ": profile " + mProfileIdc + " level " + mLevelIdc + " " + getWidth() + "x" + getHeight()
+                + " chroma " + mChromaFormatIdc + " depth " + mBitDepthLuma + "/" + mBitDepthChroma + " poc " + mPicOrderCntType
+                + " refs " + mMaxNumRefFrames + " reorder " + getMaxReorderFrames() + " fps " + getFrameRate();
+    }
+}
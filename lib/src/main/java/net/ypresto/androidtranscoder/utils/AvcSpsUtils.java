@@ -18,9 +18,239 @@ package net.ypresto.androidtranscoder.utils;
 import java.nio.ByteBuffer;
 
 public class AvcSpsUtils {
+    private static final int[] SCALING_LIST_SIZES = {16, 16, 16, 16, 16, 16, 64, 64, 64, 64, 64, 64};
+    // Table E-1, width and height for aspect_ratio_idc 1 to 16
+    private static final int[] SAR_TABLE = {
+            1, 1, 12, 11, 10, 11, 16, 11, 40, 33, 24, 11, 20, 11, 32, 11,
+            80, 33, 18, 11, 15, 11, 64, 33, 160, 99, 4, 3, 3, 2, 2, 1,
+    };
+
     public static byte getProfileIdc(ByteBuffer spsBuffer) {
         // Refer: http://www.cardinalpeak.com/blog/the-h-264-sequence-parameter-set/
         // First byte after NAL.
         return spsBuffer.get(0);
     }
+
+    /**
+     * @param spsBuffer SPS without NAL header, as from {@link AvcCsdUtils#getSpsBuffer}, from its position to its limit
+     */
+    public static AvcSps parseSps(ByteBuffer spsBuffer) {
+        return parseSps(readerFor(spsBuffer));
+    }
+
+    /**
+     * @param ppsBuffer PPS without NAL header, as from {@link AvcCsdUtils#getPpsBuffer}, from its position to its limit
+     * @param sps       the PPS refers to, needed for a scaling matrix in 4:4:4, may be null otherwise
+     */
+    public static AvcPps parsePps(ByteBuffer ppsBuffer, AvcSps sps) {
+        return parsePps(readerFor(ppsBuffer), sps);
+    }
+
+    // Refer: ITU-T H.264 7.3.2.1.1
+    public static AvcSps parseSps(BitReader reader) {
+        AvcSps sps = new AvcSps();
+        sps.mProfileIdc = reader.readBits(8);
+        sps.mConstraintFlags = reader.readBits(8);
+        sps.mLevelIdc = reader.readBits(8);
+        sps.mSeqParameterSetId = readUnsigned(reader, 31, "seq_parameter_set_id");
+        switch (sps.mProfileIdc) {
+            case 100: case 110: case 122: case 244: case 44: case 83: case 86: case 118: case 128: case 138: case 139: case 134: case 135:
+                sps.mChromaFormatIdc = readUnsigned(reader, 3, "chroma_format_idc");
+                if (sps.mChromaFormatIdc == AvcSps.CHROMA_444)
+                    sps.mSeparateColourPlane = reader.readBit();
+                sps.mBitDepthLuma = readUnsigned(reader, 6, "bit_depth_luma_minus8") + 8;
+                sps.mBitDepthChroma = readUnsigned(reader, 6, "bit_depth_chroma_minus8") + 8;
+                sps.mQpprimeYZeroTransformBypass = reader.readBit();
+                sps.mScalingMatrixPresent = reader.readBit();
+                if (sps.mScalingMatrixPresent)
+                    skipScalingLists(reader, sps.mChromaFormatIdc != AvcSps.CHROMA_444 ? 8 : 12);
+                break;
+        }
+        sps.mLog2MaxFrameNum = readUnsigned(reader, 12, "log2_max_frame_num_minus4") + 4;
+        sps.mPicOrderCntType = readUnsigned(reader, 2, "pic_order_cnt_type");
+        if (sps.mPicOrderCntType == 0) {
+            sps.mLog2MaxPicOrderCntLsb = readUnsigned(reader, 12, "log2_max_pic_order_cnt_lsb_minus4") + 4;
+        } else if (sps.mPicOrderCntType == 1) {
+            sps.mDeltaPicOrderAlwaysZero = reader.readBit();
+            sps.mOffsetForNonRefPic = reader.readSignedExpGolomb();
+            sps.mOffsetForTopToBottomField = reader.readSignedExpGolomb();
+            sps.mOffsetForRefFrame = new int[readUnsigned(reader, 255, "num_ref_frames_in_pic_order_cnt_cycle")];
+            for (int i = 0; i < sps.mOffsetForRefFrame.length; ++i)
+                sps.mOffsetForRefFrame[i] = reader.readSignedExpGolomb();
+        }
+        sps.mMaxNumRefFrames = readUnsigned(reader, 16, "max_num_ref_frames");
+        sps.mGapsInFrameNumAllowed = reader.readBit();
+        sps.mPicWidthInMbs = readUnsigned(reader, 1023, "pic_width_in_mbs_minus1") + 1;
+        sps.mPicHeightInMapUnits = readUnsigned(reader, 1023, "pic_height_in_map_units_minus1") + 1;
+        sps.mFrameMbsOnly = reader.readBit();
+        if (!sps.mFrameMbsOnly)
+            sps.mMbAdaptiveFrameField = reader.readBit();
+        sps.mDirect8x8Inference = reader.readBit();
+        if (reader.readBit()) {
+            sps.mFrameCropLeft = reader.readUnsignedExpGolomb();
+            sps.mFrameCropRight = reader.readUnsignedExpGolomb();
+            sps.mFrameCropTop = reader.readUnsignedExpGolomb();
+            sps.mFrameCropBottom = reader.readUnsignedExpGolomb();
+        }
+        sps.mVuiPresent = reader.readBit();
+        if (sps.mVuiPresent)
+            parseVui(reader, sps);
+        if (sps.getWidth() <= 0 || sps.getHeight() <= 0)
+            throw new IllegalStateException("SPS crops away the whole picture");
+        return sps;
+    }
+
+    // Refer: ITU-T H.264 7.3.2.2
+    public static AvcPps parsePps(BitReader reader, AvcSps sps) {
+        AvcPps pps = new AvcPps();
+        pps.mPicParameterSetId = readUnsigned(reader, 255, "pic_parameter_set_id");
+        pps.mSeqParameterSetId = readUnsigned(reader, 31, "seq_parameter_set_id");
+        pps.mEntropyCodingMode = reader.readBit();
+        pps.mBottomFieldPicOrderInFramePresent = reader.readBit();
+        pps.mNumSliceGroups = readUnsigned(reader, 7, "num_slice_groups_minus1") + 1;
+        if (pps.mNumSliceGroups > 1) {
+            pps.mSliceGroupMapType = readUnsigned(reader, 6, "slice_group_map_type");
+            switch (pps.mSliceGroupMapType) {
+                case 0:
+                    for (int i = 0; i < pps.mNumSliceGroups; ++i)
+                        reader.readUnsignedExpGolomb();     // run_length_minus1
+                    break;
+                case 2:
+                    for (int i = 0; i < pps.mNumSliceGroups - 1; ++i) {
+                        reader.readUnsignedExpGolomb();     // top_left
+                        reader.readUnsignedExpGolomb();     // bottom_right
+                    }
+                    break;
+                case 3: case 4: case 5:
+                    reader.readBit();                       // slice_group_change_direction_flag
+                    reader.readUnsignedExpGolomb();         // slice_group_change_rate_minus1
+                    break;
+                case 6:
+                    int mapUnits = reader.readUnsignedExpGolomb() + 1;
+                    int idBits = 32 - Integer.numberOfLeadingZeros(pps.mNumSliceGroups - 1);
+                    for (int i = 0; i < mapUnits; ++i)
+                        reader.readBits(idBits);            // slice_group_id
+                    break;
+            }
+        }
+        pps.mNumRefIdxL0DefaultActive = readUnsigned(reader, 31, "num_ref_idx_l0_default_active_minus1") + 1;
+        pps.mNumRefIdxL1DefaultActive = readUnsigned(reader, 31, "num_ref_idx_l1_default_active_minus1") + 1;
+        pps.mWeightedPred = reader.readBit();
+        pps.mWeightedBipredIdc = reader.readBits(2);
+        pps.mPicInitQp = reader.readSignedExpGolomb() + 26;
+        pps.mPicInitQs = reader.readSignedExpGolomb() + 26;
+        pps.mChromaQpIndexOffset = reader.readSignedExpGolomb();
+        pps.mDeblockingFilterControlPresent = reader.readBit();
+        pps.mConstrainedIntraPred = reader.readBit();
+        pps.mRedundantPicCntPresent = reader.readBit();
+        pps.mSecondChromaQpIndexOffset = pps.mChromaQpIndexOffset;
+        if (reader.hasMoreRbspData()) {
+            pps.mTransform8x8Mode = reader.readBit();
+            pps.mScalingMatrixPresent = reader.readBit();
+            if (pps.mScalingMatrixPresent) {
+                int chromaFormatIdc = sps != null ? sps.mChromaFormatIdc : AvcSps.CHROMA_420;
+                skipScalingLists(reader, 6 + (pps.mTransform8x8Mode ? (chromaFormatIdc != AvcSps.CHROMA_444 ? 2 : 6) : 0));
+            }
+            pps.mSecondChromaQpIndexOffset = reader.readSignedExpGolomb();
+        }
+        return pps;
+    }
+
+    // Refer: ITU-T H.264 E.1.1
+    private static void parseVui(BitReader reader, AvcSps sps) {
+        if (reader.readBit()) {
+            int aspectRatioIdc = reader.readBits(8);
+            if (aspectRatioIdc == 255) {
+                sps.mSarWidth = reader.readBits(16);
+                sps.mSarHeight = reader.readBits(16);
+            } else if (aspectRatioIdc > 0 && aspectRatioIdc < SAR_TABLE.length / 2 + 1) {
+                sps.mSarWidth = SAR_TABLE[2 * (aspectRatioIdc - 1)];
+                sps.mSarHeight = SAR_TABLE[2 * (aspectRatioIdc - 1) + 1];
+            }
+        }
+        sps.mOverscanInfoPresent = reader.readBit();
+        if (sps.mOverscanInfoPresent)
+            sps.mOverscanAppropriate = reader.readBit();
+        if (reader.readBit()) {
+            sps.mVideoFormat = reader.readBits(3);
+            sps.mFullRange = reader.readBit();
+            if (reader.readBit()) {
+                sps.mColourPrimaries = reader.readBits(8);
+                sps.mTransferCharacteristics = reader.readBits(8);
+                sps.mMatrixCoefficients = reader.readBits(8);
+            }
+        }
+        if (reader.readBit()) {
+            sps.mChromaSampleLocTop = reader.readUnsignedExpGolomb();
+            sps.mChromaSampleLocBottom = reader.readUnsignedExpGolomb();
+        }
+        if (reader.readBit()) {
+            sps.mNumUnitsInTick = reader.readBits(32) & 0xffffffffl;
+            sps.mTimeScale = reader.readBits(32) & 0xffffffffl;
+            sps.mFixedFrameRate = reader.readBit();
+        }
+        sps.mNalHrdPresent = reader.readBit();
+        if (sps.mNalHrdPresent)
+            skipHrd(reader);
+        sps.mVclHrdPresent = reader.readBit();
+        if (sps.mVclHrdPresent)
+            skipHrd(reader);
+        if (sps.mNalHrdPresent || sps.mVclHrdPresent)
+            sps.mLowDelayHrd = reader.readBit();
+        sps.mPicStructPresent = reader.readBit();
+        sps.mBitstreamRestriction = reader.readBit();
+        if (sps.mBitstreamRestriction) {
+            reader.readBit();                   // motion_vectors_over_pic_boundaries_flag
+            reader.readUnsignedExpGolomb();     // max_bytes_per_pic_denom
+            reader.readUnsignedExpGolomb();     // max_bits_per_mb_denom
+            reader.readUnsignedExpGolomb();     // log2_max_mv_length_horizontal
+            reader.readUnsignedExpGolomb();     // log2_max_mv_length_vertical
+            sps.mMaxNumReorderFrames = readUnsigned(reader, 16, "max_num_reorder_frames");
+            sps.mMaxDecFrameBuffering = readUnsigned(reader, 16, "max_dec_frame_buffering");
+        }
+    }
+
+    // Refer: ITU-T H.264 E.1.2
+    private static void skipHrd(BitReader reader) {
+        int cpbCount = readUnsigned(reader, 31, "cpb_cnt_minus1") + 1;
+        reader.readBits(8);                     // bit_rate_scale, cpb_size_scale
+        for (int i = 0; i < cpbCount; ++i) {
+            reader.readUnsignedExpGolomb();     // bit_rate_value_minus1
+            reader.readUnsignedExpGolomb();     // cpb_size_value_minus1
+            reader.readBit();                   // cbr_flag
+        }
+        reader.readBits(20);                    // four delay and offset lengths
+    }
+
+    // Refer: ITU-T H.264 7.3.2.1.1.1, lists are only skipped, the values are of no use here
+    private static void skipScalingLists(BitReader reader, int count) {
+        for (int i = 0; i < count; ++i) {
+            if (!reader.readBit())
+                continue;
+            int size = SCALING_LIST_SIZES[i];
+            int lastScale = 8;
+            int nextScale = 8;
+            for (int j = 0; j < size && nextScale != 0; ++j) {
+                int delta = reader.readSignedExpGolomb();
+                nextScale = (lastScale + delta + 256) % 256;
+                if (nextScale != 0)
+                    lastScale = nextScale;
+            }
+        }
+    }
+
+    private static int readUnsigned(BitReader reader, int max, String name) {
+        int value = reader.readUnsignedExpGolomb();
+        if (value < 0 || value > max)
+            throw new IllegalStateException("Invalid " + name + " " + (value & 0xffffffffl));
+        return value;
+    }
+
+    private static BitReader readerFor(ByteBuffer buffer) {
+        if (buffer.hasArray())
+            return new BitReader(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        byte[] data = new byte[buffer.remaining()];
+        buffer.duplicate().get(data);
+        return new BitReader(data, 0, data.length);
+    }
 }
@@ -0,0 +1,162 @@
+package net.ypresto.androidtranscoder.utils;
+
+/**
+ * Reads bits and Exp-Golomb codes from the payload of an H.264 NAL unit, dropping emulation
+ * prevention bytes as it goes.  Up to 64 bits are cached in a long so most reads are a shift,
+ * and nothing is allocated, a reader can be reset onto each parameter set in turn.
+ *
+ * Refer: ITU-T H.264 7.2, 7.4.1 and 9.1
+ */
+public final class BitReader {
+    private byte[] mData;
+    private int mStart;
+    private int mPosition;      // Next byte to load into the cache
+    private int mEnd;
+    private int mZeros;         // Zero bytes loaded in a row, two then 0x03 is an emulation prevention byte
+    private long mCache;        // Unread bits, most significant first
+    private int mCacheBits;
+    private long mBitsRead;
+    private long mTrailingBitPosition = -1;
+
+    public BitReader() {
+    }
+
+    public BitReader(byte[] data, int offset, int length) {
+        reset(data, offset, length);
+    }
+
+    /**
+     * Read a NAL unit payload, after its header byte
+     */
+    public void reset(byte[] data, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > data.length)
+            throw new IndexOutOfBoundsException("Range " + offset + "+" + length + " outside " + data.length);
+        mData = data;
+        mStart = offset;
+        mPosition = offset;
+        mEnd = offset + length;
+        mZeros = 0;
+        mCache = 0;
+        mCacheBits = 0;
+        mBitsRead = 0;
+        mTrailingBitPosition = -1;
+    }
+
+    public boolean readBit() {
+        return readBits(1) != 0;
+    }
+
+    /**
+     * @param count 0 to 32 bits
+     * @return bits as an unsigned value, so 32 bits may come back negative
+     */
+    public int readBits(int count) {
+        if (count == 0)
+            return 0;
+        if (count < 0 || count > 32)
+            throw new IllegalArgumentException("Can't read " + count + " bits at once");
+        if (mCacheBits < count) {
+            fill();
+            if (mCacheBits < count)
+                throw new IllegalStateException("Read past the end of the NAL unit");
+        }
+        int value = (int) (mCache >>> (64 - count));
+        mCache <<= count;
+        mCacheBits -= count;
+        mBitsRead += count;
+        return value;
+    }
+
+    public void skipBits(int count) {
+        while (count > 32) {
+            readBits(32);
+            count -= 32;
+        }
+        readBits(count);
+    }
+
+    /**
+     * Unsigned Exp-Golomb code, ue(v)
+     */
+    public int readUnsignedExpGolomb() {
+        if (mCacheBits < 32)
+            fill();
+        int leadingZeros = mCache == 0 ? 64 : Long.numberOfLeadingZeros(mCache);
+        if (2 * leadingZeros + 1 <= mCacheBits) {
+            int length = 2 * leadingZeros + 1;
+            long value = (mCache >>> (64 - length)) - 1;
+            mCache <<= length;
+            mCacheBits -= length;
+            mBitsRead += length;
+            return (int) value;
+        }
+        // Codes longer than the cache, only in malformed or unusual streams
+        leadingZeros = 0;
+        while (!readBit()) {
+            if (++leadingZeros > 31)
+                throw new IllegalStateException("Exp-Golomb code is too long");
+        }
+        return (int) ((1l << leadingZeros) - 1 + (readBits(leadingZeros) & 0xffffffffl));
+    }
+
+    /**
+     * Signed Exp-Golomb code, se(v)
+     */
+    public int readSignedExpGolomb() {
+        int codeNum = readUnsignedExpGolomb();
+        return (codeNum & 1) != 0 ? (codeNum >>> 1) + 1 : -(codeNum >>> 1);
+    }
+
+    /**
+     * Bits read, not counting emulation prevention bytes
+     */
+    public long getBitsRead() {
+        return mBitsRead;
+    }
+
+    /**
+     * Whether there is more data before the RBSP trailing bits, more_rbsp_data()
+     */
+    public boolean hasMoreRbspData() {
+        if (mTrailingBitPosition < 0)
+            mTrailingBitPosition = findTrailingBit();
+        return mBitsRead < mTrailingBitPosition;
+    }
+
+    // Payload bit position of the stop bit, the last one bit once trailing zero bytes are ignored
+    private long findTrailingBit() {
+        long payloadBytes = 0;
+        long lastNonZero = -1;
+        int lastByte = 0;
+        int zeros = 0;
+        for (int i = mStart; i < mEnd; ++i) {
+            int value = mData[i] & 0xff;
+            if (zeros >= 2 && value == 3) {
+                zeros = 0;
+                continue;
+            }
+            zeros = value == 0 ? zeros + 1 : 0;
+            if (value != 0) {
+                lastNonZero = payloadBytes;
+                lastByte = value;
+            }
+            ++payloadBytes;
+        }
+        if (lastNonZero < 0)
+            return 0;
+        return lastNonZero * 8 + 7 - Integer.numberOfTrailingZeros(lastByte);
+    }
+
+    private void fill() {
+        while (mCacheBits <= 56 && mPosition < mEnd) {
+            int value = mData[mPosition++] & 0xff;
+            if (mZeros >= 2 && value == 3) {
+                mZeros = 0;
+                continue;
+            }
+            mZeros = value == 0 ? mZeros + 1 : 0;
+            mCache |= (long) value << (56 - mCacheBits);
+            mCacheBits += 8;
+        }
+    }
+}
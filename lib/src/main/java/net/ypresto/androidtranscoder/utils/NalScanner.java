@@ -0,0 +1,252 @@
+package net.ypresto.androidtranscoder.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits H.264 elementary stream data into NAL units and converts between Annex-B start codes
+ * and the 4 byte length prefixes MP4 samples carry.  Start codes in direct buffers are searched
+ * for eight bytes at a time, only words holding two zero bytes in a row are looked at byte by
+ * byte.  Heap buffers are searched in their array, skipping up to three bytes at a time.
+ *
+ * Units are kept as offset and length pairs, absolute within the buffer and not counting start
+ * codes or length prefixes, in an array that is reused from one scan to the next.  Conversion
+ * is done in place, heap or direct, and moves no data when every start code is 4 bytes long.
+ *
+ * Refer: ITU-T H.264 B.1.1 and ISO/IEC 14496-15 5.3.4.2
+ */
+public final class NalScanner {
+    public static final int PREFIX_SIZE = 4;
+    private static final long ONES = 0x0101010101010101L;
+    private static final long HIGHS = 0x8080808080808080L;
+
+    private int[] mUnits = new int[32];
+    private int mCount;
+    private byte[] mScratch;
+
+    /**
+     * Find the NAL units of Annex-B data from the buffer's position to its limit.  Leading and
+     * trailing zero bytes belong to no unit.
+     *
+     * @return number of units found
+     */
+    public int scanAnnexB(ByteBuffer buffer) {
+        mCount = 0;
+        int end = buffer.limit();
+        int unitStart = -1;
+        int i = findStartCode(buffer, buffer.position(), end);
+        while (i < end) {
+            if (unitStart >= 0)
+                add(unitStart, trimZeros(buffer, unitStart, i));
+            unitStart = i + 3;
+            i = findStartCode(buffer, unitStart, end);
+        }
+        if (unitStart >= 0)
+            add(unitStart, trimZeros(buffer, unitStart, end));
+        return mCount;
+    }
+
+    /**
+     * Find the NAL units of length prefixed data from the buffer's position to its limit
+     *
+     * @param lengthSize 1, 2 or 4 bytes, one more than the avcC lengthSizeMinusOne
+     * @return number of units found
+     */
+    public int scanLengthPrefixed(ByteBuffer buffer, int lengthSize) {
+        if (lengthSize != 1 && lengthSize != 2 && lengthSize != 4)
+            throw new IllegalArgumentException("Invalid NAL length size " + lengthSize);
+        mCount = 0;
+        int end = buffer.limit();
+        int i = buffer.position();
+        while (i < end) {
+            if (end - i < lengthSize)
+                throw new IllegalStateException("Truncated NAL length at " + i);
+            long length = 0;
+            for (int prefixEnd = i + lengthSize; i < prefixEnd; ++i)
+                length = (length << 8) | (buffer.get(i) & 0xff);
+            if (length > end - i)
+                throw new IllegalStateException("NAL length " + length + " at " + (i - lengthSize) + " overruns the buffer");
+            add(i, (int) length);
+            i += (int) length;
+        }
+        return mCount;
+    }
+
+    /**
+     * Rewrite Annex-B data in the buffer as 4 byte length prefixed NAL units.  The buffer's limit
+     * is moved to the end of the converted data, which grows by a byte for each 3 byte start code.
+     *
+     * @return number of units converted
+     */
+    public int annexBToLengthPrefixed(ByteBuffer buffer) {
+        scanAnnexB(buffer);
+        rewrite(buffer, true);
+        return mCount;
+    }
+
+    /**
+     * Rewrite length prefixed data in the buffer as Annex-B with 4 byte start codes.  The buffer's
+     * limit is moved to the end of the converted data.
+     *
+     * @param lengthSize 1, 2 or 4 bytes, one more than the avcC lengthSizeMinusOne
+     * @return number of units converted
+     */
+    public int lengthPrefixedToAnnexB(ByteBuffer buffer, int lengthSize) {
+        scanLengthPrefixed(buffer, lengthSize);
+        rewrite(buffer, false);
+        return mCount;
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * Offset and length of each unit from the last scan or conversion, at 2 * index and
+     * 2 * index + 1.  Valid until the next call, entries past getCount are unspecified.
+     */
+    public int[] getUnits() {
+        return mUnits;
+    }
+
+    public int getOffset(int index) {
+        return mUnits[2 * index];
+    }
+
+    public int getLength(int index) {
+        return mUnits[2 * index + 1];
+    }
+
+    /**
+     * nal_unit_type of a unit, 7 for SPS, 8 for PPS, 5 for an IDR slice
+     */
+    public int getType(ByteBuffer buffer, int index) {
+        return getLength(index) > 0 ? buffer.get(getOffset(index)) & 0x1f : -1;
+    }
+
+    /**
+     * Offset of the next 00 00 01 at or after start, or end if there is none
+     */
+    static int findStartCode(ByteBuffer buffer, int start, int end) {
+        if (buffer.hasArray())
+            return findStartCode(buffer.array(), buffer.arrayOffset(), start, end);
+        int i = start;
+        // A start code needs two zero bytes in a row, so a word can be skipped unless it holds a
+        // pair or ends on a zero that the next word might continue.  The zero byte test can
+        // also flag a 01 just before a zero, which only costs a byte by byte look.
+        while (i + 8 <= end) {
+            long word = buffer.getLong(i);
+            long zeros = (word - ONES) & ~word & HIGHS;
+            if ((zeros & (zeros << 8)) == 0 && (zeros & 0x80) == 0) {
+                i += 8;
+                continue;
+            }
+            int wordEnd = Math.min(i + 8, end - 2);
+            for (; i < wordEnd; ++i) {
+                if (buffer.get(i) == 0 && buffer.get(i + 1) == 0 && buffer.get(i + 2) == 1)
+                    return i;
+            }
+            if (wordEnd == end - 2)
+                return end;
+        }
+        for (; i < end - 2; ++i) {
+            if (buffer.get(i) == 0 && buffer.get(i + 1) == 0 && buffer.get(i + 2) == 1)
+                return i;
+        }
+        return end;
+    }
+
+    // Looks at the byte a start code beginning at i would end on, anything but 00 or 01 there
+    // rules out start codes beginning at i, i + 1 and i + 2
+    private static int findStartCode(byte[] data, int offset, int start, int end) {
+        for (int i = start + 2; i < end; ) {
+            byte value = data[offset + i];
+            if (value == 0) {
+                ++i;
+            } else if (value == 1 && data[offset + i - 1] == 0 && data[offset + i - 2] == 0) {
+                return i - 2;
+            } else
+                i += 3;
+        }
+        return end;
+    }
+
+    // Length of a unit once the zeros of a following 4 byte start code or trailing_zero_8bits are dropped
+    private static int trimZeros(ByteBuffer buffer, int start, int end) {
+        while (end > start && buffer.get(end - 1) == 0)
+            --end;
+        return end - start;
+    }
+
+    private void add(int offset, int length) {
+        if (2 * mCount + 2 > mUnits.length) {
+            int[] units = new int[mUnits.length * 2];
+            System.arraycopy(mUnits, 0, units, 0, mUnits.length);
+            mUnits = units;
+        }
+        mUnits[2 * mCount] = offset;
+        mUnits[2 * mCount + 1] = length;
+        ++mCount;
+    }
+
+    // Lay the scanned units out from the buffer's position, each behind a 4 byte prefix
+    private void rewrite(ByteBuffer buffer, boolean lengthPrefix) {
+        int base = buffer.position();
+        long size = 0;
+        for (int i = 0; i < mCount; ++i)
+            size += PREFIX_SIZE + getLength(i);
+        if (size > buffer.capacity() - base)
+            throw new IllegalStateException("Converted NAL units need " + size + " bytes, only " + (buffer.capacity() - base) + " available");
+        // Units moving towards the front go first in order and those moving back last in
+        // reverse order, so no unit is overwritten before it has been moved
+        int destination = base;
+        for (int i = 0; i < mCount; ++i) {
+            destination += PREFIX_SIZE;
+            if (destination <= getOffset(i))
+                move(buffer, getOffset(i), destination, getLength(i));
+            destination += getLength(i);
+        }
+        for (int i = mCount - 1; i >= 0; --i) {
+            destination -= getLength(i);
+            if (destination > getOffset(i))
+                move(buffer, getOffset(i), destination, getLength(i));
+            destination -= PREFIX_SIZE;
+        }
+        buffer.limit(base + (int) size);
+        destination = base;
+        for (int i = 0; i < mCount; ++i) {
+            int prefix = lengthPrefix ? getLength(i) : 1;
+            buffer.put(destination, (byte) (prefix >>> 24));
+            buffer.put(destination + 1, (byte) (prefix >>> 16));
+            buffer.put(destination + 2, (byte) (prefix >>> 8));
+            buffer.put(destination + 3, (byte) prefix);
+            mUnits[2 * i] = destination + PREFIX_SIZE;
+            destination += PREFIX_SIZE + getLength(i);
+        }
+    }
+
+    private void move(ByteBuffer buffer, int from, int to, int length) {
+        if (from == to || length == 0)
+            return;
+        if (buffer.hasArray()) {
+            System.arraycopy(buffer.array(), buffer.arrayOffset() + from, buffer.array(), buffer.arrayOffset() + to, length);
+            return;
+        }
+        // Direct buffers go through a scratch array in chunks, from whichever end keeps the source intact
+        if (mScratch == null)
+            mScratch = new byte[8192];
+        ByteBuffer source = buffer.duplicate();
+        ByteBuffer target = buffer.duplicate();
+        int done = 0;
+        while (done < length) {
+            int chunk = Math.min(mScratch.length, length - done);
+            int offset = to < from ? done : length - done - chunk;
+            source.limit(from + offset + chunk);
+            source.position(from + offset);
+            source.get(mScratch, 0, chunk);
+            target.limit(to + offset + chunk);
+            target.position(to + offset);
+            target.put(mScratch, 0, chunk);
+            done += chunk;
+        }
+    }
+}